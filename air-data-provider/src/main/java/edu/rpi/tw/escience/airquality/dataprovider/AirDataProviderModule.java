@@ -17,11 +17,14 @@ import edu.rpi.tw.escience.semanteco.Domain;
 import edu.rpi.tw.escience.semanteco.Module;
 import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
 import edu.rpi.tw.escience.semanteco.ProvidesDomain;
+import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
+import edu.rpi.tw.escience.semanteco.facets.DomainCache;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
 import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
-import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
+import edu.rpi.tw.escience.semanteco.query.OptionalComponent;
 import edu.rpi.tw.escience.semanteco.query.Query;
 import edu.rpi.tw.escience.semanteco.query.Query.Type;
 import edu.rpi.tw.escience.semanteco.query.QueryResource;
@@ -41,87 +44,38 @@ public class AirDataProviderModule implements Module, ProvidesDomain {
 	private static final String AIR_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/air.owl#";
 
 	public static final String QUERY_NS = "http://aquarius.tw.rpi.edu/projects/semantaqua/data-source/query-variable/";
-	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
-	private static final String PROV_NS = "http://www.w3.org/ns/prov#";
-	private static final String LAT = "lat";
-	private static final String LONG = "long";
-	private static final String WGS_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
 	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
 	private static final String ISAIR_VAR = "isAir";
+	private static final String AQI_VAR = "aqi";
+
+	static {
+		SiteTypes.register(ISAIR_VAR, AIR_NS+"AirSite");
+		SiteTypes.registerValue(AQI_VAR, AIR_NS+"hasAQICategory");
+	}
+
 	private ModuleConfiguration config = null;
+	private final DomainCache domainCache = new DomainCache(new DomainCache.Builder() {
+		@Override
+		public List<Domain> buildDomains(final Request request) {
+			return AirDataProviderModule.this.buildDomains(request);
+		}
+	});
 	private static Logger log = Logger.getLogger(AirDataProviderModule.class);
-	private String stateAbbr = null;
 
 	
 	@Override
 	public void visit(final Model model, final Request request, final Domain domain) {
 		final Logger log = request.getLogger();
 		log.debug("Visiting AirDataProviderModule building data model");
-		this.stateAbbr = (String)request.getParam("state");
-		if(stateAbbr == null || stateAbbr.isEmpty()) {
-			throw new IllegalArgumentException("State parameter not supplied. Expected two digit state abbreviation, e.g. CA.");
+		final String stateCode = FipsCodes.getStateCode(request);
+		final String countyCode = FipsCodes.getCountyCode(request);
+		// recent readings are served from the poller's buffers once it has loaded the county
+		if(!AirPoller.isEnabled() || !AirPoller.getInstance().copyTo(stateCode, countyCode, model)) {
+			AirModelLoader.load(request, config, stateCode, countyCode, model);
 		}
-		
-		// TODO build air model here (cf {@link WaterDataProviderModule#visit(Model, Request)})
-		final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
-		final Variable measurement = query.getVariable(VAR_NS+"measurement");
-		final QueryResource polHasCounty = query.getResource(POL_NS+"hasCounty");
-		final QueryResource polHasState = query.getResource(POL_NS+"hasState");
-		final QueryResource polHasCharacteristic = query.getResource(POL_NS+"hasCharacteristic");
-		final QueryResource polHasValue = query.getResource(POL_NS+"hasValue");
-		final QueryResource airAirMeasurement = query.getResource(AIR_NS+"AirMeasurement");
-		final Variable unit = query.getVariable(QUERY_NS+"unit");
-		final Variable value = query.getVariable(QUERY_NS+"value");
-		final Variable site = query.getVariable(QUERY_NS+"site");
-		final Variable element = query.getVariable(QUERY_NS+"element");
-		final QueryResource unitHasUnit = query.getResource(UNIT_NS+"hasUnit");
-		final QueryResource atLocation = query.getResource(PROV_NS+"atLocation");
-		final QueryResource hasMeasurement = query.getResource(POL_NS +"hasMeasurement");
-
-		final QueryResource type = query.getResource(RDF_NS+"type");
-
-		final Variable lat = query.getVariable(QUERY_NS+LAT);
-		final Variable lng = query.getVariable(QUERY_NS+LONG);
-		final QueryResource wgsLat = query.getResource(WGS_NS+LAT);
-		final QueryResource wgsLong = query.getResource(WGS_NS+LONG);
-		final QueryResource airSite = query.getResource(AIR_NS+"AirSite");
-
-
-		String countyCode = (String) request.getParam("county");
-		String stateCode = (String) request.getParam("stateCode");
-		//test values
-		countyCode = "001";
-		stateCode = "08";
-		
-		final NamedGraphComponent graph = query.getNamedGraph("http://was.tw.rpi.edu/air-measurement-data");
-		graph.addPattern(measurement, polHasCounty, countyCode,null);
-		graph.addPattern(measurement, polHasState, stateCode,null);
-		//new patterns to test
-		graph.addPattern(measurement, polHasCharacteristic, element);
-		graph.addPattern(measurement, polHasValue, value);
-		graph.addPattern(measurement, unitHasUnit, unit);
-		graph.addPattern(measurement, atLocation, site);
-
-		
-		final NamedGraphComponent graph2 = query.getNamedGraph("http://was.tw.rpi.edu/air-monitoring-sites");
-		graph2.addPattern(site, wgsLat, lat);
-		graph2.addPattern(site, wgsLong, lng);
-
-		//new construct patterns to test
-		final GraphComponentCollection construct = query.getConstructComponent();
-		construct.addPattern(measurement, type, airAirMeasurement);
-		construct.addPattern(measurement, polHasCounty, countyCode,null);
-		construct.addPattern(measurement, polHasState, stateCode,null);
-		construct.addPattern(measurement, polHasCharacteristic, element);
-		construct.addPattern(measurement, polHasValue, value);
-		construct.addPattern(measurement, unitHasUnit, unit);
-		construct.addPattern(site, hasMeasurement, measurement);
-
-		construct.addPattern(site, type, airSite);
-		construct.addPattern(site, wgsLat, lat);
-		construct.addPattern(site, wgsLong, lng);
-
-		config.getQueryExecutor(request).accept("text/turtle").execute(query, model);			
+		final long start = System.currentTimeMillis();
+		final int sites = AqiEngine.classify(model);
+		log.debug("Classified the AQI of "+sites+" air sites in "+(System.currentTimeMillis()-start)+" ms");
 	}
 
 	@Override
@@ -143,8 +97,15 @@ public class AirDataProviderModule implements Module, ProvidesDomain {
 		if(graphs != null && graphs.size() > 0) {
 			query.setNamespace("air", AIR_NS);
 			final Variable isAir = query.createVariableExpression("EXISTS { ?"+SITE_VAR+" a air:AirSite } as ?"+ISAIR_VAR);
+			// the AQI tier computed by AqiEngine selects the site's icon
+			final Variable aqi = query.getVariable(VAR_NS+AQI_VAR);
+			final QueryResource airHasAQICategory = query.getResource(AIR_NS+"hasAQICategory");
+			final OptionalComponent optional = query.createOptional();
+			optional.addPattern(site, airHasAQICategory, aqi);
+			graphs.get(0).addGraphComponent(optional);
 			Set<Variable> vars = new LinkedHashSet<Variable>(query.getVariables());
 			vars.add(isAir);
+			vars.add(aqi);
 			query.setVariables(vars);
 		}
 	}
@@ -158,7 +119,29 @@ public class AirDataProviderModule implements Module, ProvidesDomain {
 	}
 
 	@Override
-	public List<Domain> getDomains(Request request) {
+	public List<Domain> getDomains(final Request request) {
+		return domainCache.get(request);
+	}
+
+	/**
+	 * Rebuilds the domain description returned by
+	 * {@link #getDomains(Request)}, which is otherwise built once and
+	 * shared by all requests.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true}, or {"success": false,
+	 * "error": message} if the domains could not be rebuilt
+	 */
+	@QueryMethod
+	public String rebuildDomains(final Request request) {
+		return domainCache.rebuild(request);
+	}
+
+	/**
+	 * Builds the domains provided by this module
+	 * @param request Request object encapsulating RESTful call
+	 * @return
+	 */
+	protected List<Domain> buildDomains(final Request request) {
 		log.trace("getDomains");
 		List<Domain> domains = new ArrayList<Domain>();
 		Domain air = config.getDomain(URI.create("http://was.tw.rpi.edu/semanteco/air/air.owl#"), true);
@@ -193,6 +176,7 @@ public class AirDataProviderModule implements Module, ProvidesDomain {
 	@Override
 	public void setModuleConfiguration(ModuleConfiguration config) {
 		this.config = config;
+		domainCache.clear();
 	}
 	
 	protected void addDataSources(final Domain domain, final Request request) {
@@ -211,6 +195,12 @@ public class AirDataProviderModule implements Module, ProvidesDomain {
 		domain.addDataType("clean-air", "Clean Air", res);
 		res = config.getResource("polluted-air.png");
 		domain.addDataType("polluted-air", "Polluted Air", res);
+		// AQI tiers, see AqiEngine
+		domain.addDataType("air_good", "AQI Good", config.getResource("air_good.png"));
+		domain.addDataType("air_moderate", "AQI Moderate", config.getResource("air_moderate.png"));
+		domain.addDataType("air_unhealthy", "AQI Unhealthy", config.getResource("air_unhealthy.png"));
+		domain.addDataType("air_very_unhealthy", "AQI Very Unhealthy", config.getResource("air_very_unhealthy.png"));
+		domain.addDataType("air_hazardous", "AQI Hazardous", config.getResource("air_hazardous.png"));
 	}
 
 }
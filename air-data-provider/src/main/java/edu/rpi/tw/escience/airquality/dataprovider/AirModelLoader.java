@@ -0,0 +1,378 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import static edu.rpi.tw.escience.semanteco.query.Query.VAR_NS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
+import edu.rpi.tw.escience.semanteco.QueryExecutor;
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
+import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
+import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
+import edu.rpi.tw.escience.semanteco.query.Query;
+import edu.rpi.tw.escience.semanteco.query.Query.Type;
+import edu.rpi.tw.escience.semanteco.query.QueryResource;
+import edu.rpi.tw.escience.semanteco.query.Variable;
+
+/**
+ * AirModelLoader loads the air measurements of a county. The load is split
+ * into one CONSTRUCT per characteristic measured in the county, and the
+ * partitions are fetched in parallel on a pool of
+ * {@value #LOADER_THREADS_PROPERTY} threads shared by all requests. Each
+ * partition and each county's list of characteristics is cached for
+ * {@value #CACHE_TTL_PROPERTY} minutes unless its load failed or returned
+ * nothing. Partitions streamed from the endpoint are only loaded by one
+ * request at a time, so concurrent and repeated requests for the same
+ * county only reach the endpoint once per period. The characteristics are
+ * listed from the streaming endpoint ({@link StreamingModelLoader#getEndpoint()});
+ * if it is not set or the characteristics cannot be listed the county is
+ * loaded with one query.
+ * @author ewpatton
+ *
+ */
+final class AirModelLoader {
+
+	/**
+	 * System property controlling the number of threads loading partitions
+	 */
+	static final String LOADER_THREADS_PROPERTY = "semanteco.air.loaderThreads";
+	/**
+	 * System property controlling how long, in minutes, partitions are cached
+	 */
+	static final String CACHE_TTL_PROPERTY = "semanteco.air.cacheTtlMinutes";
+	/**
+	 * System property controlling the number of partitions cached
+	 */
+	static final String CACHE_SIZE_PROPERTY = "semanteco.air.cacheSize";
+	static final String MEASUREMENT_GRAPH = "http://was.tw.rpi.edu/air-measurement-data";
+	static final String SITE_GRAPH = "http://was.tw.rpi.edu/air-monitoring-sites";
+	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	private static final String AIR_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/air.owl#";
+	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
+	private static final String PROV_NS = "http://www.w3.org/ns/prov#";
+	private static final String WGS_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String ELEMENT_VAR = "element";
+	private static final Logger log = Logger.getLogger(AirModelLoader.class);
+
+	private static final ExecutorService LOADERS = Executors.newFixedThreadPool(
+			Integer.getInteger(LOADER_THREADS_PROPERTY, 4), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "air-loader-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private static final TtlCache<Model> PARTITIONS = new TtlCache<Model>(
+			TimeUnit.MINUTES.toMillis(Integer.getInteger(CACHE_TTL_PROPERTY, 15)),
+			Integer.getInteger(CACHE_SIZE_PROPERTY, 256));
+	private static final TtlCache<List<String>> CHARACTERISTICS = new TtlCache<List<String>>(
+			TimeUnit.MINUTES.toMillis(Integer.getInteger(CACHE_TTL_PROPERTY, 15)),
+			Integer.getInteger(CACHE_SIZE_PROPERTY, 256));
+	private static final ConcurrentMap<String, FutureTask<Model>> LOADING =
+			new ConcurrentHashMap<String, FutureTask<Model>>();
+
+	private AirModelLoader() {
+	}
+
+	/**
+	 * Loads the air measurements of a county into the model. A partition
+	 * that fails to load is logged and skipped.
+	 * @param request Request object encapsulating the client's request
+	 * @param config Air data module's configuration
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @param model A Jena model to populate with triples
+	 */
+	static void load(final Request request, final ModuleConfiguration config,
+			final String stateCode, final String countyCode, final Model model) {
+		final Logger log = request.getLogger();
+		final long start = System.currentTimeMillis();
+		List<String> elements = listCharacteristics(stateCode, countyCode);
+		if(elements == null) {
+			elements = Collections.singletonList(null);
+		}
+		final List<Future<Model>> partials = new ArrayList<Future<Model>>();
+		for(final String element : elements) {
+			partials.add(LOADERS.submit(new Callable<Model>() {
+				@Override
+				public Model call() throws InterruptedException, ExecutionException {
+					return loadPartition(request, config, stateCode, countyCode, element);
+				}
+			}));
+		}
+		for(int i=0;i<partials.size();i++) {
+			try {
+				model.add(partials.get(i).get());
+			}
+			catch(InterruptedException e) {
+				log.warn("Interrupted while loading air measurements", e);
+				for(Future<Model> partial : partials) {
+					partial.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch(ExecutionException e) {
+				// a partition loaded by another request fails with that load's exception
+				final Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+				log.error("Unable to load air measurements of "+elements.get(i), cause);
+			}
+		}
+		log.info("Loading air measurements of "+stateCode+countyCode+" in "+partials.size()+
+				" partitions took "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * Loads one partition, or gets it from the cache. If the streaming
+	 * endpoint is set, the partition is streamed from it and only one
+	 * request loads it at a time; the others wait for its result. Otherwise,
+	 * or if it cannot be streamed, the partition is loaded with the
+	 * request's query executor and is not shared with other requests.
+	 * @param element Characteristic of the partition, or null for every characteristic
+	 * @return The partition's triples, which must not be modified
+	 * @throws InterruptedException if interrupted while waiting for another load
+	 * @throws ExecutionException if the load failed
+	 */
+	private static Model loadPartition(final Request request, final ModuleConfiguration config,
+			final String stateCode, final String countyCode, final String element)
+			throws InterruptedException, ExecutionException {
+		final String key = stateCode+" "+countyCode+" "+element;
+		final Model cached = PARTITIONS.get(key);
+		if(cached != null) {
+			return cached;
+		}
+		final Query query = buildQuery(config, stateCode, countyCode, element);
+		final String endpoint = StreamingModelLoader.getEndpoint();
+		if(endpoint != null) {
+			try {
+				return stream(key, endpoint, query.toString());
+			}
+			catch(ExecutionException e) {
+				if(!(e.getCause() instanceof IOException)) {
+					throw e;
+				}
+				request.getLogger().warn("Unable to stream air measurements of "+key+
+						", falling back to the query executor", e.getCause());
+			}
+		}
+		final Model partition = ModelFactory.createDefaultModel();
+		// accept() applies to the next execute(), so hold the executor
+		// in case the configuration hands it to several threads
+		final QueryExecutor executor = config.getQueryExecutor(request);
+		synchronized(executor) {
+			executor.accept("text/turtle").execute(query, partition);
+		}
+		remember(key, partition);
+		return partition;
+	}
+
+	/**
+	 * Streams a partition from the endpoint. The load uses nothing from the
+	 * request that starts it, so concurrent requests for the partition wait
+	 * for it instead of loading it again.
+	 * @param key Cache key of the partition
+	 * @param endpoint Endpoint to stream from
+	 * @param query CONSTRUCT query of the partition
+	 * @return The partition's triples, which must not be modified
+	 * @throws InterruptedException if interrupted while waiting for another load
+	 * @throws ExecutionException if the load failed
+	 */
+	static Model stream(final String key, final String endpoint, final String query)
+			throws InterruptedException, ExecutionException {
+		final FutureTask<Model> task = new FutureTask<Model>(new Callable<Model>() {
+			@Override
+			public Model call() throws IOException {
+				final Model partition = ModelFactory.createDefaultModel();
+				StreamingModelLoader.load(endpoint, query, partition);
+				remember(key, partition);
+				return partition;
+			}
+		});
+		FutureTask<Model> running = LOADING.putIfAbsent(key, task);
+		if(running == null) {
+			running = task;
+			try {
+				task.run();
+			}
+			finally {
+				LOADING.remove(key, task);
+			}
+		}
+		return running.get();
+	}
+
+	/**
+	 * Caches a loaded partition. Empty partitions are not cached, since a
+	 * query executor that fails returns nothing rather than an error, so
+	 * they are loaded again by the next request.
+	 */
+	private static void remember(final String key, final Model partition) {
+		if(!partition.isEmpty()) {
+			PARTITIONS.put(key, partition);
+		}
+	}
+
+	/**
+	 * Lists the characteristics measured in a county, or gets them from the cache
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @return The characteristic URIs, or null if they could not be listed
+	 */
+	static List<String> listCharacteristics(final String stateCode, final String countyCode) {
+		final String endpoint = StreamingModelLoader.getEndpoint();
+		if(endpoint == null) {
+			return null;
+		}
+		final String key = stateCode+" "+countyCode;
+		List<String> elements = CHARACTERISTICS.get(key);
+		if(elements != null) {
+			return elements;
+		}
+		elements = new ArrayList<String>();
+		try {
+			final BindingReader reader = BindingReader.open(SparqlConnection.open(endpoint,
+					buildCharacteristicQuery(stateCode, countyCode), "application/sparql-results+json"));
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					final String element = binding.get(ELEMENT_VAR);
+					if(element != null) {
+						elements.add(element);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to list the air characteristics of "+stateCode+countyCode, e);
+			return null;
+		}
+		elements = Collections.unmodifiableList(elements);
+		if(!elements.isEmpty()) {
+			CHARACTERISTICS.put(key, elements);
+		}
+		return elements;
+	}
+
+	/**
+	 * Builds the query listing the characteristics measured in a county
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @return
+	 */
+	static String buildCharacteristicQuery(final String stateCode, final String countyCode) {
+		return "SELECT DISTINCT ?"+ELEMENT_VAR+" WHERE { GRAPH <"+MEASUREMENT_GRAPH+"> { " +
+				"?measurement <"+POL_NS+"hasCounty> \""+countyCode+"\" ; " +
+				"<"+POL_NS+"hasState> \""+stateCode+"\" ; " +
+				"<"+POL_NS+"hasCharacteristic> ?"+ELEMENT_VAR+" } }";
+	}
+
+	/**
+	 * Builds the CONSTRUCT query for a partition
+	 * @param config Air data module's configuration
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @param elementUri Characteristic of the partition, or null for every characteristic
+	 * @return
+	 */
+	static Query buildQuery(final ModuleConfiguration config, final String stateCode,
+			final String countyCode, final String elementUri) {
+		final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+		final Variable measurement = query.getVariable(VAR_NS+"measurement");
+		final QueryResource polHasCounty = query.getResource(POL_NS+"hasCounty");
+		final QueryResource polHasState = query.getResource(POL_NS+"hasState");
+		final QueryResource polHasCharacteristic = query.getResource(POL_NS+"hasCharacteristic");
+		final QueryResource polHasValue = query.getResource(POL_NS+"hasValue");
+		final QueryResource airAirMeasurement = query.getResource(AIR_NS+"AirMeasurement");
+		final Variable unit = query.getVariable(AirDataProviderModule.QUERY_NS+"unit");
+		final Variable value = query.getVariable(AirDataProviderModule.QUERY_NS+"value");
+		final Variable site = query.getVariable(AirDataProviderModule.QUERY_NS+"site");
+		final QueryResource unitHasUnit = query.getResource(UNIT_NS+"hasUnit");
+		final QueryResource atLocation = query.getResource(PROV_NS+"atLocation");
+		final QueryResource hasMeasurement = query.getResource(POL_NS+"hasMeasurement");
+		final QueryResource type = query.getResource(RDF_NS+"type");
+		final Variable lat = query.getVariable(AirDataProviderModule.QUERY_NS+"lat");
+		final Variable lng = query.getVariable(AirDataProviderModule.QUERY_NS+"long");
+		final QueryResource wgsLat = query.getResource(WGS_NS+"lat");
+		final QueryResource wgsLong = query.getResource(WGS_NS+"long");
+		final QueryResource airSite = query.getResource(AIR_NS+"AirSite");
+
+		final NamedGraphComponent graph = query.getNamedGraph(MEASUREMENT_GRAPH);
+		graph.addPattern(measurement, polHasCounty, countyCode, null);
+		graph.addPattern(measurement, polHasState, stateCode, null);
+		final GraphComponentCollection construct = query.getConstructComponent();
+		if(elementUri != null) {
+			final QueryResource element = query.getResource(elementUri);
+			graph.addPattern(measurement, polHasCharacteristic, element);
+			construct.addPattern(measurement, polHasCharacteristic, element);
+		}
+		else {
+			final Variable element = query.getVariable(AirDataProviderModule.QUERY_NS+ELEMENT_VAR);
+			graph.addPattern(measurement, polHasCharacteristic, element);
+			construct.addPattern(measurement, polHasCharacteristic, element);
+		}
+		graph.addPattern(measurement, polHasValue, value);
+		graph.addPattern(measurement, unitHasUnit, unit);
+		graph.addPattern(measurement, atLocation, site);
+
+		final NamedGraphComponent sites = query.getNamedGraph(SITE_GRAPH);
+		sites.addPattern(site, wgsLat, lat);
+		sites.addPattern(site, wgsLong, lng);
+
+		construct.addPattern(measurement, type, airAirMeasurement);
+		construct.addPattern(measurement, polHasCounty, countyCode, null);
+		construct.addPattern(measurement, polHasState, stateCode, null);
+		construct.addPattern(measurement, polHasValue, value);
+		construct.addPattern(measurement, unitHasUnit, unit);
+		construct.addPattern(site, hasMeasurement, measurement);
+		construct.addPattern(site, type, airSite);
+		construct.addPattern(site, wgsLat, lat);
+		construct.addPattern(site, wgsLong, lng);
+		return query;
+	}
+
+	/**
+	 * Drops every cached partition and characteristic list
+	 */
+	static void clear() {
+		PARTITIONS.clear();
+		CHARACTERISTICS.clear();
+	}
+
+	/**
+	 * Gets the number of cached partitions
+	 * @return
+	 */
+	static int size() {
+		return PARTITIONS.size();
+	}
+
+}
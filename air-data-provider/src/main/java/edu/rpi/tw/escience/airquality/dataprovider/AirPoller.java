@@ -0,0 +1,508 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
+
+/**
+ * AirPoller keeps the recent air measurements of the counties users are
+ * looking at, so requests are answered from memory instead of querying the
+ * measurement graph. The first request for a county schedules a full load
+ * of its timed measurements and is itself served by {@link AirModelLoader};
+ * afterwards a background thread polls every {@value #POLL_PROPERTY}
+ * minutes for the measurements newer than the newest one held and appends
+ * them to a ring buffer of the last {@value #BUFFER_PROPERTY} readings of
+ * each site and characteristic. Measurement times may be xsd:dateTime or,
+ * from dc:date, xsd:date; the measurements dated on the day of the newest
+ * one are fetched again and those already buffered are skipped.
+ *
+ * Counties that have not been requested for {@value #IDLE_PROPERTY} hours
+ * are no longer polled and their buffers are dropped, and at most
+ * {@value #MAX_COUNTIES_PROPERTY} counties are kept. Counties whose
+ * measurements carry no time cannot be polled and are always loaded by
+ * {@link AirModelLoader}. Polling reads from the streaming endpoint
+ * ({@link StreamingModelLoader#getEndpoint()}), so it only runs if that is
+ * set, and can be turned off with {@value #ENABLED_PROPERTY}=false.
+ * @author ewpatton
+ *
+ */
+final class AirPoller {
+
+	static final String ENABLED_PROPERTY = "semanteco.air.poller.enabled";
+	static final String POLL_PROPERTY = "semanteco.air.poller.minutes";
+	static final String BUFFER_PROPERTY = "semanteco.air.poller.readings";
+	static final String IDLE_PROPERTY = "semanteco.air.poller.idleHours";
+	static final String MAX_COUNTIES_PROPERTY = "semanteco.air.poller.maxCounties";
+	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	private static final String AIR_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/air.owl#";
+	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
+	private static final String PROV_NS = "http://www.w3.org/ns/prov#";
+	private static final String WGS_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
+	private static final String TIME_NS = "http://www.w3.org/2006/time#";
+	private static final String DC_NS = "http://purl.org/dc/terms/";
+	private static final String XSD_NS = "http://www.w3.org/2001/XMLSchema#";
+	private static final Node HAS_MEASUREMENT = Node.createURI(POL_NS+"hasMeasurement");
+	private static final Node IN_XSD_DATE_TIME = Node.createURI(TIME_NS+"inXSDDateTime");
+	private static final Node HAS_CHARACTERISTIC = Node.createURI(POL_NS+"hasCharacteristic");
+	private static final Logger log = Logger.getLogger(AirPoller.class);
+	private static final AirPoller INSTANCE = new AirPoller();
+
+	private final Map<String, County> counties = Collections.synchronizedMap(
+			new LinkedHashMap<String, County>(16, 0.75f, true) {
+				private static final long serialVersionUID = -6070812405367162127L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, AirPoller.County> eldest) {
+					return size() > Integer.getInteger(MAX_COUNTIES_PROPERTY, 64);
+				}
+			});
+	private ScheduledExecutorService poller = null;
+
+	private AirPoller() {
+	}
+
+	/**
+	 * Gets the poller shared by all requests
+	 * @return
+	 */
+	static AirPoller getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Indicates whether polling is enabled
+	 * @return
+	 */
+	static boolean isEnabled() {
+		return StreamingModelLoader.isEnabled() &&
+				!"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+	}
+
+	/**
+	 * Copies the buffered measurements of a county into a model, and starts
+	 * polling the county if it is not polled yet
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @param model A Jena model to populate with triples
+	 * @return true if the model was populated, false if the county has not
+	 * been loaded yet or cannot be polled and must be loaded by the caller
+	 */
+	boolean copyTo(final String stateCode, final String countyCode, final Model model) {
+		final String key = stateCode+countyCode;
+		County county = null;
+		boolean added = false;
+		synchronized(counties) {
+			county = counties.get(key);
+			if(county == null) {
+				county = new County(stateCode, countyCode);
+				counties.put(key, county);
+				added = true;
+			}
+		}
+		if(added) {
+			schedule(county);
+		}
+		return county.copyTo(model);
+	}
+
+	private synchronized void schedule(final County county) {
+		if(poller == null) {
+			poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "air-poller");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final long minutes = Long.getLong(POLL_PROPERTY, 15);
+			poller.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					pollAll();
+				}
+			}, minutes, minutes, TimeUnit.MINUTES);
+		}
+		poller.execute(new Runnable() {
+			@Override
+			public void run() {
+				county.poll();
+			}
+		});
+	}
+
+	/**
+	 * Polls every active county and drops the idle ones
+	 */
+	void pollAll() {
+		final long idle = TimeUnit.HOURS.toMillis(Long.getLong(IDLE_PROPERTY, 6));
+		final List<County> active = new ArrayList<County>();
+		synchronized(counties) {
+			for(County county : new ArrayList<County>(counties.values())) {
+				if(System.currentTimeMillis() - county.getLastAccess() > idle) {
+					counties.remove(county.stateCode+county.countyCode);
+				}
+				else {
+					active.add(county);
+				}
+			}
+		}
+		for(County county : active) {
+			county.poll();
+		}
+	}
+
+	/**
+	 * Gets the number of counties polled
+	 * @return
+	 */
+	int size() {
+		return counties.size();
+	}
+
+	/**
+	 * Drops every county
+	 */
+	void clear() {
+		counties.clear();
+	}
+
+	/**
+	 * Builds the query for the timed measurements of a county
+	 * @param stateCode Two digit FIPS state code
+	 * @param countyCode Three digit FIPS county code
+	 * @param since Time of the newest measurement held in milliseconds, or
+	 * {@link AqiEngine#UNTIMED} to select every measurement
+	 * @return
+	 */
+	static String buildQuery(final String stateCode, final String countyCode, final long since) {
+		return "CONSTRUCT { ?measurement a <"+AIR_NS+"AirMeasurement> ; " +
+				"<"+POL_NS+"hasCounty> \""+countyCode+"\" ; <"+POL_NS+"hasState> \""+stateCode+"\" ; " +
+				"<"+POL_NS+"hasCharacteristic> ?element ; <"+POL_NS+"hasValue> ?value ; " +
+				"<"+UNIT_NS+"hasUnit> ?unit ; <"+TIME_NS+"inXSDDateTime> ?time . " +
+				"?site <"+POL_NS+"hasMeasurement> ?measurement ; a <"+AIR_NS+"AirSite> ; " +
+				"<"+WGS_NS+"lat> ?lat ; <"+WGS_NS+"long> ?long } WHERE { " +
+				"GRAPH <"+AirModelLoader.MEASUREMENT_GRAPH+"> { " +
+				"?measurement <"+POL_NS+"hasCounty> \""+countyCode+"\" ; " +
+				"<"+POL_NS+"hasState> \""+stateCode+"\" ; " +
+				"<"+POL_NS+"hasCharacteristic> ?element ; <"+POL_NS+"hasValue> ?value ; " +
+				"<"+UNIT_NS+"hasUnit> ?unit ; <"+PROV_NS+"atLocation> ?site . " +
+				"{ ?measurement <"+TIME_NS+"inXSDDateTime> ?time } UNION { ?measurement <"+DC_NS+"date> ?time } " +
+				(since == AqiEngine.UNTIMED ? "" : "FILTER((datatype(?time) = <"+XSD_NS+"date> && " +
+						"?time >= \""+format("yyyy-MM-dd", since)+"\"^^<"+XSD_NS+"date>) || " +
+						"?time > \""+format("yyyy-MM-dd'T'HH:mm:ss'Z'", since)+"\"^^<"+XSD_NS+"dateTime>) ") +
+				"} GRAPH <"+AirModelLoader.SITE_GRAPH+"> { ?site <"+WGS_NS+"lat> ?lat ; <"+WGS_NS+"long> ?long } }";
+	}
+
+	private static String format(final String pattern, final long millis) {
+		final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	/**
+	 * The ring buffers of a county
+	 */
+	static final class County {
+		final String stateCode;
+		final String countyCode;
+		private final Map<Node, Site> sites = new HashMap<Node, Site>();
+		private long newest = AqiEngine.UNTIMED;
+		private boolean loaded = false;
+		private boolean timed = true;
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		County(final String stateCode, final String countyCode) {
+			this.stateCode = stateCode;
+			this.countyCode = countyCode;
+		}
+
+		long getLastAccess() {
+			return lastAccess;
+		}
+
+		/**
+		 * Fetches the measurements newer than the newest one buffered, or
+		 * every timed measurement on the first poll
+		 */
+		void poll() {
+			final long since;
+			synchronized(this) {
+				if(!timed) {
+					return;
+				}
+				since = newest;
+			}
+			final Model delta = ModelFactory.createDefaultModel();
+			final long start = System.currentTimeMillis();
+			try {
+				StreamingModelLoader.load(StreamingModelLoader.getEndpoint(),
+						buildQuery(stateCode, countyCode, since), delta);
+			}
+			catch(IOException e) {
+				log.warn("Unable to poll air measurements of "+stateCode+countyCode, e);
+				return;
+			}
+			catch(StreamingModelLoader.LimitExceededException e) {
+				log.warn("Unable to poll air measurements of "+stateCode+countyCode, e);
+				return;
+			}
+			final int readings = add(delta);
+			log.debug("Polled "+readings+" air measurements of "+stateCode+countyCode+" newer than "+
+					new Date(since)+" in "+(System.currentTimeMillis()-start)+" ms");
+		}
+
+		/**
+		 * Appends the measurements of a model to the ring buffers of their sites
+		 * @param model Measurements with their times and sites
+		 * @return The number of measurements added, not counting the ones
+		 * already buffered
+		 */
+		synchronized int add(final Model model) {
+			final Graph graph = model.getGraph();
+			final int capacity = Integer.getInteger(BUFFER_PROPERTY, 24);
+			final long since = newest;
+			final Map<Node, List<Reading>> bySite = new HashMap<Node, List<Reading>>();
+			final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					final Triple t = it.next();
+					final Reading reading = Reading.create(graph, t.getObject());
+					// readings older than the newest one held were fetched by an earlier poll
+					if(reading == null || reading.time < since) {
+						continue;
+					}
+					List<Reading> list = bySite.get(t.getSubject());
+					if(list == null) {
+						list = new ArrayList<Reading>();
+						bySite.put(t.getSubject(), list);
+					}
+					list.add(reading);
+				}
+			}
+			finally {
+				it.close();
+			}
+			int count = 0;
+			for(Map.Entry<Node, List<Reading>> entry : bySite.entrySet()) {
+				Site site = sites.get(entry.getKey());
+				if(site == null) {
+					site = new Site(entry.getKey(), capacity);
+					sites.put(entry.getKey(), site);
+				}
+				site.setTriples(graph);
+				final List<Reading> list = entry.getValue();
+				Collections.sort(list, Reading.BY_TIME);
+				for(Reading reading : list) {
+					if(site.add(reading)) {
+						newest = Math.max(newest, reading.time);
+						count++;
+					}
+				}
+			}
+			if(!loaded && newest == AqiEngine.UNTIMED) {
+				log.info("Air measurements of "+stateCode+countyCode+" have no time and will not be polled");
+				timed = false;
+			}
+			loaded = true;
+			return count;
+		}
+
+		/**
+		 * Copies the buffered measurements into a model
+		 * @param model A Jena model to populate with triples
+		 * @return false if the county has not been loaded or cannot be polled
+		 */
+		boolean copyTo(final Model model) {
+			lastAccess = System.currentTimeMillis();
+			final List<Triple> triples = new ArrayList<Triple>();
+			synchronized(this) {
+				if(!loaded || !timed) {
+					return false;
+				}
+				for(Site site : sites.values()) {
+					site.addTo(triples);
+				}
+			}
+			model.getGraph().getBulkUpdateHandler().add(triples);
+			return true;
+		}
+	}
+
+	/**
+	 * The triples of a site and a ring buffer of its latest readings of each
+	 * characteristic
+	 */
+	static final class Site {
+		private final Node uri;
+		private final int capacity;
+		private final Map<Node, Buffer> buffers = new LinkedHashMap<Node, Buffer>();
+		private List<Triple> triples = Collections.emptyList();
+
+		Site(final Node uri, final int capacity) {
+			this.uri = uri;
+			this.capacity = Math.max(1, capacity);
+		}
+
+		void setTriples(final Graph graph) {
+			final List<Triple> list = new ArrayList<Triple>();
+			final ExtendedIterator<Triple> it = graph.find(uri, Node.ANY, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					final Triple t = it.next();
+					if(!HAS_MEASUREMENT.equals(t.getPredicate())) {
+						list.add(t);
+					}
+				}
+			}
+			finally {
+				it.close();
+			}
+			if(!list.isEmpty()) {
+				triples = list;
+			}
+		}
+
+		/**
+		 * Appends a reading to the buffer of its characteristic
+		 * @param reading Reading to add
+		 * @return false if the reading is already buffered
+		 */
+		boolean add(final Reading reading) {
+			Buffer buffer = buffers.get(reading.characteristic);
+			if(buffer == null) {
+				buffer = new Buffer(capacity);
+				buffers.put(reading.characteristic, buffer);
+			}
+			return buffer.add(reading);
+		}
+
+		int size() {
+			int size = 0;
+			for(Buffer buffer : buffers.values()) {
+				size += buffer.size;
+			}
+			return size;
+		}
+
+		void addTo(final List<Triple> out) {
+			out.addAll(triples);
+			for(Buffer buffer : buffers.values()) {
+				buffer.addTo(uri, out);
+			}
+		}
+	}
+
+	/**
+	 * A ring buffer of the latest readings of one characteristic at a site
+	 */
+	static final class Buffer {
+		private final Reading[] readings;
+		private int next = 0;
+		private int size = 0;
+
+		Buffer(final int capacity) {
+			this.readings = new Reading[capacity];
+		}
+
+		boolean add(final Reading reading) {
+			for(int i=0;i<size;i++) {
+				if(readings[i].measurement.equals(reading.measurement)) {
+					return false;
+				}
+			}
+			readings[next] = reading;
+			next = (next + 1) % readings.length;
+			size = Math.min(size + 1, readings.length);
+			return true;
+		}
+
+		void addTo(final Node uri, final List<Triple> out) {
+			for(int i=0;i<size;i++) {
+				final Reading reading = readings[i];
+				out.add(Triple.create(uri, HAS_MEASUREMENT, reading.measurement));
+				for(Triple t : reading.triples) {
+					out.add(t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The triples of one measurement
+	 */
+	static final class Reading {
+		static final Comparator<Reading> BY_TIME = new Comparator<Reading>() {
+			@Override
+			public int compare(final Reading a, final Reading b) {
+				return a.time < b.time ? -1 : a.time > b.time ? 1 : 0;
+			}
+		};
+
+		final Node measurement;
+		final Node characteristic;
+		final long time;
+		final Triple[] triples;
+
+		private Reading(final Node measurement, final Node characteristic, final long time,
+				final Triple[] triples) {
+			this.measurement = measurement;
+			this.characteristic = characteristic;
+			this.time = time;
+			this.triples = triples;
+		}
+
+		/**
+		 * Reads a measurement from a graph
+		 * @return The reading, or null if the measurement has no valid time
+		 */
+		static Reading create(final Graph graph, final Node measurement) {
+			final List<Triple> list = new ArrayList<Triple>();
+			Node characteristic = null;
+			long time = AqiEngine.UNTIMED;
+			final ExtendedIterator<Triple> it = graph.find(measurement, Node.ANY, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					final Triple t = it.next();
+					if(IN_XSD_DATE_TIME.equals(t.getPredicate())) {
+						time = AqiEngine.toMillis(t.getObject());
+					}
+					else if(HAS_CHARACTERISTIC.equals(t.getPredicate())) {
+						characteristic = t.getObject();
+					}
+					list.add(t);
+				}
+			}
+			finally {
+				it.close();
+			}
+			return time == AqiEngine.UNTIMED ? null :
+				new Reading(measurement, characteristic, time, list.toArray(new Triple[list.size()]));
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.datatypes.xsd.XSDDateTime;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * AqiEngine computes the EPA Air Quality Index of every air site in a model
+ * from the concentrations of its measurements, without going through the
+ * reasoner. It makes a single pass over the pol:hasMeasurement triples and
+ * collects the concentrations of each site whose characteristic and unit it
+ * recognizes, per pollutant. The concentration of a pollutant is the
+ * average of the readings within the pollutant's averaging period (e.g.
+ * 8 hours for ozone, 24 hours for PM2.5) ending at its latest reading, by
+ * time:inXSDDateTime; readings without a time are averaged together if the
+ * site has no timed reading of the pollutant. The index of a site is the
+ * highest sub-index of its pollutants, computed from the breakpoint tables
+ * below. Each classified site is then given:
+ * <ul>
+ * <li>air:hasAQI, the index as an xsd:int;</li>
+ * <li>air:hasAQICategory, the id of the data type showing its tier, one of
+ * {@link #CATEGORIES}.</li>
+ * </ul>
+ * Unhealthy for Sensitive Groups (101-150) is shown as unhealthy since
+ * there is no separate icon for it.
+ *
+ * Characteristics are recognized by the local name of their URI (e.g.
+ * Ozone, PM2.5, Sulfur_dioxide) or by their AQS parameter code, and units by
+ * name (e.g. Parts per million) or by their AQS unit code (e.g. 007).
+ * Concentrations in ppm and ppb are converted to the unit of the table;
+ * mass concentrations are not converted to volume concentrations or back.
+ * @author ewpatton
+ *
+ */
+final class AqiEngine {
+
+	static final String AIR_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/air.owl#";
+	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
+
+	static final Node HAS_AQI = Node.createURI(AIR_NS+"hasAQI");
+	static final Node HAS_AQI_CATEGORY = Node.createURI(AIR_NS+"hasAQICategory");
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node AIR_MEASUREMENT = Node.createURI(AIR_NS+"AirMeasurement");
+	private static final Node HAS_MEASUREMENT = Node.createURI(POL_NS+"hasMeasurement");
+	private static final Node HAS_CHARACTERISTIC = Node.createURI(POL_NS+"hasCharacteristic");
+	private static final Node HAS_VALUE = Node.createURI(POL_NS+"hasValue");
+	private static final Node HAS_UNIT = Node.createURI(UNIT_NS+"hasUnit");
+	private static final Node IN_XSD_DATE_TIME = Node.createURI("http://www.w3.org/2006/time#inXSDDateTime");
+
+	/**
+	 * Data type ids of the AQI tiers, best first
+	 */
+	static final String[] CATEGORIES = { "air_good", "air_moderate", "air_unhealthy",
+		"air_very_unhealthy", "air_hazardous" };
+	/**
+	 * Upper bound of the index of each tier in {@link #CATEGORIES}
+	 */
+	private static final int[] CATEGORY_MAX = { 50, 100, 200, 300, 500 };
+
+	static final int UNKNOWN = -1;
+	static final int O3 = 0;
+	static final int PM25 = 1;
+	static final int PM10 = 2;
+	static final int CO = 3;
+	static final int SO2 = 4;
+	static final int NO2 = 5;
+
+	static final int PPM = 0;
+	static final int PPB = 1;
+	static final int UG_M3 = 2;
+
+	private static final int[] INDEX_LOW = { 0, 51, 101, 151, 201, 301, 401 };
+	private static final int[] INDEX_HIGH = { 50, 100, 150, 200, 300, 400, 500 };
+
+	/**
+	 * Upper concentration of each index band, per pollutant. The lower
+	 * concentration of a band is the upper concentration of the previous one
+	 * plus the table's resolution.
+	 */
+	private static final double[][] BREAKPOINTS = {
+		// O3, 8-hour, ppm (hazardous band from the 1-hour table)
+		{ 0.059, 0.075, 0.095, 0.115, 0.374, 0.504, 0.604 },
+		// PM2.5, 24-hour, ug/m3
+		{ 12.0, 35.4, 55.4, 150.4, 250.4, 350.4, 500.4 },
+		// PM10, 24-hour, ug/m3
+		{ 54, 154, 254, 354, 424, 504, 604 },
+		// CO, 8-hour, ppm
+		{ 4.4, 9.4, 12.4, 15.4, 30.4, 40.4, 50.4 },
+		// SO2, 1-hour, ppb
+		{ 35, 75, 185, 304, 604, 804, 1004 },
+		// NO2, 1-hour, ppb
+		{ 53, 100, 360, 649, 1249, 1649, 2049 }
+	};
+	/**
+	 * Number of decimals each pollutant's concentration is truncated to
+	 */
+	private static final int[] DECIMALS = { 3, 1, 0, 1, 0, 0 };
+	/**
+	 * Unit of each pollutant's breakpoints
+	 */
+	private static final int[] TABLE_UNIT = { PPM, UG_M3, UG_M3, PPM, PPB, PPB };
+	private static final long HOUR = 3600000L;
+	/**
+	 * Averaging period of each pollutant's breakpoints, in milliseconds
+	 */
+	private static final long[] PERIOD = { 8 * HOUR, 24 * HOUR, 24 * HOUR, 8 * HOUR, HOUR, HOUR };
+	static final long UNTIMED = Long.MIN_VALUE;
+
+	private static final Map<String, Integer> POLLUTANTS = new HashMap<String, Integer>();
+
+	static {
+		POLLUTANTS.put("ozone", O3);
+		POLLUTANTS.put("o3", O3);
+		POLLUTANTS.put("44201", O3);
+		POLLUTANTS.put("pm25", PM25);
+		POLLUTANTS.put("pm25localconditions", PM25);
+		POLLUTANTS.put("88101", PM25);
+		POLLUTANTS.put("88502", PM25);
+		POLLUTANTS.put("pm10", PM10);
+		POLLUTANTS.put("pm10total0to10um", PM10);
+		POLLUTANTS.put("81102", PM10);
+		POLLUTANTS.put("carbonmonoxide", CO);
+		POLLUTANTS.put("co", CO);
+		POLLUTANTS.put("42101", CO);
+		POLLUTANTS.put("sulfurdioxide", SO2);
+		POLLUTANTS.put("sulphurdioxide", SO2);
+		POLLUTANTS.put("so2", SO2);
+		POLLUTANTS.put("42401", SO2);
+		POLLUTANTS.put("nitrogendioxide", NO2);
+		POLLUTANTS.put("no2", NO2);
+		POLLUTANTS.put("42602", NO2);
+	}
+
+	private AqiEngine() {
+	}
+
+	/**
+	 * Classifies every air site in the model with measurements of a
+	 * recognized pollutant
+	 * @param model Model containing air sites and measurements
+	 * @return The number of sites classified
+	 */
+	static int classify(final Model model) {
+		final Graph graph = model.getGraph();
+		final Map<Node, Readings[]> sites = new HashMap<Node, Readings[]>();
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final Node m = t.getObject();
+				if(!graph.contains(m, TYPE, AIR_MEASUREMENT)) {
+					continue;
+				}
+				final int pollutant = pollutant(find(graph, m, HAS_CHARACTERISTIC));
+				final double c = pollutant == UNKNOWN ? Double.NaN :
+					toTableUnit(pollutant, toDouble(find(graph, m, HAS_VALUE)), unit(find(graph, m, HAS_UNIT)));
+				if(Double.isNaN(c)) {
+					continue;
+				}
+				Readings[] readings = sites.get(t.getSubject());
+				if(readings == null) {
+					readings = new Readings[BREAKPOINTS.length];
+					sites.put(t.getSubject(), readings);
+				}
+				if(readings[pollutant] == null) {
+					readings[pollutant] = new Readings();
+				}
+				readings[pollutant].add(toMillis(find(graph, m, IN_XSD_DATE_TIME)), c);
+			}
+		}
+		finally {
+			it.close();
+		}
+		final List<Triple> triples = new ArrayList<Triple>();
+		for(Map.Entry<Node, Readings[]> site : sites.entrySet()) {
+			int aqi = -1;
+			for(int i=0;i<site.getValue().length;i++) {
+				if(site.getValue()[i] != null) {
+					aqi = Math.max(aqi, subIndex(i, site.getValue()[i].average(PERIOD[i])));
+				}
+			}
+			triples.add(Triple.create(site.getKey(), HAS_AQI,
+					Node.createLiteral(Integer.toString(aqi), null, XSDDatatype.XSDint)));
+			triples.add(Triple.create(site.getKey(), HAS_AQI_CATEGORY,
+					Node.createLiteral(category(aqi))));
+		}
+		graph.getBulkUpdateHandler().add(triples);
+		return sites.size();
+	}
+
+	/**
+	 * Computes the AQI sub-index of a concentration
+	 * @param pollutant One of {@link #O3}, {@link #PM25}, {@link #PM10},
+	 * {@link #CO}, {@link #SO2} or {@link #NO2}
+	 * @param concentration Measured concentration
+	 * @param unit One of {@link #PPM}, {@link #PPB} or {@link #UG_M3}
+	 * @return The sub-index, capped at 500, or -1 if the pollutant or unit
+	 * is unknown or the concentration is not a number
+	 */
+	static int computeAqi(final int pollutant, final double concentration, final int unit) {
+		if(pollutant == UNKNOWN) {
+			return -1;
+		}
+		final double c = toTableUnit(pollutant, concentration, unit);
+		return Double.isNaN(c) ? -1 : subIndex(pollutant, c);
+	}
+
+	/**
+	 * Converts a concentration to the unit of a pollutant's breakpoints
+	 * @param pollutant A known pollutant
+	 * @param concentration Measured concentration
+	 * @param unit One of {@link #PPM}, {@link #PPB} or {@link #UG_M3}
+	 * @return The concentration, or NaN if the unit is unknown or cannot be
+	 * converted or the concentration is not a number
+	 */
+	private static double toTableUnit(final int pollutant, final double concentration, final int unit) {
+		if(unit == UNKNOWN || Double.isNaN(concentration) || concentration < 0) {
+			return Double.NaN;
+		}
+		final int tableUnit = TABLE_UNIT[pollutant];
+		if(unit == PPM && tableUnit == PPB) {
+			return concentration * 1000;
+		}
+		if(unit == PPB && tableUnit == PPM) {
+			return concentration / 1000;
+		}
+		return unit == tableUnit ? concentration : Double.NaN;
+	}
+
+	/**
+	 * Computes the AQI sub-index of a concentration in the unit of the
+	 * pollutant's breakpoints
+	 * @param pollutant A known pollutant
+	 * @param concentration Concentration in the unit of the pollutant's table
+	 * @return The sub-index, capped at 500
+	 */
+	private static int subIndex(final int pollutant, final double concentration) {
+		final double c = BigDecimal.valueOf(concentration).setScale(DECIMALS[pollutant],
+				BigDecimal.ROUND_DOWN).doubleValue();
+		final double[] highs = BREAKPOINTS[pollutant];
+		final double step = Math.pow(10, -DECIMALS[pollutant]);
+		for(int i=0;i<highs.length;i++) {
+			if(c <= highs[i]) {
+				final double low = i == 0 ? 0 : highs[i-1] + step;
+				final double cLow = Math.min(low, c);
+				return (int)Math.round((INDEX_HIGH[i] - INDEX_LOW[i]) / (highs[i] - cLow) *
+						(c - cLow) + INDEX_LOW[i]);
+			}
+		}
+		return INDEX_HIGH[INDEX_HIGH.length - 1];
+	}
+
+	/**
+	 * Gets the data type id of the tier an index falls in
+	 * @param aqi Air Quality Index
+	 * @return One of {@link #CATEGORIES}
+	 */
+	static String category(final int aqi) {
+		for(int i=0;i<CATEGORY_MAX.length;i++) {
+			if(aqi <= CATEGORY_MAX[i]) {
+				return CATEGORIES[i];
+			}
+		}
+		return CATEGORIES[CATEGORIES.length - 1];
+	}
+
+	/**
+	 * Recognizes the pollutant measured by a characteristic
+	 * @param node Characteristic URI or literal
+	 * @return The pollutant, or {@link #UNKNOWN}
+	 */
+	static int pollutant(final Node node) {
+		if(node == null) {
+			return UNKNOWN;
+		}
+		String name = node.isURI() ? node.getURI() : node.isLiteral() ? node.getLiteralLexicalForm() : "";
+		name = name.substring(Math.max(name.lastIndexOf('#'), name.lastIndexOf('/')) + 1);
+		final Integer pollutant = POLLUTANTS.get(name.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9]", ""));
+		return pollutant == null ? UNKNOWN : pollutant;
+	}
+
+	/**
+	 * Recognizes a concentration unit
+	 * @param node Unit literal, either a name or an AQS unit code
+	 * @return One of {@link #PPM}, {@link #PPB}, {@link #UG_M3} or {@link #UNKNOWN}
+	 */
+	static int unit(final Node node) {
+		if(node == null) {
+			return UNKNOWN;
+		}
+		final String unit = (node.isLiteral() ? node.getLiteralLexicalForm() :
+			node.isURI() ? node.getLocalName() : "").trim().toLowerCase(Locale.ENGLISH);
+		if("007".equals(unit) || unit.contains("million") || unit.equals("ppm")) {
+			return PPM;
+		}
+		if("008".equals(unit) || unit.contains("billion") || unit.equals("ppb")) {
+			return PPB;
+		}
+		if("001".equals(unit) || "105".equals(unit) || unit.contains("microgram") ||
+				unit.startsWith("ug/m") || unit.startsWith("\u00b5g/m")) {
+			return UG_M3;
+		}
+		return UNKNOWN;
+	}
+
+	private static Node find(final Graph graph, final Node s, final Node p) {
+		final ExtendedIterator<Triple> it = graph.find(s, p, Node.ANY);
+		try {
+			return it.hasNext() ? it.next().getObject() : null;
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Reads the time of a reading
+	 * @param node xsd:dateTime or xsd:date literal
+	 * @return The time in milliseconds, or {@link #UNTIMED} if it is missing or invalid
+	 */
+	static long toMillis(final Node node) {
+		if(node == null || !node.isLiteral()) {
+			return UNTIMED;
+		}
+		final String lexical = node.getLiteralLexicalForm().trim();
+		try {
+			return ((XSDDateTime)XSDDatatype.XSDdateTime.parse(lexical)).asCalendar().getTimeInMillis();
+		}
+		catch(RuntimeException e) {
+			// not a date time, try a date
+		}
+		try {
+			return ((XSDDateTime)XSDDatatype.XSDdate.parse(lexical)).asCalendar().getTimeInMillis();
+		}
+		catch(RuntimeException e) {
+			return UNTIMED;
+		}
+	}
+
+	private static double toDouble(final Node node) {
+		if(node == null || !node.isLiteral()) {
+			return Double.NaN;
+		}
+		final Object value = node.getLiteralValue();
+		if(value instanceof Number) {
+			return ((Number)value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(node.getLiteralLexicalForm().trim());
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Concentrations of one pollutant at one site, in the unit of its breakpoints
+	 */
+	private static final class Readings {
+		private final List<Long> times = new ArrayList<Long>();
+		private final List<Double> values = new ArrayList<Double>();
+		private long latest = UNTIMED;
+
+		void add(final long time, final double value) {
+			times.add(time);
+			values.add(value);
+			latest = Math.max(latest, time);
+		}
+
+		/**
+		 * Averages the readings within a period ending at the latest one, or
+		 * every reading if none has a time
+		 * @param period Averaging period in milliseconds
+		 * @return
+		 */
+		double average(final long period) {
+			double sum = 0;
+			int count = 0;
+			for(int i=0;i<times.size();i++) {
+				final long time = times.get(i);
+				if(latest == UNTIMED || (time != UNTIMED && time > latest - period)) {
+					sum += values.get(i);
+					count++;
+				}
+			}
+			return sum / count;
+		}
+	}
+
+}
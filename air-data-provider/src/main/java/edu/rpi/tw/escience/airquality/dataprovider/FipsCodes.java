@@ -0,0 +1,112 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.rpi.tw.escience.semanteco.Request;
+
+/**
+ * FipsCodes translates the state and county of a request into the FIPS
+ * codes that the EPA air measurements are keyed on, i.e. a two digit state
+ * code (e.g. 08 for CO) and a three digit county code (e.g. 001).
+ * @author ewpatton
+ *
+ */
+final class FipsCodes {
+
+	static final String STATE_PARAM = "state";
+	static final String STATE_CODE_PARAM = "stateCode";
+	static final String COUNTY_PARAM = "county";
+
+	private static final Map<String, String> STATES;
+
+	static {
+		final Map<String, String> states = new HashMap<String, String>();
+		final String[] table = {
+			"AL", "01", "AK", "02", "AZ", "04", "AR", "05", "CA", "06", "CO", "08", "CT", "09",
+			"DE", "10", "DC", "11", "FL", "12", "GA", "13", "HI", "15", "ID", "16", "IL", "17",
+			"IN", "18", "IA", "19", "KS", "20", "KY", "21", "LA", "22", "ME", "23", "MD", "24",
+			"MA", "25", "MI", "26", "MN", "27", "MS", "28", "MO", "29", "MT", "30", "NE", "31",
+			"NV", "32", "NH", "33", "NJ", "34", "NM", "35", "NY", "36", "NC", "37", "ND", "38",
+			"OH", "39", "OK", "40", "OR", "41", "PA", "42", "RI", "44", "SC", "45", "SD", "46",
+			"TN", "47", "TX", "48", "UT", "49", "VT", "50", "VA", "51", "WA", "53", "WV", "54",
+			"WI", "55", "WY", "56", "AS", "60", "GU", "66", "MP", "69", "PR", "72", "VI", "78"
+		};
+		for(int i=0;i<table.length;i+=2) {
+			states.put(table[i], table[i+1]);
+		}
+		STATES = Collections.unmodifiableMap(states);
+	}
+
+	private FipsCodes() {
+	}
+
+	/**
+	 * Gets the FIPS code of the requested state, from the stateCode
+	 * parameter if it is given and otherwise from the state abbreviation
+	 * @param request Request object encapsulating the client's request
+	 * @return Two digit state code
+	 * @throws IllegalArgumentException if the state is missing or unknown
+	 */
+	static String getStateCode(final Request request) {
+		return getStateCode(request.getParam(STATE_CODE_PARAM), request.getParam(STATE_PARAM));
+	}
+
+	/**
+	 * Gets the FIPS code of a state
+	 * @param code Value of the stateCode parameter, or null
+	 * @param abbreviation Value of the state parameter, e.g. CO
+	 * @return Two digit state code
+	 * @throws IllegalArgumentException if the state is missing or unknown
+	 */
+	static String getStateCode(final Object code, final Object abbreviation) {
+		if(code instanceof String && ((String)code).matches("\\d{1,2}")) {
+			return pad((String)code, 2);
+		}
+		if(abbreviation != null && !(abbreviation instanceof String)) {
+			throw new IllegalArgumentException("Unknown state '"+abbreviation+"'");
+		}
+		final String state = (String)abbreviation;
+		if(state == null || state.isEmpty()) {
+			throw new IllegalArgumentException("State parameter not supplied. Expected two digit state abbreviation, e.g. CA.");
+		}
+		final String fips = STATES.get(state.toUpperCase());
+		if(fips == null) {
+			throw new IllegalArgumentException("Unknown state '"+state+"'");
+		}
+		return fips;
+	}
+
+	/**
+	 * Gets the FIPS code of the requested county
+	 * @param request Request object encapsulating the client's request
+	 * @return Three digit county code
+	 * @throws IllegalArgumentException if the county is missing or not a number
+	 */
+	static String getCountyCode(final Request request) {
+		return getCountyCode(request.getParam(COUNTY_PARAM));
+	}
+
+	/**
+	 * Gets the FIPS code of a county
+	 * @param county Value of the county parameter, e.g. 1 or 001
+	 * @return Three digit county code
+	 * @throws IllegalArgumentException if the county is missing or not a number
+	 */
+	static String getCountyCode(final Object county) {
+		if(!(county instanceof String) || !((String)county).matches("\\d{1,3}")) {
+			throw new IllegalArgumentException("County parameter not supplied. Expected a county code, e.g. 001.");
+		}
+		return pad((String)county, 3);
+	}
+
+	private static String pad(final String code, final int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for(int i=code.length();i<length;i++) {
+			sb.append('0');
+		}
+		return sb.append(code).toString();
+	}
+
+}
@@ -0,0 +1,89 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TtlCache holds values for a fixed time after they are put, evicting the
+ * least recently used value once it holds more than its maximum number of
+ * entries. Values must not be modified once they are cached.
+ * @param <V> Type of the cached values
+ * @author ewpatton
+ *
+ */
+final class TtlCache<V> {
+
+	private final long ttl;
+	private final Map<String, Entry<V>> entries;
+
+	/**
+	 * Creates a cache
+	 * @param ttl Time in milliseconds a value stays cached
+	 * @param maxEntries Largest number of values held
+	 */
+	TtlCache(final long ttl, final int maxEntries) {
+		this.ttl = ttl;
+		this.entries = Collections.synchronizedMap(new LinkedHashMap<String, TtlCache.Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 7714936268254393163L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TtlCache.Entry<V>> eldest) {
+				return size() > maxEntries;
+			}
+		});
+	}
+
+	/**
+	 * Gets a value
+	 * @param key Key of the value
+	 * @return The value, or null if it is missing or has expired
+	 */
+	V get(final String key) {
+		final Entry<V> entry = entries.get(key);
+		if(entry == null) {
+			return null;
+		}
+		if(System.currentTimeMillis() >= entry.expires) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Caches a value
+	 * @param key Key of the value
+	 * @param value Value to cache
+	 */
+	void put(final String key, final V value) {
+		entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Gets the number of cached values, including expired ones that have
+	 * not been looked up since they expired
+	 * @return
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops every value
+	 */
+	void clear() {
+		entries.clear();
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(final V value, final long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+}
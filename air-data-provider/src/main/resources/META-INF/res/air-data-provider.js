@@ -15,6 +15,10 @@ $(window).bind("initialize", function() {
 		if(!air) {
 			return false;
 		}
+		if(b["aqi"] != undefined) {
+			// AQI tier computed by the server
+			return $("input[value='"+b["aqi"]["value"]+"']")[0].checked;
+		}
 		var facility = b["facility"]["value"]=="true";
 		var polluted = b["polluted"]["value"]=="true";
 		var str="";
@@ -39,6 +43,9 @@ $(window).bind("initialize", function() {
 		if(!air) {
 			return null;
 		}
+		if(b["aqi"] != undefined) {
+			return $("input[value='"+b["aqi"]["value"]+"']+img").attr("src");
+		}
 		var facility = b["facility"]["value"]=="true" ? 1 : 0;
 		var polluted = b["polluted"]["value"]=="true" ? 1 : 0;
 		return icons[facility][polluted];
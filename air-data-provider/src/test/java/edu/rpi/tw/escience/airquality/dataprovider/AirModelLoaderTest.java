@@ -0,0 +1,80 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AirModelLoaderTest extends TestCase {
+
+	private static final String TRIPLE =
+			"<http://example.org/s> <http://example.org/p> <http://example.org/o> .\n";
+	private static final String QUERY = "CONSTRUCT {} WHERE {}";
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile String body = null;
+	private HttpServer server = null;
+	private String endpoint = null;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		AirModelLoader.clear();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				final String current = body;
+				final byte[] response = (current == null ? "error" : current).getBytes("UTF-8");
+				exchange.sendResponseHeaders(current == null ? 500 : 200, response.length == 0 ? -1 : response.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(response);
+				os.close();
+			}
+		});
+		server.start();
+		endpoint = "http://127.0.0.1:"+server.getAddress().getPort()+"/sparql";
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+		AirModelLoader.clear();
+		super.tearDown();
+	}
+
+	@Test
+	public void testFailedLoadIsNotCached() throws Exception {
+		try {
+			AirModelLoader.stream("44 007 null", endpoint, QUERY);
+			fail("Expected an ExecutionException");
+		}
+		catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(0, AirModelLoader.size());
+
+		body = TRIPLE;
+		assertEquals(1, AirModelLoader.stream("44 007 null", endpoint, QUERY).size());
+		assertEquals(1, AirModelLoader.size());
+	}
+
+	@Test
+	public void testEmptyLoadIsNotCached() throws Exception {
+		body = "";
+		assertTrue(AirModelLoader.stream("44 007 null", endpoint, QUERY).isEmpty());
+		assertEquals(0, AirModelLoader.size());
+		assertEquals(1, requests.get());
+	}
+
+}
@@ -0,0 +1,119 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+import junit.framework.TestCase;
+
+public class AirPollerTest extends TestCase {
+
+	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	private static final String SITE = "http://example.com/air-site-1";
+
+	@Test
+	public void testRingBuffer() throws Exception {
+		System.setProperty(AirPoller.BUFFER_PROPERTY, "3");
+		try {
+			AirPoller.County county = new AirPoller.County("08", "001");
+			assertFalse(county.copyTo(ModelFactory.createDefaultModel()));
+			assertEquals(2, county.add(readings(0, 2)));
+			assertEquals(3, county.add(readings(2, 5)));
+
+			Model model = ModelFactory.createDefaultModel();
+			assertTrue(county.copyTo(model));
+			Property hasMeasurement = model.createProperty(POL_NS+"hasMeasurement");
+			Resource site = model.createResource(SITE);
+			// only the three newest readings remain, with the site's coordinates
+			assertEquals(3, model.listObjectsOfProperty(site, hasMeasurement).toList().size());
+			assertFalse(model.contains(site, hasMeasurement, model.createResource("http://example.com/air-measurement-1")));
+			assertTrue(model.contains(site, hasMeasurement, model.createResource("http://example.com/air-measurement-4")));
+			assertTrue(site.hasProperty(model.createProperty("http://www.w3.org/2003/01/geo/wgs84_pos#lat")));
+		}
+		finally {
+			System.clearProperty(AirPoller.BUFFER_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testUntimed() throws Exception {
+		AirPoller.County county = new AirPoller.County("08", "001");
+		Model model = readings(0, 2);
+		model.removeAll(null, model.createProperty("http://www.w3.org/2006/time#inXSDDateTime"), null);
+		assertEquals(0, county.add(model));
+		assertFalse(county.copyTo(ModelFactory.createDefaultModel()));
+	}
+
+	@Test
+	public void testBufferPerCharacteristic() throws Exception {
+		System.setProperty(AirPoller.BUFFER_PROPERTY, "2");
+		try {
+			AirPoller.County county = new AirPoller.County("08", "001");
+			Model model = readings(0, 3);
+			Model ozone = readings(3, 6);
+			Property hasCharacteristic = model.createProperty(POL_NS+"hasCharacteristic");
+			for(Resource m : ozone.listSubjectsWithProperty(ozone.createProperty(POL_NS+"hasValue")).toList()) {
+				ozone.add(m, hasCharacteristic, ozone.createResource(POL_NS+"Ozone"));
+			}
+			model.add(ozone);
+			assertEquals(6, county.add(model));
+			Model copy = ModelFactory.createDefaultModel();
+			assertTrue(county.copyTo(copy));
+			// the two newest readings of each characteristic remain
+			Resource site = copy.createResource(SITE);
+			Property hasMeasurement = copy.createProperty(POL_NS+"hasMeasurement");
+			assertEquals(4, copy.listObjectsOfProperty(site, hasMeasurement).toList().size());
+			assertTrue(copy.contains(site, hasMeasurement, copy.createResource("http://example.com/air-measurement-2")));
+			assertTrue(copy.contains(site, hasMeasurement, copy.createResource("http://example.com/air-measurement-5")));
+			assertFalse(copy.contains(site, hasMeasurement, copy.createResource("http://example.com/air-measurement-3")));
+			// measurements fetched again are not buffered twice
+			assertEquals(0, county.add(readings(2, 3)));
+		}
+		finally {
+			System.clearProperty(AirPoller.BUFFER_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testDates() throws Exception {
+		AirPoller.County county = new AirPoller.County("08", "001");
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource(SITE);
+		Resource m = model.createResource("http://example.com/air-measurement-1");
+		site.addProperty(model.createProperty(POL_NS+"hasMeasurement"), m);
+		m.addProperty(model.createProperty("http://www.w3.org/2006/time#inXSDDateTime"),
+				model.createTypedLiteral("2013-01-02", XSDDatatype.XSDdate));
+		assertEquals(1, county.add(model));
+		assertTrue(county.copyTo(ModelFactory.createDefaultModel()));
+	}
+
+	@Test
+	public void testQuery() throws Exception {
+		assertFalse(AirPoller.buildQuery("08", "001", AqiEngine.UNTIMED).contains("FILTER"));
+		String query = AirPoller.buildQuery("08", "001",
+				AqiEngine.toMillis(Node.createLiteral("2013-01-01T10:00:00Z")));
+		assertTrue(query.contains("?time > \"2013-01-01T10:00:00Z\"^^<http://www.w3.org/2001/XMLSchema#dateTime>"));
+		// measurements dated with xsd:date are compared by day
+		assertTrue(query.contains("?time >= \"2013-01-01\"^^<http://www.w3.org/2001/XMLSchema#date>"));
+	}
+
+	private static Model readings(int from, int to) {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource(SITE);
+		site.addProperty(model.createProperty("http://www.w3.org/2003/01/geo/wgs84_pos#lat"), "39.8");
+		for(int i=from;i<to;i++) {
+			Resource m = model.createResource("http://example.com/air-measurement-"+i);
+			site.addProperty(model.createProperty(POL_NS+"hasMeasurement"), m);
+			m.addProperty(model.createProperty(POL_NS+"hasValue"), model.createTypedLiteral(0.01 * i));
+			m.addProperty(model.createProperty("http://www.w3.org/2006/time#inXSDDateTime"),
+					model.createTypedLiteral("2013-01-01T0"+i+":00:00", XSDDatatype.XSDdateTime));
+		}
+		return model;
+	}
+
+}
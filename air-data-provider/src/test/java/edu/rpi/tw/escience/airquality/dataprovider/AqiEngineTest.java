@@ -0,0 +1,113 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import junit.framework.TestCase;
+
+public class AqiEngineTest extends TestCase {
+
+	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
+
+	@Test
+	public void testBreakpoints() throws Exception {
+		assertEquals(0, AqiEngine.computeAqi(AqiEngine.PM25, 0, AqiEngine.UG_M3));
+		assertEquals(50, AqiEngine.computeAqi(AqiEngine.PM25, 12.0, AqiEngine.UG_M3));
+		assertEquals(51, AqiEngine.computeAqi(AqiEngine.PM25, 12.1, AqiEngine.UG_M3));
+		assertEquals(100, AqiEngine.computeAqi(AqiEngine.PM25, 35.49, AqiEngine.UG_M3));
+		assertEquals(84, AqiEngine.computeAqi(AqiEngine.O3, 0.070, AqiEngine.PPM));
+		assertEquals(84, AqiEngine.computeAqi(AqiEngine.O3, 70, AqiEngine.PPB));
+		assertEquals(112, AqiEngine.computeAqi(AqiEngine.SO2, 0.1, AqiEngine.PPM));
+		assertEquals(500, AqiEngine.computeAqi(AqiEngine.CO, 80, AqiEngine.PPM));
+		assertEquals(-1, AqiEngine.computeAqi(AqiEngine.PM10, 20, AqiEngine.PPM));
+		assertEquals(-1, AqiEngine.computeAqi(AqiEngine.UNKNOWN, 20, AqiEngine.PPM));
+		assertEquals("air_good", AqiEngine.category(50));
+		assertEquals("air_unhealthy", AqiEngine.category(112));
+		assertEquals("air_hazardous", AqiEngine.category(500));
+	}
+
+	@Test
+	public void testRecognize() throws Exception {
+		assertEquals(AqiEngine.PM25, AqiEngine.pollutant(Node.createURI(POL_NS+"PM2.5")));
+		assertEquals(AqiEngine.O3, AqiEngine.pollutant(Node.createURI(POL_NS+"Ozone")));
+		assertEquals(AqiEngine.SO2, AqiEngine.pollutant(Node.createURI(POL_NS+"Sulfur_dioxide")));
+		assertEquals(AqiEngine.NO2, AqiEngine.pollutant(Node.createLiteral("42602")));
+		assertEquals(AqiEngine.UNKNOWN, AqiEngine.pollutant(Node.createURI(POL_NS+"Lead")));
+		assertEquals(AqiEngine.PPM, AqiEngine.unit(Node.createLiteral("Parts per million")));
+		assertEquals(AqiEngine.PPB, AqiEngine.unit(Node.createLiteral("008")));
+		assertEquals(AqiEngine.UG_M3, AqiEngine.unit(Node.createLiteral("Micrograms/cubic meter (LC)")));
+		assertEquals(AqiEngine.UNKNOWN, AqiEngine.unit(Node.createLiteral("deg C")));
+	}
+
+	@Test
+	public void testClassify() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource("http://example.com/air-site-1");
+		addMeasurement(model, site, 1, "Ozone", 0.070, "Parts per million");
+		addMeasurement(model, site, 2, "PM2.5", 60, "Micrograms/cubic meter (LC)");
+		addMeasurement(model, site, 3, "Lead", 5, "Micrograms/cubic meter (LC)");
+		Resource other = model.createResource("http://example.com/air-site-2");
+		addMeasurement(model, other, 4, "Lead", 5, "Micrograms/cubic meter (LC)");
+		assertEquals(1, AqiEngine.classify(model));
+		assertEquals(153, site.getProperty(model.createProperty(AqiEngine.HAS_AQI.getURI())).getInt());
+		assertEquals("air_unhealthy", site.getProperty(model.createProperty(AqiEngine.HAS_AQI_CATEGORY.getURI())).getString());
+		assertFalse(other.hasProperty(model.createProperty(AqiEngine.HAS_AQI.getURI())));
+	}
+
+	@Test
+	public void testClassifyAveragesLatestPeriod() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource("http://example.com/air-site-1");
+		// PM2.5 averages the last 24 hours: 10 and 14 but not the reading two days before
+		addMeasurement(model, site, 1, "PM2.5", 200, "Micrograms/cubic meter (LC)", "2013-01-01T12:00:00Z");
+		addMeasurement(model, site, 2, "PM2.5", 10, "Micrograms/cubic meter (LC)", "2013-01-03T01:00:00Z");
+		addMeasurement(model, site, 3, "PM2.5", 14, "Micrograms/cubic meter (LC)", "2013-01-03T12:00:00Z");
+		// ozone averages the last 8 hours, given in ppm and ppb
+		addMeasurement(model, site, 4, "Ozone", 0.2, "Parts per million", "2013-01-03T01:00:00Z");
+		addMeasurement(model, site, 5, "Ozone", 0.068, "Parts per million", "2013-01-03T10:00:00Z");
+		addMeasurement(model, site, 6, "Ozone", 72, "Parts per billion", "2013-01-03T12:00:00Z");
+		// readings without a time are averaged together
+		Resource untimed = model.createResource("http://example.com/air-site-2");
+		addMeasurement(model, untimed, 7, "PM2.5", 10, "Micrograms/cubic meter (LC)");
+		addMeasurement(model, untimed, 8, "PM2.5", 14, "Micrograms/cubic meter (LC)");
+		assertEquals(2, AqiEngine.classify(model));
+		assertEquals(84, site.getProperty(model.createProperty(AqiEngine.HAS_AQI.getURI())).getInt());
+		assertEquals("air_moderate", site.getProperty(model.createProperty(AqiEngine.HAS_AQI_CATEGORY.getURI())).getString());
+		assertEquals(50, untimed.getProperty(model.createProperty(AqiEngine.HAS_AQI.getURI())).getInt());
+	}
+
+	@Test
+	public void testToMillis() throws Exception {
+		assertEquals(AqiEngine.toMillis(Node.createLiteral("2013-01-03T00:00:00Z")),
+				AqiEngine.toMillis(Node.createLiteral("2013-01-02T19:00:00-05:00")));
+		assertEquals(AqiEngine.toMillis(Node.createLiteral("2013-01-03T00:00:00Z")),
+				AqiEngine.toMillis(Node.createLiteral("2013-01-03Z")));
+		assertEquals(Long.MIN_VALUE, AqiEngine.toMillis(Node.createLiteral("yesterday")));
+		assertEquals(Long.MIN_VALUE, AqiEngine.toMillis(null));
+	}
+
+	private static void addMeasurement(Model model, Resource site, int i, String characteristic,
+			double value, String unit, String time) {
+		addMeasurement(model, site, i, characteristic, value, unit);
+		model.add(model.createResource("http://example.com/air-measurement-"+i),
+				model.createProperty("http://www.w3.org/2006/time#inXSDDateTime"), time, XSDDatatype.XSDdateTime);
+	}
+
+	private static void addMeasurement(Model model, Resource site, int i, String characteristic,
+			double value, String unit) {
+		Resource m = model.createResource("http://example.com/air-measurement-"+i);
+		model.add(site, model.createProperty(POL_NS+"hasMeasurement"), m);
+		model.add(m, RDF.type, model.createResource(AqiEngine.AIR_NS+"AirMeasurement"));
+		model.add(m, model.createProperty(POL_NS+"hasCharacteristic"), model.createResource(POL_NS+characteristic));
+		model.add(m, model.createProperty(POL_NS+"hasValue"), model.createTypedLiteral(value));
+		model.add(m, model.createProperty(UNIT_NS+"hasUnit"), unit);
+	}
+
+}
@@ -0,0 +1,55 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class FipsCodesTest extends TestCase {
+
+	@Test
+	public void testStateCode() throws Exception {
+		assertEquals("08", FipsCodes.getStateCode(null, "CO"));
+		assertEquals("44", FipsCodes.getStateCode(null, "ri"));
+		assertEquals("36", FipsCodes.getStateCode("", "NY"));
+		// an explicit code wins over the abbreviation and is padded
+		assertEquals("06", FipsCodes.getStateCode("6", "NY"));
+		assertEquals("36", FipsCodes.getStateCode("123", "NY"));
+		assertInvalidState(null, null);
+		assertInvalidState(null, "");
+		assertInvalidState(null, "XX");
+		assertInvalidState("ab", null);
+	}
+
+	@Test
+	public void testCountyCode() throws Exception {
+		assertEquals("001", FipsCodes.getCountyCode("1"));
+		assertEquals("031", FipsCodes.getCountyCode("31"));
+		assertEquals("123", FipsCodes.getCountyCode("123"));
+		assertInvalidCounty(null);
+		assertInvalidCounty("");
+		assertInvalidCounty("1234");
+		assertInvalidCounty("abc");
+		assertInvalidCounty(Integer.valueOf(1));
+	}
+
+	private static void assertInvalidState(Object code, Object state) {
+		try {
+			FipsCodes.getStateCode(code, state);
+			fail("Expected IllegalArgumentException for "+code+" "+state);
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static void assertInvalidCounty(Object county) {
+		try {
+			FipsCodes.getCountyCode(county);
+			fail("Expected IllegalArgumentException for "+county);
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package edu.rpi.tw.escience.airquality.dataprovider;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TtlCacheTest extends TestCase {
+
+	@Test
+	public void testExpires() throws Exception {
+		TtlCache<String> cache = new TtlCache<String>(100, 10);
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		Thread.sleep(150);
+		assertEquals(1, cache.size());
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+		// putting again restarts the period
+		cache.put("a", "2");
+		assertEquals("2", cache.get("a"));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		TtlCache<String> cache = new TtlCache<String>(60000, 2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals("1", cache.get("a"));
+		cache.put("c", "3");
+		assertEquals(2, cache.size());
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get("a"));
+	}
+
+}
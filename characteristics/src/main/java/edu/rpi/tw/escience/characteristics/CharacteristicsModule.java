@@ -2,6 +2,7 @@ package edu.rpi.tw.escience.characteristics;
 
 import static edu.rpi.tw.escience.semanteco.query.Query.VAR_NS;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -9,12 +10,11 @@ import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -29,7 +29,9 @@ import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
-import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.RegulationTable;
+import edu.rpi.tw.escience.semanteco.facets.ResultCache;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
 import edu.rpi.tw.escience.semanteco.query.OptionalComponent;
 import edu.rpi.tw.escience.semanteco.query.Query;
@@ -52,7 +54,6 @@ public class CharacteristicsModule implements Module {
 	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
 	private static final String RDFS_NS = "http://www.w3.org/2000/01/rdf-schema#";
 	private static final String FAILURE = "{\"success\":false}";
-	private static final String BINDINGS = "bindings";
 	private static final String XSD_NS = "http://www.w3.org/2001/XMLSchema#";
 	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
 	private static final String TIME_NS = "http://www.w3.org/2006/time#";
@@ -64,8 +65,8 @@ public class CharacteristicsModule implements Module {
 	private static final String RDFS_LABEL = RDFS_NS + "label";
 	private static final String RDFS_SUBCLASSOF = RDFS_NS + "subClassOf";
 	private static final String ELEMENT_VAR = "element";
-	private static final String PROP_VAR = "p";
 	private static final String JSON = "application/json";
+	private static final ResultCache RESULT_CACHE = new ResultCache("characteristics");
 
 	private ModuleConfiguration config = null;
 	private static final Logger LOG = Logger
@@ -85,6 +86,9 @@ public class CharacteristicsModule implements Module {
 	@Override
 	public void visit(final OntModel model, final Request request,
 			final Domain domain) {
+		if (RESULT_CACHE.isEnabled()) {
+			RESULT_CACHE.modelBuilt(request, model);
+		}
 	}
 
 	/**
@@ -136,20 +140,22 @@ public class CharacteristicsModule implements Module {
 		if (resultStr == null) {
 			return entries;
 		}
-		JSONObject results = null;
+		URI parentUri = URI.create(parentCls);
 		try {
-			results = new JSONObject(resultStr).getJSONObject(RESULTS_BLOCK);
-		} catch(JSONException e) {
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					URI rootUri = URI.create(value(binding, URI_VAR));
+					String rootLabel = value(binding, LABEL_VAR);
+					entries.add(new HierarchyEntry(rootUri, parentUri, rootLabel));
+				}
+			}
+			finally {
+				reader.close();
+			}
+		} catch(IOException e) {
 			log.error("Unable to parse json results from endpoint.");
-			return entries;
-		}
-		JSONArray bindings = results.optJSONArray(BINDINGS);
-		URI parentUri = URI.create(parentCls);
-		for (int i = 0; i < bindings.length(); i++) {
-			JSONObject binding = bindings.optJSONObject(i);
-			URI rootUri = URI.create(value(binding, URI_VAR));
-			String rootLabel = value(binding, LABEL_VAR);
-			entries.add(new HierarchyEntry(rootUri, parentUri, rootLabel));
 		}
 		return entries;
 	}
@@ -169,22 +175,23 @@ public class CharacteristicsModule implements Module {
 		graph.addPattern(uri, rdfsLabel, label);
 		graph.addFilter("bif:contains(?label,\"'" + str + "*'\")");
 		query.addOrderBy(label, SortType.ASC);
-		JSONObject results = null;
 		try {
-			results = new JSONObject(config.getQueryExecutor(request)
-					.accept(JSON).execute(query))
-				.getJSONObject(RESULTS_BLOCK);
-		} catch(JSONException e) {
+			final BindingReader reader = BindingReader.open(config.getQueryExecutor(request)
+					.accept(JSON).execute(query));
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					final HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(value(binding, URI_VAR));
+					entry.setLabel(value(binding, LABEL_VAR));
+					entries.add(entry);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		} catch(IOException e) {
 			LOG.error("Unable to parse json results from endpoint.");
-			return entries;
-		}
-		JSONArray bindings = results.optJSONArray(BINDINGS);
-		for(int i = 0; i < bindings.length(); i++) {
-			final JSONObject binding = bindings.optJSONObject(i);
-			final HierarchyEntry entry = new HierarchyEntry();
-			entry.setUri(value(binding, URI_VAR));
-			entry.setLabel(value(binding, LABEL_VAR));
-			entries.add(entry);
 		}
 		return entries;
 	}
@@ -207,20 +214,23 @@ public class CharacteristicsModule implements Module {
 		query.addOrderBy(label, SortType.ASC);
 
 		try {
-			final JSONObject results = new JSONObject(config
+			final BindingReader reader = BindingReader.open(config
 					.getQueryExecutor(request).accept(JSON)
 					.execute(query));
-			final JSONArray bindings = results.getJSONObject(RESULTS_BLOCK)
-					.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				final JSONObject binding = bindings.getJSONObject(i);
-				final HierarchyEntry entry = new HierarchyEntry();
-				entry.setUri(value(binding, URI_VAR));
-				entry.setLabel(value(binding, LABEL_VAR));
-				entry.setParent(URI.create(value(binding, "parent")));
-				entries.add(entry);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					final HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(value(binding, URI_VAR));
+					entry.setLabel(value(binding, LABEL_VAR));
+					entry.setParent(URI.create(value(binding, "parent")));
+					entries.add(entry);
+				}
+			}
+			finally {
+				reader.close();
 			}
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			request.getLogger()
 					.warn("Unable to parse data from remote server.");
 		}
@@ -251,15 +261,18 @@ public class CharacteristicsModule implements Module {
 			return Collections.emptyList();
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			results = results.getJSONObject(RESULTS_BLOCK);
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int j = 0; j < bindings.length(); j++) {
-				JSONObject binding = bindings.getJSONObject(j);
-				String speciesId = value(binding, CHARACTERISTIC);
-				uris.add(speciesId);
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String speciesId = value(binding, CHARACTERISTIC);
+					uris.add(speciesId);
+				}
+			}
+			finally {
+				reader.close();
 			}
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			LOG.error("Unable to parse JSON results", e);
 		}
 		return uris;
@@ -326,6 +339,7 @@ public class CharacteristicsModule implements Module {
 
 	/**
 	 * Queries for measurements for a given site, characteristic, and optional test.
+	 * Results are cached per model version by {@link ResultCache}.
 	 * @param request Client request object
 	 * @return
 	 */
@@ -342,7 +356,28 @@ public class CharacteristicsModule implements Module {
 			return "{\"error\":\"No chemical parameter supplied\"}";
 		}
 		final String test = (String) request.getParam("TestsForCharacteristic");
+		if (!RESULT_CACHE.isEnabled()) {
+			return computeSiteMeasurements(request, siteUri, chemicalString, test);
+		}
+		String results = RESULT_CACHE.get(RESULT_CACHE.key(request, siteUri, chemicalString, test));
+		if (results == null) {
+			results = computeSiteMeasurements(request, siteUri, chemicalString, test);
+			// the model may have been built while computing the results
+			RESULT_CACHE.put(RESULT_CACHE.key(request, siteUri, chemicalString, test), results);
+		}
+		return results;
+	}
 
+	/**
+	 * Queries for the measurements of a characteristic at a site
+	 * @param request Client request object
+	 * @param siteUri Site URI
+	 * @param chemicalString Characteristic URI
+	 * @param test Test name, or null
+	 * @return
+	 */
+	protected String computeSiteMeasurements(final Request request,
+			final String siteUri, final String chemicalString, final String test) {
 		final Query query = config.getQueryFactory().newQuery(Type.SELECT);
 
 		query.setNamespace("pol", POL_NS);
@@ -355,17 +390,8 @@ public class CharacteristicsModule implements Module {
 		final Variable unit = query.getVariable(VAR_NS + "unit");
 		final Variable time = query.getVariable(VAR_NS + "time");
 		final Variable measurement = query.getVariable(VAR_NS + "measurement");
-		final Variable supers = query.getVariable(VAR_NS + "supers");
-		final Variable supers2 = query.getVariable(VAR_NS + "supers2");
 		final Variable op = query.getVariable(VAR_NS + "op");
-		final Variable dt = query.getVariable(VAR_NS + "dt");
-		final Variable bn = query.createBlankNode();
-		final Variable res = query.getVariable(VAR_NS + "res");
-		final Variable cls = query.getVariable(VAR_NS + "cls");
-		final Variable p = query.getVariable(VAR_NS + PROP_VAR);
 		final Variable limit = query.getVariable(VAR_NS + "limit");
-		final Variable supers3 = query.getVariable(VAR_NS + "supers3");
-		final Variable list = query.getVariable(VAR_NS + "list");
 
 		final Set<Variable> vars = new LinkedHashSet<Variable>();
 		vars.add(element);
@@ -393,22 +419,8 @@ public class CharacteristicsModule implements Module {
 				.getResource(UNIT_NS + "hasUnit");
 		final QueryResource timeInXSDDateTime = query.getResource(TIME_NS
 				+ "inXSDDateTime");
-		final QueryResource propPath = query
-				.createPropertyPath("rdf:rest*/rdf:first");
-		final QueryResource owlOnProperty = query.getResource(OWL_NS
-				+ "onProperty");
-		final QueryResource owlHasValue = query
-				.getResource(OWL_NS + "hasValue");
-		final QueryResource owlSomeValuesFrom = query.getResource(OWL_NS
-				+ "someValuesFrom");
-		final QueryResource owlWithRestrictions = query.getResource(OWL_NS
-				+ "withRestrictions");
 		final QueryResource polHasLimitValue = query.getResource(POL_NS
 				+ "hasLimitValue");
-		final QueryResource propPathReverseList = query
-				.createPropertyPath("^rdf:first/(^rdf:rest)*");
-		final QueryResource propPathReverseIntersection = query
-				.createPropertyPath("^owl:intersectionOf");
 		final QueryResource polTestType = query.getResource(POL_NS + "test_type");
 		final Variable charTest = query.createVariable(QUERY_NS + "test");
 
@@ -422,31 +434,11 @@ public class CharacteristicsModule implements Module {
 		query.addPattern(measurement, unitHasUnit, unit);
 		query.addPattern(measurement, timeInXSDDateTime, time);
 
-		// limits based on ontology
-		OptionalComponent optional = query.createOptional();
-		query.addGraphComponent(optional);
-		optional.addPattern(supers, owlOnProperty, polHasCharacteristic);
-		optional.addPattern(supers, owlHasValue, chemical);
-		optional.addPattern(supers, propPathReverseList, list);
-		optional.addPattern(list, propPathReverseIntersection, cls);
-		optional.addPattern(list, propPath, supers2);
-		optional.addPattern(list, propPath, supers3);
-		optional.addPattern(supers2, owlOnProperty, polHasValue);
-		optional.addPattern(supers2, owlSomeValuesFrom, dt);
-		optional.addPattern(supers3, owlOnProperty, unitHasUnit);
-		optional.addPattern(supers3, owlHasValue, unit);
-		optional.addPattern(dt, owlWithRestrictions, res);
-		optional.addPattern(res, propPath, bn);
-		optional.addPattern(bn, p, limit);
-		optional.addFilter("datatype(?limit) = xsd:decimal");
-
-		addOpMatch(query, optional, "xsd:minInclusive", "<=", op);
-		addOpMatch(query, optional, "xsd:maxInclusive", ">=", op);
-		addOpMatch(query, optional, "xsd:minExclusive", "<", op);
-		addOpMatch(query, optional, "xsd:maxExclusive", ">", op);
+		// limits based on the regulation ontology are added from the
+		// compiled RegulationTable after the query is executed
 
 		// limits based on epa vocab (i.e. pol:hasLimitValue)
-		optional = query.createOptional();
+		OptionalComponent optional = query.createOptional();
 		query.addGraphComponent(optional);
 		optional.addPattern(measurement, polHasPermit, permit);
 		optional.addPattern(measurement, polHasLimitValue, limit);
@@ -456,17 +448,11 @@ public class CharacteristicsModule implements Module {
 
 		query.addOrderBy(time, SortType.ASC);
 
-		return config.getQueryExecutor(request).accept(JSON)
+		final String results = config.getQueryExecutor(request).accept(JSON)
 				.executeLocalQuery(query);
-	}
-
-	protected void addOpMatch(final Query query,
-			final GraphComponentCollection graph, final String xsdOp,
-			final String mathOp, final Variable mathVar) {
-		OptionalComponent optional = query.createOptional();
-		graph.addGraphComponent(optional);
-		optional.addFilter("?" + PROP_VAR + " = " + xsdOp);
-		optional.addBind("\"" + mathOp + "\"", mathVar);
+		return RegulationTable.addLimits(RegulationTable.forRegulations(
+				request.getParam(RegulationTable.REGULATION_PARAM)),
+				results, chemicalString, false);
 	}
 
 	/**
@@ -548,24 +534,17 @@ public class CharacteristicsModule implements Module {
 				LOGD_ENDPOINT, query);
 		if (results != null) {
 			try {
-				JSONObject response = new JSONObject(results);
-				if (response.getJSONObject(RESULTS_BLOCK) != null
-						&& response.getJSONObject(RESULTS_BLOCK).getJSONArray(
-								BINDINGS) != null
-						&& response.getJSONObject(RESULTS_BLOCK)
-								.getJSONArray(BINDINGS).length() > 0) {
-					JSONArray bindings = response.getJSONObject(RESULTS_BLOCK)
-							.getJSONArray(BINDINGS);
-					for (int i = 0; i < bindings.length(); i++) {
-						JSONObject binding = bindings.getJSONObject(i);
-						if (binding.getJSONObject(STATE_VAR) != null
-								&& value(binding, STATE_VAR) != null) {
-							stateUri = value(binding, STATE_VAR);
-							break;
-						}
+				final BindingReader reader = BindingReader.open(results);
+				try {
+					Map<String, String> binding = null;
+					while (stateUri == null && (binding = reader.next()) != null) {
+						stateUri = binding.get(STATE_VAR);
 					}
 				}
-			} catch (JSONException e) {
+				finally {
+					reader.close();
+				}
+			} catch (IOException e) {
 				LOG.error("Could not parse JSON results", e);
 			}
 		}
@@ -617,20 +596,25 @@ public class CharacteristicsModule implements Module {
 
 		List<String> uris = new ArrayList<String>();
 		try {
-			JSONObject results = new JSONObject(sparqlJson);
-			JSONArray vars = results.getJSONObject("head").getJSONArray("vars");
-			String var = vars.getString(0);
-			results = results.getJSONObject(RESULTS_BLOCK);
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				try {
-					JSONObject binding = bindings.getJSONObject(i);
-					uris.add(value(binding, var));
-				} catch (Exception e) {
-					LOG.warn("Unable to process binding in result", e);
+			final BindingReader reader = BindingReader.open(sparqlJson);
+			try {
+				String var = reader.getVariables().isEmpty() ? null : reader.getVariables().get(0);
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					if (var == null && !binding.isEmpty()) {
+						var = binding.keySet().iterator().next();
+					}
+					if (binding.containsKey(var)) {
+						uris.add(binding.get(var));
+					} else {
+						LOG.warn("Unable to process binding in result: " + binding);
+					}
 				}
 			}
-		} catch (Exception e) {
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
 			LOG.warn("Unable to retrieve URI list from SPARQL", e);
 		}
 		return uris;
@@ -678,7 +662,8 @@ public class CharacteristicsModule implements Module {
 		return config.getQueryExecutor(request).executeLocalQuery(query);
 	}
 
-	protected String value(JSONObject binding, String var) {
-		return binding.optJSONObject(var).optString("value");
+	protected String value(Map<String, String> binding, String var) {
+		final String value = binding.get(var);
+		return value == null ? "" : value;
 	}
 }
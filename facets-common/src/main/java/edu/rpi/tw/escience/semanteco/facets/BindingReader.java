@@ -0,0 +1,486 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+/**
+ * BindingReader reads SPARQL SELECT results one binding at a time, so that
+ * a result set never has to be held as a string and as a parsed tree at
+ * the same time. Both application/sparql-results+json and
+ * application/sparql-results+xml are supported; the format is detected from
+ * the first character of the results. XML results are read with ARQ's
+ * streaming StAX result set. ARQ's JSON input builds the whole result tree
+ * before returning the first binding, so JSON results are read with a small
+ * pull parser instead.
+ *
+ * Each binding is returned as a map from variable name to the lexical value
+ * of the term bound to it. Unbound variables are absent from the map.
+ * <pre>
+ * final BindingReader reader = BindingReader.open(results);
+ * try {
+ *     Map&lt;String, String&gt; binding = null;
+ *     while((binding = reader.next()) != null) {
+ *         ...
+ *     }
+ * }
+ * finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * @author ewpatton
+ *
+ */
+public abstract class BindingReader implements Closeable {
+
+	private static final String UTF8 = "UTF-8";
+	private static final int MARK_LIMIT = 1024;
+	private static final String RESULTS = "results";
+	private static final String BINDINGS = "bindings";
+	private static final String VALUE = "value";
+
+	protected final List<String> variables = new ArrayList<String>();
+
+	/**
+	 * Opens a reader over a response stream. The stream is closed with the reader.
+	 * @param is SPARQL results in JSON or XML
+	 * @return
+	 * @throws IOException if the stream cannot be read or the results are malformed
+	 */
+	public static BindingReader open(final InputStream is) throws IOException {
+		final InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+		in.mark(MARK_LIMIT);
+		int c = in.read();
+		for(int i=1;i<MARK_LIMIT && Character.isWhitespace(c);i++) {
+			c = in.read();
+		}
+		in.reset();
+		if(c == '<') {
+			try {
+				return new XmlBindingReader(ResultSetFactory.fromXML(in), in);
+			}
+			catch(RuntimeException e) {
+				in.close();
+				throw new IOException("Malformed SPARQL results: "+e.getMessage(), e);
+			}
+		}
+		return json(new InputStreamReader(in, UTF8));
+	}
+
+	/**
+	 * Opens a reader over results returned by a query executor
+	 * @param results SPARQL results in JSON or XML
+	 * @return
+	 * @throws IOException if the results are malformed
+	 */
+	public static BindingReader open(final String results) throws IOException {
+		if(results == null) {
+			throw new IOException("No results to read");
+		}
+		int i = 0;
+		while(i < results.length() && Character.isWhitespace(results.charAt(i))) {
+			i++;
+		}
+		if(results.startsWith("<", i)) {
+			try {
+				return new XmlBindingReader(ResultSetFactory.fromXML(results), new StringReader(results));
+			}
+			catch(RuntimeException e) {
+				throw new IOException("Malformed SPARQL results: "+e.getMessage(), e);
+			}
+		}
+		return json(new StringReader(results));
+	}
+
+	private static BindingReader json(final Reader reader) throws IOException {
+		final JsonBindingReader json = new JsonBindingReader(reader);
+		json.start();
+		return json;
+	}
+
+	/**
+	 * Gets the variables listed in the head of the results. For JSON
+	 * results this is only complete if the head precedes the bindings,
+	 * which is the case for the endpoints used by SemantEco.
+	 * @return
+	 */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(variables);
+	}
+
+	/**
+	 * Reads the next binding
+	 * @return Map of variable name to value, or null once every binding has been read
+	 * @throws IOException if the results cannot be read or are malformed
+	 */
+	public abstract Map<String, String> next() throws IOException;
+
+	/**
+	 * Pull parser for application/sparql-results+json. Only the head
+	 * variables and the value of each bound term are kept; everything else
+	 * is skipped as it is read.
+	 */
+	private static final class JsonBindingReader extends BindingReader {
+		private final Reader reader;
+		private final char[] buffer = new char[8192];
+		private final StringBuilder sb = new StringBuilder();
+		private int pos = 0;
+		private int limit = 0;
+		private boolean done = false;
+
+		JsonBindingReader(final Reader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Reads up to the start of the bindings array, collecting the head
+		 * variables along the way
+		 */
+		void start() throws IOException {
+			expect('{');
+			String key = null;
+			while((key = nextKey()) != null) {
+				if("head".equals(key)) {
+					readHead();
+				}
+				else if(RESULTS.equals(key)) {
+					expect('{');
+					while((key = nextKey()) != null) {
+						if(BINDINGS.equals(key)) {
+							expect('[');
+							return;
+						}
+						skipValue();
+					}
+				}
+				else {
+					skipValue();
+				}
+			}
+			done = true;
+		}
+
+		@Override
+		public Map<String, String> next() throws IOException {
+			if(done) {
+				return null;
+			}
+			int c = nextToken();
+			if(c == ',') {
+				c = nextToken();
+			}
+			if(c == ']') {
+				done = true;
+				return null;
+			}
+			if(c != '{') {
+				throw syntaxError("binding", c);
+			}
+			final Map<String, String> binding = new LinkedHashMap<String, String>();
+			String var = null;
+			while((var = nextKey()) != null) {
+				expect('{');
+				String key = null;
+				while((key = nextKey()) != null) {
+					if(VALUE.equals(key)) {
+						final String value = readScalar();
+						if(value != null) {
+							binding.put(var, value);
+						}
+					}
+					else {
+						skipValue();
+					}
+				}
+			}
+			return binding;
+		}
+
+		@Override
+		public void close() throws IOException {
+			done = true;
+			reader.close();
+		}
+
+		private void readHead() throws IOException {
+			expect('{');
+			String key = null;
+			while((key = nextKey()) != null) {
+				if("vars".equals(key)) {
+					expect('[');
+					int c = nextToken();
+					while(c != ']') {
+						if(c == ',') {
+							c = nextToken();
+						}
+						if(c != '"') {
+							throw syntaxError("variable name", c);
+						}
+						variables.add(readString());
+						c = nextToken();
+					}
+				}
+				else {
+					skipValue();
+				}
+			}
+		}
+
+		/**
+		 * Reads the key of the next member of the current object
+		 * @return The key, or null at the end of the object
+		 */
+		private String nextKey() throws IOException {
+			int c = nextToken();
+			if(c == ',') {
+				c = nextToken();
+			}
+			if(c == '}') {
+				return null;
+			}
+			if(c != '"') {
+				throw syntaxError("member name", c);
+			}
+			final String key = readString();
+			expect(':');
+			return key;
+		}
+
+		/**
+		 * Reads a string, number, or literal value as a string
+		 * @return The value, or null for JSON null and for objects and arrays,
+		 * which are skipped
+		 */
+		private String readScalar() throws IOException {
+			final int c = peek();
+			if(c == '"') {
+				pos++;
+				return readString();
+			}
+			else if(c == '{' || c == '[') {
+				skipValue();
+				return null;
+			}
+			final String literal = readLiteral();
+			return "null".equals(literal) ? null : literal;
+		}
+
+		private void skipValue() throws IOException {
+			int c = peek();
+			if(c != '{' && c != '[') {
+				readScalar();
+				return;
+			}
+			int depth = 0;
+			do {
+				c = read();
+				if(c == '"') {
+					readString();
+				}
+				else if(c == '{' || c == '[') {
+					depth++;
+				}
+				else if(c == '}' || c == ']') {
+					depth--;
+				}
+				else if(c < 0) {
+					throw syntaxError("end of value", c);
+				}
+			} while(depth > 0);
+		}
+
+		/**
+		 * Reads the remainder of a string whose opening quote has been consumed
+		 */
+		private String readString() throws IOException {
+			sb.setLength(0);
+			while(true) {
+				int c = read();
+				if(c == '"') {
+					return sb.toString();
+				}
+				else if(c == '\\') {
+					c = read();
+					switch(c) {
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'n': sb.append('\n'); break;
+					case 'r': sb.append('\r'); break;
+					case 't': sb.append('\t'); break;
+					case 'u':
+						int code = 0;
+						for(int i=0;i<4;i++) {
+							final int digit = Character.digit(read(), 16);
+							if(digit < 0) {
+								throw new IOException("Invalid unicode escape in SPARQL results");
+							}
+							code = (code << 4) | digit;
+						}
+						sb.append((char)code);
+						break;
+					default:
+						if(c < 0) {
+							throw syntaxError("end of string", c);
+						}
+						sb.append((char)c);
+					}
+				}
+				else if(c < 0) {
+					throw syntaxError("end of string", c);
+				}
+				else {
+					sb.append((char)c);
+				}
+			}
+		}
+
+		private String readLiteral() throws IOException {
+			sb.setLength(0);
+			int c = peek();
+			while(c >= 0 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+				sb.append((char)read());
+				c = peekRaw();
+			}
+			if(sb.length() == 0) {
+				throw syntaxError("value", c);
+			}
+			return sb.toString();
+		}
+
+		private void expect(final char expected) throws IOException {
+			final int c = nextToken();
+			if(c != expected) {
+				throw syntaxError("'"+expected+"'", c);
+			}
+		}
+
+		/**
+		 * Consumes and returns the next non-whitespace character
+		 */
+		private int nextToken() throws IOException {
+			final int c = peek();
+			if(c >= 0) {
+				pos++;
+			}
+			return c;
+		}
+
+		/**
+		 * Skips whitespace and returns the next character without consuming it
+		 */
+		private int peek() throws IOException {
+			int c = peekRaw();
+			while(c >= 0 && Character.isWhitespace(c)) {
+				pos++;
+				c = peekRaw();
+			}
+			return c;
+		}
+
+		private int peekRaw() throws IOException {
+			if(pos >= limit && !fill()) {
+				return -1;
+			}
+			return buffer[pos];
+		}
+
+		private int read() throws IOException {
+			if(pos >= limit && !fill()) {
+				return -1;
+			}
+			return buffer[pos++];
+		}
+
+		private boolean fill() throws IOException {
+			limit = reader.read(buffer, 0, buffer.length);
+			pos = 0;
+			if(limit <= 0) {
+				limit = 0;
+				return false;
+			}
+			return true;
+		}
+
+		private static IOException syntaxError(final String expected, final int found) {
+			return new IOException("Malformed SPARQL results: expected "+expected+" but found "+
+					(found < 0 ? "end of input" : "'"+(char)found+"'"));
+		}
+	}
+
+	/**
+	 * Reader for application/sparql-results+xml backed by ARQ's StAX result
+	 * set, which reads one result at a time as it is iterated
+	 */
+	private static final class XmlBindingReader extends BindingReader {
+		private final Closeable source;
+		private final ResultSet results;
+		private boolean done = false;
+
+		XmlBindingReader(final ResultSet results, final Closeable source) {
+			this.source = source;
+			this.results = results;
+			variables.addAll(results.getResultVars());
+		}
+
+		@Override
+		public Map<String, String> next() throws IOException {
+			if(done) {
+				return null;
+			}
+			try {
+				if(!results.hasNext()) {
+					done = true;
+					return null;
+				}
+				final QuerySolution solution = results.nextSolution();
+				final Map<String, String> binding = new LinkedHashMap<String, String>();
+				final Iterator<String> names = solution.varNames();
+				while(names.hasNext()) {
+					final String name = names.next();
+					final RDFNode term = solution.get(name);
+					if(term == null) {
+						continue;
+					}
+					final Node node = term.asNode();
+					if(node.isURI()) {
+						binding.put(name, node.getURI());
+					}
+					else if(node.isLiteral()) {
+						binding.put(name, node.getLiteralLexicalForm());
+					}
+					else if(node.isBlank()) {
+						binding.put(name, node.getBlankNodeLabel());
+					}
+				}
+				return binding;
+			}
+			catch(RuntimeException e) {
+				done = true;
+				throw new IOException("Malformed SPARQL results: "+e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			done = true;
+			source.close();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.rpi.tw.escience.semanteco.Domain;
+import edu.rpi.tw.escience.semanteco.Request;
+
+/**
+ * DomainCache holds the domains provided by a module. They are built the
+ * first time they are requested and shared by all requests until the module
+ * asks for them to be rebuilt, e.g. from a rebuildDomains query method, or
+ * until the next background refresh if the module calls
+ * {@link #start(String, String, long)}. A rebuild that fails keeps the
+ * domains built before it.
+ * @author ewpatton
+ *
+ */
+public final class DomainCache {
+
+	private static final Logger log = Logger.getLogger(DomainCache.class);
+
+	private final Builder builder;
+	private volatile List<Domain> domains = null;
+	private ScheduledExecutorService refresher = null;
+
+	/**
+	 * Creates a cache for the domains built by a module
+	 * @param builder Builds the module's domains
+	 */
+	public DomainCache(final Builder builder) {
+		this.builder = builder;
+	}
+
+	/**
+	 * Gets the domains, building them if needed
+	 * @param request Request object encapsulating RESTful call
+	 * @return A copy of the cached domains
+	 */
+	public List<Domain> get(final Request request) {
+		List<Domain> cached = domains;
+		if(cached == null) {
+			cached = Collections.unmodifiableList(new ArrayList<Domain>(builder.buildDomains(request)));
+			domains = cached;
+		}
+		return new ArrayList<Domain>(cached);
+	}
+
+	/**
+	 * Rebuilds the domains. If they cannot be built, the failure is logged
+	 * and the previously built domains are kept.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true}, or {"success": false,
+	 * "error": message} if the domains could not be built
+	 */
+	public String rebuild(final Request request) {
+		final JSONObject response = new JSONObject();
+		try {
+			try {
+				build(request);
+				response.put("success", true);
+			}
+			catch(RuntimeException e) {
+				log.error("Unable to rebuild domains", e);
+				response.put("success", false);
+				response.put("error", String.valueOf(e.getMessage()));
+			}
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize rebuild response", e);
+			return "{\"success\":false}";
+		}
+		return response.toString();
+	}
+
+	/**
+	 * Rebuilds the domains on a background thread at a fixed interval.
+	 * The builder is called with a null request and must build the domains
+	 * from state shared by all requests. Calling this more than once has no
+	 * effect.
+	 * @param name Name of the refresh thread
+	 * @param property System property holding the interval in minutes
+	 * @param defaultMinutes Interval used if the property is not set
+	 */
+	public synchronized void start(final String name, final String property, final long defaultMinutes) {
+		if(refresher != null) {
+			return;
+		}
+		long minutes = defaultMinutes;
+		try {
+			minutes = Long.parseLong(System.getProperty(property, Long.toString(defaultMinutes)));
+		}
+		catch(NumberFormatException e) {
+			log.warn("Invalid value for "+property+", using "+defaultMinutes+" minutes");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, minutes, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Rebuilds the domains without a request. Failures are logged and keep
+	 * the previously built domains.
+	 */
+	public void refresh() {
+		log.trace("refresh");
+		try {
+			build(null);
+		}
+		catch(RuntimeException e) {
+			log.warn("Unable to refresh domains", e);
+		}
+	}
+
+	private void build(final Request request) {
+		final List<Domain> built = builder.buildDomains(request);
+		if(built == null || built.isEmpty()) {
+			throw new IllegalStateException("No domains were built");
+		}
+		domains = Collections.unmodifiableList(new ArrayList<Domain>(built));
+	}
+
+	/**
+	 * Discards the cached domains so that they are built again on next use,
+	 * e.g. when the module's configuration changes
+	 */
+	public void clear() {
+		domains = null;
+	}
+
+	/**
+	 * Builds the domains provided by a module
+	 */
+	public interface Builder {
+		/**
+		 * Builds the domains
+		 * @param request Request object encapsulating RESTful call
+		 * @return
+		 */
+		List<Domain> buildDomains(Request request);
+	}
+
+}
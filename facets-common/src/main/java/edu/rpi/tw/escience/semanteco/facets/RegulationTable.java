@@ -0,0 +1,744 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * RegulationTable is a regulation ontology compiled into a table of
+ * thresholds keyed by (characteristic, unit). A regulation states each limit
+ * as a class of measurements, e.g.
+ * <pre>
+ * [ owl:intersectionOf (
+ *     [ owl:onProperty pol:hasCharacteristic ; owl:hasValue ?characteristic ]
+ *     [ owl:onProperty unit:hasUnit ; owl:hasValue ?unit ]
+ *     [ owl:onProperty pol:hasValue ;
+ *       owl:someValuesFrom [ owl:withRestrictions ( [ xsd:minInclusive ?limit ] ) ] ] ) ]
+ * </pre>
+ * The table walks those lists once when the ontology is read and keeps the
+ * facets of each class as primitive operator codes and limits, so violations
+ * and limits are found by a map lookup rather than by matching property paths
+ * over the ontology for every measurement.
+ *
+ * Compiled tables are cached by URL. After {@link #REVALIDATE_PROPERTY}
+ * seconds a cached table is revalidated with a conditional GET using the
+ * ETag and Last-Modified headers of the last response, so an unchanged
+ * ontology is neither downloaded nor compiled again. Revalidation happens on
+ * a background thread while requests keep using the cached table; only the
+ * first request for an ontology waits for it to be read. If the ontology
+ * cannot be fetched the last compiled table is kept, and an ontology that
+ * has never been read is not requested again until the revalidation period
+ * has passed.
+ * @author ewpatton
+ *
+ */
+public final class RegulationTable {
+
+	/**
+	 * System property holding the number of seconds a compiled table is used
+	 * before it is revalidated (default 300)
+	 */
+	public static final String REVALIDATE_PROPERTY = "semanteco.regulation.revalidateSeconds";
+
+	static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
+	static final String XSD_NS = "http://www.w3.org/2001/XMLSchema#";
+
+	public static final String REGULATION_PARAM = "regulation";
+
+	private static final int MIN_INCLUSIVE = 0;
+	private static final int MAX_INCLUSIVE = 1;
+	private static final int MIN_EXCLUSIVE = 2;
+	private static final int MAX_EXCLUSIVE = 3;
+
+	// facet names and the operator returned for them, indexed by the codes above
+	private static final String[] FACETS = {
+		XSD_NS+"minInclusive", XSD_NS+"maxInclusive", XSD_NS+"minExclusive", XSD_NS+"maxExclusive"
+	};
+	private static final String[] OPERATORS = { "<=", ">=", "<", ">" };
+
+	private static final String LIMIT_VAR = "limit";
+	private static final String OP_VAR = "op";
+	private static final String ELEMENT_VAR = "element";
+	private static final String UNIT_VAR = "unit";
+	private static final String VALUE_VAR = "value";
+	private static final String VALUE = "value";
+
+	private static final Node HAS_CHARACTERISTIC = Node.createURI(POL_NS+"hasCharacteristic");
+	private static final Node HAS_VALUE = Node.createURI(POL_NS+"hasValue");
+	private static final Node HAS_UNIT = Node.createURI(UNIT_NS+"hasUnit");
+	private static final Node REGULATION_VIOLATION = Node.createURI(POL_NS+"RegulationViolation");
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node FIRST = RDF.first.asNode();
+	private static final Node REST = RDF.rest.asNode();
+	private static final Node NIL = RDF.nil.asNode();
+	private static final Node WITH_RESTRICTIONS = Node.createURI(OWL.NS+"withRestrictions");
+
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 60000;
+
+	private static final Logger log = Logger.getLogger(RegulationTable.class);
+	private static final Map<String, Source> sources = new HashMap<String, Source>();
+	private static final ExecutorService revalidator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "regulation-revalidate");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private static final AtomicLong generation = new AtomicLong();
+
+	private final Map<String, Threshold[]> thresholds;
+	private final List<Triple> classes;
+
+	private RegulationTable(final Map<String, Threshold[]> thresholds, final List<Triple> classes) {
+		this.thresholds = thresholds;
+		this.classes = classes;
+	}
+
+	/**
+	 * Gets the compiled table for a regulation ontology, downloading it on
+	 * first use and revalidating it once the cached copy is stale
+	 * @param url URL of the regulation ontology
+	 * @return The compiled table, or null if the ontology has never been read
+	 */
+	public static RegulationTable get(final String url) {
+		Source source = null;
+		synchronized(sources) {
+			source = sources.get(url);
+			if(source == null) {
+				source = new Source(url);
+				sources.put(url, source);
+			}
+		}
+		return source.get();
+	}
+
+	/**
+	 * Gets a counter that is incremented whenever a regulation ontology is
+	 * compiled, so that results derived from older tables can be recognized
+	 * @return
+	 */
+	public static long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Gets the compiled tables of every regulation selected in a request
+	 * @param regulation Value of the regulation parameter, mapping domain
+	 * names to regulation URLs
+	 * @return The compiled tables, possibly empty
+	 */
+	public static List<RegulationTable> forRegulations(final Object regulation) {
+		if(!(regulation instanceof JSONObject)) {
+			return Collections.emptyList();
+		}
+		final JSONObject obj = (JSONObject)regulation;
+		final List<RegulationTable> tables = new ArrayList<RegulationTable>();
+		@SuppressWarnings("unchecked")
+		final Iterator<String> keys = obj.keys();
+		while(keys.hasNext()) {
+			final String url = obj.optString(keys.next());
+			if(url == null || url.equals("")) {
+				continue;
+			}
+			final RegulationTable table = get(url);
+			if(table != null) {
+				tables.add(table);
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Compiles a regulation ontology
+	 * @param model Model containing the regulation ontology
+	 * @return
+	 */
+	public static RegulationTable compile(final Model model) {
+		final Graph graph = model.getGraph();
+		final Map<String, List<Threshold>> table = new HashMap<String, List<Threshold>>();
+		final Set<Node> named = new HashSet<Node>();
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, OWL.intersectionOf.asNode(), Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final Node cls = nameOf(graph, t.getSubject());
+				final Threshold threshold = compileClass(graph, cls, t.getObject());
+				if(threshold == null) {
+					continue;
+				}
+				List<Threshold> list = table.get(threshold.key);
+				if(list == null) {
+					list = new ArrayList<Threshold>();
+					table.put(threshold.key, list);
+				}
+				list.add(threshold);
+				if(cls.isURI()) {
+					named.add(cls);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		final Map<String, Threshold[]> thresholds = new HashMap<String, Threshold[]>();
+		for(Map.Entry<String, List<Threshold>> i : table.entrySet()) {
+			thresholds.put(i.getKey(), i.getValue().toArray(new Threshold[i.getValue().size()]));
+		}
+		return new RegulationTable(thresholds, declarations(graph, named));
+	}
+
+	/**
+	 * Gets the thresholds that apply to measurements of a characteristic in a unit
+	 * @param characteristic Characteristic URI
+	 * @param unit Unit URI, or null
+	 * @return The thresholds, possibly empty
+	 */
+	public Threshold[] lookup(final String characteristic, final String unit) {
+		Threshold[] result = thresholds.get(key(characteristic, unit));
+		if(result == null && unit != null) {
+			result = thresholds.get(key(characteristic, null));
+		}
+		return result == null ? new Threshold[0] : result;
+	}
+
+	/**
+	 * Gets the number of thresholds in the table
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for(Threshold[] i : thresholds.values()) {
+			size += i.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Types every measurement in the graph that falls within one of the
+	 * table's thresholds as a pol:RegulationViolation and as the regulation's
+	 * class for that threshold. The regulation classes are declared along
+	 * with their labels and named superclasses so that they can be displayed.
+	 * @param graph Graph containing measurements
+	 * @return The number of violating measurements found
+	 */
+	public int evaluate(final Graph graph) {
+		final List<Triple> added = new ArrayList<Triple>();
+		final Set<Node> violations = new HashSet<Node>();
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_CHARACTERISTIC, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				if(!t.getObject().isURI()) {
+					continue;
+				}
+				final Node m = t.getSubject();
+				final String characteristic = t.getObject().getURI();
+				final String unit = first(graph, m, HAS_UNIT);
+				final double value = toDouble(firstNode(graph, m, HAS_VALUE));
+				if(Double.isNaN(value)) {
+					continue;
+				}
+				for(Threshold i : lookup(characteristic, unit)) {
+					if(!i.matches(value)) {
+						continue;
+					}
+					if(violations.add(m)) {
+						added.add(Triple.create(m, TYPE, REGULATION_VIOLATION));
+					}
+					if(i.cls != null) {
+						added.add(Triple.create(m, TYPE, Node.createURI(i.cls)));
+					}
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		if(!violations.isEmpty()) {
+			added.addAll(classes);
+		}
+		graph.getBulkUpdateHandler().add(added);
+		return violations.size();
+	}
+
+	/**
+	 * Adds the ?op and ?limit of the regulation thresholds to SPARQL JSON
+	 * results. Each binding is repeated once per facet of each threshold that
+	 * applies, as if the ontology had been matched in the query itself, and
+	 * the regulation's limit takes precedence over any limit already bound.
+	 * Bindings without an applicable threshold are left as they are.
+	 * @param tables Regulation tables to consult
+	 * @param results SPARQL JSON results with ?unit and ?value bound
+	 * @param characteristic Characteristic of every binding, or null to
+	 * read it from ?element
+	 * @param violations true to apply only the thresholds a binding's
+	 * ?value falls within, otherwise every threshold for its characteristic
+	 * and unit
+	 * @return The extended results, or the results unchanged if they could
+	 * not be parsed
+	 */
+	public static String addLimits(final List<RegulationTable> tables, final String results,
+			final String characteristic, final boolean violations) {
+		if(tables.isEmpty() || results == null) {
+			return results;
+		}
+		try {
+			final JSONObject json = new JSONObject(results);
+			final JSONObject res = json.optJSONObject("results");
+			final JSONArray bindings = res == null ? null : res.optJSONArray("bindings");
+			if(bindings == null) {
+				return results;
+			}
+			final JSONArray extended = new JSONArray();
+			for(int i=0;i<bindings.length();i++) {
+				final JSONObject binding = bindings.getJSONObject(i);
+				final String element = characteristic != null ? characteristic : value(binding, ELEMENT_VAR);
+				final double value = parse(value(binding, VALUE_VAR));
+				boolean found = false;
+				for(RegulationTable table : tables) {
+					for(Threshold threshold : table.lookup(element, value(binding, UNIT_VAR))) {
+						if(violations && !threshold.matches(value)) {
+							continue;
+						}
+						for(int j=0;j<threshold.ops.length;j++) {
+							final JSONObject copy = new JSONObject(binding, JSONObject.getNames(binding));
+							copy.put(OP_VAR, new JSONObject().put("type", "literal")
+									.put(VALUE, OPERATORS[threshold.ops[j]]));
+							copy.put(LIMIT_VAR, new JSONObject().put("type", "typed-literal")
+									.put("datatype", XSD_NS+"decimal").put(VALUE, threshold.lexical[j]));
+							extended.put(copy);
+							found = true;
+						}
+					}
+				}
+				if(!found) {
+					extended.put(binding);
+				}
+			}
+			res.put("bindings", extended);
+			return json.toString();
+		}
+		catch(JSONException e) {
+			log.warn("Unable to add regulation limits to results", e);
+			return results;
+		}
+	}
+
+	private static Threshold compileClass(final Graph graph, final Node cls, final Node list) {
+		String characteristic = null;
+		String unit = null;
+		List<Node> facets = null;
+		for(Node member : members(graph, list)) {
+			final Node property = firstNode(graph, member, OWL.onProperty.asNode());
+			if(HAS_CHARACTERISTIC.equals(property)) {
+				characteristic = first(graph, member, OWL.hasValue.asNode());
+			}
+			else if(HAS_UNIT.equals(property)) {
+				unit = first(graph, member, OWL.hasValue.asNode());
+			}
+			else if(HAS_VALUE.equals(property)) {
+				final Node dt = firstNode(graph, member, OWL.someValuesFrom.asNode());
+				if(dt != null) {
+					facets = members(graph, firstNode(graph, dt, WITH_RESTRICTIONS));
+				}
+			}
+		}
+		if(characteristic == null || facets == null) {
+			return null;
+		}
+		final int[] ops = new int[facets.size() * FACETS.length];
+		final double[] limits = new double[ops.length];
+		final String[] lexical = new String[ops.length];
+		int count = 0;
+		for(Node facet : facets) {
+			for(int op=0;op<FACETS.length;op++) {
+				final Node limit = firstNode(graph, facet, Node.createURI(FACETS[op]));
+				final double d = toDouble(limit);
+				if(Double.isNaN(d)) {
+					continue;
+				}
+				ops[count] = op;
+				limits[count] = d;
+				lexical[count] = limit.getLiteralLexicalForm();
+				count++;
+			}
+		}
+		if(count == 0) {
+			return null;
+		}
+		final int[] o = new int[count];
+		final double[] l = new double[count];
+		final String[] s = new String[count];
+		System.arraycopy(ops, 0, o, 0, count);
+		System.arraycopy(limits, 0, l, 0, count);
+		System.arraycopy(lexical, 0, s, 0, count);
+		return new Threshold(key(characteristic, unit), cls.isURI() ? cls.getURI() : null, o, l, s);
+	}
+
+	// an anonymous intersection is usually the equivalent class of a named regulation class
+	private static Node nameOf(final Graph graph, final Node cls) {
+		if(cls.isURI()) {
+			return cls;
+		}
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, OWL.equivalentClass.asNode(), cls);
+		try {
+			while(it.hasNext()) {
+				final Node subject = it.next().getSubject();
+				if(subject.isURI()) {
+					return subject;
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		return cls;
+	}
+
+	private static List<Triple> declarations(final Graph graph, final Set<Node> named) {
+		final List<Triple> triples = new ArrayList<Triple>();
+		for(Node cls : named) {
+			triples.add(Triple.create(cls, TYPE, OWL.Class.asNode()));
+			triples.add(Triple.create(cls, RDFS.subClassOf.asNode(), REGULATION_VIOLATION));
+			final ExtendedIterator<Triple> it = graph.find(cls, Node.ANY, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					final Triple t = it.next();
+					if((RDFS.subClassOf.asNode().equals(t.getPredicate()) && t.getObject().isURI()) ||
+							RDFS.label.asNode().equals(t.getPredicate())) {
+						triples.add(t);
+					}
+				}
+			}
+			finally {
+				it.close();
+			}
+		}
+		return triples;
+	}
+
+	private static List<Node> members(final Graph graph, Node list) {
+		final List<Node> members = new ArrayList<Node>();
+		final Set<Node> seen = new HashSet<Node>();
+		while(list != null && !NIL.equals(list) && seen.add(list)) {
+			final Node first = firstNode(graph, list, FIRST);
+			if(first != null) {
+				members.add(first);
+			}
+			list = firstNode(graph, list, REST);
+		}
+		return members;
+	}
+
+	private static Node firstNode(final Graph graph, final Node s, final Node p) {
+		final ExtendedIterator<Triple> it = graph.find(s, p, Node.ANY);
+		try {
+			return it.hasNext() ? it.next().getObject() : null;
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	private static String first(final Graph graph, final Node s, final Node p) {
+		final Node o = firstNode(graph, s, p);
+		if(o == null) {
+			return null;
+		}
+		return o.isURI() ? o.getURI() : o.isLiteral() ? o.getLiteralLexicalForm() : null;
+	}
+
+	private static double toDouble(final Node node) {
+		if(node == null || !node.isLiteral()) {
+			return Double.NaN;
+		}
+		return parse(node.getLiteralLexicalForm());
+	}
+
+	private static double parse(final String str) {
+		if(str == null) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(str.trim());
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static String value(final JSONObject binding, final String var) {
+		final JSONObject term = binding.optJSONObject(var);
+		return term == null ? null : term.optString(VALUE, null);
+	}
+
+	private static String key(final String characteristic, final String unit) {
+		return characteristic + "|" + (unit == null ? "" : unit);
+	}
+
+	/**
+	 * A threshold is the value range of one regulation class, as facets that
+	 * must all hold for a measured value to fall within the class.
+	 */
+	public static final class Threshold {
+		final String key;
+		final String cls;
+		final int[] ops;
+		final double[] limits;
+		final String[] lexical;
+
+		Threshold(final String key, final String cls, final int[] ops, final double[] limits, final String[] lexical) {
+			this.key = key;
+			this.cls = cls;
+			this.ops = ops;
+			this.limits = limits;
+			this.lexical = lexical;
+		}
+
+		/**
+		 * Tests whether a value falls within the threshold's range
+		 * @param value Measured value
+		 * @return
+		 */
+		public boolean matches(final double value) {
+			if(Double.isNaN(value)) {
+				return false;
+			}
+			for(int i=0;i<ops.length;i++) {
+				final double limit = limits[i];
+				switch(ops[i]) {
+				case MIN_INCLUSIVE:
+					if(value < limit) {
+						return false;
+					}
+					break;
+				case MAX_INCLUSIVE:
+					if(value > limit) {
+						return false;
+					}
+					break;
+				case MIN_EXCLUSIVE:
+					if(value <= limit) {
+						return false;
+					}
+					break;
+				case MAX_EXCLUSIVE:
+					if(value >= limit) {
+						return false;
+					}
+					break;
+				default:
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the URI of the regulation class
+		 * @return The class URI, or null if the class is anonymous
+		 */
+		public String getRegulationClass() {
+			return cls;
+		}
+
+		/**
+		 * Gets the number of facets in the threshold
+		 * @return
+		 */
+		public int size() {
+			return ops.length;
+		}
+
+		/**
+		 * Gets the operator of a facet, as returned in ?op
+		 * @param i Index of the facet
+		 * @return One of &lt;=, &gt;=, &lt; or &gt;
+		 */
+		public String getOperator(final int i) {
+			return OPERATORS[ops[i]];
+		}
+
+		/**
+		 * Gets the limit of a facet
+		 * @param i Index of the facet
+		 * @return
+		 */
+		public double getLimit(final int i) {
+			return limits[i];
+		}
+	}
+
+	private static long getRevalidateMillis() {
+		try {
+			return Long.parseLong(System.getProperty(REVALIDATE_PROPERTY, "300")) * 1000L;
+		}
+		catch(NumberFormatException e) {
+			return 300000L;
+		}
+	}
+
+	/**
+	 * A regulation ontology and the validators of the response it was
+	 * compiled from. The ontology is read by one thread at a time: by the
+	 * first request while there is no table, afterwards by the revalidator.
+	 */
+	private static final class Source {
+		private final String url;
+		private volatile RegulationTable table = null;
+		private volatile String etag = null;
+		private volatile long lastModified = 0;
+		private long checked = 0;
+		private boolean revalidating = false;
+
+		Source(final String url) {
+			this.url = url;
+		}
+
+		RegulationTable get() {
+			final RegulationTable current;
+			synchronized(this) {
+				current = table;
+				final boolean stale = System.currentTimeMillis() - checked >= getRevalidateMillis();
+				if(current == null) {
+					if(stale) {
+						read();
+					}
+					return table;
+				}
+				if(!stale || revalidating) {
+					return current;
+				}
+				revalidating = true;
+			}
+			try {
+				revalidator.execute(new Runnable() {
+					@Override
+					public void run() {
+						read();
+						synchronized(Source.this) {
+							revalidating = false;
+						}
+					}
+				});
+			}
+			catch(RejectedExecutionException e) {
+				log.warn("Unable to revalidate the regulation file '"+url+"'", e);
+				synchronized(this) {
+					revalidating = false;
+				}
+			}
+			return current;
+		}
+
+		private void read() {
+			try {
+				fetch();
+			}
+			catch(Exception e) {
+				log.warn("Had a problem reading the regulation file '"+url+"'", e);
+			}
+			synchronized(this) {
+				checked = System.currentTimeMillis();
+			}
+		}
+
+		private void fetch() throws IOException {
+			final HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			conn.setRequestProperty("Accept", "application/rdf+xml, text/turtle;q=0.9, text/n3;q=0.8");
+			if(table != null) {
+				if(etag != null) {
+					conn.setRequestProperty("If-None-Match", etag);
+				}
+				if(lastModified > 0) {
+					conn.setIfModifiedSince(lastModified);
+				}
+			}
+			try {
+				conn.connect();
+				if(table != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					log.debug("Regulation ontology '"+url+"' is unchanged");
+					return;
+				}
+				final String lang = getLang(conn.getContentType());
+				if(lang == null) {
+					log.warn("Unexpected content type "+conn.getContentType()+" received for '"+url+"'");
+					return;
+				}
+				final Model model = ModelFactory.createDefaultModel();
+				final InputStream content = conn.getInputStream();
+				try {
+					model.read(content, url, lang);
+				}
+				finally {
+					content.close();
+				}
+				final RegulationTable compiled = compile(model);
+				log.debug("Compiled "+compiled.size()+" thresholds from '"+url+"'");
+				table = compiled;
+				generation.incrementAndGet();
+				etag = conn.getHeaderField("ETag");
+				lastModified = conn.getLastModified();
+			}
+			finally {
+				conn.disconnect();
+			}
+		}
+
+		private static String getLang(final String contentType) {
+			if(contentType == null) {
+				return null;
+			}
+			String type = contentType;
+			if(type.indexOf(';') >= 0) {
+				type = type.substring(0, type.indexOf(';'));
+			}
+			type = type.trim();
+			if(type.equals("application/rdf+xml") || type.equals("text/xml")) {
+				return "RDF/XML";
+			}
+			else if(type.equals("text/turtle")) {
+				return "TTL";
+			}
+			else if(type.equals("text/n3")) {
+				return "N3";
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,382 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.rdf.model.Model;
+
+import edu.rpi.tw.escience.semanteco.Request;
+
+/**
+ * ResultCache holds the results of the per-site queries made when a site
+ * marker is clicked, keyed by (model version, site, characteristic, test).
+ * Each module keeps its own cache, configured by the system properties
+ * under its name, e.g. semanteco.regulation.resultCacheSize.
+ *
+ * The model version is made of the model signature, i.e. the request
+ * parameters that shape the combined model, and a version recorded when a
+ * model with that signature is built: the data-load count (see
+ * {@link #dataLoaded()}), the generation of the compiled regulation tables
+ * and the size of the model's base graph. A click arrives with a new
+ * request whose model has not been built yet, so its key is computed from
+ * its parameters and the version of the latest model built with the same
+ * signature. Once data has been loaded or the regulations recompiled since
+ * that model was built there is no key until the model is built again, so
+ * results of an older model or regulation are never returned; they are
+ * evicted as the least recently used entries or once they are older than
+ * the resultCacheMinutes property.
+ *
+ * After queryForSites the results of the most polluted sites may be
+ * computed by a background thread, so the markers users are most likely to
+ * click are answered from the cache. Only the latest sites of each model
+ * signature are kept waiting, at most precomputeQueue signatures wait, and
+ * the request is only referenced weakly until its sites are computed.
+ * The cache can be turned off with the resultCache property set to false.
+ * @author ewpatton
+ *
+ */
+public final class ResultCache {
+
+	/**
+	 * Request parameters that determine the contents of the combined model
+	 */
+	static final String[] MODEL_PARAMS = {
+		"state", "county", "zip", "domain", "source", "characteristic", "from",
+		"until", "species", "industry", "regulation", "summary"
+	};
+
+	private static final Logger log = Logger.getLogger(ResultCache.class);
+	private static final AtomicLong loads = new AtomicLong();
+
+	private final String name;
+	private final String enabledProperty;
+	private final String sizeProperty;
+	private final String ttlProperty;
+	private final String precomputeProperty;
+	private final String queueProperty;
+	private final Map<String, ResultCache.Entry> entries;
+	private final Map<String, Version> versions;
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private boolean draining = false;
+	private ExecutorService precompute = null;
+
+	/**
+	 * Creates the cache of a module
+	 * @param name Name of the module, used for the names of the properties,
+	 * e.g. semanteco.&lt;name&gt;.resultCache, and of the precompute thread
+	 */
+	public ResultCache(final String name) {
+		this.name = name;
+		final String prefix = "semanteco."+name+".";
+		enabledProperty = prefix+"resultCache";
+		sizeProperty = prefix+"resultCacheSize";
+		ttlProperty = prefix+"resultCacheMinutes";
+		precomputeProperty = prefix+"precomputeSites";
+		queueProperty = prefix+"precomputeQueue";
+		entries = Collections.synchronizedMap(new LinkedHashMap<String, ResultCache.Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 3349051702186305561L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ResultCache.Entry> eldest) {
+				return size() > Integer.getInteger(sizeProperty, 512);
+			}
+		});
+		versions = Collections.synchronizedMap(new LinkedHashMap<String, Version>(16, 0.75f, true) {
+			private static final long serialVersionUID = -2286424519530871745L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Version> eldest) {
+				return size() > Integer.getInteger(sizeProperty, 512);
+			}
+		});
+	}
+
+	/**
+	 * Records that data has been reloaded from a source, e.g. after the data
+	 * sources were refreshed, so that no cached result of a model built
+	 * before is returned
+	 */
+	public static void dataLoaded() {
+		loads.incrementAndGet();
+	}
+
+	/**
+	 * Tests whether results are cached
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(enabledProperty));
+	}
+
+	/**
+	 * Records the version of the combined model built for a request as the
+	 * version of its signature
+	 * @param request Request the model was built for
+	 * @param model Combined model
+	 */
+	public void modelBuilt(final Request request, final Model model) {
+		final Model base = model instanceof OntModel ? ((OntModel)model).getBaseModel() : model;
+		versions.put(getSignature(request), new Version(loads.get(), RegulationTable.getGeneration(),
+				base.getGraph().size()));
+	}
+
+	/**
+	 * Gets the version of the latest combined model built with the
+	 * signature of a request
+	 * @param request Request object encapsulating the client's request
+	 * @return The signature and version, or null if no model with the
+	 * signature has been built since data was last loaded or the regulations
+	 * were last compiled
+	 */
+	public String version(final Request request) {
+		final String signature = getSignature(request);
+		final Version version = versions.get(signature);
+		if(version == null || version.loads != loads.get() ||
+				version.generation != RegulationTable.getGeneration()) {
+			return null;
+		}
+		return signature+"#"+version;
+	}
+
+	/**
+	 * Gets the cache key of a result. The key does not depend on the model of
+	 * the request, which may not have been built, so it should be computed
+	 * again once the result has been computed.
+	 * @param request Request object encapsulating the client's request
+	 * @param site Site URI
+	 * @param characteristic Characteristic URI, or null
+	 * @param test Test name, or null
+	 * @return The key, or null if there is no current version of the
+	 * request's signature (see {@link #version(Request)}), in which case the
+	 * result should not be cached
+	 */
+	public String key(final Request request, final String site, final String characteristic, final String test) {
+		final String version = version(request);
+		if(version == null) {
+			return null;
+		}
+		return version+" "+site+" "+characteristic+" "+test;
+	}
+
+	/**
+	 * Gets a cached result
+	 * @param key Key from {@link #key(Request, String, String, String)}
+	 * @return The result, or null if it is not cached or has expired
+	 */
+	public String get(final String key) {
+		if(key == null) {
+			return null;
+		}
+		final Entry entry = entries.get(key);
+		if(entry == null) {
+			return null;
+		}
+		if(System.currentTimeMillis() >= entry.expires) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.result;
+	}
+
+	/**
+	 * Caches a result
+	 * @param key Key from {@link #key(Request, String, String, String)}
+	 * @param result Result to cache
+	 */
+	public void put(final String key, final String result) {
+		if(key == null || result == null) {
+			return;
+		}
+		final long ttl = Integer.getInteger(ttlProperty, 10) * 60000L;
+		entries.put(key, new Entry(result, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Computes the results of sites in the background, skipping those
+	 * already cached. Sites waiting for the same model signature are
+	 * replaced, and the oldest signature is dropped once more than
+	 * precomputeQueue signatures wait.
+	 * @param request Request whose model the results are computed over
+	 * @param sites Site URIs, in the order they should be computed
+	 * @param query Computes the result of a site
+	 */
+	public void precompute(final Request request, final List<String> sites, final SiteQuery query) {
+		if(sites.isEmpty() || version(request) == null) {
+			return;
+		}
+		final String[] keys = new String[sites.size()];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = key(request, sites.get(i), null, null);
+		}
+		final String signature = getSignature(request);
+		synchronized(pending) {
+			pending.remove(signature);
+			pending.put(signature, new Pending(request, sites, keys, query));
+			final int max = Math.max(1, Integer.getInteger(queueProperty, 4));
+			for(Iterator<String> it = pending.keySet().iterator(); pending.size() > max; ) {
+				log.debug("Dropping precompute of "+it.next());
+				it.remove();
+			}
+			if(draining) {
+				return;
+			}
+			draining = true;
+		}
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if(precompute == null) {
+			precompute = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name+"-precompute");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return precompute;
+	}
+
+	private void drain() {
+		while(true) {
+			final Pending next;
+			synchronized(pending) {
+				final Iterator<Pending> it = pending.values().iterator();
+				if(!it.hasNext()) {
+					draining = false;
+					return;
+				}
+				next = it.next();
+				it.remove();
+			}
+			next.run();
+		}
+	}
+
+	/**
+	 * Gets the number of sites to precompute after queryForSites
+	 * @return
+	 */
+	public int getPrecomputeCount() {
+		return Integer.getInteger(precomputeProperty, 10);
+	}
+
+	/**
+	 * Gets the number of model signatures waiting to be precomputed
+	 * @return
+	 */
+	int getPendingCount() {
+		synchronized(pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Gets the signature of the combined model of a request, made of the
+	 * request parameters that determine the model's contents
+	 * @param request Request object encapsulating the client's request
+	 * @return
+	 */
+	public static String getSignature(final Request request) {
+		final StringBuilder sb = new StringBuilder();
+		for(String param : MODEL_PARAMS) {
+			sb.append(request.getParam(param)).append(' ');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Computes the result of a per-site query
+	 */
+	public interface SiteQuery {
+		/**
+		 * Computes the result for a site
+		 * @param request Request whose model is queried
+		 * @param site Site URI
+		 * @return
+		 */
+		String execute(Request request, String site);
+	}
+
+	/**
+	 * Sites of a model waiting to be precomputed
+	 */
+	private final class Pending {
+		private final WeakReference<Request> request;
+		private final List<String> sites;
+		private final String[] keys;
+		private final SiteQuery query;
+
+		Pending(final Request request, final List<String> sites, final String[] keys, final SiteQuery query) {
+			this.request = new WeakReference<Request>(request);
+			this.sites = sites;
+			this.keys = keys;
+			this.query = query;
+		}
+
+		void run() {
+			for(int i=0;i<keys.length;i++) {
+				if(get(keys[i]) != null) {
+					continue;
+				}
+				final Request live = request.get();
+				if(live == null) {
+					log.debug("Request was discarded before its sites were precomputed");
+					return;
+				}
+				try {
+					put(keys[i], query.execute(live, sites.get(i)));
+				}
+				catch(Exception e) {
+					log.warn("Unable to precompute results for site '"+sites.get(i)+"'", e);
+				}
+			}
+		}
+	}
+
+	private static final class Version {
+		final long loads;
+		final long generation;
+		final long size;
+
+		Version(final long loads, final long generation, final long size) {
+			this.loads = loads;
+			this.generation = generation;
+			this.size = size;
+		}
+
+		@Override
+		public String toString() {
+			return Long.toHexString(loads)+"."+Long.toHexString(generation)+"."+Long.toHexString(size);
+		}
+	}
+
+	private static final class Entry {
+		final String result;
+		final long expires;
+
+		Entry(final String result, final long expires) {
+			this.result = result;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+
+/**
+ * SiteTypes is the registry of the site types and site values that modules
+ * show on the map. A module registers the class of its sites, e.g.
+ * water:WaterSite, under the variable that queryForSites binds to whether a
+ * site is of that class, e.g. isWater, and may register a property whose
+ * value is bound for each site, e.g. air:hasAQICategory as aqi. The
+ * regulation module's site summary reads the registered types and values
+ * from the combined model instead of evaluating an EXISTS projection per
+ * site and type.
+ *
+ * Types are numbered in the order they are registered so that a site's
+ * types fit in a bitmask; at most {@value #MAX_TYPES} types can be registered.
+ * Registering a variable again keeps the first registration.
+ * @author ewpatton
+ *
+ */
+public final class SiteTypes {
+
+	/**
+	 * Largest number of site types
+	 */
+	public static final int MAX_TYPES = 32;
+
+	private static final List<Entry> types = new ArrayList<Entry>();
+	private static final List<Entry> values = new ArrayList<Entry>();
+
+	private SiteTypes() {
+	}
+
+	/**
+	 * Registers a site type
+	 * @param variable Variable bound to whether a site is of the type, e.g. isWater
+	 * @param type URI of the class of the sites
+	 * @param domains URIs of the domains the type is shown for; if none are
+	 * given it is shown for every request
+	 * @throws IllegalStateException if {@value #MAX_TYPES} types are already registered
+	 */
+	public static synchronized void register(final String variable, final String type, final String... domains) {
+		if(find(types, variable) >= 0) {
+			return;
+		}
+		if(types.size() == MAX_TYPES) {
+			throw new IllegalStateException("Unable to register site type "+variable+": "+MAX_TYPES+
+					" types are already registered");
+		}
+		types.add(new Entry(variable, type, domains));
+	}
+
+	/**
+	 * Registers a site value
+	 * @param variable Variable bound to the value, e.g. aqi
+	 * @param property URI of the property of the sites holding the value
+	 */
+	public static synchronized void registerValue(final String variable, final String property) {
+		if(find(values, variable) < 0) {
+			values.add(new Entry(variable, property));
+		}
+	}
+
+	/**
+	 * Gets the variables of the registered types, in the order of their bits
+	 * @return
+	 */
+	public static synchronized List<String> getTypeVariables() {
+		return variables(types);
+	}
+
+	/**
+	 * Gets the classes of the registered types, in the order of their bits
+	 * @return
+	 */
+	public static synchronized List<String> getTypes() {
+		return uris(types);
+	}
+
+	/**
+	 * Gets the variables of the registered values
+	 * @return
+	 */
+	public static synchronized List<String> getValueVariables() {
+		return variables(values);
+	}
+
+	/**
+	 * Gets the properties of the registered values, in the order of their variables
+	 * @return
+	 */
+	public static synchronized List<String> getValueProperties() {
+		return uris(values);
+	}
+
+	/**
+	 * Gets the bit of a registered type
+	 * @param variable Variable of the type
+	 * @return The bit, or 0 if the variable is not registered
+	 */
+	public static synchronized int bit(final String variable) {
+		final int i = find(types, variable);
+		return i < 0 ? 0 : 1 << i;
+	}
+
+	/**
+	 * Gets the types shown for the requested domains
+	 * @param domains URIs of the requested domains, or null
+	 * @return Bitmask of the types registered for every request or for one
+	 * of the domains
+	 */
+	public static synchronized int mask(final JSONArray domains) {
+		int mask = 0;
+		for(int i=0;i<types.size();i++) {
+			final List<String> shown = types.get(i).domains;
+			boolean matches = shown.isEmpty();
+			for(int j=0;!matches && domains != null && j<domains.length();j++) {
+				matches = shown.contains(domains.optString(j));
+			}
+			if(matches) {
+				mask |= 1 << i;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Drops every registration
+	 */
+	static synchronized void clear() {
+		types.clear();
+		values.clear();
+	}
+
+	private static int find(final List<Entry> entries, final String variable) {
+		for(int i=0;i<entries.size();i++) {
+			if(entries.get(i).variable.equals(variable)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static List<String> variables(final List<Entry> entries) {
+		final List<String> result = new ArrayList<String>(entries.size());
+		for(Entry entry : entries) {
+			result.add(entry.variable);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private static List<String> uris(final List<Entry> entries) {
+		final List<String> result = new ArrayList<String>(entries.size());
+		for(Entry entry : entries) {
+			result.add(entry.uri);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private static final class Entry {
+		final String variable;
+		final String uri;
+		final List<String> domains;
+
+		Entry(final String variable, final String uri, final String... domains) {
+			this.variable = variable;
+			this.uri = uri;
+			this.domains = Arrays.asList(domains);
+		}
+	}
+
+}
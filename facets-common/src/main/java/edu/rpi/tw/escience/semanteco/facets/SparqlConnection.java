@@ -0,0 +1,90 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Minimal HTTP access to a SPARQL endpoint. The {@link edu.rpi.tw.escience.semanteco.QueryExecutor}
+ * supplied by the module configuration is bound to a client request, so work
+ * that happens outside of a request (e.g. background refreshes of cached
+ * metadata) uses this class to talk to the endpoint directly.
+ * @author ewpatton
+ *
+ */
+public final class SparqlConnection {
+
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 300000;
+	private static final int BUFSIZE = 8192;
+	private static final String UTF8 = "UTF-8";
+
+	private SparqlConnection() {
+	}
+
+	/**
+	 * Opens a stream to the results of the query. The query is sent as a
+	 * form encoded POST so that long queries do not exceed URL limits.
+	 * @param endpoint SPARQL endpoint URL, which may already carry parameters
+	 * @param query SPARQL query text
+	 * @param accept Value of the Accept header sent to the endpoint
+	 * @return An input stream over the response body. The caller must close it.
+	 * @throws IOException if the endpoint cannot be contacted or responds with an error
+	 */
+	public static InputStream open(final String endpoint, final String query,
+			final String accept) throws IOException {
+		final URL url = new URL(endpoint);
+		final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Accept", accept);
+		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		final byte[] body = ("query="+URLEncoder.encode(query, UTF8)).getBytes(UTF8);
+		conn.setFixedLengthStreamingMode(body.length);
+		final OutputStream os = conn.getOutputStream();
+		try {
+			os.write(body);
+		}
+		finally {
+			os.close();
+		}
+		final int status = conn.getResponseCode();
+		if(status != HttpURLConnection.HTTP_OK) {
+			conn.disconnect();
+			throw new IOException("Endpoint '"+endpoint+"' responded with HTTP "+status);
+		}
+		return conn.getInputStream();
+	}
+
+	/**
+	 * Executes the query and returns the complete response as a string.
+	 * @param endpoint SPARQL endpoint URL
+	 * @param query SPARQL query text
+	 * @param accept Value of the Accept header sent to the endpoint
+	 * @return The response body
+	 * @throws IOException if the endpoint cannot be contacted or responds with an error
+	 */
+	public static String execute(final String endpoint, final String query,
+			final String accept) throws IOException {
+		final InputStream is = open(endpoint, query, accept);
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[BUFSIZE];
+			int read = 0;
+			while((read = is.read(buffer)) > 0) {
+				baos.write(buffer, 0, read);
+			}
+			return baos.toString(UTF8);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+}
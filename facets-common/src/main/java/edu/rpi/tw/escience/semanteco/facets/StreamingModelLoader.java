@@ -0,0 +1,337 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.openjena.atlas.AtlasException;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.RiotException;
+import org.openjena.riot.RiotReader;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+
+import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
+import edu.rpi.tw.escience.semanteco.QueryExecutor;
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.query.Query;
+
+/**
+ * StreamingModelLoader executes CONSTRUCT queries against the endpoint set
+ * with {@value #ENDPOINT_PROPERTY} and requests the results as N-Triples,
+ * adding the triples to the model in batches of {@value #BATCH_SIZE} as they
+ * are parsed rather than buffering and parsing the whole response. Streaming
+ * is off unless the endpoint is set, in which case queries go through the
+ * module's query executor. A stream that fails part way leaves the triples
+ * read so far in the model; the fallback query adds the same triples again,
+ * which only duplicates blank nodes. An empty result is a valid answer and
+ * is not queried again.
+ *
+ * Loads are bounded by a triple count ({@value #MAX_TRIPLES_PROPERTY}) and a
+ * byte count ({@value #MAX_BYTES_PROPERTY}). A load that reaches a limit
+ * fails with a {@link LimitExceededException} instead of returning the
+ * truncated results.
+ * @author ewpatton
+ *
+ */
+public final class StreamingModelLoader {
+
+	public static final String ENDPOINT_PROPERTY = "semanteco.streaming.endpoint";
+	public static final String MAX_TRIPLES_PROPERTY = "semanteco.streaming.maxTriples";
+	public static final String MAX_BYTES_PROPERTY = "semanteco.streaming.maxBytes";
+	public static final String NTRIPLES = "text/plain";
+	static final int BATCH_SIZE = 1000;
+	private static final long DEFAULT_MAX_TRIPLES = 5000000L;
+	private static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L;
+
+	private StreamingModelLoader() {
+	}
+
+	/**
+	 * Indicates whether streaming is enabled, i.e. an endpoint is set
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return getEndpoint() != null;
+	}
+
+	/**
+	 * Gets the endpoint queries are streamed from, shared by every module
+	 * @return The value of {@value #ENDPOINT_PROPERTY}, or null if it is not set
+	 */
+	public static String getEndpoint() {
+		final String endpoint = System.getProperty(ENDPOINT_PROPERTY);
+		return endpoint == null || endpoint.trim().length() == 0 ? null : endpoint.trim();
+	}
+
+	/**
+	 * Executes a CONSTRUCT query and adds the results to the model, streaming
+	 * them from the endpoint if possible and otherwise falling back to the
+	 * query executor for the request.
+	 * @param request Request used to obtain a query executor for the fallback
+	 * @param config Module configuration
+	 * @param query CONSTRUCT query
+	 * @param fallbackFormat Format requested from the query executor if streaming fails
+	 * @param model Model to populate
+	 * @throws LimitExceededException if the results exceed the load limits
+	 */
+	public static void execute(final Request request, final ModuleConfiguration config,
+			final Query query, final String fallbackFormat, final Model model) {
+		execute(request, config, query, Collections.singletonList(query.toString()),
+				null, fallbackFormat, model);
+	}
+
+	/**
+	 * Executes a CONSTRUCT query that has been rewritten into one or more
+	 * query strings, e.g. one per chunk of sites, and adds the union of their
+	 * results to the model. The strings are streamed in parallel on the given
+	 * executor. If streaming is off or any of them cannot be streamed, the
+	 * original query is run through the query executor instead.
+	 * @param request Request used to obtain a query executor for the fallback
+	 * @param config Module configuration
+	 * @param query Original CONSTRUCT query, used for the fallback
+	 * @param texts Query strings to stream
+	 * @param executor Executor used to stream the strings in parallel, or null
+	 * to stream them one after another
+	 * @param fallbackFormat Format requested from the query executor if streaming fails
+	 * @param model Model to populate
+	 * @throws LimitExceededException if the results exceed the load limits
+	 */
+	public static void execute(final Request request, final ModuleConfiguration config,
+			final Query query, final List<String> texts, final ExecutorService executor,
+			final String fallbackFormat, final Model model) {
+		if(!isEnabled() || !stream(request.getLogger(), texts, executor, model)) {
+			// accept() applies to the next execute(), so hold the executor
+			// in case the configuration hands it to several threads
+			final QueryExecutor queries = config.getQueryExecutor(request);
+			synchronized(queries) {
+				queries.accept(fallbackFormat).execute(query, model);
+			}
+		}
+	}
+
+	/**
+	 * Streams one or more CONSTRUCT query strings into the model without a
+	 * fallback, for callers that only build a query object if streaming fails.
+	 * @param log Logger for the request
+	 * @param texts Query strings to stream
+	 * @param executor Executor used to stream the strings in parallel, or null
+	 * to stream them one after another
+	 * @param model Model to populate
+	 * @return true if the strings were streamed, even if they returned
+	 * nothing, false if streaming is off or any of them could not be streamed
+	 * @throws LimitExceededException if the results exceed the load limits
+	 */
+	public static boolean stream(final Logger log, final List<String> texts,
+			final ExecutorService executor, final Model model) {
+		final String endpoint = getEndpoint();
+		if(endpoint == null) {
+			return false;
+		}
+		try {
+			final long start = System.currentTimeMillis();
+			final long count = loadAll(endpoint, texts, executor, model);
+			log.debug("Streamed "+count+" triples from "+texts.size()+" queries in "+
+					(System.currentTimeMillis()-start)+" ms");
+			return true;
+		}
+		catch(IOException e) {
+			log.warn("Unable to stream results from '"+endpoint+"', falling back to the query executor", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Streams query strings into the model, in parallel if an executor is
+	 * given. The chunks add their triples to the model as they are read.
+	 * @param endpoint Endpoint to stream from
+	 * @param texts CONSTRUCT query strings
+	 * @param executor Executor used to stream the strings in parallel, or null
+	 * @param model Model to populate
+	 * @return Number of triples streamed
+	 * @throws IOException if any of the strings cannot be streamed
+	 * @throws LimitExceededException if the results exceed the load limits
+	 */
+	public static long loadAll(final String endpoint, final List<String> texts,
+			final ExecutorService executor, final Model model) throws IOException {
+		if(texts.size() == 1 || executor == null) {
+			long count = 0;
+			for(String text : texts) {
+				count += load(endpoint, text, model);
+			}
+			return count;
+		}
+		final List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+		for(final String text : texts) {
+			chunks.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					return load(endpoint, text, model);
+				}
+			}));
+		}
+		long count = 0;
+		try {
+			for(Future<Long> chunk : chunks) {
+				count += chunk.get();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while streaming from '"+endpoint+"'");
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException("Unable to stream from '"+endpoint+"': "+e.getCause());
+		}
+		finally {
+			for(Future<Long> chunk : chunks) {
+				chunk.cancel(true);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Streams the results of a CONSTRUCT query into the model, adding them in
+	 * batches under the model's lock so that several loads can fill the same
+	 * model. The batches read before an error are left in the model.
+	 * @param endpoint SPARQL endpoint URL
+	 * @param query CONSTRUCT query text
+	 * @param model Model to populate
+	 * @return Number of triples streamed
+	 * @throws IOException if the endpoint cannot be read or returns malformed N-Triples
+	 * @throws LimitExceededException if the results exceed the load limits
+	 */
+	public static long load(final String endpoint, final String query, final Model model)
+			throws IOException {
+		final CountingInputStream is = new CountingInputStream(
+				SparqlConnection.open(endpoint, query, NTRIPLES));
+		final GraphSink sink = new GraphSink(model, is,
+				Long.getLong(MAX_TRIPLES_PROPERTY, DEFAULT_MAX_TRIPLES),
+				Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+		try {
+			RiotReader.createParserNTriples(is, sink).parse();
+		}
+		catch(RiotException e) {
+			throw new IOException("Malformed N-Triples from '"+endpoint+"': "+e.getMessage());
+		}
+		catch(AtlasException e) {
+			throw new IOException("Unable to read results from '"+endpoint+"': "+e.getMessage());
+		}
+		finally {
+			sink.flush();
+			is.close();
+		}
+		return sink.count;
+	}
+
+	/**
+	 * Thrown when a load reaches {@value #MAX_TRIPLES_PROPERTY} or
+	 * {@value #MAX_BYTES_PROPERTY}; the model holds incomplete results and
+	 * must not be used
+	 */
+	public static final class LimitExceededException extends IllegalStateException {
+		private static final long serialVersionUID = -2850826131447012411L;
+
+		LimitExceededException(final String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Adds parsed triples to a model in batches and enforces the load limits
+	 */
+	private static final class GraphSink implements Sink<Triple> {
+		private final Model model;
+		private final CountingInputStream is;
+		private final long maxTriples;
+		private final long maxBytes;
+		private final List<Triple> batch = new ArrayList<Triple>(BATCH_SIZE);
+		long count = 0;
+
+		GraphSink(final Model model, final CountingInputStream is,
+				final long maxTriples, final long maxBytes) {
+			this.model = model;
+			this.is = is;
+			this.maxTriples = maxTriples;
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public void send(final Triple triple) {
+			if(count >= maxTriples) {
+				throw new LimitExceededException("Stopped streaming after "+count+
+						" triples: triple limit of "+maxTriples+" reached");
+			}
+			if(is.count > maxBytes) {
+				throw new LimitExceededException("Stopped streaming after "+is.count+
+						" bytes: byte limit of "+maxBytes+" reached");
+			}
+			batch.add(triple);
+			count++;
+			if(batch.size() >= BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		@Override
+		public void flush() {
+			if(batch.isEmpty()) {
+				return;
+			}
+			synchronized(model) {
+				model.getGraph().getBulkUpdateHandler().add(batch);
+			}
+			batch.clear();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Counts the bytes read from the response
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if(b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class BindingReaderTest extends TestCase {
+
+	@Test
+	public void testReadJSON() throws Exception {
+		BindingReader reader = BindingReader.open(BindingReaderTest.class.getResourceAsStream("/test001.json"));
+		assertEquals(1, reader.getVariables().size());
+		assertEquals("s", reader.getVariables().get(0));
+		assertEquals("http://sparql.tw.rpi.edu/source/usgs-gov", reader.next().get("source"));
+		assertEquals("http://sparql.tw.rpi.edu/source/epa-gov", reader.next().get("source"));
+		assertNull(reader.next());
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testReadJSONEscapesAndUnbound() throws Exception {
+		String json = "{\"results\": {\"bindings\": [" +
+				"{\"label\": {\"type\": \"literal\", \"xml:lang\": \"en\", \"value\": \"a \\\"b\\\"\\n\\u00e9\"}, " +
+				"\"extra\": {\"type\": \"literal\", \"value\": {\"nested\": [1, \"]\"]}}}, " +
+				"{\"cnt\": {\"type\": \"typed-literal\", \"value\": 42}}]}, " +
+				"\"head\": {\"vars\": [\"label\", \"cnt\"]}}";
+		BindingReader reader = BindingReader.open(new ByteArrayInputStream(json.getBytes("UTF-8")));
+		assertTrue(reader.getVariables().isEmpty());
+		Map<String, String> binding = reader.next();
+		assertEquals("a \"b\"\né", binding.get("label"));
+		assertFalse(binding.containsKey("extra"));
+		binding = reader.next();
+		assertEquals("42", binding.get("cnt"));
+		assertFalse(binding.containsKey("label"));
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testReadXML() throws Exception {
+		BindingReader reader = BindingReader.open(BindingReaderTest.class.getResourceAsStream("/test003.xml"));
+		assertEquals("s", reader.getVariables().get(0));
+		assertEquals("http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ri/version/2011-Mar-20",
+				reader.next().get("graph"));
+		assertEquals("http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-measurements-ri/version/2011-Mar-20",
+				reader.next().get("graph"));
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testReadXMLString() throws Exception {
+		String xml = "\n <sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">" +
+				"<head><variable name=\"label\"/><variable name=\"cnt\"/></head><results>" +
+				"<result><binding name=\"label\"><literal xml:lang=\"en\">a &lt;b&gt;</literal></binding></result>" +
+				"<result><binding name=\"cnt\"><literal datatype=\"http://www.w3.org/2001/XMLSchema#integer\">42</literal></binding></result>" +
+				"</results></sparql>";
+		BindingReader reader = BindingReader.open(xml);
+		assertEquals(2, reader.getVariables().size());
+		Map<String, String> binding = reader.next();
+		assertEquals("a <b>", binding.get("label"));
+		assertFalse(binding.containsKey("cnt"));
+		assertEquals("42", reader.next().get("cnt"));
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		BindingReader reader = BindingReader.open("{\"results\": {\"bindings\": [{\"s\": ");
+		try {
+			reader.next();
+			fail("Expected an IOException");
+		}
+		catch(IOException e) {
+			// expected
+		}
+		reader.close();
+	}
+
+}
@@ -0,0 +1,73 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import edu.rpi.tw.escience.semanteco.Domain;
+import edu.rpi.tw.escience.semanteco.Request;
+
+public class DomainCacheTest extends TestCase {
+
+	private static class TestBuilder implements DomainCache.Builder {
+		int builds = 0;
+		boolean fail = false;
+
+		@Override
+		public List<Domain> buildDomains(final Request request) {
+			if(fail) {
+				throw new IllegalStateException("endpoint unavailable");
+			}
+			builds++;
+			final List<Domain> domains = new ArrayList<Domain>();
+			for(int i=0;i<builds;i++) {
+				domains.add(null);
+			}
+			return domains;
+		}
+	}
+
+	@Test
+	public void testBuiltOnce() {
+		final TestBuilder builder = new TestBuilder();
+		final DomainCache cache = new DomainCache(builder);
+		assertEquals(1, cache.get(null).size());
+		assertEquals(1, cache.get(null).size());
+		assertEquals(1, builder.builds);
+		cache.clear();
+		assertEquals(2, cache.get(null).size());
+	}
+
+	@Test
+	public void testRebuild() throws Exception {
+		final TestBuilder builder = new TestBuilder();
+		final DomainCache cache = new DomainCache(builder);
+		cache.get(null);
+		assertTrue(new JSONObject(cache.rebuild(null)).getBoolean("success"));
+		assertEquals(2, cache.get(null).size());
+
+		builder.fail = true;
+		final JSONObject response = new JSONObject(cache.rebuild(null));
+		assertFalse(response.getBoolean("success"));
+		assertEquals("endpoint unavailable", response.getString("error"));
+		assertEquals(2, cache.get(null).size());
+	}
+
+	@Test
+	public void testRefresh() {
+		final TestBuilder builder = new TestBuilder();
+		final DomainCache cache = new DomainCache(builder);
+		cache.get(null);
+		cache.refresh();
+		assertEquals(2, cache.get(null).size());
+
+		builder.fail = true;
+		cache.refresh();
+		assertEquals(2, cache.get(null).size());
+	}
+
+}
@@ -0,0 +1,251 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RegulationTableTest extends TestCase {
+
+	private static final String EX = "http://example.org/reg#";
+	private static final String ARSENIC = EX+"Arsenic";
+	private static final String MG_L = EX+"mg_L";
+	private static final String LEAD = EX+"Lead";
+
+	private static final String REGULATION =
+		"@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+		"@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+		"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+		"@prefix pol: <http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#> .\n" +
+		"@prefix unit: <http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#> .\n" +
+		"@prefix ex: <"+EX+"> .\n" +
+		"ex:ExcessiveArsenic owl:equivalentClass [ owl:intersectionOf (\n" +
+		"  [ owl:onProperty pol:hasCharacteristic ; owl:hasValue ex:Arsenic ]\n" +
+		"  [ owl:onProperty unit:hasUnit ; owl:hasValue ex:mg_L ]\n" +
+		"  [ owl:onProperty pol:hasValue ; owl:someValuesFrom [ owl:withRestrictions (\n" +
+		"    [ xsd:minExclusive \"0.01\"^^xsd:decimal ] ) ] ] ) ] .\n" +
+		"ex:ArsenicRange owl:intersectionOf (\n" +
+		"  [ owl:onProperty pol:hasCharacteristic ; owl:hasValue ex:Arsenic ]\n" +
+		"  [ owl:onProperty pol:hasValue ; owl:someValuesFrom [ owl:withRestrictions (\n" +
+		"    [ xsd:minInclusive \"1\"^^xsd:decimal ] [ xsd:maxInclusive \"2\"^^xsd:decimal ] ) ] ] ) .\n" +
+		"ex:ExcessiveArsenic rdfs:label \"Excessive arsenic\" ; rdfs:subClassOf ex:ArsenicViolation .\n" +
+		"ex:LeadRange owl:intersectionOf (\n" +
+		"  [ owl:onProperty pol:hasCharacteristic ; owl:hasValue ex:Lead ]\n" +
+		"  [ owl:onProperty pol:hasValue ; owl:someValuesFrom [ owl:withRestrictions (\n" +
+		"    [ xsd:minExclusive \"1\"^^xsd:decimal ] [ xsd:maxExclusive \"2\"^^xsd:decimal ] ) ] ] ) .\n";
+
+	private RegulationTable compile() {
+		final Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(REGULATION), EX, "TTL");
+		return RegulationTable.compile(model);
+	}
+
+	@Test
+	public void testCompile() {
+		final RegulationTable table = compile();
+		assertEquals(3, table.size());
+		final RegulationTable.Threshold[] thresholds = table.lookup(ARSENIC, MG_L);
+		assertEquals(1, thresholds.length);
+		assertEquals(EX+"ExcessiveArsenic", thresholds[0].getRegulationClass());
+		assertEquals(1, thresholds[0].size());
+		assertEquals("<", thresholds[0].getOperator(0));
+		assertEquals(0.01, thresholds[0].getLimit(0), 0.0);
+		assertTrue(thresholds[0].matches(0.02));
+		assertFalse(thresholds[0].matches(0.01));
+	}
+
+	@Test
+	public void testLookupWithoutUnit() {
+		final RegulationTable table = compile();
+		final RegulationTable.Threshold[] thresholds = table.lookup(ARSENIC, EX+"ug_L");
+		assertEquals(1, thresholds.length);
+		assertEquals(2, thresholds[0].size());
+		assertTrue(thresholds[0].matches(1.0));
+		assertTrue(thresholds[0].matches(2.0));
+		assertFalse(thresholds[0].matches(2.5));
+		assertEquals(0, table.lookup(EX+"Mercury", MG_L).length);
+	}
+
+	@Test
+	public void testAddLimits() throws Exception {
+		final String results = "{\"head\":{\"vars\":[\"value\",\"unit\",\"op\",\"limit\"]}," +
+				"\"results\":{\"bindings\":[" +
+				"{\"value\":{\"type\":\"literal\",\"value\":\"0.5\"},\"unit\":{\"type\":\"uri\",\"value\":\""+MG_L+"\"}}," +
+				"{\"value\":{\"type\":\"literal\",\"value\":\"0.5\"},\"unit\":{\"type\":\"uri\",\"value\":\""+EX+"ug_L\"}}]}}";
+		final String extended = RegulationTable.addLimits(Collections.singletonList(compile()),
+				results, ARSENIC, false);
+		final JSONArray bindings = new JSONObject(extended).getJSONObject("results").getJSONArray("bindings");
+		assertEquals(3, bindings.length());
+		assertEquals("<", bindings.getJSONObject(0).getJSONObject("op").getString("value"));
+		assertEquals("0.01", bindings.getJSONObject(0).getJSONObject("limit").getString("value"));
+		assertEquals("<=", bindings.getJSONObject(1).getJSONObject("op").getString("value"));
+		assertEquals(">=", bindings.getJSONObject(2).getJSONObject("op").getString("value"));
+
+		final String violations = RegulationTable.addLimits(Collections.singletonList(compile()),
+				results, ARSENIC, true);
+		final JSONArray matched = new JSONObject(violations).getJSONObject("results").getJSONArray("bindings");
+		assertEquals(2, matched.length());
+		assertTrue(matched.getJSONObject(0).has("limit"));
+		assertFalse(matched.getJSONObject(1).has("limit"));
+	}
+
+	@Test
+	public void testMatches() {
+		final RegulationTable table = compile();
+		// minInclusive and maxInclusive include their limits
+		final RegulationTable.Threshold inclusive = table.lookup(ARSENIC, EX+"ug_L")[0];
+		assertFalse(inclusive.matches(0.999));
+		assertTrue(inclusive.matches(1.0));
+		assertTrue(inclusive.matches(2.0));
+		assertFalse(inclusive.matches(2.001));
+		// minExclusive and maxExclusive do not
+		final RegulationTable.Threshold exclusive = table.lookup(LEAD, MG_L)[0];
+		assertEquals(">", exclusive.getOperator(1));
+		assertFalse(exclusive.matches(1.0));
+		assertTrue(exclusive.matches(1.5));
+		assertFalse(exclusive.matches(2.0));
+		assertFalse(exclusive.matches(Double.NaN));
+	}
+
+	@Test
+	public void testEvaluate() {
+		final RegulationTable table = compile();
+		final Model model = ModelFactory.createDefaultModel();
+		final Resource high = measurement(model, "high", ARSENIC, MG_L, "0.02");
+		final Resource low = measurement(model, "low", ARSENIC, MG_L, "0.005");
+		final Resource ranged = measurement(model, "ranged", ARSENIC, EX+"ug_L", "1.5");
+		final Resource invalid = measurement(model, "invalid", ARSENIC, MG_L, "n/a");
+		final Resource lead = measurement(model, "lead", LEAD, MG_L, "2");
+		assertEquals(2, table.evaluate(model.getGraph()));
+		final Resource violation = model.createResource(RegulationTable.POL_NS+"RegulationViolation");
+		final Resource excessive = model.createResource(EX+"ExcessiveArsenic");
+		assertTrue(model.contains(high, RDF.type, violation));
+		assertTrue(model.contains(high, RDF.type, excessive));
+		assertTrue(model.contains(ranged, RDF.type, violation));
+		assertTrue(model.contains(ranged, RDF.type, model.createResource(EX+"ArsenicRange")));
+		assertFalse(model.contains(low, RDF.type, violation));
+		assertFalse(model.contains(invalid, RDF.type, violation));
+		assertFalse(model.contains(lead, RDF.type, violation));
+		// the regulation classes are declared so that they can be displayed
+		assertTrue(model.contains(excessive, RDF.type, OWL.Class));
+		assertTrue(model.contains(excessive, RDFS.subClassOf, violation));
+		assertTrue(model.contains(excessive, RDFS.subClassOf, model.createResource(EX+"ArsenicViolation")));
+		assertTrue(model.contains(excessive, RDFS.label, "Excessive arsenic"));
+		// nothing is declared when no measurement violates the regulation
+		final Model clean = ModelFactory.createDefaultModel();
+		measurement(clean, "low", ARSENIC, MG_L, "0.005");
+		assertEquals(0, table.evaluate(clean.getGraph()));
+		assertEquals(3, clean.size());
+	}
+
+	private static Resource measurement(final Model model, final String name, final String characteristic,
+			final String unit, final String value) {
+		final Resource m = model.createResource(EX+name);
+		m.addProperty(model.createProperty(RegulationTable.POL_NS+"hasCharacteristic"), model.createResource(characteristic));
+		m.addProperty(model.createProperty(RegulationTable.UNIT_NS+"hasUnit"), model.createResource(unit));
+		m.addProperty(model.createProperty(RegulationTable.POL_NS+"hasValue"), value);
+		return m;
+	}
+
+	/**
+	 * Starts a server answering every request with the ontology in body, or
+	 * with an error if body is null, after waiting delay milliseconds
+	 */
+	private static HttpServer startServer(final AtomicReference<String> body, final AtomicInteger delay,
+			final AtomicInteger requests) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				try {
+					Thread.sleep(delay.get());
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				final String ontology = body.get();
+				if(ontology == null) {
+					exchange.sendResponseHeaders(500, -1);
+					exchange.close();
+					return;
+				}
+				final byte[] bytes = ontology.getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/turtle");
+				exchange.sendResponseHeaders(200, bytes.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void testServesStaleTableWhileRevalidating() throws Exception {
+		final AtomicReference<String> body = new AtomicReference<String>(REGULATION);
+		final AtomicInteger delay = new AtomicInteger(0);
+		final AtomicInteger requests = new AtomicInteger(0);
+		final HttpServer server = startServer(body, delay, requests);
+		System.setProperty(RegulationTable.REVALIDATE_PROPERTY, "0");
+		try {
+			final String url = "http://127.0.0.1:"+server.getAddress().getPort()+"/stale.ttl";
+			final RegulationTable first = RegulationTable.get(url);
+			assertEquals(3, first.size());
+			assertEquals(1, requests.get());
+			// the ontology changes and the server slows down
+			body.set(REGULATION.substring(0, REGULATION.indexOf("ex:ArsenicRange")));
+			delay.set(1000);
+			final long start = System.currentTimeMillis();
+			assertSame(first, RegulationTable.get(url));
+			assertTrue(System.currentTimeMillis() - start < 500);
+			RegulationTable latest = first;
+			for(int i=0;i<50 && latest == first;i++) {
+				Thread.sleep(100);
+				latest = RegulationTable.get(url);
+			}
+			assertEquals(1, latest.size());
+		}
+		finally {
+			System.clearProperty(RegulationTable.REVALIDATE_PROPERTY);
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testFailedReadRemembered() throws Exception {
+		final AtomicInteger requests = new AtomicInteger(0);
+		final HttpServer server = startServer(new AtomicReference<String>(), new AtomicInteger(0), requests);
+		try {
+			final String url = "http://127.0.0.1:"+server.getAddress().getPort()+"/missing.ttl";
+			assertNull(RegulationTable.get(url));
+			// not requested again until the revalidation period has passed
+			assertNull(RegulationTable.get(url));
+			assertEquals(1, requests.get());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.test.MockRequest;
+
+public class ResultCacheTest extends TestCase {
+
+	private static final String SITE = "http://example.org/site/1";
+	private static final String ARSENIC = "http://example.org/reg#Arsenic";
+
+	private static class TestRequest extends MockRequest {
+		final Map<String, Object> params = new HashMap<String, Object>();
+
+		TestRequest(final String state, final String county) {
+			params.put("state", state);
+			params.put("county", county);
+		}
+
+		@Override
+		public Object getParam(String key) {
+			return params.get(key);
+		}
+	}
+
+	private static Model newModel(final String label) {
+		final Model model = ModelFactory.createDefaultModel();
+		final Resource site = model.createResource(SITE);
+		site.addProperty(RDF.type, model.createResource("http://example.org/WaterSite"));
+		site.addProperty(RDFS.label, label);
+		// blank nodes get new ids each time the same data is loaded
+		model.createResource().addProperty(RDFS.label, "measurement");
+		return model;
+	}
+
+	@Test
+	public void testSameModelHits() {
+		final ResultCache cache = new ResultCache("test");
+		final TestRequest first = new TestRequest("RI", "001");
+		cache.modelBuilt(first, newModel("site"));
+		cache.put(cache.key(first, SITE, ARSENIC, null), "results");
+
+		// a click's request has not built its model
+		final TestRequest second = new TestRequest("RI", "001");
+		assertEquals("results", cache.get(cache.key(second, SITE, ARSENIC, null)));
+		assertNull(cache.get(cache.key(second, SITE, ARSENIC, "total")));
+
+		final TestRequest third = new TestRequest("RI", "001");
+		cache.modelBuilt(third, newModel("renamed site"));
+		assertEquals("results", cache.get(cache.key(third, SITE, ARSENIC, null)));
+
+		final TestRequest other = new TestRequest("RI", "003");
+		cache.modelBuilt(other, newModel("site"));
+		assertNull(cache.get(cache.key(other, SITE, ARSENIC, null)));
+	}
+
+	@Test
+	public void testChangedModelMisses() {
+		final ResultCache cache = new ResultCache("test");
+		final TestRequest first = new TestRequest("CO", "001");
+		cache.modelBuilt(first, newModel("site"));
+		cache.put(cache.key(first, SITE, ARSENIC, null), "results");
+
+		final Model changed = newModel("site");
+		changed.createResource(SITE).addProperty(RDFS.comment, "new measurements");
+		final TestRequest second = new TestRequest("CO", "001");
+		cache.modelBuilt(second, changed);
+		assertNull(cache.get(cache.key(second, SITE, ARSENIC, null)));
+	}
+
+	@Test
+	public void testLoadedDataMisses() {
+		final ResultCache cache = new ResultCache("test");
+		final TestRequest first = new TestRequest("CT", "001");
+		cache.modelBuilt(first, newModel("site"));
+		cache.put(cache.key(first, SITE, ARSENIC, null), "results");
+
+		// no key until a model is built from the loaded data
+		ResultCache.dataLoaded();
+		final TestRequest second = new TestRequest("CT", "001");
+		assertNull(cache.key(second, SITE, ARSENIC, null));
+		cache.modelBuilt(second, newModel("site"));
+		assertNotNull(cache.key(second, SITE, ARSENIC, null));
+		assertNull(cache.get(cache.key(second, SITE, ARSENIC, null)));
+	}
+
+	@Test
+	public void testUnknownModelIsNotCached() {
+		final ResultCache cache = new ResultCache("test");
+		final TestRequest request = new TestRequest("NY", "001");
+		assertNull(cache.key(request, SITE, ARSENIC, null));
+		cache.put(null, "results");
+		assertNull(cache.get(null));
+	}
+
+	@Test
+	public void testPrecomputeCoalescesPerSignature() throws Exception {
+		final ResultCache cache = new ResultCache("test");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ResultCache.SiteQuery blocking = new ResultCache.SiteQuery() {
+			@Override
+			public String execute(Request request, String site) {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "blocked";
+			}
+		};
+		final ResultCache.SiteQuery query = new ResultCache.SiteQuery() {
+			@Override
+			public String execute(Request request, String site) {
+				return request.getParam("county")+" "+site;
+			}
+		};
+		final TestRequest[] requests = new TestRequest[7];
+		for(int i=0;i<requests.length;i++) {
+			requests[i] = new TestRequest("RI", i < 2 ? "001" : "00"+i);
+			cache.modelBuilt(requests[i], newModel("site"));
+		}
+		final TestRequest running = new TestRequest("MA", "001");
+		cache.modelBuilt(running, newModel("site"));
+		cache.precompute(running, Arrays.asList(SITE), blocking);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// the second request of the same signature replaces the first
+		cache.precompute(requests[0], Arrays.asList(SITE), query);
+		cache.precompute(requests[1], Arrays.asList(SITE), query);
+		assertEquals(1, cache.getPendingCount());
+
+		// the oldest signature is dropped beyond precomputeQueue
+		for(int i=2;i<requests.length;i++) {
+			cache.precompute(requests[i], Arrays.asList(SITE), query);
+		}
+		assertEquals(4, cache.getPendingCount());
+
+		release.countDown();
+		final String last = cache.key(requests[requests.length-1], SITE, null, null);
+		for(int i=0;i<50 && cache.get(last) == null;i++) {
+			Thread.sleep(100);
+		}
+		assertEquals("006 "+SITE, cache.get(last));
+		assertNull(cache.get(cache.key(requests[1], SITE, null, null)));
+		assertEquals(0, cache.getPendingCount());
+	}
+
+}
@@ -0,0 +1,66 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+
+public class SiteTypesTest extends TestCase {
+
+	private static final String EX = "http://example.com/ns#";
+
+	@After
+	public void tearDown() {
+		SiteTypes.clear();
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		SiteTypes.clear();
+		SiteTypes.register("isWater", EX+"WaterSite");
+		SiteTypes.register("isBird", EX+"BirdSite", EX+"bird");
+		// registering again keeps the first registration and its bit
+		SiteTypes.register("isWater", EX+"OtherSite");
+		SiteTypes.registerValue("aqi", EX+"hasAQICategory");
+		assertEquals(Arrays.asList("isWater", "isBird"), SiteTypes.getTypeVariables());
+		assertEquals(Arrays.asList(EX+"WaterSite", EX+"BirdSite"), SiteTypes.getTypes());
+		assertEquals(Arrays.asList("aqi"), SiteTypes.getValueVariables());
+		assertEquals(Arrays.asList(EX+"hasAQICategory"), SiteTypes.getValueProperties());
+		assertEquals(1, SiteTypes.bit("isWater"));
+		assertEquals(2, SiteTypes.bit("isBird"));
+		assertEquals(0, SiteTypes.bit("isFish"));
+	}
+
+	@Test
+	public void testMask() throws Exception {
+		SiteTypes.clear();
+		SiteTypes.register("isWater", EX+"WaterSite");
+		SiteTypes.register("isBird", EX+"BirdSite", EX+"bird");
+		SiteTypes.register("isFish", EX+"FishSite", EX+"fish", EX+"water");
+		assertEquals(1, SiteTypes.mask(null));
+		assertEquals(1, SiteTypes.mask(new JSONArray()));
+		assertEquals(3, SiteTypes.mask(new JSONArray().put(EX+"bird")));
+		assertEquals(5, SiteTypes.mask(new JSONArray().put(EX+"water")));
+		assertEquals(7, SiteTypes.mask(new JSONArray().put(EX+"fish").put(EX+"bird")));
+	}
+
+	@Test
+	public void testLimit() throws Exception {
+		SiteTypes.clear();
+		for(int i=0;i<SiteTypes.MAX_TYPES;i++) {
+			SiteTypes.register("t"+i, EX+"Site"+i);
+		}
+		assertEquals(1 << 31, SiteTypes.bit("t31"));
+		try {
+			SiteTypes.register("extra", EX+"ExtraSite");
+			fail("Expected IllegalStateException");
+		}
+		catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+}
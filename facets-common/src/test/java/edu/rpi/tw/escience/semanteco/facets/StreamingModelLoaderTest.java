@@ -0,0 +1,131 @@
+package edu.rpi.tw.escience.semanteco.facets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class StreamingModelLoaderTest extends TestCase {
+
+	private static final Logger log = Logger.getLogger(StreamingModelLoaderTest.class);
+	private static final String TRIPLE =
+			"<http://example.org/s> <http://example.org/p> <http://example.org/o> .\n";
+
+	/**
+	 * Starts an endpoint answering every query with the given body
+	 */
+	private static HttpServer startEndpoint(final String body) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final byte[] response = body.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(response);
+				os.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private static String endpoint(final HttpServer server) {
+		return "http://127.0.0.1:"+server.getAddress().getPort()+"/sparql";
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.clearProperty(StreamingModelLoader.ENDPOINT_PROPERTY);
+		System.clearProperty(StreamingModelLoader.MAX_TRIPLES_PROPERTY);
+		super.tearDown();
+	}
+
+	private static void useEndpoint(final HttpServer server) {
+		System.setProperty(StreamingModelLoader.ENDPOINT_PROPERTY, endpoint(server));
+	}
+
+	@Test
+	public void testDisabledWithoutEndpoint() {
+		assertFalse(StreamingModelLoader.isEnabled());
+		assertFalse(StreamingModelLoader.stream(log, Collections.singletonList("CONSTRUCT {} WHERE {}"),
+				null, ModelFactory.createDefaultModel()));
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		final HttpServer server = startEndpoint(TRIPLE);
+		try {
+			useEndpoint(server);
+			final Model model = ModelFactory.createDefaultModel();
+			assertTrue(StreamingModelLoader.stream(log,
+					Collections.singletonList("CONSTRUCT {} WHERE {}"), null, model));
+			assertEquals(1, model.size());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testEmptyResultIsValid() throws Exception {
+		final HttpServer server = startEndpoint("");
+		try {
+			useEndpoint(server);
+			final Model model = ModelFactory.createDefaultModel();
+			assertTrue(StreamingModelLoader.stream(log,
+					Collections.singletonList("CONSTRUCT {} WHERE {}"), null, model));
+			assertTrue(model.isEmpty());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testMalformedStreamFails() throws Exception {
+		final HttpServer server = startEndpoint(TRIPLE+"<http://example.org/s> broken");
+		try {
+			useEndpoint(server);
+			final Model model = ModelFactory.createDefaultModel();
+			assertFalse(StreamingModelLoader.stream(log,
+					Collections.singletonList("CONSTRUCT {} WHERE {}"), null, model));
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testLimitFailsLoad() throws Exception {
+		final HttpServer server = startEndpoint(TRIPLE+
+				"<http://example.org/s> <http://example.org/p> <http://example.org/o2> .\n");
+		try {
+			useEndpoint(server);
+			System.setProperty(StreamingModelLoader.MAX_TRIPLES_PROPERTY, "1");
+			try {
+				StreamingModelLoader.stream(log, Collections.singletonList("CONSTRUCT {} WHERE {}"),
+						null, ModelFactory.createDefaultModel());
+				fail("A truncated load must not succeed");
+			}
+			catch(StreamingModelLoader.LimitExceededException e) {
+				// expected
+			}
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+}
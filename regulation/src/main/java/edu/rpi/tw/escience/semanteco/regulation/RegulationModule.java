@@ -1,9 +1,6 @@
 package edu.rpi.tw.escience.semanteco.regulation;
 
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -22,7 +19,9 @@ import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
 import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
-import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
+import edu.rpi.tw.escience.semanteco.facets.RegulationTable;
+import edu.rpi.tw.escience.semanteco.facets.ResultCache;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
 import edu.rpi.tw.escience.semanteco.query.OptionalComponent;
 import edu.rpi.tw.escience.semanteco.query.Query;
 import edu.rpi.tw.escience.semanteco.query.Query.Type;
@@ -42,17 +41,14 @@ import static edu.rpi.tw.escience.semanteco.query.Query.VAR_NS;
  */
 public class RegulationModule implements Module {
 
-	private static final String SITE_VAR = "site";
-	private static final String FACILITY_VAR = "facility";
-	private static final String POLLUTED_VAR = "polluted";
 	private static final String LABEL_VAR = "label";
 	private static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
 	private static final String WGS_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
 	private static final String RDFS_NS = "http://www.w3.org/2000/01/rdf-schema#";
 	private static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
-	private static final String OWL_NS = "http://www.w3.org/2002/07/owl#";
 	private static final String XSD_NS = "http://www.w3.org/2001/XMLSchema#";
-	private static final String PROP_VAR = "p";
+	private static final String FAILURE = "{\"success\":false}";
+	private static final ResultCache RESULT_CACHE = new ResultCache("regulation");
 	
 	private ModuleConfiguration config = null;
 	
@@ -62,6 +58,22 @@ public class RegulationModule implements Module {
 
 	@Override
 	public void visit(OntModel model, Request request, Domain domain) {
+		evaluateRegulation(model, request, domain);
+		// the version also keys the site summary, so it is recorded when results are not cached
+		RESULT_CACHE.modelBuilt(request, model);
+		// the base graph is read so that the reasoner is not run to find the sites
+		SiteSummary.put(RESULT_CACHE.version(request),
+				SiteSummary.build(model.getBaseModel().getGraph(), model.getRawModel().getGraph()));
+	}
+
+	/**
+	 * Types the measurements of a combined model that violate the regulation
+	 * selected for a domain
+	 * @param model Combined model
+	 * @param request Request the model was built for
+	 * @param domain Domain being visited
+	 */
+	private void evaluateRegulation(final OntModel model, final Request request, final Domain domain) {
 		final Logger log = request.getLogger();
 		if(domain.getRegulations().size() == 0) {
 			log.debug("Domain does not declare regulations... skipping");
@@ -69,7 +81,7 @@ public class RegulationModule implements Module {
 		}
 
 		// load the appropriate regulation ontology here
-		JSONObject regulation = (JSONObject)request.getParam("regulation");
+		JSONObject regulation = (JSONObject)request.getParam(RegulationTable.REGULATION_PARAM);
 		String name = NameUtils.cleanName(domain.getLabel());
 		if(!regulation.has(name)) {
 			log.debug("Regulation data does not include current domain... skipping");
@@ -83,29 +95,15 @@ public class RegulationModule implements Module {
 
 		log.debug("Loading '"+POL_NS+"'");
 		model.read(POL_NS);
-		log.debug("Loading regulation ontology '"+reg+"' for domain '"+name+"'");
-		try {
-			final URL url = new URL(reg);
-			final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-			conn.connect();
-			final String type = conn.getContentType();
-			final InputStream content = conn.getInputStream();
-			if(type.equals("application/rdf+xml") || type.equals("text/xml")) {
-				model.read(content, reg);
-			}
-			else if(type.equals("text/turtle")) {
-				model.read(content, reg, "TTL");
-			}
-			else if(type.equals("text/n3")) {
-				model.read(content, reg, "N3");
-			}
-			else {
-				log.warn("Unexpected content type "+type+" received for '"+reg+"'");
-			}
-		}
-		catch(Exception e) {
-			log.warn("Had a problem reading the regulation file '"+reg+"'", e);
+		log.debug("Evaluating regulation '"+reg+"' for domain '"+name+"'");
+		final RegulationTable table = RegulationTable.get(reg);
+		if(table == null) {
+			log.warn("No thresholds available for regulation '"+reg+"'");
+			return;
 		}
+		// the base graph is used so that the reasoner is not run to find measurements
+		final int violations = table.evaluate(model.getBaseModel().getGraph());
+		log.debug("Found "+violations+" violations of '"+reg+"'");
 	}
 
 	@Override
@@ -162,67 +160,102 @@ public class RegulationModule implements Module {
 	
 	/**
 	 * Queries for sites identified across all modules based on the
-	 * parameters sent by the client.
+	 * parameters sent by the client. Sites are read from the
+	 * {@link SiteSummary} built when the latest combined model with the
+	 * request's signature was visited, rather than queried with an EXISTS
+	 * subquery per site type; the summary is only queried for if no such
+	 * model has been built since data was last loaded or the regulations
+	 * were last compiled. The types bound are the ones registered with
+	 * {@link SiteTypes} for the requested domains.
 	 * @param request Application state sent from client
 	 * @return JSON encoded SPARQL results containing, at a minimum,
 	 * ?site, ?lat, ?lng, ?facility, ?polluted, and ?label.
 	 */
 	@QueryMethod
 	public String queryForSites(final Request request) {
+		SiteSummary summary = SiteSummary.get(RESULT_CACHE.version(request));
+		if(summary == null) {
+			summary = querySiteSummary(request);
+			if(summary == null) {
+				return FAILURE;
+			}
+		}
+		final String results = summary.toJSON(SiteTypes.mask((JSONArray) request.getParam("domain")));
+		if(RESULT_CACHE.isEnabled()) {
+			RESULT_CACHE.precompute(request,
+					summary.getMostPolluted(RESULT_CACHE.getPrecomputeCount()),
+					new ResultCache.SiteQuery() {
+						@Override
+						public String execute(Request request, String site) {
+							return computeSitePollution(request, site);
+						}
+					});
+		}
+		return results;
+	}
+
+	/**
+	 * Builds the site summary of a request's combined model with the
+	 * queryForSites query, projecting whether each site is a facility or a
+	 * polluted site. The data providers' query visitors add the projections
+	 * of their own site types and values.
+	 * @param request Application state sent from client
+	 * @return The summary, or null if the results could not be read
+	 */
+	protected SiteSummary querySiteSummary(final Request request) {
 		final Query query = config.getQueryFactory().newQuery(Type.SELECT);
 		
 		query.setNamespace("pol", POL_NS);
 
 		// Variables
-		final Variable site = query.getVariable(VAR_NS+SITE_VAR);
+		final Variable site = query.getVariable(VAR_NS+SiteSummary.SITE_VAR);
 		final Variable lat = query.getVariable(VAR_NS+"lat");
 		final Variable lng = query.getVariable(VAR_NS+"lng");
-		//these should only be part of the query if water or air is part of the data.
-		final Variable facility = query.createVariableExpression("EXISTS { ?"+SITE_VAR+" a pol:Facility } as ?"+FACILITY_VAR);
-		final Variable polluted = query.createVariableExpression("EXISTS { ?"+SITE_VAR+" a pol:PollutedSite } as ?"+POLLUTED_VAR);
+		final Variable facility = query.createVariableExpression("EXISTS { ?"+SiteSummary.SITE_VAR+
+				" a pol:Facility } as ?"+SiteSummary.FACILITY_VAR);
+		final Variable polluted = query.createVariableExpression("EXISTS { ?"+SiteSummary.SITE_VAR+
+				" a pol:PollutedSite } as ?"+SiteSummary.POLLUTED_VAR);
 		final Variable label = query.createVariable(VAR_NS+LABEL_VAR);
-		
+
 		// known uris
 		final QueryResource rdfType = query.getResource(RDF_NS+"type");
 		final QueryResource polMeasurementSite = query.getResource(POL_NS+"MeasurementSite");
 		final QueryResource wgsLat = query.getResource(WGS_NS+"lat");
 		final QueryResource wgsLong = query.getResource(WGS_NS+"long");
 		final QueryResource rdfsLabel = query.getResource(RDFS_NS+LABEL_VAR);
-		
+
 		// build query
 		Set<Variable> vars = new LinkedHashSet<Variable>();
 		vars.add(site);
 		vars.add(lat);
 		vars.add(lng);
-		
-		JSONArray domainArray = (JSONArray) request.getParam("domain");
-		for(int i = 0; i < domainArray.length(); i++){
-			try {
-				String objectInArray = domainArray.getString(i);			
-				if (objectInArray.equals("http://was.tw.rpi.edu/semanteco/air/air.owl#") ||objectInArray.equals("http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#") ){
-					vars.add(facility);
-					vars.add(polluted);
-				}				
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}			
-		}
-		
+		vars.add(facility);
+		vars.add(polluted);
 		vars.add(label);
 		query.setVariables(vars);
-		
+
 		query.addPattern(site, rdfType, polMeasurementSite);
 		query.addPattern(site, wgsLat, lat);
 		query.addPattern(site, wgsLong, lng);
 		final OptionalComponent optional = query.createOptional();
 		query.addGraphComponent(optional);
 		optional.addPattern(site, rdfsLabel, label);
-		
-		return config.getQueryExecutor(request).accept("application/json").executeLocalQuery(query);
+
+		final String results = config.getQueryExecutor(request).accept("application/json").executeLocalQuery(query);
+		if(results == null) {
+			return null;
+		}
+		try {
+			return SiteSummary.build(results);
+		} catch(JSONException e) {
+			request.getLogger().warn("Unable to read site summary results", e);
+			return null;
+		}
 	}
 	
 	/**
-	 * Queries for the polluted measurements at a particular site.
+	 * Queries for the polluted measurements at a particular site. Results
+	 * are cached per model version by {@link ResultCache}.
 	 * @param request Application state sent from client
 	 * @return JSON encoded SPARQL results containing, at a minimum,
 	 * ?element, ?permit, ?type, ?value, ?unit, and ?measurement
@@ -233,6 +266,25 @@ public class RegulationModule implements Module {
 		if(siteUri == null) {
 			return "{\"error\":\"No uri parameter supplied\"}";
 		}
+		if(!RESULT_CACHE.isEnabled()) {
+			return computeSitePollution(request, siteUri);
+		}
+		String results = RESULT_CACHE.get(RESULT_CACHE.key(request, siteUri, null, null));
+		if(results == null) {
+			results = computeSitePollution(request, siteUri);
+			// the model may have been built while computing the results
+			RESULT_CACHE.put(RESULT_CACHE.key(request, siteUri, null, null), results);
+		}
+		return results;
+	}
+
+	/**
+	 * Queries for the polluted measurements at a site
+	 * @param request Application state sent from client
+	 * @param siteUri Site URI
+	 * @return JSON encoded SPARQL results
+	 */
+	protected String computeSitePollution(final Request request, final String siteUri) {
 		final Query query = config.getQueryFactory().newQuery(Type.SELECT);
 		
 		query.setNamespace("pol", POL_NS);
@@ -289,9 +341,17 @@ public class RegulationModule implements Module {
 		
 		extendQueryForLimits(query);
 
-		return config.getQueryExecutor(request).accept("application/json").executeLocalQuery(query);
+		final String results = config.getQueryExecutor(request).accept("application/json").executeLocalQuery(query);
+		return RegulationTable.addLimits(RegulationTable.forRegulations(request.getParam(RegulationTable.REGULATION_PARAM)),
+				results, null, true);
 	}
 	
+	/**
+	 * Selects ?op and ?limit from the permit limits carried by measurements.
+	 * Limits stated by the regulation ontology are added to the results from
+	 * the compiled {@link RegulationTable} rather than matched in the query.
+	 * @param query Query selecting ?measurement
+	 */
 	protected void extendQueryForLimits(final Query query) {
 		final Variable limit = query.getVariable(VAR_NS+"limit");
 		final Variable op = query.getVariable(VAR_NS+"op");
@@ -302,55 +362,13 @@ public class RegulationModule implements Module {
 		query.setVariables(vars);
 		
 		final Variable measurement = query.getVariable(VAR_NS+"measurement");
-		final Variable cls = query.getVariable(VAR_NS+"cls");
-		final Variable list = query.getVariable(VAR_NS+"list");
-		final Variable supers = query.getVariable(VAR_NS+"supers");
-		final Variable dt = query.getVariable(VAR_NS+"dt");
-		final Variable res = query.getVariable(VAR_NS+"res");
-		final Variable bn = query.createBlankNode();
-		final Variable p = query.getVariable(VAR_NS+PROP_VAR);
-
-		final QueryResource polHasValue = query.getResource(POL_NS+"hasValue");
 		final QueryResource polHasLimitOperator = query.getResource(POL_NS+"hasLimitOperator");
 		final QueryResource polHasLimitValue = query.getResource(POL_NS+"hasLimitValue");
-		final QueryResource owlIntersectionOf = query.getResource(OWL_NS+"intersectionOf");
-		final QueryResource owlOnProperty = query.getResource(OWL_NS+"onProperty");
-		final QueryResource owlSomeValuesFrom = query.getResource(OWL_NS+"someValuesFrom");
-		final QueryResource owlWithRestrictions = query.getResource(OWL_NS+"withRestrictions");
-		final QueryResource propPath = query.createPropertyPath("rdf:rest*/rdf:first");
-		final QueryResource propPath2 = query.createPropertyPath("rdf:type/owl:equivalentClass?");
-
-		OptionalComponent optional = query.createOptional();
-		query.addGraphComponent(optional);
-		optional.addPattern(measurement, propPath2, cls);
-		optional.addPattern(cls, owlIntersectionOf, list);
-		optional.addPattern(list, propPath, supers);
-		optional.addPattern(supers, owlOnProperty, polHasValue);
-		optional.addPattern(supers, owlSomeValuesFrom, dt);
-		optional.addPattern(dt, owlWithRestrictions, res);
-		optional.addPattern(res, propPath, bn);
-		optional.addPattern(bn, p, limit);
-		optional.addFilter("datatype(?limit) = xsd:decimal");
 
-		addOpMatch(query, optional, "xsd:minInclusive", "<=", op);
-		addOpMatch(query, optional, "xsd:maxInclusive", ">=", op);
-		addOpMatch(query, optional, "xsd:minExclusive", "<", op);
-		addOpMatch(query, optional, "xsd:maxExclusive", ">", op);
-		
-		optional = query.createOptional();
+		final OptionalComponent optional = query.createOptional();
 		query.addGraphComponent(optional);
 		optional.addPattern(measurement, polHasLimitOperator, op);
 		optional.addPattern(measurement, polHasLimitValue, limit);
 	}
 	
-	protected void addOpMatch(final Query query, 
-			final GraphComponentCollection graph, 
-			final String xsdOp, final String mathOp, 
-			final Variable mathVar) {
-		OptionalComponent optional = query.createOptional();
-		graph.addGraphComponent(optional);
-		optional.addFilter("?"+PROP_VAR+" = "+xsdOp);
-		optional.addBind("\""+mathOp+"\"", mathVar);
-	}
-	
 }
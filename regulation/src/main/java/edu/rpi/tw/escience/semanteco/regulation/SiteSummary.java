@@ -0,0 +1,470 @@
+package edu.rpi.tw.escience.semanteco.regulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.ResultCache;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
+
+/**
+ * SiteSummary is a compact index of the measurement sites in a combined
+ * model. Each site is kept as its URI, latitude, longitude and label along
+ * with a bitmask of the site types registered with {@link SiteTypes} (the
+ * regulation module registers facility and polluted, data providers register
+ * their own, e.g. isWater) and the values of the registered site values,
+ * e.g. aqi. queryForSites then reads the sites with a scan over these
+ * arrays instead of evaluating an EXISTS subquery per site and type.
+ *
+ * The regulation module builds a summary each time it visits a combined
+ * model, once the regulation violations have been added, and keeps it under
+ * the model version of the request, i.e. the parameters that shape the
+ * model and the data and regulations it was built from (see
+ * {@link ResultCache#version(Request)}). The summary is read
+ * from the base graph so that the reasoner is not run: a site is of a type
+ * if it is asserted to be of the type or of one of its subclasses, and is
+ * polluted if one of its measurements is a violation. When no model with
+ * the request's signature has been built the summary is built from the
+ * results of the queryForSites query, whose type and value variables are
+ * added by the modules' query visitors.
+ * @author ewpatton
+ *
+ */
+final class SiteSummary {
+
+	static final String POL_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#";
+	static final String WGS_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
+	static final String SITE_VAR = "site";
+	static final String FACILITY_VAR = "facility";
+	static final String POLLUTED_VAR = "polluted";
+	/**
+	 * Domains whose sites may be facilities or polluted sites
+	 */
+	static final String[] REGULATED_DOMAINS = {
+		"http://was.tw.rpi.edu/semanteco/air/air.owl#",
+		"http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#"
+	};
+
+	private static final String XSD_BOOLEAN = "http://www.w3.org/2001/XMLSchema#boolean";
+
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node MEASUREMENT_SITE = Node.createURI(POL_NS+"MeasurementSite");
+	private static final Node LAT = Node.createURI(WGS_NS+"lat");
+	private static final Node LONG = Node.createURI(WGS_NS+"long");
+	private static final Node LABEL = RDFS.label.asNode();
+	private static final Node HAS_MEASUREMENT = Node.createURI(POL_NS+"hasMeasurement");
+	private static final Node REGULATION_VIOLATION = Node.createURI(POL_NS+"RegulationViolation");
+	private static final Node SUB_CLASS_OF = RDFS.subClassOf.asNode();
+
+	static {
+		SiteTypes.register(FACILITY_VAR, POL_NS+"Facility", REGULATED_DOMAINS);
+		SiteTypes.register(POLLUTED_VAR, POL_NS+"PollutedSite", REGULATED_DOMAINS);
+	}
+
+	private static final Map<String, SiteSummary> summaries =
+			Collections.synchronizedMap(new LinkedHashMap<String, SiteSummary>(16, 0.75f, true) {
+		private static final long serialVersionUID = -4400385128719617377L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SiteSummary> eldest) {
+			return size() > Integer.getInteger("semanteco.regulation.siteSummaries", 16);
+		}
+	});
+
+	private final List<String> typeVars;
+	private final List<String> valueVars;
+	private final String[] sites;
+	private final String[] lats;
+	private final String[] lngs;
+	private final String[] labels;
+	private final String[][] values;
+	private final int[] types;
+	private final int[] violations;
+
+	private SiteSummary(final Builder builder) {
+		final int size = builder.sites.size();
+		typeVars = builder.typeVars;
+		valueVars = builder.valueVars;
+		sites = builder.sites.toArray(new String[size]);
+		lats = builder.lats.toArray(new String[size]);
+		lngs = builder.lngs.toArray(new String[size]);
+		labels = builder.labels.toArray(new String[size]);
+		values = builder.values.toArray(new String[size][]);
+		types = new int[size];
+		violations = new int[size];
+		for(int i=0;i<size;i++) {
+			types[i] = builder.types.get(i);
+			violations[i] = builder.violations.get(i);
+		}
+	}
+
+	/**
+	 * Keeps the summary of a combined model
+	 * @param version Version of the model from {@link ResultCache#version(Request)}
+	 * @param summary Summary of the model
+	 */
+	static void put(final String version, final SiteSummary summary) {
+		if(version != null) {
+			summaries.put(version, summary);
+		}
+	}
+
+	/**
+	 * Gets the summary of a combined model
+	 * @param version Version of the model from {@link ResultCache#version(Request)}
+	 * @return The summary, or null if no model of that version has been visited
+	 */
+	static SiteSummary get(final String version) {
+		return version == null ? null : summaries.get(version);
+	}
+
+	/**
+	 * Builds a summary from the sites in a graph whose schema is in the
+	 * same graph
+	 * @param graph Graph of a combined model
+	 * @return
+	 */
+	static SiteSummary build(final Graph graph) {
+		return build(graph, graph);
+	}
+
+	/**
+	 * Builds a summary from the sites in a graph. Sites are the subjects
+	 * asserted to be of a registered type, of pol:MeasurementSite or of one
+	 * of their subclasses, so the graph need not be reasoned over.
+	 * @param data Graph holding the sites, e.g. the base graph of a combined
+	 * model
+	 * @param schema Graph holding the rdfs:subClassOf axioms of the types,
+	 * e.g. the raw graph of the combined model
+	 * @return
+	 */
+	static SiteSummary build(final Graph data, final Graph schema) {
+		final Builder builder = new Builder();
+		final List<String> types = SiteTypes.getTypes();
+		final List<Node> valueNodes = nodes(SiteTypes.getValueProperties());
+		final int polluted = builder.bit(POLLUTED_VAR);
+		final Map<Node, Integer> masks = new LinkedHashMap<Node, Integer>();
+		for(Node cls : subClasses(schema, MEASUREMENT_SITE)) {
+			addSites(data, cls, 0, masks);
+		}
+		for(int i=0;i<types.size();i++) {
+			for(Node cls : subClasses(schema, Node.createURI(types.get(i)))) {
+				addSites(data, cls, 1 << i, masks);
+			}
+		}
+		for(Map.Entry<Node, Integer> entry : masks.entrySet()) {
+			final Node site = entry.getKey();
+			final String lat = first(data, site, LAT);
+			final String lng = first(data, site, LONG);
+			if(!site.isURI() || lat == null || lng == null) {
+				continue;
+			}
+			final String[] siteValues = new String[valueNodes.size()];
+			for(int i=0;i<siteValues.length;i++) {
+				siteValues[i] = first(data, site, valueNodes.get(i));
+			}
+			final int violations = countViolations(data, site);
+			builder.add(site.getURI(), lat, lng, first(data, site, LABEL), siteValues,
+					violations > 0 ? entry.getValue() | polluted : entry.getValue());
+			builder.violations.set(builder.violations.size()-1, violations);
+		}
+		return new SiteSummary(builder);
+	}
+
+	/**
+	 * Builds a summary from the SPARQL JSON results of the queryForSites
+	 * query, which selects ?site, ?lat, ?lng and optionally ?label, a boolean
+	 * for each registered type and the registered values. A site bound on
+	 * several rows is kept once, with the types of every row.
+	 * @param results SPARQL JSON results
+	 * @return
+	 * @throws JSONException if the results are malformed
+	 */
+	static SiteSummary build(final String results) throws JSONException {
+		final Builder builder = new Builder();
+		final Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+		final JSONArray bindings = new JSONObject(results).getJSONObject("results").getJSONArray("bindings");
+		for(int i=0;i<bindings.length();i++) {
+			final JSONObject binding = bindings.getJSONObject(i);
+			final String site = value(binding, SITE_VAR);
+			if(site == null) {
+				continue;
+			}
+			int mask = 0;
+			for(int j=0;j<builder.typeVars.size();j++) {
+				final String bound = value(binding, builder.typeVars.get(j));
+				if("true".equals(bound) || "1".equals(bound)) {
+					mask |= 1 << j;
+				}
+			}
+			final String[] siteValues = new String[builder.valueVars.size()];
+			for(int j=0;j<siteValues.length;j++) {
+				siteValues[j] = value(binding, builder.valueVars.get(j));
+			}
+			final Integer pos = index.get(site);
+			if(pos == null) {
+				index.put(site, builder.sites.size());
+				builder.add(site, value(binding, "lat"), value(binding, "lng"),
+						value(binding, "label"), siteValues, mask);
+			}
+			else {
+				builder.types.set(pos, builder.types.get(pos) | mask);
+				final String[] kept = builder.values.get(pos);
+				for(int j=0;j<kept.length;j++) {
+					if(kept[j] == null) {
+						kept[j] = siteValues[j];
+					}
+				}
+			}
+		}
+		return new SiteSummary(builder);
+	}
+
+	/**
+	 * Gets the number of sites in the summary
+	 * @return
+	 */
+	int size() {
+		return sites.length;
+	}
+
+	/**
+	 * Gets the type bitmask of a site
+	 * @param i Index of the site
+	 * @return
+	 */
+	int getTypes(final int i) {
+		return types[i];
+	}
+
+	/**
+	 * Gets the bit of a type in the summary's bitmasks
+	 * @param var Variable of the type, e.g. isWater
+	 * @return The bit, or 0 if the type was not registered when the summary was built
+	 */
+	int getBit(final String var) {
+		final int i = typeVars.indexOf(var);
+		return i < 0 ? 0 : 1 << i;
+	}
+
+	/**
+	 * Gets the URI of a site
+	 * @param i Index of the site
+	 * @return
+	 */
+	String getSite(final int i) {
+		return sites[i];
+	}
+
+	/**
+	 * Gets the polluted sites with the most violating measurements. Sites
+	 * of a summary built from a query have no counts and are taken in order.
+	 * @param limit Largest number of sites returned
+	 * @return Site URIs, most violations first
+	 */
+	List<String> getMostPolluted(final int limit) {
+		final int bit = getBit(POLLUTED_VAR);
+		final List<Integer> polluted = new ArrayList<Integer>();
+		for(int i=0;i<sites.length;i++) {
+			if((types[i] & bit) != 0) {
+				polluted.add(i);
+			}
+		}
+		Collections.sort(polluted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return violations[o2] - violations[o1];
+			}
+		});
+		final List<String> result = new ArrayList<String>();
+		for(int i=0;i<polluted.size() && i<limit;i++) {
+			result.add(sites[polluted.get(i)]);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the summary as SPARQL JSON results
+	 * @param typeMask Site types to bind, as a bitmask of {@link SiteTypes}
+	 * bits, e.g. from {@link SiteTypes#mask(JSONArray)}
+	 * @return SPARQL JSON results binding ?site, ?lat, ?lng, ?label, the
+	 * variable of every type in typeMask and the registered values
+	 */
+	String toJSON(final int typeMask) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"head\":{\"vars\":[\"site\",\"lat\",\"lng\"");
+		for(int i=0;i<typeVars.size();i++) {
+			if((typeMask & (1 << i)) != 0) {
+				sb.append(",").append(JSONObject.quote(typeVars.get(i)));
+			}
+		}
+		sb.append(",\"label\"");
+		for(String var : valueVars) {
+			sb.append(",").append(JSONObject.quote(var));
+		}
+		sb.append("]},\"results\":{\"bindings\":[");
+		for(int i=0;i<sites.length;i++) {
+			if(i > 0) {
+				sb.append(",");
+			}
+			sb.append("{\"site\":{\"type\":\"uri\",\"value\":").append(JSONObject.quote(sites[i])).append("}");
+			appendLiteral(sb, "lat", lats[i]);
+			appendLiteral(sb, "lng", lngs[i]);
+			for(int j=0;j<typeVars.size();j++) {
+				final int bit = 1 << j;
+				if((typeMask & bit) != 0) {
+					sb.append(",").append(JSONObject.quote(typeVars.get(j)));
+					sb.append(":{\"type\":\"typed-literal\",\"datatype\":\"").append(XSD_BOOLEAN);
+					sb.append("\",\"value\":\"").append((types[i] & bit) != 0).append("\"}");
+				}
+			}
+			appendLiteral(sb, "label", labels[i]);
+			for(int j=0;j<valueVars.size();j++) {
+				appendLiteral(sb, valueVars.get(j), values[i][j]);
+			}
+			sb.append("}");
+		}
+		sb.append("]}}");
+		return sb.toString();
+	}
+
+	private static void appendLiteral(final StringBuilder sb, final String var, final String value) {
+		if(value != null) {
+			sb.append(",").append(JSONObject.quote(var));
+			sb.append(":{\"type\":\"literal\",\"value\":").append(JSONObject.quote(value)).append("}");
+		}
+	}
+
+	private static List<Node> nodes(final List<String> uris) {
+		final List<Node> nodes = new ArrayList<Node>(uris.size());
+		for(String uri : uris) {
+			nodes.add(Node.createURI(uri));
+		}
+		return nodes;
+	}
+
+	private static void addSites(final Graph graph, final Node cls, final int bit, final Map<Node, Integer> masks) {
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, TYPE, cls);
+		try {
+			while(it.hasNext()) {
+				final Node site = it.next().getSubject();
+				final Integer mask = masks.get(site);
+				masks.put(site, mask == null ? bit : mask | bit);
+			}
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Gets a class and its asserted subclasses, transitively
+	 */
+	private static Set<Node> subClasses(final Graph graph, final Node cls) {
+		final Set<Node> classes = new HashSet<Node>();
+		final List<Node> todo = new ArrayList<Node>();
+		todo.add(cls);
+		while(!todo.isEmpty()) {
+			final Node next = todo.remove(todo.size()-1);
+			if(!classes.add(next)) {
+				continue;
+			}
+			final ExtendedIterator<Triple> it = graph.find(Node.ANY, SUB_CLASS_OF, next);
+			try {
+				while(it.hasNext()) {
+					todo.add(it.next().getSubject());
+				}
+			}
+			finally {
+				it.close();
+			}
+		}
+		return classes;
+	}
+
+	private static int countViolations(final Graph graph, final Node site) {
+		int count = 0;
+		final ExtendedIterator<Triple> it = graph.find(site, HAS_MEASUREMENT, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				if(graph.contains(it.next().getObject(), TYPE, REGULATION_VIOLATION)) {
+					count++;
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		return count;
+	}
+
+	private static String first(final Graph graph, final Node s, final Node p) {
+		final ExtendedIterator<Triple> it = graph.find(s, p, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Node o = it.next().getObject();
+				if(o.isLiteral()) {
+					return o.getLiteralLexicalForm();
+				}
+				else if(o.isURI()) {
+					return o.getURI();
+				}
+			}
+			return null;
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	private static String value(final JSONObject binding, final String var) {
+		final JSONObject term = binding.optJSONObject(var);
+		return term == null ? null : term.optString("value", null);
+	}
+
+	private static final class Builder {
+		final List<String> typeVars = SiteTypes.getTypeVariables();
+		final List<String> valueVars = SiteTypes.getValueVariables();
+		final List<String> sites = new ArrayList<String>();
+		final List<String> lats = new ArrayList<String>();
+		final List<String> lngs = new ArrayList<String>();
+		final List<String> labels = new ArrayList<String>();
+		final List<String[]> values = new ArrayList<String[]>();
+		final List<Integer> types = new ArrayList<Integer>();
+		final List<Integer> violations = new ArrayList<Integer>();
+
+		int bit(final String var) {
+			final int i = typeVars.indexOf(var);
+			return i < 0 ? 0 : 1 << i;
+		}
+
+		void add(final String site, final String lat, final String lng,
+				final String label, final String[] siteValues, final int mask) {
+			sites.add(site);
+			lats.add(lat);
+			lngs.add(lng);
+			labels.add(label);
+			values.add(siteValues);
+			types.add(mask);
+			violations.add(0);
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+package edu.rpi.tw.escience.semanteco.regulation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import edu.rpi.tw.escience.semanteco.Domain;
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
+import edu.rpi.tw.escience.semanteco.test.MockRequest;
+
+public class RegulationModuleTest extends TestCase {
+
+	private static final String WATER_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#";
+	private static final String SITE = "http://example.com/water-site";
+	private static final String RESULTS = "{\"head\":{\"vars\":[\"element\"]},\"results\":{\"bindings\":[]}}";
+
+	static {
+		// registered by the water data provider in a deployment
+		SiteTypes.register("isWater", WATER_NS+"WaterSite");
+	}
+
+	private static class TestRequest extends MockRequest {
+		final Map<String, Object> params = new HashMap<String, Object>();
+
+		TestRequest(final String county, final String uri) {
+			params.put("state", "RI");
+			params.put("county", county);
+			params.put("uri", uri);
+		}
+
+		@Override
+		public Object getParam(String key) {
+			return params.get(key);
+		}
+
+		@Override
+		public Logger getLogger() {
+			return Logger.getLogger(RegulationModuleTest.class);
+		}
+	}
+
+	private static class TestRegulationModule extends RegulationModule {
+		int computed = 0;
+		int queried = 0;
+
+		@Override
+		protected String computeSitePollution(Request request, String siteUri) {
+			computed++;
+			return RESULTS;
+		}
+
+		@Override
+		protected SiteSummary querySiteSummary(Request request) {
+			queried++;
+			return null;
+		}
+	}
+
+	private static Domain newDomain() {
+		// a domain without regulations
+		return (Domain)Proxy.newProxyInstance(Domain.class.getClassLoader(),
+				new Class<?>[] { Domain.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getRegulations") ? new ArrayList<URI>() : null;
+			}
+		});
+	}
+
+	private static OntModel newModel() {
+		OntModel model = ModelFactory.createOntologyModel();
+		Resource site = model.createResource(SITE);
+		site.addProperty(RDF.type, model.createResource(WATER_NS+"WaterSite"));
+		site.addProperty(model.createProperty(SiteSummary.WGS_NS+"lat"), "41.8");
+		site.addProperty(model.createProperty(SiteSummary.WGS_NS+"long"), "-71.4");
+		return model;
+	}
+
+	@Test
+	public void testClickReadsCachedResults() {
+		TestRegulationModule module = new TestRegulationModule();
+		module.visit(newModel(), new TestRequest("001", null), newDomain());
+
+		// each click arrives with a new request whose model is not built
+		assertEquals(RESULTS, module.queryForSitePollution(new TestRequest("001", SITE)));
+		assertEquals(1, module.computed);
+		assertEquals(RESULTS, module.queryForSitePollution(new TestRequest("001", SITE)));
+		assertEquals(1, module.computed);
+
+		// no model has been built for another county
+		module.queryForSitePollution(new TestRequest("003", SITE));
+		module.queryForSitePollution(new TestRequest("003", SITE));
+		assertEquals(3, module.computed);
+	}
+
+	@Test
+	public void testSitesReadFromVisitedModel() throws Exception {
+		TestRegulationModule module = new TestRegulationModule();
+		module.visit(newModel(), new TestRequest("005", null), newDomain());
+		String results = module.queryForSites(new TestRequest("005", null));
+		assertEquals(0, module.queried);
+		assertTrue(results.contains(SITE));
+
+		assertEquals("{\"success\":false}", module.queryForSites(new TestRequest("007", null)));
+		assertEquals(1, module.queried);
+	}
+
+}
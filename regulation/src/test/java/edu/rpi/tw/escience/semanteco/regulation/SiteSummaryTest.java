@@ -0,0 +1,186 @@
+package edu.rpi.tw.escience.semanteco.regulation;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
+
+public class SiteSummaryTest extends TestCase {
+
+	private static final String POL_NS = SiteSummary.POL_NS;
+	private static final String WATER_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#";
+	private static final String AIR_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/air.owl#";
+	private static final String WATER_SITE = "http://example.com/water-site";
+	private static final String AIR_SITE = "http://example.com/air-site";
+
+	static {
+		// registered by the data provider modules in a deployment
+		SiteTypes.register("isWater", WATER_NS+"WaterSite");
+		SiteTypes.register("isAir", AIR_NS+"AirSite");
+		SiteTypes.registerValue("aqi", AIR_NS+"hasAQICategory");
+	}
+
+	@Test
+	public void testBuildFromGraph() throws Exception {
+		SiteSummary summary = SiteSummary.build(buildModel().getGraph());
+		// the site without coordinates is skipped
+		assertEquals(2, summary.size());
+		int water = indexOf(summary, WATER_SITE);
+		int air = indexOf(summary, AIR_SITE);
+		int polluted = summary.getBit(SiteSummary.POLLUTED_VAR);
+		assertTrue(polluted != 0);
+		assertEquals(summary.getBit("isWater") | polluted, summary.getTypes(water));
+		assertEquals(summary.getBit("isAir"), summary.getTypes(air));
+		assertEquals(Arrays.asList(WATER_SITE), summary.getMostPolluted(10));
+		assertEquals(0, summary.getMostPolluted(0).size());
+	}
+
+	@Test
+	public void testBuildFromBaseGraph() throws Exception {
+		// sites are only typed with the data providers' classes, and
+		// polluted sites are not typed until the model is reasoned over
+		Model schema = ModelFactory.createDefaultModel();
+		schema.add(schema.createResource(WATER_NS+"WaterFacility"), RDFS.subClassOf,
+				schema.createResource(WATER_NS+"WaterSite"));
+		Model data = ModelFactory.createDefaultModel();
+		Resource facility = data.createResource(WATER_SITE);
+		facility.addProperty(RDF.type, data.createResource(WATER_NS+"WaterFacility"));
+		facility.addProperty(data.createProperty(SiteSummary.WGS_NS+"lat"), "41.8");
+		facility.addProperty(data.createProperty(SiteSummary.WGS_NS+"long"), "-71.4");
+		for(int i=0;i<2;i++) {
+			Resource m = data.createResource("http://example.com/measurement-"+i);
+			facility.addProperty(data.createProperty(POL_NS+"hasMeasurement"), m);
+			m.addProperty(RDF.type, data.createResource(POL_NS+"RegulationViolation"));
+		}
+		Resource air = data.createResource(AIR_SITE);
+		air.addProperty(RDF.type, data.createResource(AIR_NS+"AirSite"));
+		air.addProperty(data.createProperty(SiteSummary.WGS_NS+"lat"), "41.7");
+		air.addProperty(data.createProperty(SiteSummary.WGS_NS+"long"), "-71.5");
+		air.addProperty(data.createProperty(POL_NS+"hasMeasurement"), data.createResource("http://example.com/measurement-2"));
+
+		SiteSummary summary = SiteSummary.build(data.getGraph(), ModelFactory.createUnion(data, schema).getGraph());
+		assertEquals(2, summary.size());
+		assertEquals(summary.getBit("isWater") | summary.getBit(SiteSummary.POLLUTED_VAR),
+				summary.getTypes(indexOf(summary, WATER_SITE)));
+		assertEquals(summary.getBit("isAir"), summary.getTypes(indexOf(summary, AIR_SITE)));
+		assertEquals(Arrays.asList(WATER_SITE), summary.getMostPolluted(10));
+	}
+
+	@Test
+	public void testBuildFromResults() throws Exception {
+		// results of the queryForSites query, with a site bound on two rows
+		String results = "{\"head\":{\"vars\":[\"site\",\"lat\",\"lng\",\"facility\",\"polluted\",\"label\",\"isWater\",\"isAir\",\"aqi\"]}," +
+				"\"results\":{\"bindings\":[" +
+				"{\"site\":{\"type\":\"uri\",\"value\":\""+WATER_SITE+"\"},\"lat\":{\"type\":\"literal\",\"value\":\"41.8\"}," +
+				"\"lng\":{\"type\":\"literal\",\"value\":\"-71.4\"},\"polluted\":" + bool(true) + ",\"isWater\":" + bool(true) + "}," +
+				"{\"site\":{\"type\":\"uri\",\"value\":\""+AIR_SITE+"\"},\"lat\":{\"type\":\"literal\",\"value\":\"41.7\"}," +
+				"\"lng\":{\"type\":\"literal\",\"value\":\"-71.5\"},\"isAir\":" + bool(true) + ",\"isWater\":" + bool(false) + "}," +
+				"{\"site\":{\"type\":\"uri\",\"value\":\""+AIR_SITE+"\"},\"lat\":{\"type\":\"literal\",\"value\":\"41.7\"}," +
+				"\"lng\":{\"type\":\"literal\",\"value\":\"-71.5\"},\"aqi\":{\"type\":\"literal\",\"value\":\"air_good\"}}," +
+				"{\"lat\":{\"type\":\"literal\",\"value\":\"0\"}}" +
+				"]}}";
+		SiteSummary summary = SiteSummary.build(results);
+		assertEquals(2, summary.size());
+		assertEquals(summary.getBit("isWater") | summary.getBit(SiteSummary.POLLUTED_VAR),
+				summary.getTypes(indexOf(summary, WATER_SITE)));
+		assertEquals(summary.getBit("isAir"), summary.getTypes(indexOf(summary, AIR_SITE)));
+		JSONObject air = find(new JSONObject(summary.toJSON(summary.getBit("isAir"))), AIR_SITE);
+		assertEquals("air_good", air.getJSONObject("aqi").getString("value"));
+	}
+
+	@Test
+	public void testToJSON() throws Exception {
+		SiteSummary summary = SiteSummary.build(buildModel().getGraph());
+		int mask = summary.getBit("isWater") | summary.getBit(SiteSummary.POLLUTED_VAR);
+		JSONObject json = new JSONObject(summary.toJSON(mask));
+		JSONArray vars = json.getJSONObject("head").getJSONArray("vars");
+		// type columns follow the order the types were registered in
+		assertEquals(7, vars.length());
+		assertEquals("site", vars.getString(0));
+		assertEquals("lng", vars.getString(2));
+		assertTrue(vars.toString().contains("\"polluted\""));
+		assertTrue(vars.toString().contains("\"isWater\""));
+		assertEquals("label", vars.getString(5));
+		assertEquals("aqi", vars.getString(6));
+		assertEquals(2, json.getJSONObject("results").getJSONArray("bindings").length());
+
+		JSONObject water = find(json, WATER_SITE);
+		assertEquals("41.8", water.getJSONObject("lat").getString("value"));
+		assertEquals("Pawtuxet River", water.getJSONObject("label").getString("value"));
+		assertEquals("true", water.getJSONObject("isWater").getString("value"));
+		assertEquals("true", water.getJSONObject(SiteSummary.POLLUTED_VAR).getString("value"));
+		assertFalse(water.has("isAir"));
+		assertFalse(water.has("aqi"));
+
+		JSONObject air = find(json, AIR_SITE);
+		assertEquals("false", air.getJSONObject("isWater").getString("value"));
+		assertEquals("typed-literal", air.getJSONObject("isWater").getString("type"));
+		assertEquals("air_moderate", air.getJSONObject("aqi").getString("value"));
+		assertFalse(air.has("label"));
+
+		// no types requested binds only the site columns
+		vars = new JSONObject(summary.toJSON(0)).getJSONObject("head").getJSONArray("vars");
+		assertEquals("[\"site\",\"lat\",\"lng\",\"label\",\"aqi\"]", vars.toString());
+	}
+
+	private static Model buildModel() {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource(POL_NS+"MeasurementSite");
+		Resource water = model.createResource(WATER_SITE);
+		water.addProperty(RDF.type, site);
+		water.addProperty(RDF.type, model.createResource(WATER_NS+"WaterSite"));
+		water.addProperty(RDF.type, model.createResource(POL_NS+"PollutedSite"));
+		water.addProperty(model.createProperty(SiteSummary.WGS_NS+"lat"), "41.8");
+		water.addProperty(model.createProperty(SiteSummary.WGS_NS+"long"), "-71.4");
+		water.addProperty(RDFS.label, "Pawtuxet River");
+		Resource m = model.createResource("http://example.com/measurement-1");
+		water.addProperty(model.createProperty(POL_NS+"hasMeasurement"), m);
+		m.addProperty(RDF.type, model.createResource(POL_NS+"RegulationViolation"));
+		Resource air = model.createResource(AIR_SITE);
+		air.addProperty(RDF.type, site);
+		air.addProperty(RDF.type, model.createResource(AIR_NS+"AirSite"));
+		air.addProperty(model.createProperty(SiteSummary.WGS_NS+"lat"), "41.7");
+		air.addProperty(model.createProperty(SiteSummary.WGS_NS+"long"), "-71.5");
+		air.addProperty(model.createProperty(AIR_NS+"hasAQICategory"), "air_moderate");
+		Resource unplaced = model.createResource("http://example.com/unplaced-site");
+		unplaced.addProperty(RDF.type, site);
+		return model;
+	}
+
+	private static String bool(boolean value) {
+		return "{\"type\":\"typed-literal\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#boolean\",\"value\":\""+value+"\"}";
+	}
+
+	private static int indexOf(SiteSummary summary, String site) {
+		for(int i=0;i<summary.size();i++) {
+			if(site.equals(summary.getSite(i))) {
+				return i;
+			}
+		}
+		fail("Site "+site+" not in the summary");
+		return -1;
+	}
+
+	private static JSONObject find(JSONObject json, String site) throws Exception {
+		JSONArray bindings = json.getJSONObject("results").getJSONArray("bindings");
+		for(int i=0;i<bindings.length();i++) {
+			if(site.equals(bindings.getJSONObject(i).getJSONObject("site").getString("value"))) {
+				return bindings.getJSONObject(i);
+			}
+		}
+		fail("Site "+site+" not in the results");
+		return null;
+	}
+
+}
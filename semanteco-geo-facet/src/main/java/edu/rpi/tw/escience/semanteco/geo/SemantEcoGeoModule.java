@@ -18,6 +18,8 @@ import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
+import edu.rpi.tw.escience.semanteco.facets.DomainCache;
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
 import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
 
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
@@ -65,6 +67,12 @@ public class SemantEcoGeoModule implements Module, ProvidesDomain {
   private static final Logger log = Logger.getLogger(SemantEcoGeoModule.class);
 
   private ModuleConfiguration config = null;
+  private final DomainCache domainCache = new DomainCache(new DomainCache.Builder() {
+    @Override
+    public List<Domain> buildDomains(final Request request) {
+      return SemantEcoGeoModule.this.buildDomains(request);
+    }
+  });
 
   @Override
   public void visit(Model model, Request request, Domain domain) {
@@ -222,12 +230,12 @@ public class SemantEcoGeoModule implements Module, ProvidesDomain {
         bgp.addPattern(s, countyCoded, countyCode, null);
         bgp.addPattern(s, stateAbbrev, stateAbbr, null);
 
-        config.getQueryExecutor(request).accept("text/turtle")
-            .execute(query, model);
+        StreamingModelLoader.execute(request, config, query,
+            "text/turtle", model);
 
       }
-      config.getQueryExecutor(request).accept("text/turtle")
-          .execute(query, model);
+      StreamingModelLoader.execute(request, config, query,
+          "text/turtle", model);
 
     }
 
@@ -501,6 +509,7 @@ public class SemantEcoGeoModule implements Module, ProvidesDomain {
   @Override
   public void setModuleConfiguration(final ModuleConfiguration config) {
     this.config = config;
+    domainCache.clear();
   }
 
   @QueryMethod
@@ -570,6 +579,28 @@ public class SemantEcoGeoModule implements Module, ProvidesDomain {
   }
 
   public List<Domain> getDomains(final Request request) {
+    return domainCache.get(request);
+  }
+
+  /**
+   * Rebuilds the domain description returned by
+   * {@link #getDomains(Request)}, which is otherwise built once and
+   * shared by all requests.
+   * @param request Request object encapsulating RESTful call
+   * @return JSON object of the form {"success": true}, or {"success": false,
+   * "error": message} if the domains could not be rebuilt
+   */
+  @QueryMethod
+  public String rebuildDomains(final Request request) {
+    return domainCache.rebuild(request);
+  }
+
+  /**
+   * Builds the domains provided by this module
+   * @param request Request object encapsulating RESTful call
+   * @return
+   */
+  protected List<Domain> buildDomains(final Request request) {
     List<Domain> domains = new ArrayList<Domain>();
     // Domain semantGeoDomain =
     // config.getDomain(URI.create("http://purl.org/twc/SemantGeo/"), true);
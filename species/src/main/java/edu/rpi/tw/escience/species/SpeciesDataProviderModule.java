@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -29,6 +30,10 @@ import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.DomainCache;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
 import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
 import edu.rpi.tw.escience.semanteco.query.OptionalComponent;
@@ -66,14 +71,25 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 	public static final String QUERY_NS = "http://aquarius.tw.rpi.edu/projects/semantaqua/data-source/query-variable/";
 	public static final String SKOS_NS = "http://www.w3.org/2004/02/skos/core#";
 	private static final String FAILURE = "{\"success\":false}";
-	private static final String BINDINGS = "bindings";
 	private Logger log = Logger.getLogger(SpeciesDataProviderModule.class);
 	private static final String SITE_VAR = "site";
 	private static final String LAT = "lat";
 	private static final String LONG = "long";
 	private static final String ISBIRD_VAR = "isBird";
 	private static final String ISFISH_VAR = "isFish";
+
+	static {
+		SiteTypes.register(ISBIRD_VAR, BIRD_NS+"BirdSite", BIRD_NS);
+		SiteTypes.register(ISFISH_VAR, FISH_NS+"FishSite", FISH_NS);
+	}
+
 	private ModuleConfiguration config = null;
+	private final DomainCache domainCache = new DomainCache(new DomainCache.Builder() {
+		@Override
+		public List<Domain> buildDomains(final Request request) {
+			return SpeciesDataProviderModule.this.buildDomains(request);
+		}
+	});
 
 	/**
 	 * 
@@ -144,8 +160,8 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 
 			// this executes the query on the remote endpoint and provides the
 			// results to the model passed in
-			config.getQueryExecutor(request).accept("text/turtle")
-					.execute(query, model);
+			StreamingModelLoader.execute(request, config, query,
+					"text/turtle", model);
 		} else if (domainUri.equals(BIRD_NS)) {
 			String countyCode = (String) request.getParam("county");
 			String stateAbbr = (String) request.getParam("state");
@@ -394,8 +410,8 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			// results to the model passed in
 			// config.getQueryExecutor(request).accept("application/json").execute(query,
 			// model);
-			config.getQueryExecutor(request).accept("application/rdf+xml")
-					.execute(query, model);
+			StreamingModelLoader.execute(request, config, query,
+					"application/rdf+xml", model);
 		}
 	}
 
@@ -593,24 +609,28 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 				return responseStr;
 			}
 			try {
-				JSONObject results = new JSONObject(resultStr);
-				JSONObject response = new JSONObject();
-				JSONArray data = new JSONArray();
-				response.put("success", true);
-				response.put("data", data);
-				results = results.getJSONObject("results");
-				JSONArray bindings = results.getJSONArray(BINDINGS);
-				for (int j = 0; j < bindings.length(); j++) {
-					JSONObject binding = bindings.getJSONObject(j);
-					String speciesId = binding.getJSONObject("species")
-							.getString("value");
-					JSONObject mapping = new JSONObject();
-					mapping.put("species", speciesId);
-					data.put(mapping);
+				final BindingReader reader = BindingReader.open(resultStr);
+				try {
+					JSONObject response = new JSONObject();
+					JSONArray data = new JSONArray();
+					response.put("success", true);
+					response.put("data", data);
+					Map<String, String> binding = null;
+					while ((binding = reader.next()) != null) {
+						String speciesId = binding.get("species");
+						JSONObject mapping = new JSONObject();
+						mapping.put("species", speciesId);
+						data.put(mapping);
+					}
+					responseStr = response.toString();
+				}
+				finally {
+					reader.close();
 				}
-				responseStr = response.toString();
 			} catch (JSONException e) {
 				log.error("Unable to parse JSON results", e);
+			} catch (IOException e) {
+				log.error("Unable to read SPARQL results", e);
 			}
 			return responseStr;
 		}
@@ -644,24 +664,28 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int j = 0; j < bindings.length(); j++) {
-				JSONObject binding = bindings.getJSONObject(j);
-				String speciesId = binding.getJSONObject("species").getString(
-						"value");
-				JSONObject mapping = new JSONObject();
-				mapping.put("species", speciesId);
-				data.put(mapping);
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String speciesId = binding.get("species");
+					JSONObject mapping = new JSONObject();
+					mapping.put("species", speciesId);
+					data.put(mapping);
+				}
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 	}
@@ -736,34 +760,38 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int j = 0; j < bindings.length(); j++) {
-				JSONObject binding = bindings.getJSONObject(j);
-				String speciesId = binding.getJSONObject("species").getString(
-						"value");
-				// String subclassLabel =
-				// binding.getJSONObject("label").getString("value");
-
-				// if(labelStr == null) {
-				// labelStr =
-				// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
-				// '.');
-				// }
-				JSONObject mapping = new JSONObject();
-				mapping.put("species", speciesId);
-				// mapping.put("label", subclassLabel);
-				// mapping.put("parent", superclassId);
-				data.put(mapping);
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String speciesId = binding.get("species");
+					// String subclassLabel =
+					// binding.getJSONObject("label").getString("value");
+
+					// if(labelStr == null) {
+					// labelStr =
+					// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
+					// '.');
+					// }
+					JSONObject mapping = new JSONObject();
+					mapping.put("species", speciesId);
+					// mapping.put("label", subclassLabel);
+					// mapping.put("parent", superclassId);
+					data.put(mapping);
+				}
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 
@@ -1600,43 +1628,46 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String siblingVar = binding.getJSONObject("sibling").getString(
-						"value");
-				String commonNameVar = binding.getJSONObject("commonName")
-						.getString("value");
-
-				// String subclassLabel =
-				// binding.getJSONObject("label").getString("value");
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String siblingVar = binding.get("sibling");
+					String commonNameVar = binding.get("commonName");
 
-				try {
-					// superclassId =
-					// binding.getJSONObject("parent").getString("value");
-				} catch (Exception e) {
+					// String subclassLabel =
+					// binding.getJSONObject("label").getString("value");
+
+					try {
+						// superclassId =
+						// binding.getJSONObject("parent").getString("value");
+					} catch (Exception e) {
+					}
+					// if(labelStr == null) {
+					// labelStr =
+					// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
+					// '.');
+					// }
+					JSONObject mapping = new JSONObject();
+					mapping.put("sibling", siblingVar);
+					mapping.put("commonName", commonNameVar);
+					// mapping.put("label", subclassLabel);
+					// mapping.put("parent", superclassId);
+					data.put(mapping);
 				}
-				// if(labelStr == null) {
-				// labelStr =
-				// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
-				// '.');
-				// }
-				JSONObject mapping = new JSONObject();
-				mapping.put("sibling", siblingVar);
-				mapping.put("commonName", commonNameVar);
-				// mapping.put("label", subclassLabel);
-				// mapping.put("parent", superclassId);
-				data.put(mapping);
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 
@@ -1733,40 +1764,39 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			String superclassId = null;
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String subclassId = binding.getJSONObject("child").getString(
-						"value");
-				String subclassLabel = binding.getJSONObject("label")
-						.getString("value");
-
-				try {
-					superclassId = binding.getJSONObject("parent").getString(
-							"value");
-				} catch (Exception e) {
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				String superclassId = null;
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String subclassId = binding.get("child");
+					String subclassLabel = binding.get("label");
+
+					superclassId = binding.get("parent");
+					// if(labelStr == null) {
+					// labelStr =
+					// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
+					// '.');
+					// }
+					JSONObject mapping = new JSONObject();
+					mapping.put("id", subclassId);
+					mapping.put("label", subclassLabel);
+					mapping.put("parent", superclassId);
+					data.put(mapping);
 				}
-				// if(labelStr == null) {
-				// labelStr =
-				// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
-				// '.');
-				// }
-				JSONObject mapping = new JSONObject();
-				mapping.put("id", subclassId);
-				mapping.put("label", subclassLabel);
-				mapping.put("parent", superclassId);
-				data.put(mapping);
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 	}
@@ -1834,40 +1864,39 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			String superclassId = null;
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String subclassId = binding.getJSONObject("child").getString(
-						"value");
-				String subclassLabel = binding.getJSONObject("label")
-						.getString("value");
-
-				try {
-					superclassId = binding.getJSONObject("parent").getString(
-							"value");
-				} catch (Exception e) {
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				String superclassId = null;
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String subclassId = binding.get("child");
+					String subclassLabel = binding.get("label");
+
+					superclassId = binding.get("parent");
+					// if(labelStr == null) {
+					// labelStr =
+					// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
+					// '.');
+					// }
+					JSONObject mapping = new JSONObject();
+					mapping.put("id", subclassId);
+					mapping.put("label", subclassLabel);
+					mapping.put("parent", superclassId);
+					data.put(mapping);
 				}
-				// if(labelStr == null) {
-				// labelStr =
-				// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
-				// '.');
-				// }
-				JSONObject mapping = new JSONObject();
-				mapping.put("id", subclassId);
-				mapping.put("label", subclassLabel);
-				mapping.put("parent", superclassId);
-				data.put(mapping);
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 	}
@@ -1915,40 +1944,39 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return responseStr;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			String superclassId = null;
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String subclassId = binding.getJSONObject("child").getString(
-						"value");
-				String subclassLabel = binding.getJSONObject("label")
-						.getString("value");
-
-				try {
-					superclassId = binding.getJSONObject("parent").getString(
-							"value");
-				} catch (Exception e) {
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				JSONObject response = new JSONObject();
+				JSONArray data = new JSONArray();
+				response.put("success", true);
+				response.put("data", data);
+				String superclassId = null;
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String subclassId = binding.get("child");
+					String subclassLabel = binding.get("label");
+
+					superclassId = binding.get("parent");
+					// if(labelStr == null) {
+					// labelStr =
+					// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
+					// '.');
+					// }
+					JSONObject mapping = new JSONObject();
+					mapping.put("id", subclassId);
+					mapping.put("label", subclassLabel);
+					mapping.put("parent", superclassId);
+					data.put(mapping);
 				}
-				// if(labelStr == null) {
-				// labelStr =
-				// sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-',
-				// '.');
-				// }
-				JSONObject mapping = new JSONObject();
-				mapping.put("id", subclassId);
-				mapping.put("label", subclassLabel);
-				mapping.put("parent", superclassId);
-				data.put(mapping);
+				responseStr = response.toString();
+			}
+			finally {
+				reader.close();
 			}
-			responseStr = response.toString();
 		} catch (JSONException e) {
 			log.error("Unable to parse JSON results", e);
+		} catch (IOException e) {
+			log.error("Unable to read SPARQL results", e);
 		}
 		return responseStr;
 	}
@@ -1976,11 +2004,34 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 	@Override
 	public void setModuleConfiguration(final ModuleConfiguration config) {
 		this.config = config;
+		domainCache.clear();
 
 	}
 
 	@Override
 	public List<Domain> getDomains(final Request request) {
+		return domainCache.get(request);
+	}
+
+	/**
+	 * Rebuilds the domain description returned by
+	 * {@link #getDomains(Request)}, which is otherwise built once and
+	 * shared by all requests.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true}, or {"success": false,
+	 * "error": message} if the domains could not be rebuilt
+	 */
+	@QueryMethod
+	public String rebuildDomains(final Request request) {
+		return domainCache.rebuild(request);
+	}
+
+	/**
+	 * Builds the domains provided by this module
+	 * @param request Request object encapsulating RESTful call
+	 * @return
+	 */
+	protected List<Domain> buildDomains(final Request request) {
 		List<Domain> domains = new ArrayList<Domain>();
 		Domain bird = config.getDomain(URI.create(BIRD_NS), true);
 		bird.setLabel("Bird");
@@ -2131,21 +2182,22 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return entries;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String subclassId = binding.getJSONObject("child").getString(
-						"value");
-				String subclassLabel = binding.getJSONObject("label")
-						.getString("value");
-				HierarchyEntry entry = new HierarchyEntry();
-				entry.setUri(subclassId);
-				entry.setLabel(subclassLabel);
-				entries.add(entry);
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					String subclassId = binding.get("child");
+					String subclassLabel = binding.get("label");
+					HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(subclassId);
+					entry.setLabel(subclassLabel);
+					entries.add(entry);
+				}
 			}
-		} catch (JSONException e) {
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
 			log.error("Unable to parse JSON results", e);
 		}
 		return entries;
@@ -2191,25 +2243,26 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 			return entries;
 		}
 		try {
-			JSONObject results = new JSONObject(resultStr);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for (int i = 0; i < bindings.length(); i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				HierarchyEntry entry = new HierarchyEntry();
-				entry.setUri(binding.getJSONObject("child").getString("value"));
-				entry.setLabel(binding.getJSONObject("label")
-						.getString("value"));
+			final BindingReader reader = BindingReader.open(resultStr);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(binding.get("child"));
+					entry.setLabel(binding.get("label"));
 
-				try {
-					entry.setParent(URI.create(binding.getJSONObject("parent")
-							.getString("value")));
-				} catch (Exception e) {
-				}
+					try {
+						entry.setParent(URI.create(binding.get("parent")));
+					} catch (Exception e) {
+					}
 
-				entries.add(entry);
+					entries.add(entry);
+				}
 			}
-		} catch (JSONException e) {
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
 			log.error("Unable to parse JSON results", e);
 		}
 		return entries;
@@ -2239,20 +2292,22 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 		query.addOrderBy(label, SortType.ASC);
 
 		try {
-			final JSONObject results = new JSONObject(config
+			final BindingReader reader = BindingReader.open(config
 					.getQueryExecutor(request).accept("application/json")
 					.execute(query));
-			final JSONArray bindings = results.getJSONObject("results")
-					.getJSONArray("bindings");
-			for (int i = 0; i < bindings.length(); i++) {
-				final JSONObject binding = bindings.getJSONObject(i);
-				final HierarchyEntry entry = new HierarchyEntry();
-				entry.setUri(binding.getJSONObject("uri").getString("value"));
-				entry.setLabel(binding.getJSONObject("label")
-						.getString("value"));
-				entries.add(entry);
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					final HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(binding.get("uri"));
+					entry.setLabel(binding.get("label"));
+					entries.add(entry);
+				}
 			}
-		} catch (JSONException e) {
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
 			request.getLogger()
 					.warn("Unable to parse data from remote server.");
 		}
@@ -2285,26 +2340,28 @@ public class SpeciesDataProviderModule implements Module, ProvidesDomain {
 		query.addOrderBy(label, SortType.ASC);
 
 		try {
-			final JSONObject results = new JSONObject(config
+			final BindingReader reader = BindingReader.open(config
 					.getQueryExecutor(request).accept("application/json")
 					.execute(query));
-			final JSONArray bindings = results.getJSONObject("results")
-					.getJSONArray("bindings");
-			for (int i = 0; i < bindings.length(); i++) {
-				final JSONObject binding = bindings.getJSONObject(i);
-				final HierarchyEntry entry = new HierarchyEntry();
-				entry.setUri(binding.getJSONObject("uri").getString("value"));
-				entry.setLabel(binding.getJSONObject("label")
-						.getString("value"));
-				if (binding.has("altLabel")) {
-					entry.setAltLabel(binding.getJSONObject("altLabel")
-							.getString("value"));
+			try {
+				Map<String, String> binding = null;
+				while ((binding = reader.next()) != null) {
+					final HierarchyEntry entry = new HierarchyEntry();
+					entry.setUri(binding.get("uri"));
+					entry.setLabel(binding.get("label"));
+					if (binding.containsKey("altLabel")) {
+						entry.setAltLabel(binding.get("altLabel"));
+					}
+					if (binding.containsKey("parent")) {
+						entry.setParent(URI.create(binding.get("parent")));
+					}
+					entries.add(entry);
 				}
-				entry.setParent(URI.create(binding.getJSONObject("parent")
-						.getString("value")));
-				entries.add(entry);
 			}
-		} catch (JSONException e) {
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
 			request.getLogger()
 					.warn("Unable to parse data from remote server.");
 		}
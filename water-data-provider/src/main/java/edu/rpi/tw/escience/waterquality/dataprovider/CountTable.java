@@ -0,0 +1,138 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CountTable caches the number of sites (USGS) or facilities (EPA) in every
+ * county of a state, as computed by a single GROUP BY query per (state, source)
+ * in {@link InstanceCounter}. Each entry records the {@link GraphCatalog}
+ * version it was computed against and is treated as missing once the catalog
+ * changes, so the next request recomputes it from the new graphs.
+ *
+ * Endpoints that cannot answer the GROUP BY query are remembered for
+ * {@value #RETRY_PROPERTY} minutes (default 15), or until the catalog
+ * changes, so requests in the meantime count their county directly instead
+ * of repeating a query that is known to fail.
+ * @author ewpatton
+ *
+ */
+public final class CountTable {
+
+	public static final String RETRY_PROPERTY = "semanteco.water.countTable.retryMinutes";
+	private static final int DEFAULT_RETRY_MINUTES = 15;
+	private static final CountTable INSTANCE = new CountTable();
+
+	private final ConcurrentMap<String, Entry> counts = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Entry> failures = new ConcurrentHashMap<String, Entry>();
+
+	private CountTable() {
+	}
+
+	/**
+	 * Gets the table shared by all requests
+	 * @return
+	 */
+	public static CountTable getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the per-county counts for a state and source.
+	 * @param state State uri in instance hub
+	 * @param source Source entity, e.g. http://sparql.tw.rpi.edu/source/epa-gov
+	 * @return An unmodifiable map of county key to count, or null if the
+	 * counts have not been computed since the graph catalog last changed
+	 */
+	public Map<String, Integer> get(final String state, final String source) {
+		final Entry entry = counts.get(key(state, source));
+		if(entry == null) {
+			return null;
+		}
+		if(entry.version != GraphCatalog.getInstance().getVersion()) {
+			counts.remove(key(state, source), entry);
+			return null;
+		}
+		return entry.counts;
+	}
+
+	/**
+	 * Stores the per-county counts for a state and source
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param version Graph catalog version the counts were computed against
+	 * @param countyCounts Map of county key to count
+	 */
+	public void put(final String state, final String source, final long version,
+			final Map<String, Integer> countyCounts) {
+		counts.put(key(state, source), new Entry(version,
+				Collections.unmodifiableMap(new HashMap<String, Integer>(countyCounts))));
+	}
+
+	/**
+	 * Records that the per-county counts for a state and source could not be
+	 * computed
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param version Graph catalog version the counts were computed against
+	 */
+	public void fail(final String state, final String source, final long version) {
+		final long expires = System.currentTimeMillis() +
+				Integer.getInteger(RETRY_PROPERTY, DEFAULT_RETRY_MINUTES) * 60000L;
+		failures.put(key(state, source), new Entry(version, expires));
+	}
+
+	/**
+	 * Indicates whether computing the per-county counts for a state and
+	 * source failed recently, in which case it should not be retried yet
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @return
+	 */
+	public boolean hasFailed(final String state, final String source) {
+		final Entry entry = failures.get(key(state, source));
+		if(entry == null) {
+			return false;
+		}
+		if(entry.version != GraphCatalog.getInstance().getVersion() ||
+				System.currentTimeMillis() >= entry.expires) {
+			failures.remove(key(state, source), entry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every cached count and failure
+	 */
+	public void clear() {
+		counts.clear();
+		failures.clear();
+	}
+
+	private static String key(final String state, final String source) {
+		return state+" "+source;
+	}
+
+	private static final class Entry {
+		final long version;
+		final Map<String, Integer> counts;
+		final long expires;
+
+		Entry(final long version, final Map<String, Integer> counts) {
+			this.version = version;
+			this.counts = counts;
+			this.expires = Long.MAX_VALUE;
+		}
+
+		Entry(final long version, final long expires) {
+			this.version = version;
+			this.counts = null;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -1,32 +1,42 @@
 package edu.rpi.tw.escience.waterquality.dataprovider;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
-import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QueryExecutionFactory;
-import com.hp.hpl.jena.query.QueryFactory;
-import com.hp.hpl.jena.query.QuerySolution;
-import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.Syntax;
 import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
 
 import edu.rpi.tw.escience.semanteco.Domain;
 import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
 import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
 import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
 import edu.rpi.tw.escience.semanteco.query.OptionalComponent;
@@ -56,13 +66,47 @@ public class DataModelBuilder extends QueryUtils {
 
 	private static final String TYPE = "type";
 	private static final String HAS_PERMIT = "hasPermit";
+	private static final Pattern CONVERTER_PATTERN =
+			Pattern.compile("(.*)/source/([^/]*)/dataset/([^/]*)/.*");
+
+	private static final int MEASUREMENT_GRAPH = 0;
+	private static final int EPA_SITES_GRAPH = 1;
+	private static final int USGS_SITES_GRAPH = 2;
+	private static final int OTHER_GRAPH = 3;
+	
+	/**
+	 * System property controlling the number of threads shared by all
+	 * requests for loading sources in parallel
+	 */
+	public static final String LOADER_THREADS_PROPERTY = "semanteco.water.loaderThreads";
+	/**
+	 * System property controlling the largest number of sites sent to the
+	 * endpoint in one query. Longer site lists are split and fetched in
+	 * parallel; the {@link LoadPlanner} uses smaller batches for sites with
+	 * many measurements.
+	 */
+	public static final String SITE_CHUNK_PROPERTY = "semanteco.water.siteChunkSize";
+	private static final int DEFAULT_SITE_CHUNK = 100;
+	/**
+	 * System property listing the sources, separated by commas, whose sites
+	 * and measurements are fetched with separate single-graph queries and
+	 * joined locally (see {@link SiteJoin}) instead of being joined by the
+	 * endpoint. Use * for every source.
+	 */
+	public static final String HASH_JOIN_PROPERTY = "semanteco.water.hashJoinSources";
+	private static final ExecutorService LOADERS = newLoaderPool("water-loader-");
+	// chunks get their own pool since they are submitted from LOADERS tasks
+	private static final ExecutorService CHUNK_LOADERS = newLoaderPool("water-chunk-loader-");
 
 	private final Logger log;
 	private final String stateUri;
+	private final String stateCode;
 	private final List<String> sources = new ArrayList<String>();
 	private final ModuleConfiguration config;
 	private final String countyCode;
 	private final Request request;
+	private MeasurementFacets facets = null;
+	private final ConcurrentMap<String, SiteCursor.Page> pages = new ConcurrentHashMap<String, SiteCursor.Page>();
 	
 	/**
 	 * Constructs a DataModelBuilder for the specified request
@@ -70,6 +114,17 @@ public class DataModelBuilder extends QueryUtils {
 	 * @param config Data source module's configuration
 	 */
 	public DataModelBuilder(final Request request, final ModuleConfiguration config) {
+		this(request, config, readCounty(request));
+	}
+
+	/**
+	 * Constructs a DataModelBuilder for a county of the requested state other
+	 * than the one in the request, as used by {@link StateExport}
+	 * @param request Request object encapsulating the client's request
+	 * @param config Data source module's configuration
+	 * @param countyCode County code, e.g. 7
+	 */
+	DataModelBuilder(final Request request, final ModuleConfiguration config, final String countyCode) {
 		super(request, config);
 		this.log = request.getLogger();
 		this.config = config;
@@ -94,73 +149,455 @@ public class DataModelBuilder extends QueryUtils {
 			throw new IllegalArgumentException("State parameter not supplied. Expected two digit state abbreviation, e.g. CA.");
 		}
 		this.stateUri = getStateURI(state);
+		this.stateCode = state;
+		this.countyCode = countyCode;
+	}
+
+	private DataModelBuilder(final DataModelBuilder state, final String countyCode) {
+		super(Logger.getLogger(DataModelBuilder.class), state.config, state.getQueryExecutor());
+		this.log = Logger.getLogger(DataModelBuilder.class);
+		this.config = state.config;
+		this.request = null;
+		this.sources.addAll(state.sources);
+		this.stateUri = state.stateUri;
+		this.stateCode = state.stateCode;
+		this.countyCode = countyCode;
+		this.facets = state.getFacets();
+	}
+
+	/**
+	 * Gets a builder for another county of the same state, sources and facets,
+	 * as used by {@link StateExport}. The builder keeps the query executor of
+	 * this builder but not its request, whose parameters are not read again,
+	 * so it can be used after the request has been answered.
+	 * @param countyCode County code, e.g. 7
+	 * @return
+	 */
+	DataModelBuilder forCounty(final String countyCode) {
+		return new DataModelBuilder(this, countyCode);
+	}
+
+	private static String readCounty(final Request request) {
 		try {
-			this.countyCode = (String)request.getParam("county");
+			return (String)request.getParam("county");
 		}
 		catch(Exception e) {
 			throw new IllegalArgumentException("County parameter not supplied.", e);
 		}
 	}
+
+	/**
+	 * Gets the requested sources that belong to the water domain
+	 * @return
+	 */
+	List<String> getSources() {
+		return Collections.unmodifiableList(sources);
+	}
 	
 	/**
-	 * Builds the model from the current state of the DataModelBuilder
+	 * Builds the model from the current state of the DataModelBuilder. If the
+	 * request asks for a summary, the measurements are compacted by
+	 * {@link MeasurementSummary} once their violations have been found.
 	 * @param model A Jena model to populate with triples
 	 * @return
 	 */
 	public boolean build(final Model model) {
 		log.trace("build");
-		for(String source : sources) {
-			loadDataForSource(source, model);
+		final int latest = MeasurementSummary.getLatest(request);
+		if(sources.size() == 1) {
+			final long start = System.currentTimeMillis();
+			loadDataForSource(sources.get(0), model);
+			log.info("Loading "+sources.get(0)+" took "+(System.currentTimeMillis()-start)+" ms");
+		}
+		else {
+			loadSourcesInParallel(model);
 		}
 		doEPAClosure(model);
+		if(latest > 0) {
+			final long start = System.currentTimeMillis();
+			final long before = model.size();
+			final int removed = MeasurementSummary.compact(model, latest,
+					MeasurementSummary.getRegulations(request));
+			log.info("Summarizing removed "+removed+" measurements ("+(before-model.size())+
+					" triples) in "+(System.currentTimeMillis()-start)+" ms");
+		}
 		return false;
 	}
 	
+	private static ExecutorService newLoaderPool(final String prefix) {
+		return Executors.newFixedThreadPool(Integer.getInteger(LOADER_THREADS_PROPERTY, 4),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, prefix+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+	
+	/**
+	 * Loads each source into its own model on the shared loader pool and
+	 * merges the partial models into the request model once all of them
+	 * have finished. As with a single source, a failure to load a source is
+	 * propagated to the caller, after the remaining sources have finished.
+	 *
+	 * The loaders share this builder and its request. The request is only
+	 * read and the facets are parsed under the builder's lock. Each query is
+	 * made with a query executor obtained for it, locked only for the call
+	 * (see {@link #execute(Query, String)}).
+	 * @param model A Jena model to populate with triples
+	 */
+	protected void loadSourcesInParallel(final Model model) {
+		getFacets();
+		final List<Future<Model>> partials = new ArrayList<Future<Model>>();
+		for(final String source : sources) {
+			partials.add(LOADERS.submit(new Callable<Model>() {
+				@Override
+				public Model call() {
+					final long start = System.currentTimeMillis();
+					final Model partial = ModelFactory.createDefaultModel();
+					loadDataForSource(source, partial);
+					log.info("Loading "+source+" took "+(System.currentTimeMillis()-start)+
+							" ms ("+partial.size()+" triples)");
+					return partial;
+				}
+			}));
+		}
+		Throwable failure = null;
+		for(int i=0;i<partials.size();i++) {
+			try {
+				model.add(partials.get(i).get());
+			}
+			catch(InterruptedException e) {
+				log.warn("Interrupted while loading sources", e);
+				for(Future<Model> partial : partials) {
+					partial.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch(ExecutionException e) {
+				log.error("Unable to load data for source "+sources.get(i), e.getCause());
+				if(failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		if(failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		else if(failure instanceof Error) {
+			throw (Error)failure;
+		}
+		else if(failure != null) {
+			throw new IllegalStateException("Unable to load data for all sources", failure);
+		}
+	}
+	
 	protected void doEPAClosure(final Model model) {
 		// handle EPA regulations
 		final Logger log = request.getLogger();
 		long start = System.currentTimeMillis();
-		String query = 
-				"PREFIX water: <http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#>" +
-				"PREFIX pol: <http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#>" +
-				"SELECT ?m WHERE { " +
-				"?m a water:WaterMeasurement ; " +
-				"pol:hasValue ?val ; " +
-				"pol:hasLimitOperator ?op ; " +
-				"pol:hasLimitValue ?lval " +
-				"FILTER((?op = \"<=\" && ?val > ?lval) || " +
-				"(?op = \">=\" && ?val < ?lval) || " +
-				"(?op = \">\" && ?val <= ?lval))" +
-				"}";
-		QueryExecution qe = 
-				QueryExecutionFactory.create(QueryFactory.create(query, Syntax.syntaxSPARQL_11), model);
-		ResultSet rs = qe.execSelect();
-		final com.hp.hpl.jena.rdf.model.Resource RegulationViolation = model.getResource(POL_NS+"RegulationViolation");
-		final List<com.hp.hpl.jena.rdf.model.Resource> violations = new LinkedList<com.hp.hpl.jena.rdf.model.Resource>();
-		while(rs.hasNext()) {
-			QuerySolution qs = rs.next();
-			com.hp.hpl.jena.rdf.model.Resource m = qs.getResource("m");
-			log.debug("Found violating measurement "+m);
-			violations.add(m);
-		}
-		for(com.hp.hpl.jena.rdf.model.Resource m : violations) {
-			model.add(m, RDF.type, RegulationViolation);
-		}
-		qe.close();
-		log.info("Computing EPA closure took "+(System.currentTimeMillis()-start)+" ms");
-	}
-
-	/**
-	 * Loads triples for the specified source into the model
+		final int violations = ViolationEvaluator.evaluate(model);
+		log.info("Computing EPA closure found "+violations+" violations in "+
+				(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * Loads triples for the specified source into the model. When delta
+	 * refresh is enabled, the triples loaded for the same county, source,
+	 * sites and facets are retained by {@link DeltaRefresh}, and later requests
+	 * only fetch the measurements newer than the ones retained, less a short
+	 * overlap (see {@link DeltaRefresh#OVERLAP_PROPERTY}), or nothing at
+	 * all if the metadata graph records no change to the source's graphs.
 	 * @param source URI representing a source in the triple store, e.g. http://sparql.tw.rpi.edu/source/epa-gov
 	 * @param model A Jena model to populate with triples
 	 */
 	protected void loadDataForSource(final String source, final Model model) {
 		log.trace("loadDataForSource");
-		final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
-		if(buildQueryForSource(query, source)) {
-			config.getQueryExecutor(request).accept("text/turtle").execute(query, model);
+		final SourcePlan plan = planSource(source);
+		final MeasurementFacets facets = getFacets();
+		if(!DeltaRefresh.isEnabled() || plan.getMeasurementGraph() == null) {
+			loadPlan(source, plan, facets, model, true);
+			return;
+		}
+		final DeltaRefresh deltas = DeltaRefresh.getInstance();
+		final String key = stateUri+" "+countyCode+" "+source;
+		final String signature = plan.graphs+" "+plan.sites+" "+facets.getSignature();
+		final DeltaRefresh.Entry entry = deltas.get(key, signature);
+		final Map<String, String> stamps = deltas.fetchModified(plan.graphs);
+		if(entry != null && entry.isCurrent(stamps)) {
+			entry.copyTo(model);
+			log.debug("Graphs of "+source+" are unchanged, reusing "+entry.size()+" triples");
+			return;
+		}
+		final String newest = entry != null ? entry.getNewest() : null;
+		if(newest != null) {
+			final Model delta = ModelFactory.createDefaultModel();
+			final String since = DeltaRefresh.since(newest);
+			loadPlan(source, plan, facets.since(since), delta, false);
+			entry.merge(delta, stamps);
+			entry.copyTo(model);
+			log.debug("Refreshed "+source+" with "+delta.size()+" triples newer than "+since);
+			return;
+		}
+		final Model base = ModelFactory.createDefaultModel();
+		loadPlan(source, plan, facets.withTime(), base, true);
+		deltas.put(key, signature, base, stamps);
+		model.add(base);
+	}
+
+	/**
+	 * Loads the triples of a plan into the model, as planned by the
+	 * {@link LoadPlanner}. For a two-phase load, only the measurements
+	 * are fetched and the site triples are added from the {@link SiteRegistry}.
+	 * When streaming is enabled the query text is produced from the
+	 * {@link QueryTemplate} for the shape of the source's graphs, so the query
+	 * API is only used the first time that shape is seen or if streaming fails.
+	 * @param source URI representing a source in the triple store
+	 * @param plan Graphs and sites to query
+	 * @param facets Facet selections placed in the measurement graph
+	 * @param model A Jena model to populate with triples
+	 * @param record true to refine the planner's estimates with the load, false
+	 * if it is not representative, e.g. only new measurements are loaded
+	 */
+	private void loadPlan(final String source, final SourcePlan plan, final MeasurementFacets facets,
+			final Model model, final boolean record) {
+		final long start = System.currentTimeMillis();
+		final long before = model.size();
+		final LoadPlanner planner = LoadPlanner.getInstance();
+		LoadPlanner.Plan load = planner.plan(stateUri, source, facets, plan.getSiteCount(),
+				Integer.getInteger(SITE_CHUNK_PROPERTY, DEFAULT_SITE_CHUNK),
+				SiteRegistry.isEnabled(), isRegistered(plan));
+		if(isHashJoinEnabled(source) && StreamingModelLoader.isEnabled() &&
+				loadWithHashJoin(plan, facets, load.chunkSize, model)) {
+			if(record) {
+				planner.record(stateUri, source, facets, load.withStrategy(LoadPlanner.Strategy.HASH_JOIN),
+						model.size() - before, System.currentTimeMillis() - start);
+			}
+			return;
+		}
+		final List<SiteRegistry.Sites> registered = load.strategy == LoadPlanner.Strategy.TWO_PHASE ?
+				lookupRegisteredSites(plan) : null;
+		if(registered == null) {
+			load = load.withoutRegistry();
+		}
+		final boolean measurementsOnly = registered != null;
+		final int chunk = load.chunkSize;
+		List<String> texts = null;
+		if(StreamingModelLoader.isEnabled()) {
+			texts = prepareQueries(source, plan, facets, measurementsOnly, chunk);
+			if(texts == null) {
+				texts = serializeQueries(plan, facets, measurementsOnly, chunk);
+			}
+		}
+		if(texts == null || !StreamingModelLoader.stream(log, texts, CHUNK_LOADERS, model)) {
+			// the query API has no VALUES, so the executor gets the IN filters
+			final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+			buildQueryForPlan(query, plan, countyCode, plan.sites, facets, measurementsOnly);
+			execute(query, "text/turtle", model);
+		}
+		if(measurementsOnly) {
+			int added = 0;
+			for(int i=0;i<registered.size();i++) {
+				if(registered.get(i) != null) {
+					added += registered.get(i).addTo(model, plan.sites.get(i));
+				}
+			}
+			log.debug("Added "+added+" sites for "+source+" from the site registry");
+		}
+		if(record) {
+			planner.record(stateUri, source, facets, load, model.size() - before, System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Indicates whether the sites and measurements of a source are joined locally
+	 * @param source URI representing the source to process
+	 * @return
+	 */
+	protected static boolean isHashJoinEnabled(final String source) {
+		final String sources = System.getProperty(HASH_JOIN_PROPERTY);
+		if(sources == null) {
+			return false;
+		}
+		for(String enabled : sources.split(",")) {
+			enabled = enabled.trim();
+			if(enabled.equals("*") || enabled.equals(source)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fetches the sites slice and the measurements slice of the plan with
+	 * single-graph queries and joins them into the model with
+	 * {@link SiteJoin}. USGS slices are fetched in parallel. EPA measurements
+	 * are selected by permit, so their slice is fetched once the facilities'
+	 * permits are known.
+	 * @param plan Graphs and sites to query
+	 * @param facets Facet selections placed in the measurement graph
+	 * @param chunk Largest number of sites or permits to place in one query
+	 * @param model A Jena model to populate with triples
+	 * @return true if the source was loaded, false if it must be loaded with
+	 * the combined query instead
+	 */
+	private boolean loadWithHashJoin(final SourcePlan plan, final MeasurementFacets facets,
+			final int chunk, final Model model) {
+		final String measurementGraph = plan.getMeasurementGraph();
+		boolean epa = false, usgs = false;
+		for(String graph : plan.graphs) {
+			epa |= graphKind(graph) == EPA_SITES_GRAPH;
+			usgs |= graphKind(graph) == USGS_SITES_GRAPH;
+		}
+		if(measurementGraph == null || epa == usgs) {
+			return false;
+		}
+		final long start = System.currentTimeMillis();
+		final String endpoint = StreamingModelLoader.getEndpoint();
+		final Query siteQuery = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+		final SiteValues siteValues = new SiteValues();
+		final List<List<String>> placeholders = getPlaceholders(plan, siteValues);
+		for(int i=0;i<plan.graphs.size();i++) {
+			final String graph = plan.graphs.get(i);
+			if(graphKind(graph) == EPA_SITES_GRAPH) {
+				extendQueryForEPAFacilities(siteQuery, graph, placeholders.get(i));
+				siteQuery.getConstructComponent().addPattern(siteQuery.getVariable(QUERY_NS+SITE),
+						siteQuery.getResource(POL_NS+HAS_PERMIT), siteQuery.getVariable(QUERY_NS+PERMIT));
+			}
+			else if(graphKind(graph) == USGS_SITES_GRAPH) {
+				extendQueryForUSGSSites(siteQuery, graph, placeholders.get(i), countyCode);
+			}
+		}
+		final List<String> siteTexts = siteValues.expand(siteQuery.toString(), chunk);
+		final Model sites = ModelFactory.createDefaultModel();
+		final Model measurements = ModelFactory.createDefaultModel();
+		try {
+			if(epa) {
+				StreamingModelLoader.loadAll(endpoint, siteTexts, CHUNK_LOADERS, sites);
+				final List<String> permits = listPermits(sites);
+				if(!permits.isEmpty()) {
+					final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+					final SiteValues values = new SiteValues();
+					extendQueryForMeasurements(query, measurementGraph, facets.getElementPlaceholder());
+					facets.addValues(values);
+					query.getNamedGraph(measurementGraph).addFilter("?"+PERMIT+" IN (<"+
+							values.terms(PERMIT+"s", permits, true)+">)");
+					StreamingModelLoader.loadAll(endpoint, values.expand(query.toString(), chunk),
+							CHUNK_LOADERS, measurements);
+				}
+			}
+			else {
+				// the site slice streams its chunks one after another so that
+				// it never waits on the pool it runs in
+				final Future<Long> siteSlice = CHUNK_LOADERS.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						return StreamingModelLoader.loadAll(endpoint, siteTexts, null, sites);
+					}
+				});
+				try {
+					StreamingModelLoader.loadAll(endpoint, serializeQueries(plan, facets, true, chunk),
+							CHUNK_LOADERS, measurements);
+					siteSlice.get();
+				}
+				finally {
+					siteSlice.cancel(true);
+				}
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to fetch slices for a local join, using the combined query", e);
+			return false;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof StreamingModelLoader.LimitExceededException) {
+				throw (StreamingModelLoader.LimitExceededException)e.getCause();
+			}
+			log.warn("Unable to fetch sites for a local join, using the combined query", e.getCause());
+			return false;
+		}
+		final int links = SiteJoin.join(sites, measurements, WATER_NS+(epa ? "WaterFacility" : "WaterSite"),
+				epa, model);
+		log.debug("Joined "+sites.size()+" site triples and "+measurements.size()+
+				" measurement triples into "+links+" links in "+(System.currentTimeMillis()-start)+" ms");
+		return true;
+	}
+
+	/**
+	 * Lists the distinct permits of the facilities in a model as SPARQL terms
+	 * @param facilities Facilities slice
+	 * @return The permits
+	 */
+	private static List<String> listPermits(final Model facilities) {
+		final Set<String> permits = new LinkedHashSet<String>();
+		final StmtIterator it = facilities.listStatements(null, facilities.createProperty(POL_NS+HAS_PERMIT),
+				(RDFNode)null);
+		try {
+			while(it.hasNext()) {
+				permits.add(FmtUtils.stringForNode(it.next().getObject().asNode()));
+			}
+		}
+		finally {
+			it.close();
+		}
+		return new ArrayList<String>(permits);
+	}
+
+	/**
+	 * Indicates whether the site registry already holds every sites graph in the plan
+	 * @param plan Graphs and sites to query
+	 * @return
+	 */
+	private boolean isRegistered(final SourcePlan plan) {
+		boolean found = false;
+		for(String graph : plan.graphs) {
+			final int kind = graphKind(graph);
+			if(kind == EPA_SITES_GRAPH || kind == USGS_SITES_GRAPH) {
+				if(!SiteRegistry.getInstance().contains(graph)) {
+					return false;
+				}
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the registered sites for every sites graph in the plan
+	 * @param plan Graphs and sites to query
+	 * @return The sites of each graph, parallel to the plan's graphs, or null
+	 * if the registry is disabled or does not hold every requested site, in
+	 * which case the sites must be fetched with the measurements
+	 */
+	private List<SiteRegistry.Sites> lookupRegisteredSites(final SourcePlan plan) {
+		if(!SiteRegistry.isEnabled() || plan.getMeasurementGraph() == null) {
+			return null;
+		}
+		final List<SiteRegistry.Sites> registered = new ArrayList<SiteRegistry.Sites>();
+		boolean found = false;
+		for(int i=0;i<plan.graphs.size();i++) {
+			final int kind = graphKind(plan.graphs.get(i));
+			if(kind != EPA_SITES_GRAPH && kind != USGS_SITES_GRAPH) {
+				registered.add(null);
+				continue;
+			}
+			final SiteRegistry.Sites sites = SiteRegistry.getInstance().get(plan.graphs.get(i),
+					kind == USGS_SITES_GRAPH);
+			if(sites == null || !sites.containsAll(plan.sites.get(i))) {
+				return null;
+			}
+			registered.add(sites);
+			found = true;
 		}
+		return found ? registered : null;
 	}
 
 	/**
@@ -173,61 +610,382 @@ public class DataModelBuilder extends QueryUtils {
 	 */
 	protected boolean buildQueryForSource(final Query query, final String source) {
 		log.trace("buildQueryForSource");
+		final SourcePlan plan = planSource(source);
+		buildQueryForPlan(query, plan, countyCode, plan.sites, getFacets(), false);
+		return true;
+	}
+
+	/**
+	 * Finds the graphs holding a source for the requested state and the
+	 * sites or facilities to load from each of them
+	 * @param source URI representing the source to process
+	 * @return
+	 */
+	SourcePlan planSource(final String source) {
 		final List<String> graphs = retrieveStateGraphsForSource(stateUri, source);
-		List<String> sites = null;
-		String uri = (String)request.getParam("uri");
-		String measurementGraph = null;
-		for(int i=0;i<graphs.size();i++) {
-			String graph = graphs.get(i);
-			if(graph.contains(MEASUREMENT)) {
-				measurementGraph = graph;
-			}
-			else if(graph.contains("echo") || graph.contains("foia")) {
-				double clat = Double.parseDouble((String)request.getParam(LAT));
-				double clng = Double.parseDouble((String)request.getParam("lng"));
-				int limit = LimitUtils.getLimit(request, "facility");
-				int offset = LimitUtils.getOffset(request, "facility");
+		final List<List<String>> sites = new ArrayList<List<String>>();
+		final String uri = (String)request.getParam("uri");
+		for(String graph : graphs) {
+			final int kind = graphKind(graph);
+			if(kind == EPA_SITES_GRAPH || kind == USGS_SITES_GRAPH) {
+				final String type = kind == EPA_SITES_GRAPH ? "facility" : "site";
 				if(uri != null && !uri.isEmpty()) {
-					sites = new ArrayList<String>();
-					sites.add((String)request.getParam("uri"));
+					final List<String> list = new ArrayList<String>();
+					list.add(uri);
+					sites.add(list);
+					continue;
 				}
-				else {
-					sites = listEPASitesInBounds(graphs, clat, clng, offset, limit);
-				}
-				extendQueryForEPAFacilities(query, graph, sites);
-			}
-			else if(graph.contains("nwis")) {
 				double clat = Double.parseDouble((String)request.getParam(LAT));
 				double clng = Double.parseDouble((String)request.getParam("lng"));
-				int limit = LimitUtils.getLimit(request, "site");
-				int offset = LimitUtils.getOffset(request, "site");
-				if(uri != null && !uri.isEmpty()) {
-					sites = new ArrayList<String>();
-					sites.add((String)request.getParam("uri"));
-				}
-				else {
-					sites = listUSGSSitesInBounds(graphs, clat, clng, offset, limit);
+				int limit = LimitUtils.getLimit(request, type);
+				int offset = LimitUtils.getOffset(request, type);
+				final SiteCursor cursor = SiteCursor.fromRequest(request, type, clat, clng);
+				final SiteCursor.Page page = kind == EPA_SITES_GRAPH ?
+						listEPASitesInBounds(graphs, clat, clng, offset, limit, cursor) :
+						listUSGSSitesInBounds(graphs, clat, clng, offset, limit, cursor);
+				pages.put(type, page);
+				sites.add(page.sites);
+			}
+			else {
+				if(kind == OTHER_GRAPH) {
+					log.warn("Unable to process graph '"+graph+"'");
 				}
-				extendQueryForUSGSSites(query, graph, sites);
+				sites.add(null);
+			}
+		}
+		return new SourcePlan(graphs, sites);
+	}
+
+	/**
+	 * Plans a source with every site and facility of the county rather than
+	 * the page selected by the request
+	 * @param source URI representing the source to process
+	 * @return
+	 */
+	SourcePlan planCounty(final String source) {
+		final List<String> graphs = retrieveStateGraphsForSource(stateUri, source);
+		final List<List<String>> sites = new ArrayList<List<String>>();
+		for(String graph : graphs) {
+			final int kind = graphKind(graph);
+			if(kind == EPA_SITES_GRAPH) {
+				sites.add(listEPASitesInBounds(graphs, 0, 0, 0, 0, null).sites);
+			}
+			else if(kind == USGS_SITES_GRAPH) {
+				sites.add(listUSGSSitesInBounds(graphs, 0, 0, 0, 0, null).sites);
 			}
 			else {
-				log.warn("Unable to process graph '"+graph+"'");
+				sites.add(null);
+			}
+		}
+		return new SourcePlan(graphs, sites);
+	}
+
+	/**
+	 * Loads the triples of a plan into the model with the request's facets,
+	 * as {@link #loadDataForSource(String, Model)} does for a single page.
+	 * Used for exports, whose batches are sliced from whole counties, so the
+	 * load is not recorded by the {@link LoadPlanner}.
+	 * @param source URI representing the source to process
+	 * @param plan Graphs and sites to query
+	 * @param model A Jena model to populate with triples
+	 */
+	void loadPlan(final String source, final SourcePlan plan, final Model model) {
+		loadPlan(source, plan, getFacets(), model, false);
+	}
+
+	/**
+	 * Lists the page of sites and facilities that {@link #build(Model)} would
+	 * load for the request, with the cursors of the pages that follow them
+	 * @return JSON object of the form {"site": {"sites": [...], "cursor": ...},
+	 * "facility": {...}} with an entry for each kind of site in the requested sources
+	 * @throws JSONException if the object cannot be built
+	 */
+	public JSONObject listSitePages() throws JSONException {
+		pages.clear();
+		for(String source : sources) {
+			planSource(source);
+		}
+		final JSONObject response = new JSONObject();
+		for(Map.Entry<String, SiteCursor.Page> entry : pages.entrySet()) {
+			response.put(entry.getKey(), entry.getValue().toJSON());
+		}
+		return response;
+	}
+
+	/**
+	 * Extends the query with the patterns for every graph in the plan
+	 * @param query Query object to manipulate
+	 * @param plan Graphs to query
+	 * @param county County code placed in the USGS site patterns
+	 * @param sites Site list for each graph, parallel to the plan's graphs
+	 * @param facets Facet selections placed in the measurement graph
+	 * @param measurementsOnly true to construct only the measurements and
+	 * their links to the sites, false to construct the site triples as well
+	 */
+	private void buildQueryForPlan(final Query query, final SourcePlan plan, final String county,
+			final List<List<String>> sites, final MeasurementFacets facets, final boolean measurementsOnly) {
+		final String measurementGraph = plan.getMeasurementGraph();
+		for(int i=0;i<plan.graphs.size();i++) {
+			final String graph = plan.graphs.get(i);
+			final int kind = graphKind(graph);
+			if(kind == EPA_SITES_GRAPH && measurementsOnly) {
+				extendQueryForSiteLinks(query, graph, sites.get(i), true);
+			}
+			else if(kind == EPA_SITES_GRAPH) {
+				extendQueryForEPAFacilities(query, graph, sites.get(i));
+			}
+			else if(kind == USGS_SITES_GRAPH && measurementsOnly) {
+				extendQueryForSiteLinks(query, measurementGraph, sites.get(i), false);
+			}
+			else if(kind == USGS_SITES_GRAPH) {
+				extendQueryForUSGSSites(query, graph, sites.get(i), county);
 			}
 		}
 		if(measurementGraph != null) {
-			extendQueryForMeasurements(query, measurementGraph);
+			extendQueryForMeasurements(query, measurementGraph, facets);
+		}
+	}
+
+	/**
+	 * Builds and serializes the queries for a plan through the query API,
+	 * with the sites and characteristics sent as VALUES blocks
+	 * @param plan Graphs and sites to query
+	 * @param facets Facet selections placed in the measurement graph
+	 * @param measurementsOnly true to construct only the measurements and
+	 * their links to the sites
+	 * @param chunk Largest number of sites to place in one query
+	 * @return The serialized queries, one per chunk of sites
+	 */
+	List<String> serializeQueries(final SourcePlan plan, final MeasurementFacets facets,
+			final boolean measurementsOnly, final int chunk) {
+		final SiteValues values = new SiteValues();
+		final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+		buildQueryForPlan(query, plan, countyCode, getPlaceholders(plan, values),
+				facets.getElementPlaceholder(), measurementsOnly);
+		facets.addValues(values);
+		return values.expand(query.toString(), chunk);
+	}
+
+	/**
+	 * Registers the site list of each sites graph in the plan
+	 * @param plan Graphs and sites to query
+	 * @param values Lists of the query
+	 * @return The placeholder standing for each site list, parallel to the
+	 * plan's graphs
+	 */
+	private static List<List<String>> getPlaceholders(final SourcePlan plan, final SiteValues values) {
+		final List<List<String>> placeholders = new ArrayList<List<String>>();
+		for(int i=0;i<plan.graphs.size();i++) {
+			final int kind = graphKind(plan.graphs.get(i));
+			if(kind == EPA_SITES_GRAPH || kind == USGS_SITES_GRAPH) {
+				placeholders.add(Collections.singletonList(values.uris("sites"+i, plan.sites.get(i), true)));
+			}
+			else {
+				placeholders.add(null);
+			}
+		}
+		return placeholders;
+	}
+
+	/**
+	 * Produces the serialized queries for a plan and facets from the cached
+	 * {@link QueryTemplate} for their shape, compiling the template if this
+	 * shape has not been seen before. The sites and characteristics are
+	 * sent as VALUES blocks.
+	 * @param source URI representing the source to process
+	 * @param plan Graphs and sites to query
+	 * @param facets Facet selections placed in the measurement graph
+	 * @param measurementsOnly true to construct only the measurements and
+	 * their links to the sites
+	 * @param chunk Largest number of sites to place in one query
+	 * @return The serialized queries, one per chunk of sites, or null if no
+	 * template can be used for this request, in which case the queries must
+	 * be built through the query API
+	 */
+	List<String> prepareQueries(final String source, final SourcePlan plan, final MeasurementFacets facets,
+			final boolean measurementsOnly, final int chunk) {
+		if(!QueryTemplate.isSafeLiteral(countyCode)) {
+			return null;
+		}
+		final List<String> tokens = new ArrayList<String>();
+		final List<String> values = new ArrayList<String>();
+		final SiteValues lists = new SiteValues();
+		final List<List<String>> placeholders = getPlaceholders(plan, lists);
+		final StringBuilder key = new StringBuilder(source);
+		key.append(measurementsOnly ? " measurements" : " sites");
+		final String measurementGraph = plan.getMeasurementGraph();
+		boolean usgs = false;
+		for(int i=0;i<plan.graphs.size();i++) {
+			final String graph = plan.graphs.get(i);
+			final int kind = graphKind(graph);
+			key.append(' ').append(kind);
+			usgs |= kind == USGS_SITES_GRAPH;
+			// USGS measurements name their sites, so the sites graph is
+			// not queried when only measurements are fetched
+			if(kind == EPA_SITES_GRAPH || (kind == USGS_SITES_GRAPH && !measurementsOnly)) {
+				tokens.add("<"+graph+">");
+				values.add("<"+graph+">");
+			}
+		}
+		if(measurementGraph != null) {
+			key.append(" measurement ").append(plan.graphs.indexOf(measurementGraph))
+				.append(measurementGraph.contains("nwis") ? "n" : "")
+				.append(measurementGraph.contains("epa-gov") ? "p" : "")
+				.append(measurementGraph.contains("echo") ? "e" : "");
+			tokens.add("<"+measurementGraph+">");
+			values.add("<"+measurementGraph+">");
+			if(measurementGraph.contains("epa-gov")) {
+				final String testType = getInternalURI(measurementGraph);
+				tokens.add("<"+testType+">");
+				values.add("<"+testType+">");
+			}
+			key.append(" facets ").append(facets.getShape());
+			facets.addSlots(tokens, values);
+			facets.addValues(lists);
+		}
+		final String countySlot = QueryTemplate.LITERAL_SLOT+"county";
+		if(usgs && !measurementsOnly) {
+			tokens.add(countySlot);
+			values.add(countyCode);
+		}
+		QueryTemplate template = QueryTemplate.get(key.toString());
+		if(template == null) {
+			try {
+				final Query query = config.getQueryFactory().newQuery(Type.CONSTRUCT);
+				buildQueryForPlan(query, plan, countySlot, placeholders, facets.getPlaceholders(),
+						measurementsOnly);
+				template = QueryTemplate.compile(query.toString(), tokens.toArray(new String[tokens.size()]));
+			}
+			catch(RuntimeException e) {
+				log.warn("Unable to prepare query template for "+source, e);
+				return null;
+			}
+			if(template == null) {
+				log.warn("Unable to prepare query template for "+source+"; using the query API");
+				return null;
+			}
+			QueryTemplate.put(key.toString(), template);
+			log.debug("Prepared query template for "+key);
+		}
+		if(template.getSlotCount() != values.size()) {
+			return null;
+		}
+		return lists.expand(template.fill(values.toArray(new String[values.size()])), chunk);
+	}
+
+	private static int graphKind(final String graph) {
+		if(graph.contains(MEASUREMENT)) {
+			return MEASUREMENT_GRAPH;
+		}
+		else if(graph.contains("echo") || graph.contains("foia")) {
+			return EPA_SITES_GRAPH;
+		}
+		else if(graph.contains("nwis")) {
+			return USGS_SITES_GRAPH;
+		}
+		return OTHER_GRAPH;
+	}
+
+	/**
+	 * The graphs holding a source for the requested state and the site list
+	 * for each graph of sites or facilities
+	 */
+	static final class SourcePlan {
+		final List<String> graphs;
+		final List<List<String>> sites;
+
+		SourcePlan(final List<String> graphs, final List<List<String>> sites) {
+			this.graphs = graphs;
+			this.sites = sites;
+		}
+
+		/**
+		 * Gets the number of sites and facilities requested from all graphs
+		 * @return
+		 */
+		int getSiteCount() {
+			int count = 0;
+			for(List<String> list : sites) {
+				if(list != null) {
+					count += list.size();
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Gets the plan for a range of the sites requested from each graph
+		 * @param from Index of the first site, inclusive
+		 * @param to Index of the last site, exclusive
+		 * @return
+		 */
+		SourcePlan slice(final int from, final int to) {
+			final List<List<String>> slice = new ArrayList<List<String>>();
+			for(List<String> list : sites) {
+				slice.add(list == null ? null :
+						list.subList(Math.min(from, list.size()), Math.min(to, list.size())));
+			}
+			return new SourcePlan(graphs, slice);
+		}
+
+		/**
+		 * Gets the largest number of sites requested from one graph
+		 * @return
+		 */
+		int getMaxSites() {
+			int max = 0;
+			for(List<String> list : sites) {
+				if(list != null) {
+					max = Math.max(max, list.size());
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Gets the graph holding measurements. If there are several the last one is used.
+		 * @return
+		 */
+		String getMeasurementGraph() {
+			String measurementGraph = null;
+			for(String graph : graphs) {
+				if(graphKind(graph) == MEASUREMENT_GRAPH) {
+					measurementGraph = graph;
+				}
+			}
+			return measurementGraph;
 		}
-		return true;
+	}
+	
+	/**
+	 * Gets the characteristic and time facet selections of the request,
+	 * reading them the first time they are needed
+	 * @return
+	 */
+	protected synchronized MeasurementFacets getFacets() {
+		if(facets == null) {
+			facets = MeasurementFacets.fromRequest(request);
+			if(!facets.isEmpty()) {
+				log.debug("Restricting measurements to facets "+facets.getShape());
+			}
+		}
+		return facets;
 	}
 	
 	/**
 	 * Extends the query under construction with a graph component that encodes the structure of
-	 * measurements in the SPARQL endpoint.
+	 * measurements in the SPARQL endpoint. Only the measurements selected by the request's
+	 * characteristic and time facets are matched.
 	 * @param query Query object to be extended
 	 * @param graphUri URI of the graph containing triples
 	 * @return
 	 */
 	protected boolean extendQueryForMeasurements(final Query query, final String graphUri) {
+		return extendQueryForMeasurements(query, graphUri, getFacets());
+	}
+
+	private boolean extendQueryForMeasurements(final Query query, final String graphUri,
+			final MeasurementFacets facets) {
 		log.trace("extendQueryForMeasurements");
 		
 		// named graphs
@@ -300,13 +1058,65 @@ public class DataModelBuilder extends QueryUtils {
 			graph.addPattern(measurement, polHasValue, value);
 		}
 		graph.addPattern(measurement, reprHasUnit, unit);
+
+		// facets
+		final String elementFilter = facets.getElementFilter();
+		if(elementFilter != null) {
+			graph.addFilter(elementFilter);
+		}
+		final String timeFilter = facets.getTimeFilter();
+		if(timeFilter != null || facets.timed) {
+			final Variable time = query.getVariable(QUERY_NS+MeasurementFacets.TIME_VAR);
+			final QueryResource timeInXSDDateTime = query.getResource(TIME_NS+"inXSDDateTime");
+			final UnionComponent union = query.createUnion();
+			union.getUnionComponent(0).addPattern(measurement, timeInXSDDateTime, time);
+			union.getUnionComponent(1).addPattern(measurement, query.getResource(DC_NS+"date"), time);
+			if(timeFilter != null) {
+				graph.addGraphComponent(union);
+				graph.addFilter(timeFilter);
+			}
+			else {
+				// keep the measurements without a time
+				final OptionalComponent optional = query.createOptional();
+				optional.addGraphComponent(union);
+				graph.addGraphComponent(optional);
+			}
+			construct.addPattern(measurement, timeInXSDDateTime, time);
+		}
 		
 		return true;
 	}
 
+	/**
+	 * Extends the query under construction with the links between sites and
+	 * their measurements, for requests whose site triples are taken from the
+	 * {@link SiteRegistry}. USGS measurements name their site, so the site
+	 * filter is placed in the measurement graph. EPA measurements name a
+	 * permit, which is joined to the facilities in the facilities graph.
+	 * @param query Query object to be extended
+	 * @param graphUri URI of the measurement graph for USGS sites, or of the
+	 * facilities graph for EPA facilities
+	 * @param siteUris List of sites used to limit the size of the result set
+	 * @param byPermit true if measurements are joined to sites by permit
+	 */
+	private void extendQueryForSiteLinks(final Query query, final String graphUri,
+			final List<String> siteUris, final boolean byPermit) {
+		log.trace("extendQueryForSiteLinks");
+		final Variable s = query.getVariable(QUERY_NS+SITE);
+		final Variable measurement = query.getVariable(QUERY_NS+MEASUREMENT);
+		final QueryResource polHasMeasurement = query.getResource(POL_NS+"hasMeasurement");
+		query.getConstructComponent().addPattern(s, polHasMeasurement, measurement);
+		final GraphComponentCollection graph = query.getNamedGraph(graphUri);
+		if(byPermit) {
+			final Variable permit = query.getVariable(QUERY_NS+PERMIT);
+			final QueryResource polHasPermit = query.getResource(POL_NS+HAS_PERMIT);
+			graph.addPattern(s, polHasPermit, permit);
+		}
+		addSiteFilter(graph, siteUris);
+	}
+
 	protected String getInternalURI(String measuresUri) {
-		final Pattern converterPattern = Pattern.compile("(.*)/source/([^/]*)/dataset/([^/]*)/.*");
-		final Matcher matcher = converterPattern.matcher(measuresUri);
+		final Matcher matcher = CONVERTER_PATTERN.matcher(measuresUri);
 		matcher.find();
 		String propUri = matcher.group(1);
 		propUri += "/source/";
@@ -379,6 +1189,11 @@ public class DataModelBuilder extends QueryUtils {
 	 */
 	protected boolean extendQueryForUSGSSites(final Query query, final String graphUri,
 			final List<String> siteUris) {
+		return extendQueryForUSGSSites(query, graphUri, siteUris, countyCode);
+	}
+
+	private boolean extendQueryForUSGSSites(final Query query, final String graphUri,
+			final List<String> siteUris, final String county) {
 		log.trace("extendQueryForUSGSSites");
 		
 		// variables
@@ -404,7 +1219,7 @@ public class DataModelBuilder extends QueryUtils {
 		construct.addPattern(s, rdfType, waterWaterSite);
 		construct.addPattern(s, rdfsLabel, label);
 		construct.addPattern(s, polHasMeasurement, measurement);
-		construct.addPattern(s, polHasCountyCode, countyCode, XSDDatatype.XSDint);
+		construct.addPattern(s, polHasCountyCode, county, XSDDatatype.XSDint);
 		construct.addPattern(s, polHasStateCode, state);
 		construct.addPattern(s, wgsLat, lat);
 		construct.addPattern(s, wgsLong, lng);
@@ -413,7 +1228,7 @@ public class DataModelBuilder extends QueryUtils {
 		final GraphComponentCollection sites = query.getNamedGraph(graphUri);
 		sites.addPattern(s, rdfType, waterWaterSite);
 		addSiteFilter(sites, siteUris);
-		sites.addPattern(s, polHasCountyCode, countyCode, XSDDatatype.XSDint);
+		sites.addPattern(s, polHasCountyCode, county, XSDDatatype.XSDint);
 		sites.addPattern(s, polHasStateCode, state);
 		sites.addPattern(s, wgsLat, lat);
 		sites.addPattern(s, wgsLong, lng);
@@ -425,8 +1240,9 @@ public class DataModelBuilder extends QueryUtils {
 	}
 	
 	/**
-	 * Uses a SPARQL query to generate a list of USGS sites sorted by their
-	 * distance to the supplied latitude, longitude coordinate.
+	 * Generates a list of USGS sites sorted by their distance to the supplied
+	 * latitude, longitude coordinate. Pages are answered from the county's
+	 * {@link SiteIndex} when possible, otherwise the endpoint sorts the sites.
 	 * @param graphs Set of graphs containing USGS data for a particular state (should be length 2)
 	 * @param clat Center latitude of the viewport
 	 * @param clng Center longitude of the viewport
@@ -437,6 +1253,24 @@ public class DataModelBuilder extends QueryUtils {
 	protected final List<String> listUSGSSitesInBounds(final List<String> graphs, 
 			final double clat, final double clng,
 			final int offset, final int limit) {
+		return listUSGSSitesInBounds(graphs, clat, clng, offset, limit, null).sites;
+	}
+
+	/**
+	 * Generates a page of USGS sites sorted by their distance to the supplied
+	 * latitude, longitude coordinate, starting after a cursor if one is given
+	 * and at the offset otherwise.
+	 * @param graphs Set of graphs containing USGS data for a particular state (should be length 2)
+	 * @param clat Center latitude of the viewport
+	 * @param clng Center longitude of the viewport
+	 * @param offset Offset into the ordered set to return, used if there is no cursor
+	 * @param limit Limit on the number to return
+	 * @param cursor Position of the last site of the previous page, or null
+	 * @return The page and the cursor of the page that follows it
+	 */
+	private SiteCursor.Page listUSGSSitesInBounds(final List<String> graphs,
+			final double clat, final double clng, final int offset, final int limit,
+			final SiteCursor cursor) {
 		log.trace("listUSGSSitesInBounds");
 		
 		// figure out which graph is which
@@ -479,22 +1313,36 @@ public class DataModelBuilder extends QueryUtils {
 		sites.addPattern(s, wgsLat, lat);
 		sites.addPattern(s, wgsLong, lng);
 		measures.addPattern(measurement, polHasSite, s);
-		query.addOrderBy(buildOrderByClause(clat, clng), SortType.ASC);
-		query.setOffset(offset);
-		query.setLimit(limit);
-		
-		// set select only for s variable
-		Set<Variable> vars = new HashSet<Variable>();
-		vars.add(s);
-		query.setVariables(vars);
-		
-		// execute and return results
-		String results = config.getQueryExecutor(request).accept("application/json").execute(query);
-		return processUriList(results);
+		if(limit > 0) {
+			final SiteCursor.Page page = listSitesFromIndex(sitesUri+" "+measuresUri+" "+countyCode,
+					query, s, lat, lng, clat, clng, offset, limit, cursor);
+			if(page != null) {
+				return page;
+			}
+		}
+		return listSitesFromEndpoint(query, s, lat, lng, clat, clng, offset, limit, cursor);
 	}
 	
 	protected final List<String> listEPASitesInBounds(final List<String> graphs,
 			final double clat, final double clng, final int offset, final int limit) {
+		return listEPASitesInBounds(graphs, clat, clng, offset, limit, null).sites;
+	}
+
+	/**
+	 * Generates a page of EPA facilities sorted by their distance to the
+	 * supplied latitude, longitude coordinate, starting after a cursor if one
+	 * is given and at the offset otherwise.
+	 * @param graphs Set of graphs containing EPA data for a particular state (should be length 2)
+	 * @param clat Center latitude of the viewport
+	 * @param clng Center longitude of the viewport
+	 * @param offset Offset into the ordered set to return, used if there is no cursor
+	 * @param limit Limit on the number to return
+	 * @param cursor Position of the last facility of the previous page, or null
+	 * @return The page and the cursor of the page that follows it
+	 */
+	private SiteCursor.Page listEPASitesInBounds(final List<String> graphs,
+			final double clat, final double clng, final int offset, final int limit,
+			final SiteCursor cursor) {
 		log.trace("listEPASitesInBounds");
 
 		// figure out which graph is which
@@ -534,31 +1382,149 @@ public class DataModelBuilder extends QueryUtils {
 		
 		// build query
 		sites.addPattern(s, rdfType, waterWaterFacility);
-		sites.addPattern(s, polHasCountyCode, request.getParam("state")+countyCode, null);
+		sites.addPattern(s, polHasCountyCode, stateCode+countyCode, null);
 		sites.addPattern(s, wgsLat, lat);
 		sites.addPattern(s, wgsLong, lng);
 		sites.addPattern(s, polHasPermit, permit);
 		measures.addPattern(measurement, polHasPermit, permit);
-		query.addOrderBy(buildOrderByClause(clat, clng), SortType.ASC);
-		query.setOffset(offset);
+		if(limit > 0) {
+			final SiteCursor.Page page = listSitesFromIndex(sitesUri+" "+measuresUri+" "+
+					stateCode+countyCode, query, s, lat, lng, clat, clng, offset, limit, cursor);
+			if(page != null) {
+				return page;
+			}
+		}
+		return listSitesFromEndpoint(query, s, lat, lng, clat, clng, offset, limit, cursor);
+	}
+
+	/**
+	 * Asks the endpoint for a page of the sites nearest to the viewport
+	 * center. With a cursor the page is selected by filtering on the cursor's
+	 * distance and URI, so the endpoint does not have to skip earlier pages;
+	 * without one it is selected by offset. Site URIs ending in "-" (EPA
+	 * facilities without an identifier) are dropped.
+	 * @param query Query selecting the county's sites, without ordering or paging
+	 * @param s Site variable
+	 * @param lat Latitude variable
+	 * @param lng Longitude variable
+	 * @param clat Center latitude of the viewport
+	 * @param clng Center longitude of the viewport
+	 * @param offset Offset into the ordered set to return, used if there is no cursor
+	 * @param limit Limit on the number to return
+	 * @param cursor Position of the last site of the previous page, or null
+	 * @return The page and the cursor of the page that follows it, which is
+	 * null if the page is empty or unlimited
+	 */
+	private SiteCursor.Page listSitesFromEndpoint(final Query query, final Variable s,
+			final Variable lat, final Variable lng, final double clat, final double clng,
+			final int offset, final int limit, final SiteCursor cursor) {
+		final String distance = buildOrderByClause(clat, clng);
+		// sites at the same distance are ordered by URI so that every page,
+		// including the first, ends at the position its cursor records
+		query.addOrderBy(distance, SortType.ASC);
+		query.addOrderBy(s, SortType.ASC);
+		if(cursor != null) {
+			query.addFilter(cursor.buildFilter(distance, SITE));
+		}
+		else {
+			query.setOffset(offset);
+		}
 		query.setLimit(limit);
 		
-		// set select only for s variable
-		Set<Variable> vars = new HashSet<Variable>();
+		// select s, and the coordinates of paged sites for the next cursor
+		Set<Variable> vars = new LinkedHashSet<Variable>();
 		vars.add(s);
+		if(limit > 0) {
+			vars.add(lat);
+			vars.add(lng);
+		}
 		query.setVariables(vars);
 		
 		// execute and return results
-		String results = config.getQueryExecutor(request).accept("application/json").execute(query);
-		List<String> uris = processUriList(results);
-		Iterator<String> i = uris.iterator();
-		while(i.hasNext()) {
-			String uri = i.next();
-			if(uri.endsWith("-")) {
-				i.remove();
+		final String results = execute(query, "application/json");
+		final List<String> uris = new ArrayList<String>();
+		SiteCursor next = null;
+		if(results == null) {
+			return new SiteCursor.Page(uris, null);
+		}
+		try {
+			final BindingReader reader = BindingReader.open(results);
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					final String uri = binding.get(SITE);
+					if(uri == null || uri.endsWith("-") || uris.contains(uri)) {
+						continue;
+					}
+					uris.add(uri);
+					try {
+						next = new SiteCursor(clat, clng, SiteCursor.distance(Double.parseDouble(binding.get(LAT)),
+								Double.parseDouble(binding.get(LONG)), clat, clng), uri);
+					}
+					catch(RuntimeException e) {
+						next = null;
+					}
+				}
 			}
+			finally {
+				reader.close();
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse site list", e);
+		}
+		return new SiteCursor.Page(uris, limit > 0 ? next : null);
+	}
+	
+	/**
+	 * Answers a page of the sites nearest to the viewport center from the
+	 * county's {@link SiteIndex}. If the county has not been indexed yet, the
+	 * query is used to fetch every site in the county with its coordinates
+	 * and the new index is cached for later requests.
+	 * @param key Key identifying the county and graphs
+	 * @param query Query selecting the county's sites, without ordering or paging
+	 * @param s Site variable
+	 * @param lat Latitude variable
+	 * @param lng Longitude variable
+	 * @param clat Center latitude of the viewport
+	 * @param clng Center longitude of the viewport
+	 * @param offset Offset into the ordered set to return, used if there is no cursor
+	 * @param limit Limit on the number to return
+	 * @param cursor Position of the last site of the previous page, or null
+	 * @return The page and the cursor of the page that follows it, or null if
+	 * the index could not be built
+	 */
+	private SiteCursor.Page listSitesFromIndex(final String key, final Query query,
+			final Variable s, final Variable lat, final Variable lng,
+			final double clat, final double clng, final int offset, final int limit,
+			final SiteCursor cursor) {
+		SiteIndex index = SiteIndex.get(key);
+		if(index == null) {
+			final Set<Variable> vars = new LinkedHashSet<Variable>();
+			vars.add(s);
+			vars.add(lat);
+			vars.add(lng);
+			query.setVariables(vars);
+			final String results = execute(query, "application/json");
+			if(results == null) {
+				return null;
+			}
+			try {
+				index = SiteIndex.parse(results, SITE, LAT, LONG);
+			}
+			catch(IOException e) {
+				log.warn("Unable to build site index for "+key, e);
+				return null;
+			}
+			SiteIndex.put(key, index);
+			log.debug("Indexed "+index.size()+" sites for "+key);
+		}
+		if(cursor != null || offset == 0) {
+			return index.after(cursor, clat, clng, limit);
 		}
-		return uris;
+		final List<String> page = index.nearest(clat, clng, offset, limit);
+		return new SiteCursor.Page(page, page.isEmpty() ? null :
+			index.cursorAt(clat, clng, page.get(page.size() - 1)));
 	}
 	
 	/**
@@ -0,0 +1,199 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils.*;
+
+/**
+ * DataSourceCatalog holds the data sources and labels recorded in
+ * {@link QueryUtils#SEMANTECO_METADATA} so that the water domain can be
+ * described without querying the metadata graph on every request. The
+ * sources are refreshed on a background thread (see {@value #REFRESH_PROPERTY})
+ * or on demand through {@link WaterDataProviderModule#refreshDataSources}.
+ * @author ewpatton
+ *
+ */
+public final class DataSourceCatalog {
+
+	public static final String REFRESH_PROPERTY = "semanteco.water.dataSources.refreshMinutes";
+	static final String LABEL_VAR = "label";
+	private static final long DEFAULT_REFRESH_MINUTES = 60;
+	private static final String SOURCES_QUERY =
+			"SELECT DISTINCT ?"+SOURCE_VAR+" ?"+LABEL_VAR+" WHERE { GRAPH <"+SEMANTECO_METADATA+"> { " +
+			"[] <"+DC_NS+SOURCE_VAR+"> ?"+SOURCE_VAR+" . " +
+			"OPTIONAL { ?"+SOURCE_VAR+" <"+RDFS_NS+LABEL_VAR+"> ?"+LABEL_VAR+" } } }";
+	private static final Logger log = Logger.getLogger(DataSourceCatalog.class);
+	private static final DataSourceCatalog INSTANCE = new DataSourceCatalog();
+
+	private volatile Map<String, String> sources = null;
+	private ScheduledExecutorService refresher = null;
+
+	private DataSourceCatalog() {
+	}
+
+	/**
+	 * Gets the catalog shared by all requests
+	 * @return
+	 */
+	public static DataSourceCatalog getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the known data sources
+	 * @return An unmodifiable map of source URI to label in the order they
+	 * were returned by the endpoint, or null if the catalog has not been loaded
+	 */
+	public Map<String, String> getSources() {
+		return sources;
+	}
+
+	/**
+	 * Indicates whether the catalog has been loaded
+	 * @return
+	 */
+	public boolean isLoaded() {
+		return sources != null;
+	}
+
+	/**
+	 * Forgets the loaded sources, e.g. between tests
+	 */
+	synchronized void reset() {
+		sources = null;
+	}
+
+	/**
+	 * Reloads the sources directly from the endpoint. Failures are logged and
+	 * leave the catalog unchanged.
+	 */
+	public void refresh() {
+		log.trace("refresh");
+		try {
+			load(BindingReader.open(SparqlConnection.open(getEndpoint(), SOURCES_QUERY, "application/sparql-results+json")));
+		}
+		catch(IOException e) {
+			log.warn("Unable to refresh data sources", e);
+		}
+	}
+
+	/**
+	 * Schedules the background refresh. Calling this more than once has no effect.
+	 */
+	public synchronized void start() {
+		if(refresher != null) {
+			return;
+		}
+		long minutes = DEFAULT_REFRESH_MINUTES;
+		try {
+			minutes = Long.parseLong(System.getProperty(REFRESH_PROPERTY, Long.toString(DEFAULT_REFRESH_MINUTES)));
+		}
+		catch(NumberFormatException e) {
+			log.warn("Invalid value for "+REFRESH_PROPERTY+", using "+DEFAULT_REFRESH_MINUTES+" minutes");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "data-source-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, 0, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Replaces the sources with the contents of a SPARQL JSON result set
+	 * binding ?source and optionally ?label. Sources without a label are
+	 * labeled with the last segment of their URI, e.g. epa.gov for
+	 * http://sparql.tw.rpi.edu/source/epa-gov.
+	 * @param sparqlJson SPARQL results
+	 * @return true if the results were parsed, otherwise false
+	 */
+	boolean load(final String sparqlJson) {
+		try {
+			return load(BindingReader.open(sparqlJson));
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse data sources", e);
+			return false;
+		}
+	}
+
+	private boolean load(final BindingReader reader) {
+		final Map<String, String> loaded = new LinkedHashMap<String, String>();
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				final String uri = binding.get(SOURCE_VAR);
+				if(uri == null || loaded.containsKey(uri)) {
+					continue;
+				}
+				String label = binding.get(LABEL_VAR);
+				if(label == null) {
+					label = uri.substring(uri.lastIndexOf('/')+1).replace('-', '.');
+				}
+				loaded.put(uri, label);
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse data sources", e);
+			return false;
+		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch(IOException e) {
+				log.debug("Unable to close data source results", e);
+			}
+		}
+		sources = Collections.unmodifiableMap(loaded);
+		log.info("Data source catalog holds "+loaded.size()+" sources");
+		return true;
+	}
+
+	/**
+	 * Serializes the sources in the form returned by
+	 * {@link WaterDataProviderModule#queryForDataSources}
+	 * @return JSON object of the form {"success": true, "data": [{"uri": ..., "label": ...}, ...]}
+	 * @throws JSONException if the object cannot be built
+	 */
+	public JSONObject toJSON() throws JSONException {
+		final Map<String, String> current = sources;
+		final JSONObject response = new JSONObject();
+		final JSONArray data = new JSONArray();
+		response.put("success", current != null);
+		response.put("data", data);
+		if(current != null) {
+			for(Map.Entry<String, String> entry : current.entrySet()) {
+				final JSONObject mapping = new JSONObject();
+				mapping.put("uri", entry.getKey());
+				mapping.put(LABEL_VAR, entry.getValue());
+				data.put(mapping);
+			}
+		}
+		return response;
+	}
+
+}
@@ -0,0 +1,326 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.datatypes.xsd.XSDDateTime;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils.*;
+
+/**
+ * DeltaRefresh retains the triples loaded for a county and source so that a
+ * user returning to the same county only has to fetch what changed. Each
+ * base model remembers the newest measurement time it holds and the
+ * modification times that {@link QueryUtils#SEMANTECO_METADATA} recorded for
+ * its graphs (dcterms:modified). On the next request for the same sites and
+ * facets:
+ * <ul>
+ * <li>if no graph has been modified, the base model is used as is;</li>
+ * <li>otherwise only the measurements taken after the newest one held,
+ * less {@value #OVERLAP_PROPERTY} minutes (default 60), are fetched and
+ * merged into the base model. The overlap picks up measurements published
+ * after newer ones; those already held are merged without duplication.</li>
+ * </ul>
+ * Measurement times are compared as instants, so times written with
+ * different time zones are ordered correctly.
+ * A base model is loaded again from scratch once it is older than
+ * {@value #MAX_AGE_PROPERTY} hours, so that measurements corrected in place
+ * are eventually picked up. At most {@value #MAX_ENTRIES_PROPERTY} base
+ * models are kept, least recently used first out. Delta refresh can be
+ * turned off with {@value #ENABLED_PROPERTY}=false.
+ * @author ewpatton
+ *
+ */
+public final class DeltaRefresh {
+
+	public static final String ENABLED_PROPERTY = "semanteco.water.deltaRefresh.enabled";
+	public static final String MAX_ENTRIES_PROPERTY = "semanteco.water.deltaRefresh.maxEntries";
+	public static final String MAX_AGE_PROPERTY = "semanteco.water.deltaRefresh.maxAgeHours";
+	public static final String OVERLAP_PROPERTY = "semanteco.water.deltaRefresh.overlapMinutes";
+	static final String GRAPH_VAR = "graph";
+	static final String MODIFIED_VAR = "modified";
+	private static final int DEFAULT_MAX_ENTRIES = 16;
+	private static final int DEFAULT_MAX_AGE_HOURS = 24;
+	private static final int DEFAULT_OVERLAP_MINUTES = 60;
+	private static final Logger log = Logger.getLogger(DeltaRefresh.class);
+	private static final DeltaRefresh INSTANCE = new DeltaRefresh();
+
+	private final Map<String, Entry> entries = Collections.synchronizedMap(
+			new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = -3390406781406251383L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, DeltaRefresh.Entry> eldest) {
+					return size() > Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES);
+				}
+			});
+
+	private DeltaRefresh() {
+	}
+
+	/**
+	 * Gets the base models shared by all requests
+	 * @return
+	 */
+	public static DeltaRefresh getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Indicates whether delta refresh is enabled
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+	}
+
+	/**
+	 * Gets the base model for a county and source
+	 * @param key Key identifying the county and source
+	 * @param signature Description of the graphs, sites and facets requested
+	 * @return The entry, or null if there is none, it was loaded for other
+	 * sites or facets, or it is too old to be refreshed
+	 */
+	Entry get(final String key, final String signature) {
+		final Entry entry = entries.get(key);
+		if(entry == null || !entry.signature.equals(signature)) {
+			return null;
+		}
+		final long maxAge = TimeUnit.HOURS.toMillis(Integer.getInteger(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE_HOURS));
+		if(System.currentTimeMillis() - entry.created > maxAge) {
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Retains a base model loaded in full
+	 * @param key Key identifying the county and source
+	 * @param signature Description of the graphs, sites and facets requested
+	 * @param base Triples loaded for the county and source. The model is
+	 * owned by the entry afterwards and must not be modified by the caller.
+	 * @param stamps Modification time of each graph when the model was
+	 * loaded, or null if they are unknown
+	 * @return The new entry
+	 */
+	Entry put(final String key, final String signature, final Model base, final Map<String, String> stamps) {
+		final Entry entry = new Entry(signature, base, newest(base), stamps);
+		entries.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Gets the number of retained base models
+	 * @return
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops every base model
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Queries the metadata graph for the modification times of graphs
+	 * @param graphs Graph URIs
+	 * @return Map of graph URI to dcterms:modified for the graphs that record
+	 * one, or null if the metadata graph could not be queried
+	 */
+	Map<String, String> fetchModified(final List<String> graphs) {
+		try {
+			final BindingReader reader = BindingReader.open(SparqlConnection.open(getEndpoint(),
+					buildModifiedQuery(graphs), "application/sparql-results+json"));
+			final Map<String, String> stamps = new HashMap<String, String>();
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					if(binding.containsKey(GRAPH_VAR) && binding.containsKey(MODIFIED_VAR)) {
+						stamps.put(binding.get(GRAPH_VAR), binding.get(MODIFIED_VAR));
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			return stamps;
+		}
+		catch(IOException e) {
+			log.warn("Unable to query modification times of "+graphs, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Builds the query selecting the modification times of graphs
+	 * @param graphs Graph URIs
+	 * @return
+	 */
+	static String buildModifiedQuery(final List<String> graphs) {
+		return "SELECT ?"+GRAPH_VAR+" ?"+MODIFIED_VAR+" WHERE { GRAPH <"+SEMANTECO_METADATA+"> { " +
+				"?"+GRAPH_VAR+" <"+DC_NS+"modified> ?"+MODIFIED_VAR+" . " +
+				"FILTER(?"+GRAPH_VAR+" IN ("+QueryTemplate.uriList(graphs)+")) } }";
+	}
+
+	/**
+	 * Finds the newest measurement time in a model
+	 * @param model Model holding time:inXSDDateTime triples
+	 * @return The lexical form of the newest xsd:dateTime, or null if the
+	 * model holds none
+	 */
+	static String newest(final Model model) {
+		String newest = null;
+		final NodeIterator it = model.listObjectsOfProperty(model.createProperty(TIME_NS+"inXSDDateTime"));
+		try {
+			while(it.hasNext()) {
+				final RDFNode node = it.next();
+				if(!node.isLiteral()) {
+					continue;
+				}
+				final String time = ((Literal)node).getLexicalForm();
+				if(isNewer(time, newest)) {
+					newest = time;
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		return newest;
+	}
+
+	/**
+	 * Indicates whether a measurement time is later than another
+	 * @param time Lexical form of an xsd:dateTime
+	 * @param newest Lexical form of the newest time so far, or null
+	 * @return true if time is a valid xsd:dateTime after newest
+	 */
+	static boolean isNewer(final String time, final String newest) {
+		final long instant = toMillis(time);
+		return instant != Long.MIN_VALUE && (newest == null || instant > toMillis(newest));
+	}
+
+	/**
+	 * Gets the time from which a refresh fetches measurements
+	 * @param newest Lexical form of the newest measurement time held
+	 * @return The lexical form of an xsd:dateTime in UTC, the overlap
+	 * before newest
+	 * @throws IllegalArgumentException if newest is not an xsd:dateTime
+	 */
+	static String since(final String newest) {
+		final long instant = toMillis(newest);
+		if(instant == Long.MIN_VALUE) {
+			throw new IllegalArgumentException("Invalid dateTime '"+newest+"'");
+		}
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(instant -
+				TimeUnit.MINUTES.toMillis(Integer.getInteger(OVERLAP_PROPERTY, DEFAULT_OVERLAP_MINUTES))));
+	}
+
+	/**
+	 * Converts an xsd:dateTime to milliseconds since the epoch. Times
+	 * without a time zone are taken to be in UTC.
+	 * @param time Lexical form of an xsd:dateTime
+	 * @return The instant, or Long.MIN_VALUE if time is not an xsd:dateTime
+	 */
+	private static long toMillis(final String time) {
+		if(!MeasurementFacets.isDateTime(time)) {
+			return Long.MIN_VALUE;
+		}
+		try {
+			return ((XSDDateTime)XSDDatatype.XSDdateTime.parse(time)).asCalendar().getTimeInMillis();
+		}
+		catch(RuntimeException e) {
+			log.debug("Unable to parse dateTime '"+time+"'", e);
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * A retained base model. Access to the model is synchronized on the entry.
+	 */
+	static final class Entry {
+		final String signature;
+		final long created = System.currentTimeMillis();
+		private final Model base;
+		private String newest;
+		private Map<String, String> stamps;
+
+		Entry(final String signature, final Model base, final String newest, final Map<String, String> stamps) {
+			this.signature = signature;
+			this.base = base;
+			this.newest = newest;
+			this.stamps = stamps;
+		}
+
+		/**
+		 * Indicates whether the graphs are unchanged since the base model
+		 * was last loaded or refreshed
+		 * @param current Current modification times of the graphs, or null
+		 * if they are unknown
+		 * @return
+		 */
+		synchronized boolean isCurrent(final Map<String, String> current) {
+			return stamps != null && current != null && !current.isEmpty() && stamps.equals(current);
+		}
+
+		/**
+		 * Gets the newest measurement time in the base model
+		 * @return The lexical form of an xsd:dateTime, or null if the base
+		 * model holds no measurement times
+		 */
+		synchronized String getNewest() {
+			return newest;
+		}
+
+		/**
+		 * Merges newly loaded triples into the base model
+		 * @param delta Triples loaded since the base model was last refreshed
+		 * @param current Modification times of the graphs when the delta was loaded
+		 */
+		synchronized void merge(final Model delta, final Map<String, String> current) {
+			base.add(delta);
+			final String time = DeltaRefresh.newest(delta);
+			if(time != null && isNewer(time, newest)) {
+				newest = time;
+			}
+			stamps = current;
+		}
+
+		/**
+		 * Copies the base model into a request's model
+		 * @param model Model to populate
+		 */
+		synchronized void copyTo(final Model model) {
+			model.add(base);
+		}
+
+		synchronized long size() {
+			return base.size();
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
+import edu.rpi.tw.escience.semanteco.QueryExecutor;
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
+import edu.rpi.tw.escience.semanteco.query.Query;
+import edu.rpi.tw.escience.semanteco.query.QueryResource;
+import edu.rpi.tw.escience.semanteco.query.Query.Type;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils.*;
+
+/**
+ * GraphCatalog holds an in-memory copy of the (state, source) to graph
+ * mappings recorded in {@link QueryUtils#SEMANTECO_METADATA}. The whole
+ * metadata graph is loaded with a single query and refreshed on a background
+ * thread (see {@value #REFRESH_PROPERTY}) or on demand, so that
+ * {@link DataModelBuilder} and {@link InstanceCounter} can find their graphs
+ * without a remote round trip. Pairs without any graphs are remembered as
+ * empty lists. Until a load succeeds, only the pairs that callers queried
+ * for directly are answered; they are kept apart from the loaded catalog so
+ * that they are never mistaken for it.
+ * @author ewpatton
+ *
+ */
+public final class GraphCatalog {
+
+	public static final String REFRESH_PROPERTY = "semanteco.water.graphCatalog.refreshMinutes";
+	private static final long DEFAULT_REFRESH_MINUTES = 360;
+	private static final String CATALOG_QUERY =
+			"SELECT ?"+GRAPH_VAR+" ?"+STATE_VAR+" ?"+SOURCE_VAR+" WHERE { GRAPH <"+SEMANTECO_METADATA+"> { " +
+			"?"+GRAPH_VAR+" <"+SIOC_NS+"topic> ?"+STATE_VAR+" . " +
+			"?"+GRAPH_VAR+" <"+DC_NS+SOURCE_VAR+"> ?"+SOURCE_VAR+" } }";
+	private static final Logger log = Logger.getLogger(GraphCatalog.class);
+	private static final GraphCatalog INSTANCE = new GraphCatalog();
+
+	private volatile ConcurrentMap<String, List<String>> graphs = null;
+	private final ConcurrentMap<String, List<String>> remembered = new ConcurrentHashMap<String, List<String>>();
+	private final AtomicLong version = new AtomicLong();
+	private ScheduledExecutorService refresher = null;
+
+	private GraphCatalog() {
+	}
+
+	/**
+	 * Gets the catalog shared by all requests
+	 * @return
+	 */
+	public static GraphCatalog getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Looks up the graphs for a state and source.
+	 * @param state State uri in instance hub
+	 * @param source Source entity, e.g. http://sparql.tw.rpi.edu/source/epa-gov
+	 * @return An unmodifiable list of graph URIs, empty if the metadata graph has
+	 * none for the pair, or null if the catalog has not been loaded and the pair
+	 * has not been remembered.
+	 */
+	public List<String> lookup(final String state, final String source) {
+		final ConcurrentMap<String, List<String>> current = graphs;
+		if(current == null) {
+			return remembered.get(key(state, source));
+		}
+		final List<String> result = current.get(key(state, source));
+		return result == null ? Collections.<String>emptyList() : result;
+	}
+
+	/**
+	 * Remembers the graphs found for a pair outside of a full load, i.e.
+	 * when the catalog could not be loaded and the caller queried for the
+	 * pair directly. Remembered pairs do not mark the catalog as loaded and
+	 * are discarded by the next successful load.
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param found Graphs found for the pair, possibly empty
+	 */
+	public void remember(final String state, final String source, final List<String> found) {
+		remembered.put(key(state, source), Collections.unmodifiableList(new ArrayList<String>(found)));
+	}
+
+	/**
+	 * Indicates whether the catalog has been fully loaded
+	 * @return
+	 */
+	public boolean isLoaded() {
+		return graphs != null;
+	}
+
+	/**
+	 * Gets a number that changes every time a load changes the catalog's
+	 * contents. Caches derived from the catalog can compare versions to
+	 * decide whether they are stale.
+	 * @return
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Loads the catalog using the query executor for the given request.
+	 * Used when a request arrives before the background load completes and
+	 * when a client asks for the catalog to be refreshed.
+	 * @param request Request used to obtain a query executor
+	 * @param config Module configuration
+	 * @return true if the catalog was loaded, otherwise false
+	 */
+	public boolean load(final Request request, final ModuleConfiguration config) {
+		return load(config.getQueryExecutor(request), config);
+	}
+
+	/**
+	 * Loads the catalog using a query executor
+	 * @param executor Query executor
+	 * @param config Module configuration
+	 * @return true if the catalog was loaded, otherwise false
+	 */
+	public boolean load(final QueryExecutor executor, final ModuleConfiguration config) {
+		log.trace("load");
+		final Query query = config.getQueryFactory().newQuery(Type.SELECT);
+		query.setVariables(null);
+		final NamedGraphComponent graph = query.getNamedGraph(SEMANTECO_METADATA);
+		final QueryResource graphVar = query.getVariable(QUERY_NS+GRAPH_VAR);
+		final QueryResource stateVar = query.getVariable(QUERY_NS+STATE_VAR);
+		final QueryResource sourceVar = query.getVariable(QUERY_NS+SOURCE_VAR);
+		graph.addPattern(graphVar, query.getResource(SIOC_NS+"topic"), stateVar);
+		graph.addPattern(graphVar, query.getResource(DC_NS+SOURCE_VAR), sourceVar);
+		final String results = QueryUtils.execute(executor, query, "application/json");
+		return results != null && load(results);
+	}
+
+	/**
+	 * Reloads the catalog directly from the endpoint. Failures are logged and
+	 * leave the catalog unchanged.
+	 */
+	public void refresh() {
+		log.trace("refresh");
+		try {
+			load(BindingReader.open(SparqlConnection.open(getEndpoint(), CATALOG_QUERY, "application/sparql-results+json")));
+		}
+		catch(IOException e) {
+			log.warn("Unable to refresh graph catalog", e);
+		}
+	}
+
+	/**
+	 * Schedules the background refresh. Calling this more than once has no effect.
+	 */
+	public synchronized void start() {
+		if(refresher != null) {
+			return;
+		}
+		long minutes = DEFAULT_REFRESH_MINUTES;
+		try {
+			minutes = Long.parseLong(System.getProperty(REFRESH_PROPERTY, Long.toString(DEFAULT_REFRESH_MINUTES)));
+		}
+		catch(NumberFormatException e) {
+			log.warn("Invalid value for "+REFRESH_PROPERTY+", using "+DEFAULT_REFRESH_MINUTES+" minutes");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "graph-catalog-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, 0, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Replaces the catalog with the contents of a SPARQL JSON result set
+	 * binding ?graph, ?state, and ?source.
+	 * @param sparqlJson SPARQL results
+	 * @return true if the results were parsed, otherwise false
+	 */
+	boolean load(final String sparqlJson) {
+		try {
+			return load(BindingReader.open(sparqlJson));
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse graph catalog", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the catalog with the bindings of ?graph, ?state, and ?source
+	 * read from the reader, which is closed once it has been read.
+	 * @param reader SPARQL results
+	 * @return true if the results were read, otherwise false
+	 */
+	private boolean load(final BindingReader reader) {
+		final ConcurrentMap<String, List<String>> loaded = new ConcurrentHashMap<String, List<String>>();
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				if(!binding.containsKey(GRAPH_VAR) || !binding.containsKey(STATE_VAR) ||
+						!binding.containsKey(SOURCE_VAR)) {
+					continue;
+				}
+				final String key = key(binding.get(STATE_VAR), binding.get(SOURCE_VAR));
+				List<String> list = loaded.get(key);
+				if(list == null) {
+					list = new ArrayList<String>();
+					loaded.put(key, list);
+				}
+				list.add(binding.get(GRAPH_VAR));
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse graph catalog", e);
+			return false;
+		}
+		finally {
+			close(reader);
+		}
+		for(Map.Entry<String, List<String>> entry : loaded.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		synchronized(this) {
+			if(!loaded.equals(graphs)) {
+				graphs = loaded;
+				version.incrementAndGet();
+			}
+			remembered.clear();
+		}
+		log.info("Graph catalog holds "+loaded.size()+" (state, source) pairs");
+		return true;
+	}
+
+	/**
+	 * Forgets the loaded catalog and any remembered pairs, e.g. between tests
+	 */
+	synchronized void reset() {
+		graphs = null;
+		remembered.clear();
+		version.incrementAndGet();
+	}
+
+	private static String key(final String state, final String source) {
+		return state+" "+source;
+	}
+
+	private static void close(final BindingReader reader) {
+		try {
+			reader.close();
+		}
+		catch(IOException e) {
+			log.debug("Unable to close graph catalog results", e);
+		}
+	}
+
+}
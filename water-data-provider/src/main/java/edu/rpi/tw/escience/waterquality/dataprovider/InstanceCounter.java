@@ -1,9 +1,12 @@
 package edu.rpi.tw.escience.waterquality.dataprovider;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -16,6 +19,8 @@ import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import edu.rpi.tw.escience.semanteco.Domain;
 import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
 import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
 import edu.rpi.tw.escience.semanteco.query.Query;
 import edu.rpi.tw.escience.semanteco.query.QueryResource;
@@ -79,41 +84,274 @@ public class InstanceCounter extends QueryUtils {
 	
 	/**
 	 * Builds a results object that can be serialized back to the client.
+	 * Counts are read from the state's {@link CountTable} entry, which is
+	 * filled by one GROUP BY county query per source when missing. If that
+	 * query fails the county is counted on its own.
 	 * @return A JSONObject containing the count information in the form
-	 * of: {"sites": #, "facilities": #}
+	 * of: {"site": #, "facility": #}
 	 */
 	public final JSONObject build() {
 		JSONObject response = new JSONObject();
+		final String county = normalizeCounty(countyCode);
 		for(String source : sources) {
-			final List<String> graphs = retrieveStateGraphsForSource(stateUri, source);
-			final Query query = config.getQueryFactory().newQuery();
-			if(source.contains("usgs-gov")) {
-				buildUSGSCounter(query, graphs);
-				String resultStr = config.getQueryExecutor(request).accept("application/json").execute(query);
-				int number = process(resultStr);
-				try {
-					response.put("site", number);
+			final String name = countName(source);
+			if(name == null) {
+				continue;
+			}
+			int number = 0;
+			final Map<String, Integer> counts = countsForState(source);
+			if(counts != null) {
+				final Integer count = counts.get(county);
+				number = count == null ? 0 : count;
+			}
+			else {
+				number = countCounty(source);
+			}
+			try {
+				response.put(name, number);
+			}
+			catch(JSONException e) {
+				log.warn("Unable to retrieve "+name+" counts", e);
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Builds a results object holding the counts for every county in the
+	 * state.
+	 * @return A JSONObject of the form {"site": {"county": #, ...},
+	 * "facility": {"county": #, ...}}. Sources whose counts could not be
+	 * computed are omitted.
+	 */
+	public final JSONObject buildAll() {
+		JSONObject response = new JSONObject();
+		for(String source : sources) {
+			final String name = countName(source);
+			final Map<String, Integer> counts = name == null ? null : countsForState(source);
+			if(counts == null) {
+				continue;
+			}
+			try {
+				response.put(name, new JSONObject(counts));
+			}
+			catch(JSONException e) {
+				log.warn("Unable to serialize "+name+" counts", e);
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Gets the per-county counts for the requested state and a source,
+	 * computing and caching them if needed.
+	 * @param source Source entity
+	 * @return Map of county code to count, or null if they could not be
+	 * computed now or recently
+	 */
+	protected final Map<String, Integer> countsForState(final String source) {
+		final CountTable table = CountTable.getInstance();
+		Map<String, Integer> counts = table.get(stateUri, source);
+		if(counts != null) {
+			return counts;
+		}
+		if(table.hasFailed(stateUri, source)) {
+			return null;
+		}
+		final List<String> graphs = retrieveStateGraphsForSource(stateUri, source);
+		final long version = GraphCatalog.getInstance().getVersion();
+		final String query = source.contains("usgs-gov") ?
+				buildUSGSGroupedCounter(graphs) : buildEPAGroupedCounter(graphs);
+		if(query == null) {
+			return null;
+		}
+		final long start = System.currentTimeMillis();
+		try {
+			counts = processGrouped(BindingReader.open(SparqlConnection.open(getEndpoint(), query,
+					"application/sparql-results+json")));
+		}
+		catch(IOException e) {
+			log.warn("Unable to count "+source+" instances by county", e);
+			table.fail(stateUri, source, version);
+			return null;
+		}
+		if(counts != null) {
+			log.debug("Counted "+source+" instances in "+counts.size()+" counties in "+
+					(System.currentTimeMillis()-start)+" ms");
+			table.put(stateUri, source, version, counts);
+		}
+		else {
+			table.fail(stateUri, source, version);
+		}
+		return counts;
+	}
+	
+	/**
+	 * Counts the instances of a source in the requested county with its own
+	 * query. The query text comes from a {@link QueryTemplate} built from
+	 * {@link #buildUSGSCounter(Query, List)} or {@link #buildEPACounter(Query, List)}
+	 * the first time a source is counted; the query API is used if the
+	 * template cannot be used or its query fails.
+	 * @param source Source entity
+	 * @return The count
+	 */
+	protected final int countCounty(final String source) {
+		final List<String> graphs = retrieveStateGraphsForSource(stateUri, source);
+		final String text = prepareCounter(source, graphs);
+		if(text != null) {
+			try {
+				return process(BindingReader.open(SparqlConnection.open(getEndpoint(), text,
+						"application/sparql-results+json")));
+			}
+			catch(IOException e) {
+				log.warn("Unable to count "+source+" instances, falling back to the query executor", e);
+			}
+		}
+		final Query query = config.getQueryFactory().newQuery();
+		if(source.contains("usgs-gov")) {
+			buildUSGSCounter(query, graphs);
+		}
+		else {
+			buildEPACounter(query, graphs);
+		}
+		String resultStr = config.getQueryExecutor(request).accept("application/json").execute(query);
+		return process(resultStr);
+	}
+	
+	/**
+	 * Produces the text of the county counter for a source from its cached
+	 * {@link QueryTemplate}, whose slots are the site graph, the
+	 * measurement graph and the county code.
+	 * @param source Source entity
+	 * @param graphs Graphs holding the source for the requested state
+	 * @return The query text, or null if a template cannot be used
+	 */
+	final String prepareCounter(final String source, final List<String> graphs) {
+		if(graphs == null || graphs.size() < 2) {
+			return null;
+		}
+		final boolean usgs = source.contains("usgs-gov");
+		final String county = usgs ? countyCode : request.getParam("state")+countyCode;
+		if(!QueryTemplate.isSafeLiteral(county)) {
+			return null;
+		}
+		final String[] split = splitGraphs(graphs);
+		final String key = usgs ? "usgs-counter" : "epa-counter";
+		QueryTemplate template = QueryTemplate.get(key);
+		if(template == null) {
+			final String countySlot = QueryTemplate.LITERAL_SLOT+"county";
+			try {
+				final Query query = config.getQueryFactory().newQuery();
+				if(usgs) {
+					buildUSGSCounter(query, graphs, countySlot);
 				}
-				catch(JSONException e) {
-					log.warn("Unable to retrieve site counts", e);
+				else {
+					buildEPACounter(query, graphs, countySlot);
 				}
+				template = QueryTemplate.compile(query.toString(),
+						"<"+split[0]+">", "<"+split[1]+">", countySlot);
 			}
-			else if(source.contains("epa-gov")) {
-				buildEPACounter(query, graphs);
-				String resultStr = config.getQueryExecutor(request).accept("application/json").execute(query);
-				int number = process(resultStr);
-				try {
-					response.put("facility", number);
-				}
-				catch(JSONException e) {
-					log.warn("Unable to retrieve facility count", e);
+			catch(RuntimeException e) {
+				log.warn("Unable to prepare counter template for "+source, e);
+				return null;
+			}
+			if(template == null) {
+				log.warn("Unable to prepare counter template for "+source+"; using the query API");
+				return null;
+			}
+			QueryTemplate.put(key, template);
+		}
+		return template.fill("<"+split[0]+">", "<"+split[1]+">", county);
+	}
+	
+	protected final String buildUSGSGroupedCounter(final List<String> graphs) {
+		log.trace("buildUSGSGroupedCounter");
+		if(graphs == null || graphs.size() < 2) {
+			log.warn("Unable to find any USGS graphs for "+stateUri);
+			return null;
+		}
+		final String[] split = splitGraphs(graphs);
+		return "SELECT ?county (count(distinct ?s) as ?cnt) WHERE { " +
+				"GRAPH <"+split[0]+"> { " +
+				"?s <"+RDF_NS+"type> <"+WATER_NS+"WaterSite> . " +
+				"?s <"+POL_NS+"hasCountyCode> ?county } " +
+				"GRAPH <"+split[1]+"> { ?measurement <"+POL_NS+"hasSite> ?s } " +
+				"} GROUP BY ?county";
+	}
+	
+	protected final String buildEPAGroupedCounter(final List<String> graphs) {
+		log.trace("buildEPAGroupedCounter");
+		if(graphs == null || graphs.size() < 2) {
+			log.warn("Unable to find any EPA graphs for "+stateUri);
+			return null;
+		}
+		final String[] split = splitGraphs(graphs);
+		return "SELECT ?county (count(distinct ?s) as ?cnt) WHERE { " +
+				"GRAPH <"+split[0]+"> { " +
+				"?s <"+RDF_NS+"type> <"+WATER_NS+"WaterFacility> . " +
+				"?s <"+POL_NS+"hasCountyCode> ?county . " +
+				"?s <"+POL_NS+"hasPermit> ?permit . " +
+				"?s <"+WGS_NS+"lat> ?lat . " +
+				"?s <"+WGS_NS+"long> ?long } " +
+				"GRAPH <"+split[1]+"> { ?measurement <"+POL_NS+"hasPermit> ?permit } " +
+				"} GROUP BY ?county";
+	}
+	
+	/**
+	 * Extracts the per-county counts from the SPARQL results for the queries
+	 * in {@link #buildEPAGroupedCounter(List)} and
+	 * {@link #buildUSGSGroupedCounter(List)}
+	 * @param sparqlResults
+	 * @return Map of county code to count, or null if the results cannot be parsed
+	 */
+	protected final Map<String, Integer> processGrouped(final String sparqlResults) {
+		try {
+			return processGrouped(BindingReader.open(sparqlResults));
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse sparql results", e);
+			return null;
+		}
+	}
+	
+	private Map<String, Integer> processGrouped(final BindingReader reader) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				if(!binding.containsKey("county") || !binding.containsKey("cnt")) {
+					continue;
 				}
+				final String county = normalizeCounty(binding.get("county"));
+				final int count = Integer.parseInt(binding.get("cnt").trim());
+				final Integer previous = counts.get(county);
+				counts.put(county, previous == null ? count : previous + count);
 			}
 		}
-		return response;
+		catch(IOException e) {
+			log.warn("Unable to parse sparql results", e);
+			return null;
+		}
+		catch(NumberFormatException e) {
+			log.warn("Unable to parse sparql results", e);
+			return null;
+		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch(IOException e) {
+				log.debug("Unable to close sparql results", e);
+			}
+		}
+		return counts;
 	}
 	
 	protected final void buildEPACounter(final Query query, final List<String> graphs) {
+		buildEPACounter(query, graphs, request.getParam("state")+countyCode);
+	}
+	
+	private void buildEPACounter(final Query query, final List<String> graphs, final String county) {
 		log.trace("buildEPACounter");
 		if(graphs == null || graphs.size() == 0) {
 			log.warn("Unable to find any EPA graphs for "+stateUri);
@@ -150,7 +388,7 @@ public class InstanceCounter extends QueryUtils {
 		final NamedGraphComponent measures = query.getNamedGraph(measuresGraph);
 		
 		sites.addPattern(s, rdfType, waterWaterFacility);
-		sites.addPattern(s, polHasCountyCode, request.getParam("state")+countyCode, null);
+		sites.addPattern(s, polHasCountyCode, county, null);
 		sites.addPattern(s, polHasPermit, permit);
 		sites.addPattern(s, wgsLat, lat);
 		sites.addPattern(s, wgsLong, lng);
@@ -159,6 +397,10 @@ public class InstanceCounter extends QueryUtils {
 	}
 	
 	protected final void buildUSGSCounter(final Query query, final List<String> graphs) {
+		buildUSGSCounter(query, graphs, countyCode);
+	}
+	
+	private void buildUSGSCounter(final Query query, final List<String> graphs, final String county) {
 		log.trace("buildUSGSCounter");
 		if(graphs == null || graphs.size() == 0) {
 			log.warn("Unable to find any USGS graphs for "+stateUri);
@@ -190,7 +432,7 @@ public class InstanceCounter extends QueryUtils {
 		final NamedGraphComponent measures = query.getNamedGraph(measuresGraph);
 		
 		sites.addPattern(s, rdfType, waterWaterSite);
-		sites.addPattern(s, polHasCountyCode, countyCode, XSDDatatype.XSDint);
+		sites.addPattern(s, polHasCountyCode, county, XSDDatatype.XSDint);
 		
 		measures.addPattern(measurement, polHasSite, s);
 	}
@@ -203,16 +445,81 @@ public class InstanceCounter extends QueryUtils {
 	 * @return
 	 */
 	protected final int process(final String sparqlResults) {
+		try {
+			return process(BindingReader.open(sparqlResults));
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse sparql results", e);
+			return 0;
+		}
+	}
+	
+	private int process(final BindingReader reader) {
 		int count = 0;
 		try {
-			JSONObject results = new JSONObject(sparqlResults);
-			count = results.getJSONObject("results").getJSONArray("bindings")
-					.getJSONObject(0).getJSONObject("cnt").getInt("value");
+			final Map<String, String> binding = reader.next();
+			if(binding != null && binding.containsKey("cnt")) {
+				count = Integer.parseInt(binding.get("cnt").trim());
+			}
 		}
-		catch(JSONException e) {
+		catch(IOException e) {
+			log.warn("Unable to parse sparql results", e);
+		}
+		catch(NumberFormatException e) {
 			log.warn("Unable to parse sparql results", e);
 		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch(IOException e) {
+				log.debug("Unable to close sparql results", e);
+			}
+		}
 		return count;
 	}
 	
+	/**
+	 * Converts a county code into the key used by the count table. USGS
+	 * codes are integers, e.g. 7, while EPA codes carry the state, e.g. RI007,
+	 * so both are reduced to the integer value of their trailing digits.
+	 * @param county County code
+	 * @return The normalized code, or the code unchanged if it has no digits
+	 */
+	protected static String normalizeCounty(final String county) {
+		if(county == null) {
+			return null;
+		}
+		int start = county.length();
+		while(start > 0 && Character.isDigit(county.charAt(start - 1))) {
+			start--;
+		}
+		if(start == county.length()) {
+			return county;
+		}
+		try {
+			return Integer.toString(Integer.parseInt(county.substring(start)));
+		}
+		catch(NumberFormatException e) {
+			return county;
+		}
+	}
+	
+	private static String countName(final String source) {
+		if(source.contains("usgs-gov")) {
+			return "site";
+		}
+		else if(source.contains("epa-gov")) {
+			return "facility";
+		}
+		return null;
+	}
+	
+	private static String[] splitGraphs(final List<String> graphs) {
+		if(graphs.get(0).contains("measurement")) {
+			return new String[] { graphs.get(1), graphs.get(0) };
+		}
+		return new String[] { graphs.get(0), graphs.get(1) };
+	}
+	
 }
@@ -0,0 +1,259 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * LoadPlanner chooses how {@link DataModelBuilder} fetches a source for a
+ * set of sites. The number of triples is estimated from the number of
+ * triples per site observed in earlier loads of the same state, source and
+ * facet selections; until loads with a selection have been observed, the
+ * estimate for the state and source without facets is used. The load is
+ * planned as one of
+ * <ul>
+ * <li>{@link Strategy#SINGLE}: one CONSTRUCT for every site, when the
+ * estimate fits in one query</li>
+ * <li>{@link Strategy#CHUNKED}: one CONSTRUCT per batch of sites, fetched in
+ * parallel, with batches sized so that each stays under
+ * {@value #MAX_TRIPLES_PROPERTY} triples</li>
+ * <li>{@link Strategy#TWO_PHASE}: only measurements are fetched, in batches
+ * as above, and joined locally with the sites held by the
+ * {@link SiteRegistry}. Chosen when the registry already holds the sites, or
+ * when the estimate exceeds {@value #TWO_PHASE_PROPERTY} triples so that
+ * loading the registry pays for itself.</li>
+ * </ul>
+ * Every load reports the number of triples it returned and how long it took,
+ * which refines the estimate for the next request. The most recent loads are
+ * kept for {@link WaterDataProviderModule#getLoadPlannerStats}.
+ * @author ewpatton
+ *
+ */
+final class LoadPlanner {
+
+	/**
+	 * System property controlling the largest number of triples requested
+	 * from the endpoint in one query
+	 */
+	static final String MAX_TRIPLES_PROPERTY = "semanteco.water.planner.maxTriplesPerQuery";
+	/**
+	 * System property controlling the estimated size above which sites are
+	 * loaded into the site registry so that only measurements are fetched
+	 */
+	static final String TWO_PHASE_PROPERTY = "semanteco.water.planner.twoPhaseTriples";
+	/**
+	 * System property giving the number of triples per site assumed for a
+	 * state and source that has not been loaded yet
+	 */
+	static final String DEFAULT_DENSITY_PROPERTY = "semanteco.water.planner.triplesPerSite";
+	private static final int DEFAULT_MAX_TRIPLES = 100000;
+	private static final int DEFAULT_TWO_PHASE = 250000;
+	private static final int DEFAULT_DENSITY = 1000;
+	private static final double WEIGHT = 0.3;
+	private static final int HISTORY = 20;
+	private static final int MAX_ESTIMATES = 1000;
+	private static final Logger log = Logger.getLogger(LoadPlanner.class);
+	private static final LoadPlanner INSTANCE = new LoadPlanner();
+
+	/**
+	 * Load strategies. HASH_JOIN is never chosen by the planner; it is
+	 * recorded for sources configured with
+	 * {@link DataModelBuilder#HASH_JOIN_PROPERTY} so that its cost can be
+	 * compared with the others.
+	 */
+	enum Strategy {
+		SINGLE, CHUNKED, TWO_PHASE, HASH_JOIN
+	}
+
+	private final ConcurrentMap<String, Double> density = new ConcurrentHashMap<String, Double>();
+	private final LinkedList<JSONObject> history = new LinkedList<JSONObject>();
+
+	private LoadPlanner() {
+	}
+
+	/**
+	 * Gets the planner shared by all requests
+	 * @return
+	 */
+	static LoadPlanner getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Plans the load of a source
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param facets Facet selections of the load
+	 * @param sites Number of sites requested
+	 * @param maxChunk Largest number of sites to place in one query
+	 * @param registryEnabled true if the site registry may be used
+	 * @param registryLoaded true if the site registry already holds the
+	 * source's sites graphs for the state
+	 * @return
+	 */
+	Plan plan(final String state, final String source, final MeasurementFacets facets,
+			final int sites, final int maxChunk, final boolean registryEnabled, final boolean registryLoaded) {
+		final double perSite = getTriplesPerSite(state, source, facets);
+		final long estimate = (long)Math.ceil(perSite * sites);
+		final int maxTriples = Integer.getInteger(MAX_TRIPLES_PROPERTY, DEFAULT_MAX_TRIPLES);
+		final int chunk = (int)Math.max(1, Math.min(maxChunk, Math.floor(maxTriples / Math.max(1.0, perSite))));
+		Strategy strategy = sites <= chunk ? Strategy.SINGLE : Strategy.CHUNKED;
+		if(registryEnabled && sites > 0 &&
+				(registryLoaded || estimate >= Integer.getInteger(TWO_PHASE_PROPERTY, DEFAULT_TWO_PHASE))) {
+			strategy = Strategy.TWO_PHASE;
+		}
+		return new Plan(strategy, strategy == Strategy.SINGLE ? Integer.MAX_VALUE : chunk, sites, estimate);
+	}
+
+	/**
+	 * Records the outcome of a load and updates the estimate of triples
+	 * per site for the state, source and facet selections. Loads that
+	 * returned nothing are kept in the history but do not change the estimate.
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param facets Facet selections of the load
+	 * @param plan Plan that was executed
+	 * @param triples Number of triples loaded
+	 * @param millis Time taken by the load
+	 */
+	void record(final String state, final String source, final MeasurementFacets facets,
+			final Plan plan, final long triples, final long millis) {
+		final String key = key(state, source, facets);
+		if(plan.sites > 0 && triples > 0) {
+			final double observed = (double)triples / plan.sites;
+			final Double previous = density.get(key);
+			if(previous != null || density.size() < MAX_ESTIMATES) {
+				density.put(key, previous == null ? observed : WEIGHT * observed + (1 - WEIGHT) * previous);
+			}
+		}
+		log.debug("Loaded "+source+" for "+state+" with "+plan+": "+triples+" triples in "+millis+" ms");
+		try {
+			final JSONObject entry = new JSONObject();
+			entry.put("state", state);
+			entry.put("source", source);
+			if(!facets.isEmpty()) {
+				entry.put("facets", facets.getSignature());
+			}
+			entry.put("strategy", plan.strategy.name());
+			entry.put("sites", plan.sites);
+			entry.put("estimate", plan.estimate);
+			entry.put("triples", triples);
+			entry.put("millis", millis);
+			synchronized(history) {
+				history.addFirst(entry);
+				if(history.size() > HISTORY) {
+					history.removeLast();
+				}
+			}
+		}
+		catch(JSONException e) {
+			log.debug("Unable to record load", e);
+		}
+	}
+
+	/**
+	 * Gets the estimated number of triples per site for a state, source and
+	 * facet selections
+	 * @param state State uri in instance hub
+	 * @param source Source entity
+	 * @param facets Facet selections of the load
+	 * @return
+	 */
+	double getTriplesPerSite(final String state, final String source, final MeasurementFacets facets) {
+		Double value = density.get(key(state, source, facets));
+		if(value == null) {
+			value = density.get(key(state, source, MeasurementFacets.NONE));
+		}
+		return value != null ? value : Integer.getInteger(DEFAULT_DENSITY_PROPERTY, DEFAULT_DENSITY);
+	}
+
+	/**
+	 * Forgets every estimate and recorded load
+	 */
+	void clear() {
+		density.clear();
+		synchronized(history) {
+			history.clear();
+		}
+	}
+
+	/**
+	 * Serializes the estimates and the most recent loads
+	 * @return JSON object of the form {"triplesPerSite": {"state source [facets]": #, ...},
+	 * "loads": [{"state": ..., "source": ..., "facets": ..., "strategy": ..., "sites": #,
+	 * "estimate": #, "triples": #, "millis": #}, ...]}
+	 */
+	JSONObject toJSON() {
+		final JSONObject response = new JSONObject();
+		try {
+			final JSONObject estimates = new JSONObject();
+			for(Map.Entry<String, Double> entry : density.entrySet()) {
+				estimates.put(entry.getKey(), entry.getValue().doubleValue());
+			}
+			response.put("triplesPerSite", estimates);
+			synchronized(history) {
+				response.put("loads", new JSONArray(history));
+			}
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize load planner", e);
+		}
+		return response;
+	}
+
+	private static String key(final String state, final String source, final MeasurementFacets facets) {
+		return facets.isEmpty() ? state+" "+source : state+" "+source+" "+facets.getSignature();
+	}
+
+	/**
+	 * A planned load
+	 */
+	static final class Plan {
+		final Strategy strategy;
+		final int chunkSize;
+		final int sites;
+		final long estimate;
+
+		Plan(final Strategy strategy, final int chunkSize, final int sites, final long estimate) {
+			this.strategy = strategy;
+			this.chunkSize = chunkSize;
+			this.sites = sites;
+			this.estimate = estimate;
+		}
+
+		/**
+		 * Gets the plan to use when a two-phase load is not possible, e.g.
+		 * because the site registry is missing one of the sites
+		 * @return
+		 */
+		Plan withoutRegistry() {
+			if(strategy != Strategy.TWO_PHASE) {
+				return this;
+			}
+			return sites <= chunkSize ? new Plan(Strategy.SINGLE, Integer.MAX_VALUE, sites, estimate) :
+				new Plan(Strategy.CHUNKED, chunkSize, sites, estimate);
+		}
+
+		/**
+		 * Gets a copy of the plan recorded under another strategy
+		 * @param other Strategy that was executed
+		 * @return
+		 */
+		Plan withStrategy(final Strategy other) {
+			return new Plan(other, chunkSize, sites, estimate);
+		}
+
+		@Override
+		public String toString() {
+			return strategy+" ("+sites+" sites, "+(strategy == Strategy.SINGLE ? "1 query" :
+				"up to "+chunkSize+" sites per query")+", about "+estimate+" triples)";
+		}
+	}
+
+}
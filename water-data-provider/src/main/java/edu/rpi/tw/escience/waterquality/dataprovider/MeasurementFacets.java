@@ -0,0 +1,379 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils.*;
+
+/**
+ * MeasurementFacets holds the facet selections that restrict which
+ * measurements {@link DataModelBuilder} needs: the characteristics chosen in
+ * the characteristics facet and the window chosen in the time facet. They are
+ * placed in the measurement graph of the data query when it is built, so the
+ * endpoint only returns the selected measurements instead of every
+ * measurement of the selected sites.
+ *
+ * The characteristics facet selects categories of the CUAHSI taxonomy and
+ * matches the measurements whose characteristic is a subclass of one of the
+ * category's subclasses. The categories are resolved to those
+ * characteristics once and cached, and the characteristics are sent as a
+ * VALUES block written by {@link SiteValues}. The time window is
+ * filtered the same way the time facet filters it, and the time of each
+ * measurement is added to the CONSTRUCT so the time facet has nothing left
+ * to add.
+ *
+ * {@link DeltaRefresh} also uses the facets to ask for the time of every
+ * measurement without filtering on it, and to select only the measurements
+ * newer than the ones it has already loaded.
+ * @author ewpatton
+ *
+ */
+final class MeasurementFacets {
+
+	static final String CHARACTERISTIC_PARAM = "characteristic";
+	static final String FROM_PARAM = "from";
+	static final String UNTIL_PARAM = "until";
+	static final String CUAHSI_GRAPH = "http://was.tw.rpi.edu/all-characteristics-cuahsi-ontology2";
+	static final String ELEMENT_VAR = "element";
+	static final String TIME_VAR = "time";
+	static final String SINCE_SLOT = "since";
+	private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+	private static final Pattern DATE_TIME =
+			Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?(Z|[+-]\\d{2}:\\d{2})?");
+	private static final Logger log = Logger.getLogger(MeasurementFacets.class);
+	private static final ConcurrentMap<String, List<String>> CHARACTERISTICS =
+			new ConcurrentHashMap<String, List<String>>();
+
+	/**
+	 * Facets that select every measurement
+	 */
+	static final MeasurementFacets NONE = new MeasurementFacets(null, null, null);
+
+	final List<String> elements;
+	final String from;
+	final String until;
+	final String since;
+	final boolean timed;
+
+	MeasurementFacets(final List<String> elements, final String from, final String until) {
+		this(elements, from, until, null, false);
+	}
+
+	private MeasurementFacets(final List<String> elements, final String from, final String until,
+			final String since, final boolean timed) {
+		this.elements = elements;
+		this.from = from;
+		this.until = until;
+		this.since = since;
+		this.timed = timed || since != null;
+	}
+
+	/**
+	 * Gets the same facets with the time of every selected measurement
+	 * added to the CONSTRUCT, whether or not a window is selected
+	 * @return
+	 */
+	MeasurementFacets withTime() {
+		return new MeasurementFacets(elements, from, until, since, true);
+	}
+
+	/**
+	 * Gets the same facets restricted to the measurements taken after a time
+	 * @param dateTime Lexical form of an xsd:dateTime
+	 * @return
+	 * @throws IllegalArgumentException if the time is not an xsd:dateTime
+	 */
+	MeasurementFacets since(final String dateTime) {
+		if(dateTime == null || !DATE_TIME.matcher(dateTime).matches()) {
+			throw new IllegalArgumentException("Invalid dateTime '"+dateTime+"'");
+		}
+		return new MeasurementFacets(elements, from, until, dateTime, true);
+	}
+
+	/**
+	 * Indicates whether a value is the lexical form of an xsd:dateTime
+	 * @param value Value to check
+	 * @return
+	 */
+	static boolean isDateTime(final String value) {
+		return value != null && DATE_TIME.matcher(value).matches();
+	}
+
+	/**
+	 * Reads the facet selections from a request, resolving the selected
+	 * characteristic categories against the endpoint if they have not been
+	 * seen before
+	 * @param request Request object encapsulating the client's request
+	 * @return
+	 */
+	static MeasurementFacets fromRequest(final Request request) {
+		final List<String> categories = parseCharacteristics(request.getParam(CHARACTERISTIC_PARAM));
+		List<String> elements = null;
+		if(categories != null) {
+			final Set<String> resolved = new LinkedHashSet<String>();
+			for(String category : categories) {
+				final List<String> list = resolve(category);
+				if(list == null) {
+					// leave the selection to the characteristics facet
+					resolved.clear();
+					break;
+				}
+				resolved.addAll(list);
+			}
+			if(!resolved.isEmpty()) {
+				elements = new ArrayList<String>(resolved);
+			}
+		}
+		String from = parseDate(request.getParam(FROM_PARAM));
+		String until = parseDate(request.getParam(UNTIL_PARAM));
+		if(from == null && until == null || from != null && until != null && from.compareTo(until) >= 0) {
+			from = until = null;
+		}
+		if(elements == null && from == null && until == null) {
+			return NONE;
+		}
+		return new MeasurementFacets(elements, from, until);
+	}
+
+	/**
+	 * Reads the characteristic categories selected in a request
+	 * @param param Value of the characteristic parameter
+	 * @return The category URIs, or null if none were selected
+	 * @throws IllegalArgumentException if a category is not a URI
+	 */
+	static List<String> parseCharacteristics(final Object param) {
+		if(!(param instanceof JSONArray) || ((JSONArray)param).length() == 0) {
+			return null;
+		}
+		final JSONArray array = (JSONArray)param;
+		final List<String> categories = new ArrayList<String>();
+		for(int i=0;i<array.length();i++) {
+			final String uri = array.optString(i, "");
+			if(!QueryTemplate.isSafeURI(uri)) {
+				throw new IllegalArgumentException("Invalid characteristic '"+uri+"'");
+			}
+			categories.add(uri);
+		}
+		return categories;
+	}
+
+	/**
+	 * Reads a date of the form yyyy-MM-dd accepted by the time facet
+	 * @param param Value of the from or until parameter
+	 * @return The date, or null if it is missing or malformed, in which case
+	 * the time facet does not filter on it either
+	 */
+	static String parseDate(final Object param) {
+		if(!(param instanceof String) || !DATE.matcher((String)param).matches()) {
+			return null;
+		}
+		return (String)param;
+	}
+
+	/**
+	 * Indicates whether the facets select every measurement
+	 * @return
+	 */
+	boolean isEmpty() {
+		return elements == null && from == null && until == null && !timed;
+	}
+
+	/**
+	 * Describes which selections are present, for keying query templates
+	 * @return
+	 */
+	String getShape() {
+		return (elements != null ? "e" : "")+(from != null ? "f" : "")+(until != null ? "u" : "")+
+				(since != null ? "s" : "")+(timed ? "t" : "");
+	}
+
+	/**
+	 * Describes the selections and their values, for telling whether two
+	 * requests select the same measurements
+	 * @return
+	 */
+	String getSignature() {
+		return getShape()+" "+elements+" "+from+" "+until+" "+since;
+	}
+
+	/**
+	 * Gets facets of the same shape whose values are the tokens used while a
+	 * {@link QueryTemplate} is built
+	 * @return
+	 */
+	MeasurementFacets getPlaceholders() {
+		return new MeasurementFacets(
+				elements != null ? Collections.singletonList(QueryTemplate.URI_SLOT+ELEMENT_VAR) : null,
+				from != null ? QueryTemplate.LITERAL_SLOT+FROM_PARAM : null,
+				until != null ? QueryTemplate.LITERAL_SLOT+UNTIL_PARAM : null,
+				since != null ? QueryTemplate.LITERAL_SLOT+SINCE_SLOT : null, timed);
+	}
+
+	/**
+	 * Gets the same facets with the characteristics replaced by the
+	 * placeholder that {@link #addValues(SiteValues)} registers them under
+	 * @return
+	 */
+	MeasurementFacets getElementPlaceholder() {
+		return elements == null ? this : new MeasurementFacets(
+				Collections.singletonList(QueryTemplate.URI_SLOT+ELEMENT_VAR), from, until, since, timed);
+	}
+
+	/**
+	 * Registers the selected characteristics under the placeholder of
+	 * {@link #getPlaceholders()} and {@link #getElementPlaceholder()}, so
+	 * they are sent as a VALUES block
+	 * @param values Lists of the query
+	 */
+	void addValues(final SiteValues values) {
+		if(elements != null) {
+			values.uris(ELEMENT_VAR, elements, false);
+		}
+	}
+
+	/**
+	 * Adds the template tokens standing for the time window and the values
+	 * that fill them. The tokens are those of {@link #getPlaceholders()};
+	 * the characteristics are filled by {@link #addValues(SiteValues)}.
+	 * @param tokens Token list to extend
+	 * @param values Value list to extend
+	 */
+	void addSlots(final List<String> tokens, final List<String> values) {
+		if(from != null) {
+			tokens.add(QueryTemplate.LITERAL_SLOT+FROM_PARAM);
+			values.add(from);
+		}
+		if(until != null) {
+			tokens.add(QueryTemplate.LITERAL_SLOT+UNTIL_PARAM);
+			values.add(until);
+		}
+		if(since != null) {
+			tokens.add(QueryTemplate.LITERAL_SLOT+SINCE_SLOT);
+			values.add(since);
+		}
+	}
+
+	/**
+	 * Builds the filter restricting ?element to the selected characteristics
+	 * @return The filter or null if no characteristics are selected
+	 */
+	String getElementFilter() {
+		return elements == null ? null : "?"+ELEMENT_VAR+" IN ("+QueryTemplate.uriList(elements)+")";
+	}
+
+	/**
+	 * Builds the filter restricting ?time to the selected window, written
+	 * as the time facet writes it, and to the times after {@link #since}
+	 * @return The filter or null if no window is selected
+	 */
+	String getTimeFilter() {
+		if(from == null && until == null && since == null) {
+			return null;
+		}
+		final StringBuilder filter = new StringBuilder();
+		if(from != null) {
+			filter.append("?"+TIME_VAR+" > xsd:dateTime(\""+from+"\")");
+		}
+		if(until != null) {
+			filter.append(filter.length() > 0 ? " && " : "");
+			filter.append("?"+TIME_VAR+" < xsd:dateTime(\""+until+"\")");
+		}
+		if(since != null) {
+			filter.append(filter.length() > 0 ? " && " : "");
+			filter.append("?"+TIME_VAR+" > \""+since+"\"^^xsd:dateTime");
+		}
+		return filter.toString();
+	}
+
+	/**
+	 * Gets the characteristics matched by a category, querying the
+	 * taxonomy the first time the category is seen
+	 * @param category URI of a category in the CUAHSI taxonomy
+	 * @return The characteristics, or null if the taxonomy could not be queried
+	 */
+	static List<String> resolve(final String category) {
+		List<String> elements = CHARACTERISTICS.get(category);
+		if(elements == null) {
+			try {
+				elements = parse(BindingReader.open(SparqlConnection.open(getEndpoint(),
+						buildQuery(category), "application/sparql-results+json")));
+			}
+			catch(IOException e) {
+				log.warn("Unable to resolve characteristic "+category, e);
+				return null;
+			}
+			CHARACTERISTICS.put(category, elements);
+		}
+		return elements;
+	}
+
+	/**
+	 * Caches the characteristics of a category from a SPARQL result set in
+	 * the form returned by {@link #buildQuery(String)}
+	 * @param category URI of the category
+	 * @param sparqlJson SPARQL results
+	 * @return true if the results were parsed, otherwise false
+	 */
+	static boolean load(final String category, final String sparqlJson) {
+		try {
+			CHARACTERISTICS.put(category, parse(BindingReader.open(sparqlJson)));
+			return true;
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse characteristics of "+category, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Forgets every resolved category
+	 */
+	static void clear() {
+		CHARACTERISTICS.clear();
+	}
+
+	/**
+	 * Builds the query listing the characteristics matched by a category,
+	 * i.e. the subclasses of its subclasses
+	 * @param category URI of the category
+	 * @return
+	 */
+	static String buildQuery(final String category) {
+		return "SELECT DISTINCT ?"+ELEMENT_VAR+" WHERE { GRAPH <"+CUAHSI_GRAPH+"> { " +
+				"?"+ELEMENT_VAR+" <"+RDFS_NS+"subClassOf> ?category . " +
+				"?category <"+RDFS_NS+"subClassOf> <"+category+"> } }";
+	}
+
+	private static List<String> parse(final BindingReader reader) throws IOException {
+		final List<String> elements = new ArrayList<String>();
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				final String element = binding.get(ELEMENT_VAR);
+				if(element != null && QueryTemplate.isSafeURI(element)) {
+					elements.add(element);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return Collections.unmodifiableList(elements);
+	}
+
+}
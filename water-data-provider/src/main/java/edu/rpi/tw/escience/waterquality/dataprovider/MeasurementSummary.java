@@ -0,0 +1,391 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import org.json.JSONObject;
+
+import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.RegulationTable;
+import edu.rpi.tw.escience.semanteco.util.NameUtils;
+
+/**
+ * MeasurementSummary compacts the water measurements of a model before it is
+ * handed to the reasoner. Measurements are grouped by site, characteristic,
+ * unit and test type, and each group keeps:
+ * <ul>
+ * <li>its latest measurements, by time:inXSDDateTime;</li>
+ * <li>its worst violation, i.e. the pol:RegulationViolation whose value is
+ * farthest past its limit;</li>
+ * <li>a water:MeasurementSummary linked from the site, holding the number
+ * of measurements and the min, max and mean of their values.</li>
+ * </ul>
+ * Every other measurement of the group is removed along with the
+ * pol:hasMeasurement triple linking it to its site. Measurements without a
+ * site are left untouched.
+ *
+ * EPA measurements carry their permit limits and are typed as violations by
+ * the {@link ViolationEvaluator}, but USGS measurements are only checked
+ * against the regulation selected for the water domain once the model has
+ * been built. That regulation is therefore evaluated before compacting, so
+ * that a violating USGS measurement is kept as its group's worst violation.
+ *
+ * Summary mode is requested with the {@value #PARAM} parameter, either as
+ * true to keep {@value #LATEST_PROPERTY} measurements per group or as the
+ * number to keep, so map views can ask for it while detail views still
+ * receive every measurement.
+ * @author ewpatton
+ *
+ */
+public final class MeasurementSummary {
+
+	static final String PARAM = "summary";
+	/**
+	 * System property controlling the number of measurements kept per group
+	 * when the {@value #PARAM} parameter is true
+	 */
+	public static final String LATEST_PROPERTY = "semanteco.water.summary.latest";
+	private static final int DEFAULT_LATEST = 3;
+
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node WATER_MEASUREMENT = Node.createURI(QueryUtils.WATER_NS+"WaterMeasurement");
+	private static final Node REGULATION_VIOLATION = Node.createURI(QueryUtils.POL_NS+"RegulationViolation");
+	private static final Node HAS_MEASUREMENT = Node.createURI(QueryUtils.POL_NS+"hasMeasurement");
+	private static final Node HAS_CHARACTERISTIC = Node.createURI(QueryUtils.POL_NS+"hasCharacteristic");
+	private static final Node HAS_VALUE = Node.createURI(QueryUtils.POL_NS+"hasValue");
+	private static final Node HAS_UNIT = Node.createURI(QueryUtils.UNIT_NS+"hasUnit");
+	private static final Node TEST_TYPE = Node.createURI(QueryUtils.POL_NS+"test_type");
+	private static final Node HAS_LIMIT_OPERATOR = Node.createURI(QueryUtils.POL_NS+"hasLimitOperator");
+	private static final Node HAS_LIMIT_VALUE = Node.createURI(QueryUtils.POL_NS+"hasLimitValue");
+	private static final Node IN_XSD_DATE_TIME = Node.createURI(QueryUtils.TIME_NS+"inXSDDateTime");
+
+	static final Node MEASUREMENT_SUMMARY = Node.createURI(QueryUtils.WATER_NS+"MeasurementSummary");
+	static final Node HAS_MEASUREMENT_SUMMARY = Node.createURI(QueryUtils.WATER_NS+"hasMeasurementSummary");
+	static final Node HAS_MEASUREMENT_COUNT = Node.createURI(QueryUtils.WATER_NS+"hasMeasurementCount");
+	static final Node HAS_MIN_VALUE = Node.createURI(QueryUtils.WATER_NS+"hasMinValue");
+	static final Node HAS_MAX_VALUE = Node.createURI(QueryUtils.WATER_NS+"hasMaxValue");
+	static final Node HAS_MEAN_VALUE = Node.createURI(QueryUtils.WATER_NS+"hasMeanValue");
+	static final Node HAS_WORST_VIOLATION = Node.createURI(QueryUtils.WATER_NS+"hasWorstViolation");
+
+	private MeasurementSummary() {
+	}
+
+	/**
+	 * Reads the number of measurements to keep per group from a request
+	 * @param request Request object encapsulating the client's request
+	 * @return The number of measurements to keep, or 0 if summary mode was
+	 * not requested
+	 * @throws IllegalArgumentException if the parameter is neither a boolean
+	 * nor a positive number
+	 */
+	public static int getLatest(final Request request) {
+		return parseLatest(request.getParam(PARAM));
+	}
+
+	static int parseLatest(final Object param) {
+		if(param == null || Boolean.FALSE.equals(param)) {
+			return 0;
+		}
+		if(Boolean.TRUE.equals(param)) {
+			return Integer.getInteger(LATEST_PROPERTY, DEFAULT_LATEST);
+		}
+		if(param instanceof Number) {
+			final int latest = ((Number)param).intValue();
+			if(latest < 0) {
+				throw new IllegalArgumentException("Invalid value for '"+PARAM+"'");
+			}
+			return latest;
+		}
+		final String text = param.toString().trim();
+		if(text.isEmpty() || "false".equalsIgnoreCase(text)) {
+			return 0;
+		}
+		if("true".equalsIgnoreCase(text)) {
+			return Integer.getInteger(LATEST_PROPERTY, DEFAULT_LATEST);
+		}
+		try {
+			final int latest = Integer.parseInt(text);
+			if(latest < 0) {
+				throw new IllegalArgumentException("Invalid value for '"+PARAM+"'");
+			}
+			return latest;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Unable to parse input '"+PARAM+"'", e);
+		}
+	}
+
+	/**
+	 * Gets the compiled regulation selected for the water domain in a request
+	 * @param request Request object encapsulating the client's request
+	 * @return The regulation's table, or an empty list if no regulation is
+	 * selected for water or it could not be read
+	 */
+	public static List<RegulationTable> getRegulations(final Request request) {
+		final Object param = request.getParam(RegulationTable.REGULATION_PARAM);
+		if(!(param instanceof JSONObject)) {
+			return Collections.emptyList();
+		}
+		final String url = ((JSONObject)param).optString(NameUtils.cleanName(WaterDataProviderModule.WATER_LABEL));
+		final RegulationTable table = url == null || url.equals("") ? null : RegulationTable.get(url);
+		return table == null ? Collections.<RegulationTable>emptyList() : Collections.singletonList(table);
+	}
+
+	/**
+	 * Replaces all but the latest measurements of each group with a summary
+	 * @param model Model containing water measurements, already evaluated by
+	 * the {@link ViolationEvaluator}
+	 * @param latest Number of measurements to keep per group
+	 * @return The number of measurements removed
+	 */
+	public static int compact(final Model model, final int latest) {
+		return compact(model, latest, Collections.<RegulationTable>emptyList());
+	}
+
+	/**
+	 * Evaluates regulations against the model and replaces all but the latest
+	 * measurements of each group with a summary
+	 * @param model Model containing water measurements, already evaluated by
+	 * the {@link ViolationEvaluator}
+	 * @param latest Number of measurements to keep per group
+	 * @param regulations Regulations whose violations are found before the
+	 * measurements are compacted
+	 * @return The number of measurements removed
+	 */
+	public static int compact(final Model model, final int latest, final List<RegulationTable> regulations) {
+		final Graph graph = model.getGraph();
+		for(RegulationTable regulation : regulations) {
+			regulation.evaluate(graph);
+		}
+		final Map<List<Node>, List<Node>> groups = group(graph);
+		final List<Triple> removed = new ArrayList<Triple>();
+		final List<Triple> added = new ArrayList<Triple>();
+		int count = 0;
+		for(Map.Entry<List<Node>, List<Node>> group : groups.entrySet()) {
+			final List<Node> measurements = group.getValue();
+			final Node site = group.getKey().get(0);
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			double sum = 0;
+			int values = 0;
+			Node worst = null;
+			double worstExcess = -1;
+			for(Node m : measurements) {
+				final double value = toDouble(find(graph, m, HAS_VALUE));
+				if(!Double.isNaN(value)) {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+					sum += value;
+					values++;
+				}
+				if(graph.contains(m, TYPE, REGULATION_VIOLATION)) {
+					final double excess = excess(graph, m, value, regulations);
+					if(worst == null || excess > worstExcess) {
+						worst = m;
+						worstExcess = excess;
+					}
+				}
+			}
+			final Node summary = Node.createURI(site.getURI()+"-summary-"+
+					Integer.toHexString(group.getKey().hashCode()));
+			added.add(Triple.create(site, HAS_MEASUREMENT_SUMMARY, summary));
+			added.add(Triple.create(summary, TYPE, MEASUREMENT_SUMMARY));
+			added.add(Triple.create(summary, HAS_CHARACTERISTIC, group.getKey().get(1)));
+			if(group.getKey().get(2) != null) {
+				added.add(Triple.create(summary, HAS_UNIT, group.getKey().get(2)));
+			}
+			if(group.getKey().get(3) != null) {
+				added.add(Triple.create(summary, TEST_TYPE, group.getKey().get(3)));
+			}
+			added.add(Triple.create(summary, HAS_MEASUREMENT_COUNT,
+					Node.createLiteral(Integer.toString(measurements.size()), null, XSDDatatype.XSDint)));
+			if(values > 0) {
+				added.add(Triple.create(summary, HAS_MIN_VALUE, toLiteral(min)));
+				added.add(Triple.create(summary, HAS_MAX_VALUE, toLiteral(max)));
+				added.add(Triple.create(summary, HAS_MEAN_VALUE, toLiteral(sum / values)));
+			}
+			if(worst != null) {
+				added.add(Triple.create(summary, HAS_WORST_VIOLATION, worst));
+			}
+			if(measurements.size() <= latest) {
+				continue;
+			}
+			Collections.sort(measurements, new LatestFirst(graph));
+			for(Node m : measurements.subList(latest, measurements.size())) {
+				if(m.equals(worst)) {
+					continue;
+				}
+				final ExtendedIterator<Triple> it = graph.find(m, Node.ANY, Node.ANY);
+				try {
+					while(it.hasNext()) {
+						removed.add(it.next());
+					}
+				}
+				finally {
+					it.close();
+				}
+				removed.add(Triple.create(site, HAS_MEASUREMENT, m));
+				count++;
+			}
+		}
+		graph.getBulkUpdateHandler().delete(removed);
+		graph.getBulkUpdateHandler().add(added);
+		return count;
+	}
+
+	/**
+	 * Groups the measurements linked to a site by site, characteristic,
+	 * unit and test type
+	 */
+	private static Map<List<Node>, List<Node>> group(final Graph graph) {
+		final Map<List<Node>, List<Node>> groups = new LinkedHashMap<List<Node>, List<Node>>();
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final Node site = t.getSubject();
+				final Node m = t.getObject();
+				final Node characteristic = find(graph, m, HAS_CHARACTERISTIC);
+				if(!site.isURI() || characteristic == null || !graph.contains(m, TYPE, WATER_MEASUREMENT)) {
+					continue;
+				}
+				final List<Node> key = new ArrayList<Node>(4);
+				key.add(site);
+				key.add(characteristic);
+				key.add(find(graph, m, HAS_UNIT));
+				key.add(find(graph, m, TEST_TYPE));
+				List<Node> group = groups.get(key);
+				if(group == null) {
+					group = new ArrayList<Node>();
+					groups.put(key, group);
+				}
+				group.add(m);
+			}
+		}
+		finally {
+			it.close();
+		}
+		return groups;
+	}
+
+	/**
+	 * Computes how far a violating value is past its limit, which is either
+	 * stated on the measurement or taken from the regulation thresholds it
+	 * falls within
+	 */
+	private static double excess(final Graph graph, final Node m, final double value,
+			final List<RegulationTable> regulations) {
+		if(Double.isNaN(value)) {
+			return 0;
+		}
+		final double limit = toDouble(find(graph, m, HAS_LIMIT_VALUE));
+		final Node op = find(graph, m, HAS_LIMIT_OPERATOR);
+		if(!Double.isNaN(limit) && op != null && op.isLiteral()) {
+			return excess(op.getLiteralLexicalForm(), limit, value);
+		}
+		final Node characteristic = find(graph, m, HAS_CHARACTERISTIC);
+		if(characteristic == null || !characteristic.isURI()) {
+			return 0;
+		}
+		final Node unit = find(graph, m, HAS_UNIT);
+		final String unitName = unit == null ? null : unit.isURI() ? unit.getURI() :
+			unit.isLiteral() ? unit.getLiteralLexicalForm() : null;
+		double excess = 0;
+		for(RegulationTable regulation : regulations) {
+			for(RegulationTable.Threshold threshold : regulation.lookup(characteristic.getURI(), unitName)) {
+				if(!threshold.matches(value)) {
+					continue;
+				}
+				for(int i=0;i<threshold.size();i++) {
+					excess = Math.max(excess, excess(threshold.getOperator(i), threshold.getLimit(i), value));
+				}
+			}
+		}
+		return excess;
+	}
+
+	private static double excess(final String op, final double limit, final double value) {
+		return op.trim().startsWith("<") ? value - limit : limit - value;
+	}
+
+	private static Node find(final Graph graph, final Node s, final Node p) {
+		final ExtendedIterator<Triple> it = graph.find(s, p, Node.ANY);
+		try {
+			return it.hasNext() ? it.next().getObject() : null;
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	private static Node toLiteral(final double value) {
+		return Node.createLiteral(Double.toString(value), null, XSDDatatype.XSDdouble);
+	}
+
+	private static double toDouble(final Node node) {
+		if(node == null || !node.isLiteral()) {
+			return Double.NaN;
+		}
+		final Object value = node.getLiteralValue();
+		if(value instanceof Number) {
+			return ((Number)value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(node.getLiteralLexicalForm().trim());
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Orders measurements newest first. Measurements without a time come
+	 * last, and ties are broken by URI so the order is stable across loads.
+	 */
+	private static final class LatestFirst implements Comparator<Node> {
+		private final Graph graph;
+		private final Map<Node, String> times = new HashMap<Node, String>();
+
+		LatestFirst(final Graph graph) {
+			this.graph = graph;
+		}
+
+		@Override
+		public int compare(final Node a, final Node b) {
+			final String ta = time(a);
+			final String tb = time(b);
+			if(ta != null && tb != null && !ta.equals(tb)) {
+				return tb.compareTo(ta);
+			}
+			if(ta == null && tb != null) {
+				return 1;
+			}
+			if(ta != null && tb == null) {
+				return -1;
+			}
+			return b.toString().compareTo(a.toString());
+		}
+
+		private String time(final Node m) {
+			if(!times.containsKey(m)) {
+				final Node time = find(graph, m, IN_XSD_DATE_TIME);
+				times.put(m, time != null && time.isLiteral() ? time.getLiteralLexicalForm() : null);
+			}
+			return times.get(m);
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * QueryTemplate holds the serialized form of a query whose structure does not
+ * change between requests, split around the few values that do (graph URIs,
+ * county codes, site lists). The query is built through the query API once,
+ * with recognizable tokens in place of those values, and every later request
+ * only has to copy the fragments and fill in its own values.
+ * <pre>
+ * QueryTemplate template = QueryTemplate.get(key);
+ * if(template == null) {
+ *     template = QueryTemplate.compile(query.toString(), "&lt;http://graph&gt;", COUNTY_SLOT);
+ *     QueryTemplate.put(key, template);
+ * }
+ * final String text = template.fill("&lt;http://other-graph&gt;", "7");
+ * </pre>
+ * Templates are cached by a key describing the shape of the query, e.g. the
+ * kinds of graphs it reads, and are shared by all requests.
+ * @author ewpatton
+ *
+ */
+final class QueryTemplate {
+
+	/**
+	 * Token used in place of a literal value, e.g. a county code, while the
+	 * template query is built
+	 */
+	static final String LITERAL_SLOT = "semanteco_slot_";
+	/**
+	 * Prefix of the URIs used in place of a site list while the template
+	 * query is built
+	 */
+	static final String URI_SLOT = "urn:x-semanteco:slot:";
+	private static final Pattern SAFE_LITERAL = Pattern.compile("[A-Za-z0-9_.\\-]*");
+	private static final ConcurrentMap<String, QueryTemplate> TEMPLATES =
+			new ConcurrentHashMap<String, QueryTemplate>();
+
+	private final String[] fragments;
+	private final int[] slots;
+	private final int slotCount;
+	private final int fixedLength;
+
+	private QueryTemplate(final String[] fragments, final int[] slots, final int slotCount) {
+		this.fragments = fragments;
+		this.slots = slots;
+		this.slotCount = slotCount;
+		int length = 0;
+		for(String fragment : fragments) {
+			length += fragment.length();
+		}
+		this.fixedLength = length;
+	}
+
+	/**
+	 * Splits a serialized query around every occurrence of the given tokens.
+	 * @param text Serialized query
+	 * @param tokens Text standing in for each slot. Slot i is filled with
+	 * the i-th value passed to {@link #fill(String...)}.
+	 * @return The template, or null if one of the tokens does not occur in
+	 * the text, in which case the query cannot be prepared safely
+	 */
+	static QueryTemplate compile(final String text, final String... tokens) {
+		final List<String> fragments = new ArrayList<String>();
+		final List<Integer> slots = new ArrayList<Integer>();
+		final boolean[] seen = new boolean[tokens.length];
+		int pos = 0;
+		while(true) {
+			int next = -1;
+			int slot = -1;
+			for(int i=0;i<tokens.length;i++) {
+				final int index = text.indexOf(tokens[i], pos);
+				if(index >= 0 && (next < 0 || index < next)) {
+					next = index;
+					slot = i;
+				}
+			}
+			if(next < 0) {
+				break;
+			}
+			fragments.add(text.substring(pos, next));
+			slots.add(slot);
+			seen[slot] = true;
+			pos = next + tokens[slot].length();
+		}
+		fragments.add(text.substring(pos));
+		for(boolean found : seen) {
+			if(!found) {
+				return null;
+			}
+		}
+		final int[] order = new int[slots.size()];
+		for(int i=0;i<order.length;i++) {
+			order[i] = slots.get(i);
+		}
+		return new QueryTemplate(fragments.toArray(new String[fragments.size()]), order, tokens.length);
+	}
+
+	/**
+	 * Produces the query text for one set of values
+	 * @param values Value of each slot, in the order the tokens were given to
+	 * {@link #compile(String, String...)}
+	 * @return The serialized query
+	 */
+	String fill(final String... values) {
+		if(values.length != slotCount) {
+			throw new IllegalArgumentException("Expected "+slotCount+" values but got "+values.length);
+		}
+		int length = fixedLength;
+		for(int slot : slots) {
+			length += values[slot].length();
+		}
+		final StringBuilder sb = new StringBuilder(length);
+		for(int i=0;i<slots.length;i++) {
+			sb.append(fragments[i]).append(values[slots[i]]);
+		}
+		sb.append(fragments[slots.length]);
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the number of slots in the template
+	 * @return
+	 */
+	int getSlotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * Gets the template cached under a key
+	 * @param key Key describing the shape of the query
+	 * @return The template or null if none has been cached
+	 */
+	static QueryTemplate get(final String key) {
+		return TEMPLATES.get(key);
+	}
+
+	/**
+	 * Caches a template under a key
+	 * @param key Key describing the shape of the query
+	 * @param template The template
+	 */
+	static void put(final String key, final QueryTemplate template) {
+		TEMPLATES.put(key, template);
+	}
+
+	/**
+	 * Removes every cached template
+	 */
+	static void clear() {
+		TEMPLATES.clear();
+	}
+
+	/**
+	 * Indicates whether a request value can be placed inside a quoted
+	 * literal without escaping. Values that cannot are sent through the
+	 * query API instead of a template.
+	 * @param value Value taken from the request
+	 * @return
+	 */
+	static boolean isSafeLiteral(final String value) {
+		return value != null && SAFE_LITERAL.matcher(value).matches();
+	}
+
+	/**
+	 * Indicates whether a URI taken from a request or a result can be placed
+	 * between angle brackets or in a quoted literal without escaping, and
+	 * inside an IN filter
+	 * @param uri URI to check
+	 * @return
+	 */
+	static boolean isSafeURI(final String uri) {
+		if(uri == null || uri.isEmpty()) {
+			return false;
+		}
+		for(int i=0;i<uri.length();i++) {
+			final char c = uri.charAt(i);
+			if(c <= ' ' || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' ||
+					c == '|' || c == '\\' || c == '^' || c == '`' || c == ',' || c == '(' || c == ')') {
+				return false;
+			}
+		}
+		try {
+			return URI.create(uri).isAbsolute();
+		}
+		catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Formats a site list the way {@link DataModelBuilder#addSiteFilter}
+	 * writes it inside its IN filter
+	 * @param sites Site URIs
+	 * @return The sites as &lt;a&gt;,&lt;b&gt;,...
+	 */
+	static String uriList(final List<String> sites) {
+		final StringBuilder sb = new StringBuilder("<");
+		boolean first = true;
+		for(String site : sites) {
+			if(!first) {
+				sb.append(">,<");
+			}
+			else {
+				first = false;
+			}
+			sb.append(site);
+		}
+		return sb.append('>').toString();
+	}
+
+}
@@ -1,29 +1,21 @@
 package edu.rpi.tw.escience.waterquality.dataprovider;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.apache.log4j.Logger;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+
+import com.hp.hpl.jena.rdf.model.Model;
 
 import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
+import edu.rpi.tw.escience.semanteco.QueryExecutor;
 import edu.rpi.tw.escience.semanteco.Request;
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
 import edu.rpi.tw.escience.semanteco.query.Query;
 import edu.rpi.tw.escience.semanteco.query.QueryResource;
@@ -58,25 +50,59 @@ public class QueryUtils {
 	public static final String REPR_NS = "http://sweet.jpl.nasa.gov/2.1/repr.owl#";
 	public static final String UNIT_NS = "http://sweet.jpl.nasa.gov/2.1/reprSciUnits.owl#";
 	public static final String TIME_NS = "http://www.w3.org/2006/time#";
+	public static final String SEMANTECO_ENDPOINT = "http://sparql.tw.rpi.edu/virtuoso/sparql";
+	public static final String ENDPOINT_PROPERTY = "semanteco.water.endpoint";
 
 	private final Logger log;
 	private final ModuleConfiguration config;
 	private final Request request;
-	
-	private static final Map<String, String> stateUriMap = new HashMap<String, String>();
+	private final QueryExecutor executor;
 	
 	protected QueryUtils(final Request request, final ModuleConfiguration config) {
 		this.request = request;
 		this.log = request.getLogger();
 		this.config = config;
+		this.executor = null;
+	}
+
+	/**
+	 * Constructs QueryUtils that run every query with the given executor
+	 * and do not refer to a request, so that they can be used after the
+	 * request has been answered
+	 * @param log Logger to write to
+	 * @param config Data source module's configuration
+	 * @param executor Query executor obtained while the request was open
+	 */
+	protected QueryUtils(final Logger log, final ModuleConfiguration config, final QueryExecutor executor) {
+		this.request = null;
+		this.log = log;
+		this.config = config;
+		this.executor = executor;
+	}
+
+	/**
+	 * Gets the query executor to run queries with
+	 * @return The executor given at construction, or otherwise the
+	 * configuration's executor for the request
+	 */
+	protected final QueryExecutor getQueryExecutor() {
+		return executor != null ? executor : config.getQueryExecutor(request);
 	}
 	
+	/**
+	 * Gets the instance hub URI for a state. Lookups are answered by the
+	 * {@link StateRegistry}; the remote query is only sent for states the
+	 * registry does not know.
+	 * @param state Two letter state abbreviation, e.g. RI
+	 * @return URI of the state in the instance hub or null if it is unknown
+	 */
 	protected final String getStateURI(final String state) {
-		log.trace("retrieveStateGraphsForSource");
-		if(stateUriMap.containsKey(state)) {
-			return stateUriMap.get(state);
+		log.trace("getStateURI");
+		final StateRegistry registry = StateRegistry.getInstance();
+		String stateUri = registry.lookup(state);
+		if(stateUri != null) {
+			return stateUri;
 		}
-		String stateUri = null;
 		
 		Query query = config.getQueryFactory().newQuery(Type.SELECT);
 		query.setVariables(null);
@@ -86,28 +112,25 @@ public class QueryUtils {
 		graph.addPattern(stateVar, identifier, state, null);
 		
 		// execute query
-		String results = config.getQueryExecutor(request).execute(LOGD_ENDPOINT, query);
+		String results = getQueryExecutor().execute(LOGD_ENDPOINT, query);
 		if(results != null) {
 			try {
-				JSONObject response = new JSONObject(results);
-				if(response.getJSONObject(RESULTS_BLOCK) != null && 
-					response.getJSONObject(RESULTS_BLOCK).getJSONArray(BINDINGS) != null &&
-					response.getJSONObject(RESULTS_BLOCK).getJSONArray(BINDINGS).length() > 0) {
-					JSONArray bindings = response.getJSONObject(RESULTS_BLOCK).getJSONArray(BINDINGS);
-					for(int i=0;i<bindings.length();i++) {
-						JSONObject binding = bindings.getJSONObject(i);
-						if(binding.getJSONObject(STATE_VAR) != null && binding.getJSONObject(STATE_VAR).getString(VALUE) != null) {
-							stateUri = binding.getJSONObject(STATE_VAR).getString(VALUE);
-							break;
-						}
+				final BindingReader reader = BindingReader.open(results);
+				try {
+					Map<String, String> binding = null;
+					while(stateUri == null && (binding = reader.next()) != null) {
+						stateUri = binding.get(STATE_VAR);
 					}
 				}
-			} catch (JSONException e) {
+				finally {
+					reader.close();
+				}
+			} catch (IOException e) {
 				log.error("Could not parse JSON results", e);
 			}
 		}
 		if(stateUri != null) {
-			stateUriMap.put(state, stateUri);
+			registry.register(state, stateUri);
 		}
 		return stateUri;
 	}
@@ -122,6 +145,28 @@ public class QueryUtils {
 	 */
 	protected List<String> retrieveStateGraphsForSource(final String state, final String source) {
 		log.trace("retrieveStateGraphsForSource");
+		final GraphCatalog catalog = GraphCatalog.getInstance();
+		if(!catalog.isLoaded()) {
+			catalog.load(getQueryExecutor(), config);
+		}
+		List<String> graphs = catalog.lookup(state, source);
+		if(graphs == null) {
+			graphs = queryStateGraphsForSource(state, source);
+			catalog.remember(state, source, graphs);
+		}
+		return new ArrayList<String>(graphs);
+	}
+	
+	/**
+	 * Queries {@link #SEMANTECO_METADATA} for the graphs related to the
+	 * specified state and source. Only used when the {@link GraphCatalog}
+	 * could not be loaded.
+	 * 
+	 * @param state State uri in instance hub
+	 * @param source Source entity, e.g. http://sparql.tw.rpi.edu/source/epa-gov
+	 * @return List of URIs representing graphs in the SPARQL endpoint
+	 */
+	private List<String> queryStateGraphsForSource(final String state, final String source) {
 		final List<String> graphs = new ArrayList<String>();
 		
 		// get graphs from sparql.tw.rpi.edu related to (stateUri, source)
@@ -135,11 +180,60 @@ public class QueryUtils {
 		graph.addPattern(graphVar, sourceProp, query.getResource(source));
 		
 		// execute query
-		String results = config.getQueryExecutor(request).accept("application/json").execute(query);
+		final String results = execute(query, "application/json");
 		graphs.addAll(processUriList(results));
 		return graphs;
 	}
 
+	/**
+	 * Executes a query with the query executor of {@link #getQueryExecutor()}
+	 * @param query Query to execute
+	 * @param format Format requested from the endpoint
+	 * @return The results, or null if the query failed
+	 */
+	protected final String execute(final Query query, final String format) {
+		return execute(getQueryExecutor(), query, format);
+	}
+
+	/**
+	 * Executes a CONSTRUCT query with the query executor of {@link #getQueryExecutor()}
+	 * @param query Query to execute
+	 * @param format Format requested from the endpoint
+	 * @param model Model to populate
+	 */
+	protected final void execute(final Query query, final String format, final Model model) {
+		final QueryExecutor executor = getQueryExecutor();
+		synchronized(executor) {
+			executor.accept(format).execute(query, model);
+		}
+	}
+
+	/**
+	 * Executes a query with a query executor. The executor's accept() applies
+	 * to the next execute(), so the pair is made under the executor's lock;
+	 * sources loaded in parallel for one request only wait on each other if
+	 * the configuration hands them the same executor.
+	 * @param executor Query executor
+	 * @param query Query to execute
+	 * @param format Format requested from the endpoint
+	 * @return The results, or null if the query failed
+	 */
+	static String execute(final QueryExecutor executor, final Query query, final String format) {
+		synchronized(executor) {
+			return executor.accept(format).execute(query);
+		}
+	}
+
+	/**
+	 * Gets the SPARQL endpoint holding the water data. Defaults to
+	 * {@link #SEMANTECO_ENDPOINT} and can be overridden with the
+	 * {@value #ENDPOINT_PROPERTY} system property.
+	 * @return
+	 */
+	public static String getEndpoint() {
+		return System.getProperty(ENDPOINT_PROPERTY, SEMANTECO_ENDPOINT);
+	}
+
 	/**
 	 * Processes the results from metadata graph query
 	 * @param results application/sparql-results+xml encoded results from a SPARQL endpoint
@@ -149,25 +243,20 @@ public class QueryUtils {
 		log.trace("processResults");
 		Set<String> graphs = new HashSet<String>();
 		try {
-			ByteArrayInputStream data = new ByteArrayInputStream(results.getBytes("UTF-8"));
-			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(data);
-			NodeList nodesToProcess = doc.getElementsByTagName("result");
-			for(int i=0;i<nodesToProcess.getLength();i++) {
-				Element e = (Element)nodesToProcess.item(i);
-				NodeList bindings = e.getElementsByTagName("binding");
-				for(int j=0;j<bindings.getLength();j++) {
-					Element binding = (Element)bindings.item(j);
-					if(binding.getAttribute("name").equals(GRAPH_VAR)) {
-						graphs.add(binding.getTextContent().trim());
+			final BindingReader reader = BindingReader.open(results);
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					if(binding.containsKey(GRAPH_VAR)) {
+						graphs.add(binding.get(GRAPH_VAR).trim());
 					}
 				}
 			}
-		} catch (SAXException e) {
-			log.error("Could not parse SPARQL results", e);
+			finally {
+				reader.close();
+			}
 		} catch (IOException e) {
 			log.error("Could not read SPARQL results", e);
-		} catch (ParserConfigurationException e) {
-			log.error("Parser configuration error", e);
 		}
 		return graphs;
 	}
@@ -183,22 +272,27 @@ public class QueryUtils {
 		
 		List<String> uris = new ArrayList<String>();
 		try {
-			JSONObject results = new JSONObject(sparqlJson);
-			JSONArray vars = results.getJSONObject("head").getJSONArray("vars");
-			String var = vars.getString(0);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray("bindings");
-			for(int i=0;i<bindings.length();i++) {
-				try {
-					JSONObject binding = bindings.getJSONObject(i);
-					uris.add(binding.getJSONObject(var).getString("value"));
-				}
-				catch(Exception e) {
-					log.warn("Unable to process binding in result", e);
+			final BindingReader reader = BindingReader.open(sparqlJson);
+			try {
+				String var = reader.getVariables().isEmpty() ? null : reader.getVariables().get(0);
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					if(var == null && !binding.isEmpty()) {
+						var = binding.keySet().iterator().next();
+					}
+					if(binding.containsKey(var)) {
+						uris.add(binding.get(var));
+					}
+					else {
+						log.warn("Unable to process binding in result: "+binding);
+					}
 				}
 			}
+			finally {
+				reader.close();
+			}
 		}
-		catch(Exception e) {
+		catch(IOException e) {
 			log.warn("Unable to retrieve URI list from SPARQL", e);
 		}
 		return uris;
@@ -0,0 +1,195 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.rpi.tw.escience.semanteco.Request;
+
+/**
+ * SiteCursor marks a position in the sites of a county ordered by distance
+ * from the viewport center: the distance and URI of the last site of a page.
+ * The next page holds the sites after that position, i.e. farther away, or
+ * at the same distance with a greater URI, so it can be found without
+ * sorting and skipping every earlier page.
+ *
+ * Cursors are handed to the client as opaque strings through
+ * {@link WaterDataProviderModule#getSitePage} and returned in the
+ * {@value #PARAM} parameter, e.g. <code>{"site": "...", "facility": "..."}</code>,
+ * keyed like the limits parameter. A cursor is only honored for the center it
+ * was issued for; otherwise the offset in the limits parameter is used.
+ * @author ewpatton
+ *
+ */
+final class SiteCursor {
+
+	static final String PARAM = "cursor";
+	private static final String VERSION = "1";
+	private static final char SEPARATOR = '|';
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	final double clat;
+	final double clng;
+	final double distance;
+	final String uri;
+
+	SiteCursor(final double clat, final double clng, final double distance, final String uri) {
+		this.clat = clat;
+		this.clng = clng;
+		this.distance = distance;
+		this.uri = uri;
+	}
+
+	/**
+	 * Reads the cursor for a kind of site from a request
+	 * @param request Request object encapsulating the client's request
+	 * @param type Kind of site, e.g. site or facility
+	 * @param clat Center latitude of the viewport
+	 * @param clng Center longitude of the viewport
+	 * @return The cursor, or null if the request has none for this kind of
+	 * site or it was issued for another center
+	 * @throws IllegalArgumentException if the cursor cannot be decoded
+	 */
+	static SiteCursor fromRequest(final Request request, final String type,
+			final double clat, final double clng) {
+		final Object param = request.getParam(PARAM);
+		JSONObject cursors = null;
+		if(param instanceof JSONObject) {
+			cursors = (JSONObject)param;
+		}
+		else if(param instanceof String && ((String)param).length() > 0) {
+			try {
+				cursors = new JSONObject((String)param);
+			}
+			catch(JSONException e) {
+				throw new IllegalArgumentException("Unable to parse input '"+PARAM+"'", e);
+			}
+		}
+		if(cursors == null || cursors.optString(type, "").length() == 0) {
+			return null;
+		}
+		final SiteCursor cursor = decode(cursors.optString(type));
+		return cursor.clat == clat && cursor.clng == clng ? cursor : null;
+	}
+
+	/**
+	 * Decodes a cursor produced by {@link #encode()}
+	 * @param text Encoded cursor
+	 * @return
+	 * @throws IllegalArgumentException if the text is not a valid cursor
+	 */
+	static SiteCursor decode(final String text) {
+		if(text.length() % 2 != 0) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+		final byte[] bytes = new byte[text.length() / 2];
+		for(int i=0;i<bytes.length;i++) {
+			final int hi = Character.digit(text.charAt(2 * i), 16);
+			final int lo = Character.digit(text.charAt(2 * i + 1), 16);
+			if(hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("Invalid cursor");
+			}
+			bytes[i] = (byte)(hi << 4 | lo);
+		}
+		final String[] parts;
+		try {
+			parts = new String(bytes, "UTF-8").split("\\|", 5);
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		if(parts.length != 5 || !VERSION.equals(parts[0]) || !QueryTemplate.isSafeURI(parts[4])) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+		try {
+			final SiteCursor cursor = new SiteCursor(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+					Double.parseDouble(parts[3]), parts[4]);
+			if(Double.isNaN(cursor.distance) || Double.isInfinite(cursor.distance)) {
+				throw new IllegalArgumentException("Invalid cursor");
+			}
+			return cursor;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor", e);
+		}
+	}
+
+	/**
+	 * Encodes the cursor as an opaque string
+	 * @return
+	 */
+	String encode() {
+		final byte[] bytes;
+		try {
+			bytes = (VERSION+SEPARATOR+clat+SEPARATOR+clng+SEPARATOR+distance+SEPARATOR+uri).getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Indicates whether a site comes after the cursor
+	 * @param d Distance of the site from the center
+	 * @param site Site URI
+	 * @return
+	 */
+	boolean precedes(final double d, final String site) {
+		return d > distance || d == distance && site.compareTo(uri) > 0;
+	}
+
+	/**
+	 * Builds the filter selecting the sites after the cursor. The endpoint
+	 * computes distances from the decimal coordinates while the cursor holds
+	 * a double, so distances within a rounding error of the cursor are
+	 * treated as equal to it.
+	 * @param expr Expression computing the distance of a site from the
+	 * center, as used in the ORDER BY clause
+	 * @param site Name of the site variable
+	 * @return
+	 */
+	String buildFilter(final String expr, final String site) {
+		final double epsilon = distance * 1e-12 + 1e-15;
+		return "("+expr+" > "+(distance + epsilon)+" || ("+expr+" >= "+(distance - epsilon)+
+				" && str(?"+site+") > \""+uri+"\"))";
+	}
+
+	/**
+	 * Computes the distance used to order sites, matching
+	 * {@link DataModelBuilder#buildOrderByClause(double, double)}
+	 * @return
+	 */
+	static double distance(final double lat, final double lng, final double clat, final double clng) {
+		final double dlat = lat - clat;
+		final double dlng = lng - clng;
+		return dlat * dlat + dlng * dlng;
+	}
+
+	/**
+	 * A page of sites and the cursor of the page that follows it
+	 */
+	static final class Page {
+		final List<String> sites;
+		final SiteCursor next;
+
+		Page(final List<String> sites, final SiteCursor next) {
+			this.sites = sites;
+			this.next = next;
+		}
+
+		JSONObject toJSON() throws JSONException {
+			final JSONObject page = new JSONObject();
+			page.put("sites", sites);
+			page.put(PARAM, next != null ? next.encode() : JSONObject.NULL);
+			return page;
+		}
+	}
+
+}
@@ -0,0 +1,384 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+
+/**
+ * SiteIndex is an in-memory spatial index over the sites of one county. It
+ * stores site URIs and coordinates in parallel arrays bucketed into a uniform
+ * grid so that the sites nearest to the viewport center can be paged through
+ * locally instead of asking the endpoint to sort the county on every request.
+ *
+ * Distances are squared differences in degrees, matching the ORDER BY
+ * clause produced by {@link DataModelBuilder#buildOrderByClause(double, double)}.
+ * Sites at the same distance are ordered by URI.
+ *
+ * Indexes are kept in a small LRU cache keyed by the graphs and county they
+ * were built from. Graph URIs carry the dataset version, so a new version of
+ * the data produces a new key.
+ * @author ewpatton
+ *
+ */
+public final class SiteIndex {
+
+	private static final int MAX_INDEXES = 256;
+	private static final int SITES_PER_CELL = 4;
+	private static final Map<String, SiteIndex> INDEXES = Collections.synchronizedMap(
+			new LinkedHashMap<String, SiteIndex>(16, 0.75f, true) {
+				private static final long serialVersionUID = 5336151383413651484L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, SiteIndex> eldest) {
+					return size() > MAX_INDEXES;
+				}
+			});
+
+	private final String[] uris;
+	private final double[] lats;
+	private final double[] lngs;
+	private final double minLat;
+	private final double minLng;
+	private final double cellSize;
+	private final int rows;
+	private final int cols;
+	private final int[] cellStart;
+	private final int[] cellSites;
+
+	/**
+	 * Builds an index over the given sites
+	 * @param uris Site URIs
+	 * @param lats Site latitudes, parallel to uris
+	 * @param lngs Site longitudes, parallel to uris
+	 */
+	public SiteIndex(final String[] uris, final double[] lats, final double[] lngs) {
+		if(uris.length != lats.length || uris.length != lngs.length) {
+			throw new IllegalArgumentException("Site URIs and coordinates must be the same length");
+		}
+		this.uris = uris;
+		this.lats = lats;
+		this.lngs = lngs;
+		double loLat = Double.POSITIVE_INFINITY, hiLat = Double.NEGATIVE_INFINITY;
+		double loLng = Double.POSITIVE_INFINITY, hiLng = Double.NEGATIVE_INFINITY;
+		for(int i=0;i<uris.length;i++) {
+			loLat = Math.min(loLat, lats[i]);
+			hiLat = Math.max(hiLat, lats[i]);
+			loLng = Math.min(loLng, lngs[i]);
+			hiLng = Math.max(hiLng, lngs[i]);
+		}
+		if(uris.length == 0) {
+			loLat = hiLat = loLng = hiLng = 0;
+		}
+		minLat = loLat;
+		minLng = loLng;
+		final double span = Math.max(hiLat - loLat, hiLng - loLng);
+		final int side = Math.max(1, (int)Math.ceil(Math.sqrt((double)uris.length / SITES_PER_CELL)));
+		cellSize = span > 0 ? span / side : 1;
+		rows = (int)((hiLat - loLat) / cellSize) + 1;
+		cols = (int)((hiLng - loLng) / cellSize) + 1;
+
+		// bucket the sites into cells, stored as one array of site indexes
+		// with each cell's sites starting at cellStart[cell]
+		final int[] cellOf = new int[uris.length];
+		cellStart = new int[rows * cols + 1];
+		for(int i=0;i<uris.length;i++) {
+			cellOf[i] = row(lats[i]) * cols + col(lngs[i]);
+			cellStart[cellOf[i] + 1]++;
+		}
+		for(int c=0;c<rows * cols;c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		final int[] fill = new int[rows * cols];
+		cellSites = new int[uris.length];
+		for(int i=0;i<uris.length;i++) {
+			cellSites[cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Gets a cached index
+	 * @param key Key identifying the county and graphs the index was built from
+	 * @return The index or null if none is cached for the key
+	 */
+	public static SiteIndex get(final String key) {
+		return INDEXES.get(key);
+	}
+
+	/**
+	 * Caches an index
+	 * @param key Key identifying the county and graphs the index was built from
+	 * @param index Index to cache
+	 */
+	public static void put(final String key, final SiteIndex index) {
+		INDEXES.put(key, index);
+	}
+
+	/**
+	 * Builds an index from a SPARQL JSON result set binding a site URI and
+	 * its latitude and longitude. Sites without numeric coordinates and site
+	 * URIs ending in "-" (EPA facilities without an identifier) are skipped.
+	 * @param sparqlJson SPARQL results
+	 * @param siteVar Variable bound to site URIs
+	 * @param latVar Variable bound to latitudes
+	 * @param lngVar Variable bound to longitudes
+	 * @return A new index
+	 * @throws IOException if the results cannot be parsed
+	 */
+	public static SiteIndex parse(final String sparqlJson, final String siteVar,
+			final String latVar, final String lngVar) throws IOException {
+		final List<String> uris = new ArrayList<String>();
+		double[] lats = new double[64];
+		double[] lngs = new double[64];
+		final BindingReader reader = BindingReader.open(sparqlJson);
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				final String uri = binding.get(siteVar);
+				if(uri == null || uri.endsWith("-") || !binding.containsKey(latVar) || !binding.containsKey(lngVar)) {
+					continue;
+				}
+				final double lat, lng;
+				try {
+					lat = Double.parseDouble(binding.get(latVar));
+					lng = Double.parseDouble(binding.get(lngVar));
+				}
+				catch(NumberFormatException e) {
+					continue;
+				}
+				if(uris.size() == lats.length) {
+					lats = Arrays.copyOf(lats, lats.length * 2);
+					lngs = Arrays.copyOf(lngs, lngs.length * 2);
+				}
+				lats[uris.size()] = lat;
+				lngs[uris.size()] = lng;
+				uris.add(uri);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		final double[] siteLats = new double[uris.size()];
+		final double[] siteLngs = new double[uris.size()];
+		System.arraycopy(lats, 0, siteLats, 0, siteLats.length);
+		System.arraycopy(lngs, 0, siteLngs, 0, siteLngs.length);
+		return new SiteIndex(uris.toArray(new String[uris.size()]), siteLats, siteLngs);
+	}
+
+	/**
+	 * Gets the number of sites in the index
+	 * @return
+	 */
+	public int size() {
+		return uris.length;
+	}
+
+	/**
+	 * Lists a page of sites ordered by distance from a point.
+	 * @param lat Latitude of the point
+	 * @param lng Longitude of the point
+	 * @param offset Number of nearest sites to skip
+	 * @param limit Maximum number of sites to return
+	 * @return Site URIs, nearest first
+	 */
+	public List<String> nearest(final double lat, final double lng, final int offset, final int limit) {
+		final int k = (int)Math.min((long)offset + limit, uris.length);
+		if(k <= offset || limit <= 0) {
+			return new ArrayList<String>();
+		}
+		final int[] ordered = search(lat, lng, k, null);
+		final List<String> page = new ArrayList<String>(Math.max(0, ordered.length - offset));
+		for(int n=offset;n<ordered.length;n++) {
+			page.add(uris[ordered[n]]);
+		}
+		return page;
+	}
+
+	/**
+	 * Lists the page of sites following a cursor, ordered by distance from
+	 * the cursor's center. Sites closer than the cursor are skipped without
+	 * being ranked, so every page costs about as much as the first.
+	 * @param cursor Position after which the page starts, or null for the first page
+	 * @param lat Latitude of the point, used if there is no cursor
+	 * @param lng Longitude of the point, used if there is no cursor
+	 * @param limit Maximum number of sites to return
+	 * @return The page and the cursor of the page that follows it, which is
+	 * null if the page is empty
+	 */
+	SiteCursor.Page after(final SiteCursor cursor, final double lat, final double lng, final int limit) {
+		final double clat = cursor != null ? cursor.clat : lat;
+		final double clng = cursor != null ? cursor.clng : lng;
+		final List<String> page = new ArrayList<String>();
+		if(limit <= 0 || uris.length == 0) {
+			return new SiteCursor.Page(page, null);
+		}
+		final int[] ordered = search(clat, clng, Math.min(limit, uris.length), cursor);
+		for(int site : ordered) {
+			page.add(uris[site]);
+		}
+		if(ordered.length == 0) {
+			return new SiteCursor.Page(page, null);
+		}
+		final int last = ordered[ordered.length - 1];
+		return new SiteCursor.Page(page, new SiteCursor(clat, clng, distance(last, clat, clng), uris[last]));
+	}
+
+	/**
+	 * Gets the cursor positioned at a site, e.g. the last site of a page
+	 * listed with {@link #nearest(double, double, int, int)}
+	 * @param lat Latitude of the point the sites were ordered from
+	 * @param lng Longitude of the point the sites were ordered from
+	 * @param uri Site URI
+	 * @return The cursor or null if the site is not in the index
+	 */
+	SiteCursor cursorAt(final double lat, final double lng, final String uri) {
+		for(int i=0;i<uris.length;i++) {
+			if(uris[i].equals(uri)) {
+				return new SiteCursor(lat, lng, distance(i, lat, lng), uri);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the k nearest sites to a point that follow a cursor
+	 * @return Site indexes, nearest first
+	 */
+	private int[] search(final double lat, final double lng, final int k, final SiteCursor cursor) {
+		// max-heap of the k nearest sites seen so far
+		final int[] heap = new int[k];
+		final double[] dists = new double[k];
+		int size = 0;
+		final int crow = clamp(row(lat), rows), ccol = clamp(col(lng), cols);
+		int first = 0;
+		if(cursor != null && crow == row(lat) && ccol == col(lng)) {
+			// every site in ring r is at most (r+1) cells away on each axis,
+			// so rings entirely closer than the cursor can be skipped
+			final double reach = Math.sqrt(cursor.distance) / (cellSize * Math.sqrt(2));
+			first = Math.max(0, (int)Math.floor(reach) - 1);
+		}
+		for(int r=first;;r++) {
+			boolean visited = false;
+			for(int i=crow-r;i<=crow+r;i++) {
+				if(i < 0 || i >= rows) {
+					continue;
+				}
+				final int step = (i == crow-r || i == crow+r) ? 1 : 2 * r;
+				for(int j=ccol-r;j<=ccol+r;j+=step) {
+					if(j < 0 || j >= cols) {
+						continue;
+					}
+					visited = true;
+					final int cell = i * cols + j;
+					for(int c=cellStart[cell];c<cellStart[cell + 1];c++) {
+						final int site = cellSites[c];
+						final double d = distance(site, lat, lng);
+						if(cursor != null && !cursor.precedes(d, uris[site])) {
+							continue;
+						}
+						if(size < k) {
+							heap[size] = site;
+							dists[size] = d;
+							siftUp(heap, dists, size++);
+						}
+						else if(compare(d, site, dists[0], heap[0]) < 0) {
+							heap[0] = site;
+							dists[0] = d;
+							siftDown(heap, dists, 0, size);
+						}
+					}
+				}
+			}
+			if(!visited) {
+				break;
+			}
+			// every site in a later ring is at least r cells away
+			final double bound = r * cellSize;
+			if(size == k && dists[0] < bound * bound) {
+				break;
+			}
+		}
+
+		// drain the heap from farthest to nearest
+		final int[] ordered = new int[size];
+		for(int n=size;n>0;n--) {
+			ordered[n - 1] = heap[0];
+			heap[0] = heap[n - 1];
+			dists[0] = dists[n - 1];
+			siftDown(heap, dists, 0, n - 1);
+		}
+		return ordered;
+	}
+
+	private double distance(final int site, final double lat, final double lng) {
+		final double dlat = lats[site] - lat;
+		final double dlng = lngs[site] - lng;
+		return dlat * dlat + dlng * dlng;
+	}
+
+	private int compare(final double d1, final int s1, final double d2, final int s2) {
+		if(d1 < d2) {
+			return -1;
+		}
+		else if(d1 > d2) {
+			return 1;
+		}
+		return uris[s1].compareTo(uris[s2]);
+	}
+
+	private void siftUp(final int[] heap, final double[] dists, int i) {
+		while(i > 0) {
+			final int parent = (i - 1) / 2;
+			if(compare(dists[i], heap[i], dists[parent], heap[parent]) <= 0) {
+				break;
+			}
+			swap(heap, dists, i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(final int[] heap, final double[] dists, int i, final int size) {
+		while(true) {
+			final int left = 2 * i + 1;
+			if(left >= size) {
+				break;
+			}
+			int largest = left;
+			if(left + 1 < size && compare(dists[left + 1], heap[left + 1], dists[left], heap[left]) > 0) {
+				largest = left + 1;
+			}
+			if(compare(dists[largest], heap[largest], dists[i], heap[i]) <= 0) {
+				break;
+			}
+			swap(heap, dists, i, largest);
+			i = largest;
+		}
+	}
+
+	private static void swap(final int[] heap, final double[] dists, final int a, final int b) {
+		final int site = heap[a];
+		heap[a] = heap[b];
+		heap[b] = site;
+		final double d = dists[a];
+		dists[a] = dists[b];
+		dists[b] = d;
+	}
+
+	private int row(final double lat) {
+		return (int)Math.floor((lat - minLat) / cellSize);
+	}
+
+	private int col(final double lng) {
+		return (int)Math.floor((lng - minLng) / cellSize);
+	}
+
+	private static int clamp(final int value, final int count) {
+		return value < 0 ? 0 : (value >= count ? count - 1 : value);
+	}
+
+}
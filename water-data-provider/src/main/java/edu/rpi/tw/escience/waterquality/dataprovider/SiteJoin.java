@@ -0,0 +1,263 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.Arrays;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * SiteJoin joins separately fetched slices of a sites graph and a
+ * measurement graph, producing the triples that the combined CONSTRUCT in
+ * {@link DataModelBuilder} would have produced. This lets the endpoint
+ * answer two single-graph queries instead of a cross-graph join.
+ *
+ * USGS measurements are joined to their site directly: the measurement
+ * slice holds <code>?s pol:hasMeasurement ?measurement</code> for each
+ * measurement. EPA measurements are joined through their permit: both slices
+ * hold <code>pol:hasPermit</code> and each facility is linked to every
+ * measurement with one of its permits. Sites without measurements and
+ * measurements without a site in the slice are dropped, as they would be by
+ * the combined query.
+ *
+ * The join keys are interned in an open-addressing table of int ids, with
+ * the sites for each key chained in int arrays, so that the join does not
+ * allocate per measurement.
+ * @author ewpatton
+ *
+ */
+final class SiteJoin {
+
+	private static final Node RDF_TYPE = RDF.type.asNode();
+	private static final Node HAS_MEASUREMENT = Node.createURI(QueryUtils.POL_NS+"hasMeasurement");
+	private static final Node HAS_PERMIT = Node.createURI(QueryUtils.POL_NS+"hasPermit");
+
+	private SiteJoin() {
+	}
+
+	/**
+	 * Joins two slices into the target model
+	 * @param sites Site or facility triples, including pol:hasPermit for facilities
+	 * @param measurements Measurement triples, including pol:hasMeasurement
+	 * links from the sites for USGS measurements and pol:hasPermit for EPA measurements
+	 * @param siteType Class of the sites, e.g. water:WaterSite
+	 * @param byPermit true to join on permits, false to join on sites
+	 * @param target Model to populate
+	 * @return Number of (site, measurement) links added
+	 */
+	static int join(final Model sites, final Model measurements, final String siteType,
+			final boolean byPermit, final Model target) {
+		final Graph siteGraph = sites.getGraph();
+		final Graph measurementGraph = measurements.getGraph();
+		final Graph out = target.getGraph();
+
+		// index the sites by join key
+		final NodeTable siteIds = new NodeTable();
+		final JoinTable keys = new JoinTable();
+		ExtendedIterator<Triple> it = siteGraph.find(Node.ANY, RDF_TYPE, Node.createURI(siteType));
+		try {
+			while(it.hasNext()) {
+				final Node site = it.next().getSubject();
+				final int id = siteIds.intern(site);
+				if(!byPermit) {
+					keys.add(site, id);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		if(byPermit) {
+			it = siteGraph.find(Node.ANY, HAS_PERMIT, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					final Triple t = it.next();
+					final int id = siteIds.find(t.getSubject());
+					if(id >= 0) {
+						keys.add(t.getObject(), id);
+					}
+				}
+			}
+			finally {
+				it.close();
+			}
+		}
+
+		// probe with the measurements' keys
+		final boolean[] used = new boolean[siteIds.size()];
+		final NodeTable joined = new NodeTable();
+		int links = 0;
+		it = measurementGraph.find(Node.ANY, byPermit ? HAS_PERMIT : HAS_MEASUREMENT, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final Node key = byPermit ? t.getObject() : t.getSubject();
+				final Node measurement = byPermit ? t.getSubject() : t.getObject();
+				for(int entry = keys.first(key); entry >= 0; entry = keys.next(entry)) {
+					final int id = keys.value(entry);
+					out.add(Triple.create(siteIds.get(id), HAS_MEASUREMENT, measurement));
+					used[id] = true;
+					joined.intern(measurement);
+					links++;
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+
+		// copy the joined measurements and the sites that have one
+		it = measurementGraph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				if(!HAS_MEASUREMENT.equals(t.getPredicate()) && joined.find(t.getSubject()) >= 0) {
+					out.add(t);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		it = siteGraph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				if(byPermit && HAS_PERMIT.equals(t.getPredicate())) {
+					continue;
+				}
+				final int id = siteIds.find(t.getSubject());
+				if(id >= 0 && used[id]) {
+					out.add(t);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		return links;
+	}
+
+	/**
+	 * Open-addressing table assigning consecutive int ids to nodes
+	 */
+	static final class NodeTable {
+		private int[] slots = new int[64];
+		private Node[] nodes = new Node[32];
+		private int size = 0;
+
+		/**
+		 * Gets the id of a node, assigning the next id if it is new
+		 */
+		int intern(final Node node) {
+			int slot = slot(node);
+			if(slots[slot] != 0) {
+				return slots[slot] - 1;
+			}
+			if(size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			nodes[size] = node;
+			slots[slot] = ++size;
+			if(size * 2 > slots.length) {
+				rehash();
+			}
+			return size - 1;
+		}
+
+		/**
+		 * Gets the id of a node
+		 * @return The id or -1 if the node has not been interned
+		 */
+		int find(final Node node) {
+			return slots[slot(node)] - 1;
+		}
+
+		Node get(final int id) {
+			return nodes[id];
+		}
+
+		int size() {
+			return size;
+		}
+
+		private int slot(final Node node) {
+			final int mask = slots.length - 1;
+			int slot = mix(node.hashCode()) & mask;
+			while(slots[slot] != 0 && !nodes[slots[slot] - 1].equals(node)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void rehash() {
+			slots = new int[slots.length * 2];
+			final int mask = slots.length - 1;
+			for(int i=0;i<size;i++) {
+				int slot = mix(nodes[i].hashCode()) & mask;
+				while(slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = i + 1;
+			}
+		}
+
+		private static int mix(final int hash) {
+			final int h = hash * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * Multimap from node keys to int values. Keys are interned in a
+	 * {@link NodeTable}; the values of each key are chained through int arrays.
+	 */
+	static final class JoinTable {
+		private final NodeTable keys = new NodeTable();
+		private int[] heads = new int[32];
+		private int[] values = new int[32];
+		private int[] next = new int[32];
+		private int size = 0;
+
+		void add(final Node key, final int value) {
+			final int id = keys.intern(key);
+			if(id >= heads.length) {
+				final int old = heads.length;
+				heads = Arrays.copyOf(heads, Math.max(old * 2, id + 1));
+				Arrays.fill(heads, old, heads.length, 0);
+			}
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+				next = Arrays.copyOf(next, size * 2);
+			}
+			values[size] = value;
+			next[size] = heads[id] - 1;
+			heads[id] = ++size;
+		}
+
+		/**
+		 * Gets the first entry for a key
+		 * @return The entry or -1 if the key has no values
+		 */
+		int first(final Node key) {
+			final int id = keys.find(key);
+			return id < 0 ? -1 : heads[id] - 1;
+		}
+
+		/**
+		 * Gets the entry following an entry for the same key
+		 * @return The entry or -1 if there are no more
+		 */
+		int next(final int entry) {
+			return next[entry];
+		}
+
+		int value(final int entry) {
+			return values[entry];
+		}
+	}
+
+}
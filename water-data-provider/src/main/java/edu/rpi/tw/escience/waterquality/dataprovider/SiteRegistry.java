@@ -0,0 +1,512 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils.*;
+
+/**
+ * SiteRegistry keeps the USGS sites and EPA facilities of every sites graph
+ * that has been requested, so that {@link DataModelBuilder} only has to fetch
+ * measurements from the endpoint and can add the site triples (type, label,
+ * latitude, longitude, and for USGS sites the county and state codes) from
+ * memory. Sites are stored in parallel arrays indexed by site id, with
+ * labels and codes interned in a table of distinct values.
+ *
+ * A graph is loaded the first time it is requested. Requests for a graph
+ * that is already being loaded wait for that load instead of starting their
+ * own, and a graph that could not be loaded is not requested again for
+ * {@value #RETRY_PROPERTY} minutes (default 15). Every loaded graph is
+ * reloaded on a background thread (see {@value #REFRESH_PROPERTY}); a failed
+ * reload keeps the previous sites. The registry can be turned off with
+ * {@value #ENABLED_PROPERTY}=false, in which case site triples are fetched with
+ * the measurements as before.
+ * @author ewpatton
+ *
+ */
+public final class SiteRegistry {
+
+	public static final String ENABLED_PROPERTY = "semanteco.water.siteRegistry.enabled";
+	public static final String REFRESH_PROPERTY = "semanteco.water.siteRegistry.refreshHours";
+	public static final String RETRY_PROPERTY = "semanteco.water.siteRegistry.retryMinutes";
+	static final String SITE_VAR = "s";
+	static final String LABEL_VAR = "label";
+	static final String LAT_VAR = "lat";
+	static final String LONG_VAR = "long";
+	static final String COUNTY_VAR = "county";
+	static final String STATE_VAR = "state";
+	private static final long DEFAULT_REFRESH_HOURS = 24;
+	private static final int DEFAULT_RETRY_MINUTES = 15;
+	private static final Logger log = Logger.getLogger(SiteRegistry.class);
+	private static final SiteRegistry INSTANCE = new SiteRegistry();
+
+	private final ConcurrentMap<String, Sites> graphs = new ConcurrentHashMap<String, Sites>();
+	private final ConcurrentMap<String, FutureTask<Sites>> loading = new ConcurrentHashMap<String, FutureTask<Sites>>();
+	private final ConcurrentMap<String, Long> failures = new ConcurrentHashMap<String, Long>();
+	private ScheduledExecutorService refresher = null;
+
+	private SiteRegistry() {
+	}
+
+	/**
+	 * Gets the registry shared by all requests
+	 * @return
+	 */
+	public static SiteRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Indicates whether the registry is enabled
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+	}
+
+	/**
+	 * Gets the sites of a graph, loading them from the endpoint if the graph
+	 * has not been requested before. Only one request loads a graph at a
+	 * time; the others wait for its result.
+	 * @param graph URI of a USGS sites or EPA facilities graph
+	 * @param usgs true if the graph holds USGS sites, false for EPA facilities
+	 * @return The sites or null if they could not be loaded, now or within
+	 * the retry period of an earlier failure
+	 */
+	Sites get(final String graph, final boolean usgs) {
+		final Sites sites = graphs.get(graph);
+		if(sites != null) {
+			return sites;
+		}
+		if(hasFailed(graph)) {
+			return null;
+		}
+		final FutureTask<Sites> task = new FutureTask<Sites>(new Callable<Sites>() {
+			@Override
+			public Sites call() {
+				Sites loaded = null;
+				try {
+					loaded = fetch(graph, usgs);
+				}
+				finally {
+					if(loaded != null) {
+						graphs.put(graph, loaded);
+					}
+					else {
+						fail(graph);
+					}
+				}
+				return loaded;
+			}
+		});
+		FutureTask<Sites> running = loading.putIfAbsent(graph, task);
+		if(running == null) {
+			running = task;
+			try {
+				task.run();
+			}
+			finally {
+				loading.remove(graph, task);
+			}
+		}
+		try {
+			return running.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException e) {
+			log.warn("Unable to load sites for "+graph, e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Indicates whether loading a graph failed within the retry period
+	 * @param graph URI of a sites graph
+	 * @return
+	 */
+	boolean hasFailed(final String graph) {
+		final Long expires = failures.get(graph);
+		if(expires == null) {
+			return false;
+		}
+		if(System.currentTimeMillis() >= expires) {
+			failures.remove(graph, expires);
+			return false;
+		}
+		return true;
+	}
+
+	private void fail(final String graph) {
+		failures.put(graph, System.currentTimeMillis() +
+				Integer.getInteger(RETRY_PROPERTY, DEFAULT_RETRY_MINUTES) * 60000L);
+	}
+
+	/**
+	 * Indicates whether a graph has been loaded, without loading it
+	 * @param graph URI of a sites graph
+	 * @return
+	 */
+	boolean contains(final String graph) {
+		return graphs.containsKey(graph);
+	}
+
+	/**
+	 * Gets the number of graphs in the registry
+	 * @return
+	 */
+	public int size() {
+		return graphs.size();
+	}
+
+	/**
+	 * Removes every graph and remembered failure from the registry
+	 */
+	public void clear() {
+		graphs.clear();
+		failures.clear();
+	}
+
+	/**
+	 * Reloads every graph in the registry. Failures are logged and leave the
+	 * graph's sites unchanged.
+	 */
+	public void refresh() {
+		log.trace("refresh");
+		for(Map.Entry<String, Sites> entry : graphs.entrySet()) {
+			final Sites sites = fetch(entry.getKey(), entry.getValue().usgs);
+			if(sites != null) {
+				graphs.put(entry.getKey(), sites);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the background refresh. Calling this more than once has no effect.
+	 */
+	public synchronized void start() {
+		if(refresher != null) {
+			return;
+		}
+		long hours = DEFAULT_REFRESH_HOURS;
+		try {
+			hours = Long.parseLong(System.getProperty(REFRESH_PROPERTY, Long.toString(DEFAULT_REFRESH_HOURS)));
+		}
+		catch(NumberFormatException e) {
+			log.warn("Invalid value for "+REFRESH_PROPERTY+", using "+DEFAULT_REFRESH_HOURS+" hours");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "site-registry-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, hours, hours, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Replaces the sites of a graph with the contents of a SPARQL result set
+	 * in the form returned by {@link #buildQuery(String, boolean)}
+	 * @param graph URI of the sites graph
+	 * @param usgs true if the graph holds USGS sites
+	 * @param sparqlJson SPARQL results
+	 * @return true if the results were parsed, otherwise false
+	 */
+	boolean load(final String graph, final boolean usgs, final String sparqlJson) {
+		try {
+			final Sites sites = parse(BindingReader.open(sparqlJson), usgs);
+			if(sites != null) {
+				graphs.put(graph, sites);
+				failures.remove(graph);
+			}
+			return sites != null;
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse sites for "+graph, e);
+			return false;
+		}
+	}
+
+	private Sites fetch(final String graph, final boolean usgs) {
+		final long start = System.currentTimeMillis();
+		try {
+			final Sites sites = parse(BindingReader.open(SparqlConnection.open(getEndpoint(),
+					buildQuery(graph, usgs), "application/sparql-results+json")), usgs);
+			if(sites != null) {
+				log.info("Registered "+sites.size()+" sites from "+graph+" in "+
+						(System.currentTimeMillis()-start)+" ms");
+			}
+			return sites;
+		}
+		catch(IOException e) {
+			log.warn("Unable to load sites for "+graph, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Builds the query selecting every site in a graph with the values
+	 * that {@link DataModelBuilder} would otherwise construct for it
+	 * @param graph URI of the sites graph
+	 * @param usgs true if the graph holds USGS sites
+	 * @return
+	 */
+	static String buildQuery(final String graph, final boolean usgs) {
+		final StringBuilder sb = new StringBuilder("SELECT ?"+SITE_VAR+" ?"+LABEL_VAR+" ?"+LAT_VAR+" ?"+LONG_VAR);
+		if(usgs) {
+			sb.append(" ?"+COUNTY_VAR+" ?"+STATE_VAR);
+		}
+		sb.append(" WHERE { GRAPH <").append(graph).append("> { ");
+		sb.append("?"+SITE_VAR+" <"+RDF_NS+"type> <"+WATER_NS).append(usgs ? "WaterSite" : "WaterFacility").append("> . ");
+		if(usgs) {
+			sb.append("?"+SITE_VAR+" <"+POL_NS+"hasCountyCode> ?"+COUNTY_VAR+" . ");
+			sb.append("?"+SITE_VAR+" <"+POL_NS+"hasStateCode> ?"+STATE_VAR+" . ");
+		}
+		else {
+			sb.append("?"+SITE_VAR+" <"+POL_NS+"hasPermit> ?permit . ");
+		}
+		sb.append("?"+SITE_VAR+" <"+WGS_NS+"lat> ?"+LAT_VAR+" . ");
+		sb.append("?"+SITE_VAR+" <"+WGS_NS+"long> ?"+LONG_VAR+" . ");
+		sb.append("OPTIONAL { ?"+SITE_VAR+" <"+RDFS_NS+"label> ?"+LABEL_VAR+" } } }");
+		return sb.toString();
+	}
+
+	private Sites parse(final BindingReader reader, final boolean usgs) {
+		final Sites.Builder builder = new Sites.Builder(usgs);
+		try {
+			Map<String, String> binding = null;
+			while((binding = reader.next()) != null) {
+				builder.add(binding);
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to parse sites", e);
+			return null;
+		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch(IOException e) {
+				log.debug("Unable to close site results", e);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * The sites of one graph. Site i has URI uris[i], coordinates lat[i],
+	 * lng[i], and its label and codes are values[label[i]], etc., where -1
+	 * means the site has no value.
+	 */
+	static final class Sites {
+		final boolean usgs;
+		private final Map<String, Integer> ids;
+		private final String[] uris;
+		private final double[] lat;
+		private final double[] lng;
+		private final int[] label;
+		private final int[] county;
+		private final int[] state;
+		private final String[] values;
+
+		private Sites(final Builder builder) {
+			this.usgs = builder.usgs;
+			this.ids = builder.ids;
+			this.uris = Arrays.copyOf(builder.uris, builder.size);
+			this.lat = Arrays.copyOf(builder.lat, builder.size);
+			this.lng = Arrays.copyOf(builder.lng, builder.size);
+			this.label = Arrays.copyOf(builder.label, builder.size);
+			this.county = Arrays.copyOf(builder.county, builder.size);
+			this.state = Arrays.copyOf(builder.state, builder.size);
+			this.values = builder.values.toArray(new String[builder.values.size()]);
+		}
+
+		/**
+		 * Gets the number of sites
+		 * @return
+		 */
+		int size() {
+			return uris.length;
+		}
+
+		/**
+		 * Indicates whether every site in a list is known
+		 * @param sites Site URIs
+		 * @return
+		 */
+		boolean containsAll(final List<String> sites) {
+			for(String site : sites) {
+				if(!ids.containsKey(site)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the triples describing each of the given sites that has a
+		 * measurement in the model, i.e. the site triples that the combined
+		 * sites and measurements query would have constructed
+		 * @param model Model holding the measurements
+		 * @param sites Site URIs
+		 * @return Number of sites added
+		 */
+		int addTo(final Model model, final List<String> sites) {
+			final Property hasMeasurement = model.createProperty(POL_NS+"hasMeasurement");
+			final Property wgsLat = model.createProperty(WGS_NS+"lat");
+			final Property wgsLong = model.createProperty(WGS_NS+"long");
+			final Property hasCountyCode = model.createProperty(POL_NS+"hasCountyCode");
+			final Property hasStateCode = model.createProperty(POL_NS+"hasStateCode");
+			final Resource type = model.createResource(WATER_NS+(usgs ? "WaterSite" : "WaterFacility"));
+			int added = 0;
+			for(String uri : sites) {
+				final Integer id = ids.get(uri);
+				final Resource site = model.createResource(uri);
+				if(id == null || !model.contains(site, hasMeasurement, (RDFNode)null)) {
+					continue;
+				}
+				final int i = id;
+				model.add(site, RDF.type, type);
+				if(label[i] >= 0) {
+					model.add(site, RDFS.label, values[label[i]]);
+				}
+				model.add(site, wgsLat, decimal(model, lat[i]));
+				model.add(site, wgsLong, decimal(model, lng[i]));
+				if(usgs) {
+					model.add(site, hasCountyCode, model.createTypedLiteral(values[county[i]], XSDDatatype.XSDint));
+					model.add(site, hasStateCode, integer(model, values[state[i]]));
+				}
+				added++;
+			}
+			return added;
+		}
+
+		private static Literal decimal(final Model model, final double value) {
+			return model.createTypedLiteral(BigDecimal.valueOf(value).toPlainString(), XSDDatatype.XSDdecimal);
+		}
+
+		private static Literal integer(final Model model, final String value) {
+			try {
+				Long.parseLong(value);
+				return model.createTypedLiteral(value, XSDDatatype.XSDinteger);
+			}
+			catch(NumberFormatException e) {
+				return model.createLiteral(value);
+			}
+		}
+
+		/**
+		 * Collects sites from SPARQL bindings. Repeated sites, e.g. a
+		 * facility with several permits, keep their first binding.
+		 */
+		static final class Builder {
+			private final boolean usgs;
+			private final Map<String, Integer> ids = new HashMap<String, Integer>();
+			private final Map<String, Integer> valueIds = new HashMap<String, Integer>();
+			private final List<String> values = new ArrayList<String>();
+			private String[] uris = new String[256];
+			private double[] lat = new double[256];
+			private double[] lng = new double[256];
+			private int[] label = new int[256];
+			private int[] county = new int[256];
+			private int[] state = new int[256];
+			private int size = 0;
+
+			Builder(final boolean usgs) {
+				this.usgs = usgs;
+			}
+
+			void add(final Map<String, String> binding) {
+				final String uri = binding.get(SITE_VAR);
+				if(uri == null || ids.containsKey(uri) || !binding.containsKey(LAT_VAR) ||
+						!binding.containsKey(LONG_VAR)) {
+					return;
+				}
+				if(usgs && (!binding.containsKey(COUNTY_VAR) || !binding.containsKey(STATE_VAR))) {
+					return;
+				}
+				final double siteLat, siteLng;
+				try {
+					siteLat = Double.parseDouble(binding.get(LAT_VAR));
+					siteLng = Double.parseDouble(binding.get(LONG_VAR));
+				}
+				catch(NumberFormatException e) {
+					return;
+				}
+				if(size == uris.length) {
+					final int capacity = size * 2;
+					uris = Arrays.copyOf(uris, capacity);
+					lat = Arrays.copyOf(lat, capacity);
+					lng = Arrays.copyOf(lng, capacity);
+					label = Arrays.copyOf(label, capacity);
+					county = Arrays.copyOf(county, capacity);
+					state = Arrays.copyOf(state, capacity);
+				}
+				uris[size] = uri;
+				lat[size] = siteLat;
+				lng[size] = siteLng;
+				label[size] = intern(binding.get(LABEL_VAR));
+				county[size] = intern(binding.get(COUNTY_VAR));
+				state[size] = intern(binding.get(STATE_VAR));
+				ids.put(uri, size);
+				size++;
+			}
+
+			private int intern(final String value) {
+				if(value == null) {
+					return -1;
+				}
+				Integer id = valueIds.get(value);
+				if(id == null) {
+					id = values.size();
+					values.add(value);
+					valueIds.put(value, id);
+				}
+				return id;
+			}
+
+			Sites build() {
+				return new Sites(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SiteValues holds the lists of sites, permits and characteristics that a
+ * query sent to the endpoint is restricted to, and writes them as inline
+ * data, e.g. <code>VALUES ?s { &lt;a&gt; &lt;b&gt; }</code>, which the endpoint
+ * can join against its indexes instead of filtering every solution.
+ *
+ * The query API only writes filters, so the query is built with one
+ * placeholder URI in place of each list, e.g.
+ * <code>FILTER(?s IN (&lt;urn:x-semanteco:slot:sites0&gt;))</code>, and
+ * {@link #expand(String, int)} replaces each placeholder's filter with the
+ * VALUES block of its list. The terms never pass through the serialized
+ * query, so URIs or literals containing parentheses or commas are written
+ * as they are.
+ *
+ * When a list is longer than the chunk size, the query is split into one
+ * query per chunk of the longest list. The chunks can be fetched in parallel
+ * and their results merged. Lists that every chunk needs, e.g. the
+ * characteristics selected in {@link MeasurementFacets}, are never split.
+ * @author ewpatton
+ *
+ */
+final class SiteValues {
+
+	private final Map<String, List<String>> lists = new LinkedHashMap<String, List<String>>();
+	private final Set<String> fixed = new HashSet<String>();
+
+	/**
+	 * Registers a list of URIs
+	 * @param name Name of the list, unique within the query
+	 * @param uris URIs of the list
+	 * @param split true if the query may be split into chunks of this list
+	 * @return The placeholder URI to build the query with
+	 */
+	String uris(final String name, final List<String> uris, final boolean split) {
+		final List<String> terms = new ArrayList<String>(uris.size());
+		for(String uri : uris) {
+			terms.add("<"+uri+">");
+		}
+		return terms(name, terms, split);
+	}
+
+	/**
+	 * Registers a list of terms already written in SPARQL syntax, e.g. literals
+	 * @param name Name of the list, unique within the query
+	 * @param terms Terms of the list
+	 * @param split true if the query may be split into chunks of this list
+	 * @return The placeholder URI to build the query with
+	 */
+	String terms(final String name, final List<String> terms, final boolean split) {
+		final String placeholder = QueryTemplate.URI_SLOT+name;
+		lists.put(placeholder, terms);
+		if(!split) {
+			fixed.add(placeholder);
+		}
+		return placeholder;
+	}
+
+	/**
+	 * Replaces the filter of every registered placeholder in a query with
+	 * the VALUES block of its list and splits the longest list that may be
+	 * split into chunks.
+	 * @param query Serialized SPARQL query built with the placeholders
+	 * @param chunkSize Largest number of terms to place in one query
+	 * @return One query per chunk, or a single query if no list exceeds the
+	 * chunk size
+	 */
+	List<String> expand(final String query, final int chunkSize) {
+		String target = null;
+		for(Map.Entry<String, List<String>> list : lists.entrySet()) {
+			if(!fixed.contains(list.getKey()) &&
+					(target == null || list.getValue().size() > lists.get(target).size())) {
+				target = list.getKey();
+			}
+		}
+		final List<String> queries = new ArrayList<String>();
+		if(target == null) {
+			queries.add(fill(query, lists));
+			return queries;
+		}
+		final List<String> terms = lists.get(target);
+		final Map<String, List<String>> chunk = new LinkedHashMap<String, List<String>>(lists);
+		final int size = Math.max(1, chunkSize);
+		for(int start=0;start==0 || start<terms.size();start+=size) {
+			chunk.put(target, terms.subList(start, Math.min(terms.size(), start + size)));
+			queries.add(fill(query, chunk));
+		}
+		return queries;
+	}
+
+	private static String fill(final String query, final Map<String, List<String>> lists) {
+		String filled = query;
+		for(Map.Entry<String, List<String>> list : lists.entrySet()) {
+			filled = fill(filled, list.getKey(), list.getValue());
+		}
+		return filled;
+	}
+
+	/**
+	 * Replaces every <code>FILTER(?var IN (&lt;placeholder&gt;))</code> with
+	 * <code>VALUES ?var { terms }</code>. A placeholder found anywhere else
+	 * is replaced with the terms separated by commas.
+	 */
+	private static String fill(final String query, final String placeholder, final List<String> terms) {
+		final String token = "<"+placeholder+">";
+		final StringBuilder sb = new StringBuilder(query.length());
+		int last = 0;
+		for(int index=query.indexOf(token);index>=0;index=query.indexOf(token, last)) {
+			final int[] span = findFilter(query, index, index + token.length());
+			if(span == null) {
+				sb.append(query, last, index);
+				for(int i=0;i<terms.size();i++) {
+					sb.append(i > 0 ? "," : "").append(terms.get(i));
+				}
+				last = index + token.length();
+				continue;
+			}
+			sb.append(query, last, span[0]);
+			sb.append("VALUES ?").append(query, span[2], span[3]).append(" {");
+			for(String term : terms) {
+				sb.append(' ').append(term);
+			}
+			sb.append(" }");
+			last = span[1];
+		}
+		sb.append(query, last, query.length());
+		return sb.toString();
+	}
+
+	/**
+	 * Finds the IN filter whose only term is the placeholder at [start, end)
+	 * @return The start and end of the filter and of its variable's name, or
+	 * null if the placeholder is not alone in an IN filter
+	 */
+	private static int[] findFilter(final String query, final int start, final int end) {
+		int i = skipBack(query, start);
+		if(!endsWith(query, i, "(")) {
+			return null;
+		}
+		i = skipBack(query, i - 1);
+		if(!endsWith(query, i, "IN")) {
+			return null;
+		}
+		i = skipBack(query, i - 2);
+		final int varEnd = i;
+		while(i > 0 && (Character.isLetterOrDigit(query.charAt(i - 1)) || query.charAt(i - 1) == '_')) {
+			i--;
+		}
+		final int varStart = i;
+		if(varStart == varEnd || !endsWith(query, i, "?")) {
+			return null;
+		}
+		i = skipBack(query, i - 1);
+		if(!endsWith(query, i, "(")) {
+			return null;
+		}
+		i = skipBack(query, i - 1);
+		if(!endsWith(query, i, "FILTER")) {
+			return null;
+		}
+		final int filterStart = i - 6;
+		i = skip(query, end);
+		if(i >= query.length() || query.charAt(i) != ')') {
+			return null;
+		}
+		i = skip(query, i + 1);
+		if(i >= query.length() || query.charAt(i) != ')') {
+			return null;
+		}
+		return new int[] { filterStart, i + 1, varStart, varEnd };
+	}
+
+	private static boolean endsWith(final String query, final int end, final String keyword) {
+		return end >= keyword.length() && query.regionMatches(true, end - keyword.length(), keyword, 0, keyword.length());
+	}
+
+	private static int skipBack(final String query, int i) {
+		while(i > 0 && Character.isWhitespace(query.charAt(i - 1))) {
+			i--;
+		}
+		return i;
+	}
+
+	private static int skip(final String query, int i) {
+		while(i < query.length() && Character.isWhitespace(query.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,558 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import edu.rpi.tw.escience.semanteco.ModuleConfiguration;
+import edu.rpi.tw.escience.semanteco.Request;
+
+/**
+ * StateExport writes the water data of a whole state to a gzipped file, as
+ * N-Triples or as one CSV row per measurement. The export is planned as one
+ * chunk per county and source; each chunk lists every site of its county
+ * and loads them in batches of {@value #BATCH_PROPERTY} sites with
+ * {@link DataModelBuilder}, so a chunk holds at most one batch in memory.
+ * Chunks run on a pool of {@value #THREADS_PROPERTY} threads shared by all
+ * exports and each batch is appended to the file as soon as it is loaded,
+ * so the memory used does not grow with the size of the state.
+ *
+ * Exports run in the background, one at a time, with at most
+ * {@value #QUEUED_PROPERTY} waiting. {@link #start(Request, ModuleConfiguration, String)}
+ * reads the request's parameters and returns a {@link Job} whose progress
+ * can be polled by its id until it is done, then read back with
+ * {@link #download(String, long)}. Files are written to
+ * {@value #DIR_PROPERTY}, or the temporary directory if it is not set, and
+ * are deleted {@value #EXPIRE_PROPERTY} hours after the export finished.
+ * @author ewpatton
+ *
+ */
+public final class StateExport {
+
+	public static final String THREADS_PROPERTY = "semanteco.water.export.threads";
+	public static final String BATCH_PROPERTY = "semanteco.water.export.batchSize";
+	public static final String DIR_PROPERTY = "semanteco.water.export.dir";
+	public static final String QUEUED_PROPERTY = "semanteco.water.export.maxQueued";
+	public static final String EXPIRE_PROPERTY = "semanteco.water.export.expireHours";
+	static final String FORMAT_PARAM = "format";
+	static final String ID_PARAM = "id";
+	static final String OFFSET_PARAM = "offset";
+	public static final String DOWNLOAD_LINES_PROPERTY = "semanteco.water.export.downloadLines";
+	static final String NTRIPLES = "nt";
+	static final String CSV = "csv";
+	static final String CSV_HEADER = "site,measurement,characteristic,value,unit,test_type,time,violation";
+	private static final int DEFAULT_BATCH = 100;
+	private static final int DEFAULT_QUEUED = 4;
+	private static final int DEFAULT_EXPIRE = 24;
+	private static final int DEFAULT_DOWNLOAD_LINES = 50000;
+	private static final int MAX_JOBS = 32;
+	private static final Pattern FILE_PATTERN = Pattern.compile(
+			"water-[^-]*-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\\.("+NTRIPLES+"|"+CSV+")\\.gz");
+	private static final Logger log = Logger.getLogger(StateExport.class);
+	private static final StateExport INSTANCE = new StateExport();
+
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node HAS_MEASUREMENT = Node.createURI(QueryUtils.POL_NS+"hasMeasurement");
+	private static final Node HAS_CHARACTERISTIC = Node.createURI(QueryUtils.POL_NS+"hasCharacteristic");
+	private static final Node HAS_VALUE = Node.createURI(QueryUtils.POL_NS+"hasValue");
+	private static final Node HAS_UNIT = Node.createURI(QueryUtils.UNIT_NS+"hasUnit");
+	private static final Node TEST_TYPE = Node.createURI(QueryUtils.POL_NS+"test_type");
+	private static final Node IN_XSD_DATE_TIME = Node.createURI(QueryUtils.TIME_NS+"inXSDDateTime");
+	private static final Node REGULATION_VIOLATION = Node.createURI(QueryUtils.POL_NS+"RegulationViolation");
+
+	private final ExecutorService workers = newPool("water-export-",
+			Integer.getInteger(THREADS_PROPERTY, 2));
+	// exports run one at a time, each waiting on its chunks from this thread
+	private final ExecutorService coordinators = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(Integer.getInteger(QUEUED_PROPERTY, DEFAULT_QUEUED)),
+			newThreadFactory("water-export-job-"));
+	private final Map<String, Job> jobs = Collections.synchronizedMap(
+			new LinkedHashMap<String, Job>() {
+				private static final long serialVersionUID = 4629150532217803349L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+					if(size() > MAX_JOBS && eldest.getValue().isDone()) {
+						delete(eldest.getValue().file);
+						return true;
+					}
+					return false;
+				}
+			});
+
+	private StateExport() {
+	}
+
+	/**
+	 * Gets the exports shared by all requests
+	 * @return
+	 */
+	public static StateExport getInstance() {
+		return INSTANCE;
+	}
+
+	private static ExecutorService newPool(final String prefix, final int threads) {
+		return Executors.newFixedThreadPool(threads, newThreadFactory(prefix));
+	}
+
+	private static ThreadFactory newThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static File getDirectory() {
+		return new File(System.getProperty(DIR_PROPERTY, System.getProperty("java.io.tmpdir")));
+	}
+
+	private static void delete(final File file) {
+		if(file.exists() && !file.delete()) {
+			log.warn("Unable to delete expired export "+file);
+		}
+	}
+
+	/**
+	 * Reads the export format from a request
+	 * @param param Value of the format parameter
+	 * @return {@link #NTRIPLES} or {@link #CSV}
+	 * @throws IllegalArgumentException if the format is not supported
+	 */
+	static String parseFormat(final Object param) {
+		if(param == null || "".equals(param) || NTRIPLES.equals(param)) {
+			return NTRIPLES;
+		}
+		if(CSV.equals(param)) {
+			return CSV;
+		}
+		throw new IllegalArgumentException("Unsupported export format '"+param+"'");
+	}
+
+	/**
+	 * Plans the export of the requested state and sources and starts it in
+	 * the background. The request's parameters and query executor are read
+	 * before returning and the job keeps no reference to the request, so the
+	 * export does not depend on the request outliving it.
+	 * @param request Request object encapsulating the client's request
+	 * @param config Data source module's configuration
+	 * @param format {@link #NTRIPLES} or {@link #CSV}
+	 * @return The job, which is also available from {@link #get(String)}
+	 * @throws IllegalArgumentException if the state or sources are missing
+	 * @throws IllegalStateException if too many exports are already waiting
+	 */
+	public Job start(final Request request, final ModuleConfiguration config, final String format) {
+		expire(System.currentTimeMillis());
+		final InstanceCounter counter = new InstanceCounter(request, config);
+		final DataModelBuilder state = new DataModelBuilder(request, config);
+		state.getFacets();
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		for(String source : state.getSources()) {
+			final Map<String, Integer> counts = counter.countsForState(source);
+			if(counts == null) {
+				log.warn("Unable to list the counties of "+source);
+				continue;
+			}
+			for(String county : new TreeSet<String>(counts.keySet())) {
+				if(counts.get(county) > 0) {
+					chunks.add(new Chunk(state.forCounty(county), county, source));
+				}
+			}
+		}
+		final String id = UUID.randomUUID().toString();
+		final File file = new File(getDirectory(), "water-"+request.getParam("state")+"-"+id+"."+format+".gz");
+		final Job job = new Job(id, file, format, chunks.size());
+		jobs.put(id, job);
+		try {
+			coordinators.submit(new Runnable() {
+				@Override
+				public void run() {
+					runJob(job, chunks);
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			jobs.remove(id);
+			throw new IllegalStateException("Too many exports are waiting, try again later", e);
+		}
+		return job;
+	}
+
+	/**
+	 * Deletes the files of exports that finished more than
+	 * {@value #EXPIRE_PROPERTY} hours ago, including the files left in the
+	 * export directory by earlier runs
+	 * @param now Current time in milliseconds
+	 */
+	void expire(final long now) {
+		final long cutoff = now - Integer.getInteger(EXPIRE_PROPERTY, DEFAULT_EXPIRE) * 3600000L;
+		final List<File> running = new ArrayList<File>();
+		synchronized(jobs) {
+			for(Iterator<Job> it = jobs.values().iterator(); it.hasNext(); ) {
+				final Job job = it.next();
+				if(!job.isDone()) {
+					running.add(job.file);
+				}
+				else if(job.getFinished() <= cutoff) {
+					delete(job.file);
+					it.remove();
+				}
+			}
+		}
+		final File[] files = getDirectory().listFiles();
+		if(files == null) {
+			return;
+		}
+		for(File file : files) {
+			if(FILE_PATTERN.matcher(file.getName()).matches() && !running.contains(file) &&
+					file.lastModified() <= cutoff) {
+				delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Gets an export by id
+	 * @param id Id of the job returned by {@link #start(Request, ModuleConfiguration, String)}
+	 * @return The job, or null if there is none with this id
+	 */
+	public Job get(final String id) {
+		return id == null ? null : jobs.get(id);
+	}
+
+	/**
+	 * Reads part of a finished export, so that a client can fetch a file of
+	 * any size in pages of at most {@value #DOWNLOAD_LINES_PROPERTY} lines.
+	 * Each N-Triples line is a triple and each CSV line after the header is
+	 * a measurement.
+	 * @param id Id of the job returned by {@link #start(Request, ModuleConfiguration, String)}
+	 * @param offset Number of lines of the export to skip
+	 * @return JSON object of the form {"id": ..., "format": ..., "offset": #,
+	 * "next": #, "data": "..."}, where next is the offset of the following
+	 * page, or -1 once the end of the export has been read
+	 * @throws IllegalArgumentException if there is no successful export with this id
+	 * @throws IOException if the export cannot be read
+	 * @throws JSONException if the object cannot be built
+	 */
+	public JSONObject download(final String id, final long offset) throws IOException, JSONException {
+		final Job job = get(id);
+		if(job == null || !job.isSucceeded()) {
+			throw new IllegalArgumentException("No finished export with id '"+id+"'");
+		}
+		return read(job, offset);
+	}
+
+	static JSONObject read(final Job job, final long offset) throws IOException, JSONException {
+		final int lines = Math.max(1, Integer.getInteger(DOWNLOAD_LINES_PROPERTY, DEFAULT_DOWNLOAD_LINES));
+		final StringBuilder data = new StringBuilder();
+		long next = -1;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(job.file)), "UTF-8"));
+		try {
+			long line = 0;
+			String text = null;
+			while((text = reader.readLine()) != null) {
+				if(line >= offset + lines) {
+					next = line;
+					break;
+				}
+				if(line >= offset) {
+					data.append(text).append('\n');
+				}
+				line++;
+			}
+		}
+		finally {
+			reader.close();
+		}
+		final JSONObject json = new JSONObject();
+		json.put("id", job.id);
+		json.put("format", job.format);
+		json.put(OFFSET_PARAM, offset);
+		json.put("next", next);
+		json.put("data", data.toString());
+		return json;
+	}
+
+	private void runJob(final Job job, final List<Chunk> chunks) {
+		job.running();
+		final long start = System.currentTimeMillis();
+		try {
+			final OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(job.file)));
+			try {
+				final BatchWriter writer = new BatchWriter(out, job.format);
+				final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+				for(final Chunk chunk : chunks) {
+					futures.add(workers.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							export(chunk, job, writer);
+							return null;
+						}
+					}));
+				}
+				for(int i=0;i<futures.size();i++) {
+					try {
+						futures.get(i).get();
+					}
+					catch(ExecutionException e) {
+						log.error("Unable to export county "+chunks.get(i).county+" of "+
+								chunks.get(i).source, e.getCause());
+						job.failedChunks.incrementAndGet();
+					}
+					job.chunksDone.incrementAndGet();
+				}
+				writer.flush();
+			}
+			finally {
+				out.close();
+			}
+			job.finish(null);
+			log.info("Exported "+job.sites.get()+" sites ("+job.records.get()+" records) to "+job.file+
+					" in "+(System.currentTimeMillis()-start)+" ms");
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.finish("Interrupted");
+		}
+		catch(IOException e) {
+			log.error("Unable to write export "+job.file, e);
+			job.finish(e.getMessage());
+		}
+	}
+
+	private void export(final Chunk chunk, final Job job, final BatchWriter writer) throws IOException {
+		final DataModelBuilder builder = chunk.builder;
+		final DataModelBuilder.SourcePlan plan = builder.planCounty(chunk.source);
+		final int batch = Integer.getInteger(BATCH_PROPERTY, DEFAULT_BATCH);
+		for(int from=0;from<plan.getMaxSites();from+=batch) {
+			final DataModelBuilder.SourcePlan slice = plan.slice(from, from + batch);
+			final Model model = ModelFactory.createDefaultModel();
+			builder.loadPlan(chunk.source, slice, model);
+			ViolationEvaluator.evaluate(model);
+			job.records.addAndGet(writer.write(model));
+			job.sites.addAndGet(slice.getSiteCount());
+			model.close();
+		}
+	}
+
+	/**
+	 * Writes the CSV rows for the measurements in a model
+	 * @param graph Graph of a loaded batch
+	 * @param out Writer to append the rows to
+	 * @return The number of rows written
+	 * @throws IOException if the rows cannot be written
+	 */
+	static int writeCSV(final Graph graph, final Writer out) throws IOException {
+		int rows = 0;
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final Node m = t.getObject();
+				out.write(csv(t.getSubject())+","+csv(m)+","+csv(find(graph, m, HAS_CHARACTERISTIC))+","+
+						csv(find(graph, m, HAS_VALUE))+","+csv(find(graph, m, HAS_UNIT))+","+
+						csv(find(graph, m, TEST_TYPE))+","+csv(find(graph, m, IN_XSD_DATE_TIME))+","+
+						graph.contains(m, TYPE, REGULATION_VIOLATION)+"\n");
+				rows++;
+			}
+		}
+		finally {
+			it.close();
+		}
+		return rows;
+	}
+
+	private static Node find(final Graph graph, final Node s, final Node p) {
+		final ExtendedIterator<Triple> it = graph.find(s, p, Node.ANY);
+		try {
+			return it.hasNext() ? it.next().getObject() : null;
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	private static String csv(final Node node) {
+		if(node == null) {
+			return "";
+		}
+		final String text = node.isLiteral() ? node.getLiteralLexicalForm() : node.toString();
+		if(text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+			return text;
+		}
+		return "\""+text.replace("\"", "\"\"")+"\"";
+	}
+
+	/**
+	 * Appends loaded batches to the export file, one batch at a time
+	 */
+	static final class BatchWriter {
+		private final OutputStream out;
+		private final Writer writer;
+		private final String format;
+
+		BatchWriter(final OutputStream out, final String format) throws IOException {
+			this.out = out;
+			this.writer = new OutputStreamWriter(out, "UTF-8");
+			this.format = format;
+			if(CSV.equals(format)) {
+				writer.write(CSV_HEADER+"\n");
+			}
+		}
+
+		/**
+		 * Writes a batch
+		 * @param model Model of the batch
+		 * @return The number of triples or rows written
+		 * @throws IOException if the batch cannot be written
+		 */
+		synchronized long write(final Model model) throws IOException {
+			if(CSV.equals(format)) {
+				return writeCSV(model.getGraph(), writer);
+			}
+			writer.flush();
+			model.write(out, "N-TRIPLE");
+			return model.size();
+		}
+
+		synchronized void flush() throws IOException {
+			writer.flush();
+		}
+	}
+
+	private static final class Chunk {
+		final DataModelBuilder builder;
+		final String county;
+		final String source;
+
+		Chunk(final DataModelBuilder builder, final String county, final String source) {
+			this.builder = builder;
+			this.county = county;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Progress of an export
+	 */
+	public static final class Job {
+		final String id;
+		final File file;
+		final String format;
+		final int chunks;
+		final AtomicInteger chunksDone = new AtomicInteger();
+		final AtomicInteger failedChunks = new AtomicInteger();
+		final AtomicLong sites = new AtomicLong();
+		final AtomicLong records = new AtomicLong();
+		private String status = "queued";
+		private String error = null;
+		private long finished = 0;
+
+		Job(final String id, final File file, final String format, final int chunks) {
+			this.id = id;
+			this.file = file;
+			this.format = format;
+			this.chunks = chunks;
+		}
+
+		synchronized void running() {
+			status = "running";
+		}
+
+		synchronized void finish(final String error) {
+			this.error = error;
+			status = error == null ? "done" : "failed";
+			finished = System.currentTimeMillis();
+		}
+
+		synchronized long getFinished() {
+			return finished;
+		}
+
+		/**
+		 * Indicates whether the export has finished and its file can be read
+		 * @return
+		 */
+		public synchronized boolean isSucceeded() {
+			return "done".equals(status);
+		}
+
+		/**
+		 * Indicates whether the export has finished, successfully or not
+		 * @return
+		 */
+		public synchronized boolean isDone() {
+			return "done".equals(status) || "failed".equals(status);
+		}
+
+		/**
+		 * Serializes the progress of the export
+		 * @return JSON object of the form {"id": ..., "status": ..., "format": ...,
+		 * "chunks": #, "chunksDone": #, "failedChunks": #, "sites": #, "records": #}
+		 * @throws JSONException if the object cannot be built
+		 */
+		public synchronized JSONObject toJSON() throws JSONException {
+			final JSONObject json = new JSONObject();
+			json.put("id", id);
+			json.put("status", status);
+			json.put("format", format);
+			json.put("chunks", chunks);
+			json.put("chunksDone", chunksDone.get());
+			json.put("failedChunks", failedChunks.get());
+			json.put("sites", sites.get());
+			json.put("records", records.get());
+			if(error != null) {
+				json.put("error", error);
+			}
+			return json;
+		}
+	}
+
+}
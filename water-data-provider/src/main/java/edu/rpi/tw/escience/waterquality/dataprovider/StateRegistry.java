@@ -0,0 +1,271 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.rpi.tw.escience.semanteco.facets.BindingReader;
+import edu.rpi.tw.escience.semanteco.facets.SparqlConnection;
+
+/**
+ * StateRegistry maps state and territory abbreviations (e.g. RI) onto the
+ * state URIs published in the LOGD instance hub. The registry is seeded from
+ * a snapshot bundled with the module, merged with the copy last saved to
+ * disk, and refreshed from LOGD on a background thread so that client
+ * requests never wait on the remote endpoint for this lookup.
+ *
+ * The refresh interval (in hours) can be set with the
+ * {@value #REFRESH_PROPERTY} system property and the location of the saved
+ * copy with {@value #FILE_PROPERTY}.
+ * @author ewpatton
+ *
+ */
+public final class StateRegistry {
+
+	public static final String FILE_PROPERTY = "semanteco.water.stateRegistry.file";
+	public static final String REFRESH_PROPERTY = "semanteco.water.stateRegistry.refreshHours";
+	private static final String SNAPSHOT = "states.properties";
+	private static final long DEFAULT_REFRESH_HOURS = 24;
+	private static final String REFRESH_QUERY =
+			"SELECT DISTINCT ?state ?id WHERE { GRAPH <"+QueryUtils.INSTANCE_HUB_STATES+"> { " +
+			"?state <"+QueryUtils.DC_NS+"identifier> ?id " +
+			"FILTER(regex(str(?id), \"^[A-Z][A-Z]$\")) } }";
+	private static final Logger log = Logger.getLogger(StateRegistry.class);
+	private static final StateRegistry INSTANCE = new StateRegistry();
+
+	private volatile ConcurrentMap<String, String> states = new ConcurrentHashMap<String, String>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final File file;
+	private ScheduledExecutorService refresher = null;
+
+	private StateRegistry() {
+		String path = System.getProperty(FILE_PROPERTY);
+		if(path == null) {
+			path = new File(System.getProperty("java.io.tmpdir"), "semanteco-states.properties").getPath();
+		}
+		file = new File(path);
+		loadSnapshot();
+	}
+
+	/**
+	 * Gets the registry shared by all requests
+	 * @return
+	 */
+	public static StateRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Looks up the instance hub URI for a state abbreviation.
+	 * @param state Two letter state abbreviation, e.g. RI
+	 * @return The state's URI or null if the registry does not know the state
+	 */
+	public String lookup(final String state) {
+		final String uri = states.get(state);
+		if(uri != null) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+		}
+		return uri;
+	}
+
+	/**
+	 * Adds a mapping discovered outside of a refresh, e.g. by the remote
+	 * fallback in {@link QueryUtils#getStateURI(String)}, and saves the
+	 * registry.
+	 * @param state Two letter state abbreviation
+	 * @param uri URI of the state in the instance hub
+	 */
+	public void register(final String state, final String uri) {
+		if(!uri.equals(states.put(state, uri))) {
+			save();
+		}
+	}
+
+	/**
+	 * Loads the saved copy of the registry from disk and schedules the
+	 * background refresh. Calling this more than once has no effect.
+	 */
+	public synchronized void start() {
+		if(refresher != null) {
+			return;
+		}
+		loadFile();
+		long hours = DEFAULT_REFRESH_HOURS;
+		try {
+			hours = Long.parseLong(System.getProperty(REFRESH_PROPERTY, Long.toString(DEFAULT_REFRESH_HOURS)));
+		}
+		catch(NumberFormatException e) {
+			log.warn("Invalid value for "+REFRESH_PROPERTY+", using "+DEFAULT_REFRESH_HOURS+" hours");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "state-registry-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, 0, hours, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Replaces the registry contents with the current state list from LOGD,
+	 * so states that were renamed or removed are dropped from the registry
+	 * and its saved copy. Failures and empty results are logged and leave
+	 * the registry unchanged.
+	 */
+	public void refresh() {
+		log.trace("refresh");
+		try {
+			final BindingReader reader = BindingReader.open(SparqlConnection.open(
+					QueryUtils.LOGD_ENDPOINT, REFRESH_QUERY, "application/sparql-results+json"));
+			final ConcurrentMap<String, String> refreshed = new ConcurrentHashMap<String, String>();
+			try {
+				Map<String, String> binding = null;
+				while((binding = reader.next()) != null) {
+					final String id = binding.get("id");
+					final String uri = binding.get(QueryUtils.STATE_VAR);
+					if(id != null && uri != null) {
+						refreshed.put(id, uri);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			if(refreshed.isEmpty()) {
+				log.warn("LOGD returned no states, keeping the current state registry");
+				return;
+			}
+			states = refreshed;
+			log.info("Refreshed "+refreshed.size()+" states from LOGD");
+			save();
+		}
+		catch(IOException e) {
+			log.warn("Unable to refresh state registry from LOGD", e);
+		}
+	}
+
+	/**
+	 * Gets the number of lookups answered by the registry
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups the registry could not answer
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of states known to the registry
+	 * @return
+	 */
+	public int size() {
+		return states.size();
+	}
+
+	/**
+	 * Serializes the registry statistics for the client
+	 * @return JSON object of the form {"size": #, "hits": #, "misses": #}
+	 */
+	public JSONObject toJSON() {
+		final JSONObject stats = new JSONObject();
+		try {
+			stats.put("size", size());
+			stats.put("hits", getHits());
+			stats.put("misses", getMisses());
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize state registry statistics", e);
+		}
+		return stats;
+	}
+
+	private void loadSnapshot() {
+		final InputStream is = StateRegistry.class.getResourceAsStream(SNAPSHOT);
+		if(is == null) {
+			log.warn("State registry snapshot "+SNAPSHOT+" is missing");
+			return;
+		}
+		try {
+			load(is);
+		}
+		catch(IOException e) {
+			log.warn("Unable to read state registry snapshot", e);
+		}
+	}
+
+	private void loadFile() {
+		if(!file.exists()) {
+			return;
+		}
+		try {
+			load(new FileInputStream(file));
+		}
+		catch(IOException e) {
+			log.warn("Unable to read saved state registry '"+file+"'", e);
+		}
+	}
+
+	private void load(final InputStream is) throws IOException {
+		final Properties props = new Properties();
+		try {
+			props.load(is);
+		}
+		finally {
+			is.close();
+		}
+		for(Map.Entry<Object, Object> entry : props.entrySet()) {
+			states.put((String)entry.getKey(), (String)entry.getValue());
+		}
+	}
+
+	private synchronized void save() {
+		final Properties props = new Properties();
+		props.putAll(states);
+		try {
+			final OutputStream os = new FileOutputStream(file);
+			try {
+				props.store(os, "SemantEco state registry");
+			}
+			finally {
+				os.close();
+			}
+		}
+		catch(IOException e) {
+			log.warn("Unable to save state registry to '"+file+"'", e);
+		}
+	}
+
+}
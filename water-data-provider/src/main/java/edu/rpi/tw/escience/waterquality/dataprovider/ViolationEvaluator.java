@@ -0,0 +1,182 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.hp.hpl.jena.datatypes.DatatypeFormatException;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * ViolationEvaluator marks water measurements that exceed their permit limit
+ * as pol:RegulationViolation. It makes a single pass over the
+ * pol:hasLimitOperator triples in the model's graph and classifies each
+ * measurement by comparing its pol:hasValue against its pol:hasLimitValue
+ * as doubles, then adds the new types in one bulk update.
+ *
+ * The limit operator states what a compliant value must satisfy, so a
+ * measurement is a violation when:
+ * <ul>
+ * <li>op is "&lt;=" and value &gt; limit</li>
+ * <li>op is "&lt;" and value &gt;= limit</li>
+ * <li>op is "&gt;=" and value &lt; limit</li>
+ * <li>op is "&gt;" and value &lt;= limit</li>
+ * </ul>
+ * Measurements with an unknown operator or a non-numeric or ill-typed value
+ * or limit are left untouched.
+ * @author ewpatton
+ *
+ */
+public final class ViolationEvaluator {
+
+	private static final int UNKNOWN = 0;
+	private static final int LESS_EQUAL = 1;
+	private static final int LESS = 2;
+	private static final int GREATER_EQUAL = 3;
+	private static final int GREATER = 4;
+
+	private static final Node TYPE = RDF.type.asNode();
+	private static final Node HAS_VALUE = Node.createURI(QueryUtils.POL_NS+"hasValue");
+	private static final Node HAS_LIMIT_OPERATOR = Node.createURI(QueryUtils.POL_NS+"hasLimitOperator");
+	private static final Node HAS_LIMIT_VALUE = Node.createURI(QueryUtils.POL_NS+"hasLimitValue");
+	private static final Node WATER_MEASUREMENT = Node.createURI(QueryUtils.WATER_NS+"WaterMeasurement");
+	private static final Node REGULATION_VIOLATION = Node.createURI(QueryUtils.POL_NS+"RegulationViolation");
+
+	private ViolationEvaluator() {
+	}
+
+	/**
+	 * Types every violating measurement in the model as a pol:RegulationViolation.
+	 * @param model Model containing water measurements
+	 * @return The number of violating measurements found
+	 */
+	public static int evaluate(final Model model) {
+		final Graph graph = model.getGraph();
+		final Set<Triple> violations = new LinkedHashSet<Triple>();
+		final ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_LIMIT_OPERATOR, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				final Triple t = it.next();
+				final int op = operator(t.getObject());
+				final Node m = t.getSubject();
+				if(op != UNKNOWN && isViolation(graph, m, op) &&
+						graph.contains(m, TYPE, WATER_MEASUREMENT)) {
+					violations.add(Triple.create(m, TYPE, REGULATION_VIOLATION));
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		graph.getBulkUpdateHandler().add(violations.iterator());
+		return violations.size();
+	}
+
+	/**
+	 * Tests whether a value violates a limit under the given operator.
+	 * @param op Limit operator, one of &lt;=, &lt;, &gt;= or &gt;
+	 * @param value Measured value
+	 * @param limit Limit value
+	 * @return true if the value violates the limit, otherwise false
+	 */
+	public static boolean isViolation(final String op, final double value, final double limit) {
+		return isViolation(operator(op), value, limit);
+	}
+
+	private static boolean isViolation(final Graph graph, final Node m, final int op) {
+		// measurements normally carry one value and one limit, but any
+		// combination that violates is enough, as it would be for a FILTER
+		final ExtendedIterator<Triple> values = graph.find(m, HAS_VALUE, Node.ANY);
+		try {
+			while(values.hasNext()) {
+				final double value = toDouble(values.next().getObject());
+				if(Double.isNaN(value)) {
+					continue;
+				}
+				final ExtendedIterator<Triple> limits = graph.find(m, HAS_LIMIT_VALUE, Node.ANY);
+				try {
+					while(limits.hasNext()) {
+						final double limit = toDouble(limits.next().getObject());
+						if(!Double.isNaN(limit) && isViolation(op, value, limit)) {
+							return true;
+						}
+					}
+				}
+				finally {
+					limits.close();
+				}
+			}
+		}
+		finally {
+			values.close();
+		}
+		return false;
+	}
+
+	private static boolean isViolation(final int op, final double value, final double limit) {
+		switch(op) {
+		case LESS_EQUAL:
+			return value > limit;
+		case LESS:
+			return value >= limit;
+		case GREATER_EQUAL:
+			return value < limit;
+		case GREATER:
+			return value <= limit;
+		default:
+			return false;
+		}
+	}
+
+	private static int operator(final String op) {
+		if(op == null) {
+			return UNKNOWN;
+		}
+		final String trimmed = op.trim();
+		if("<=".equals(trimmed)) {
+			return LESS_EQUAL;
+		}
+		else if("<".equals(trimmed)) {
+			return LESS;
+		}
+		else if(">=".equals(trimmed)) {
+			return GREATER_EQUAL;
+		}
+		else if(">".equals(trimmed)) {
+			return GREATER;
+		}
+		return UNKNOWN;
+	}
+
+	private static int operator(final Node node) {
+		return node.isLiteral() ? operator(node.getLiteralLexicalForm()) : UNKNOWN;
+	}
+
+	private static double toDouble(final Node node) {
+		if(!node.isLiteral()) {
+			return Double.NaN;
+		}
+		final Object value;
+		try {
+			value = node.getLiteralValue();
+		}
+		catch(DatatypeFormatException e) {
+			// ill-typed literal, e.g. "n/a"^^xsd:double
+			return Double.NaN;
+		}
+		if(value instanceof Number) {
+			return ((Number)value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(node.getLiteralLexicalForm().trim());
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+}
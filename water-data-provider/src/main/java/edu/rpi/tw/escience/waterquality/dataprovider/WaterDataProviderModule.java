@@ -1,14 +1,15 @@
 package edu.rpi.tw.escience.waterquality.dataprovider;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -23,6 +24,9 @@ import edu.rpi.tw.escience.semanteco.QueryMethod;
 import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
 import edu.rpi.tw.escience.semanteco.SemantEcoUI;
+import edu.rpi.tw.escience.semanteco.facets.DomainCache;
+import edu.rpi.tw.escience.semanteco.facets.ResultCache;
+import edu.rpi.tw.escience.semanteco.facets.SiteTypes;
 import edu.rpi.tw.escience.semanteco.query.BlankNode;
 import edu.rpi.tw.escience.semanteco.query.GraphComponentCollection;
 import edu.rpi.tw.escience.semanteco.query.NamedGraphComponent;
@@ -55,10 +59,27 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 	private static final String WATER_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#";
 	private static final String ISWATER_VAR = "isWater";
 	private static final String FAILURE = "{\"success\":false}";
-	private static final String BINDINGS = "bindings";
-	private static final String VALUE = "value";
 	private static final String LABEL_VAR = "label";
+	private static final long DEFAULT_DOMAIN_REFRESH_MINUTES = 60;
+
+	/**
+	 * System property holding the interval, in minutes, at which the water
+	 * domain is rebuilt from the {@link DataSourceCatalog}
+	 */
+	public static final String DOMAIN_REFRESH_PROPERTY = "semanteco.water.domains.refreshMinutes";
+
+	static {
+		SiteTypes.register(ISWATER_VAR, WATER_NS+"WaterSite");
+	}
+
+	static final String WATER_LABEL = "Water";
 	private ModuleConfiguration config = null;
+	private final DomainCache domainCache = new DomainCache(new DomainCache.Builder() {
+		@Override
+		public List<Domain> buildDomains(final Request request) {
+			return WaterDataProviderModule.this.buildDomains(request);
+		}
+	});
 	private static final Logger log = Logger.getLogger(WaterDataProviderModule.class);
 	
 	@Override
@@ -104,9 +125,32 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 
 	@Override
 	public List<Domain> getDomains(final Request request) {
+		return domainCache.get(request);
+	}
+
+	/**
+	 * Rebuilds the domain description returned by
+	 * {@link #getDomains(Request)}, which is otherwise shared by all requests
+	 * and rebuilt in the background (see {@value #DOMAIN_REFRESH_PROPERTY}).
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true}, or {"success": false,
+	 * "error": message} if the domains could not be rebuilt
+	 */
+	@QueryMethod
+	public String rebuildDomains(final Request request) {
+		return domainCache.rebuild(request);
+	}
+
+	/**
+	 * Builds the domains provided by this module
+	 * @param request Request object encapsulating RESTful call, or null
+	 * when called from the background refresh
+	 * @return
+	 */
+	protected List<Domain> buildDomains(final Request request) {
 		List<Domain> domains = new ArrayList<Domain>();
 		Domain water = config.getDomain(URI.create("http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#"), true);
-		water.setLabel("Water");
+		water.setLabel(WATER_LABEL);
 		addDataSources(water, request);
 		addRegulations(water);
 		addDataTypes(water);
@@ -137,11 +181,19 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 	@Override
 	public void setModuleConfiguration(ModuleConfiguration config) {
 		this.config = config;
+		domainCache.clear();
+		domainCache.start("water-domain-refresh", DOMAIN_REFRESH_PROPERTY, DEFAULT_DOMAIN_REFRESH_MINUTES);
+		StateRegistry.getInstance().start();
+		GraphCatalog.getInstance().start();
+		DataSourceCatalog.getInstance().start();
+		SiteRegistry.getInstance().start();
 	}
 
 	/**
 	 * Provides an interface for other modules to query for the available
-	 * data sources in the triple store.
+	 * data sources in the triple store. Sources are served from the
+	 * {@link DataSourceCatalog}, which is only loaded here if the background
+	 * refresh has not yet completed.
 	 * 
 	 * @param params Parameters from the RESTful call
 	 * @return
@@ -150,6 +202,54 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 	public String queryForDataSources(final Request request) {
 		final Logger log = request.getLogger();
 		log.trace("queryForDataSources");
+		final DataSourceCatalog catalog = DataSourceCatalog.getInstance();
+		if(!catalog.isLoaded() && !loadDataSources(request)) {
+			return FAILURE;
+		}
+		try {
+			return catalog.toJSON().toString();
+		} catch (JSONException e) {
+			log.error("Unable to serialize data sources", e);
+		}
+		return FAILURE;
+	}
+	
+	/**
+	 * Reloads the data sources from the metadata graph so that changes to
+	 * the triple store are reflected in the water domain before the next
+	 * background refresh. Per-site results cached before the refresh are
+	 * no longer returned.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true|false, "size": #}
+	 */
+	@QueryMethod
+	public String refreshDataSources(final Request request) {
+		final boolean success = loadDataSources(request);
+		if(success) {
+			domainCache.clear();
+			ResultCache.dataLoaded();
+		}
+		final Map<String, String> sources = DataSourceCatalog.getInstance().getSources();
+		try {
+			JSONObject response = new JSONObject();
+			response.put("success", success);
+			response.put("size", sources == null ? 0 : sources.size());
+			return response.toString();
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize data source response", e);
+		}
+		return FAILURE;
+	}
+	
+	/**
+	 * Queries the metadata graph for the data sources and their labels
+	 * and loads them into the {@link DataSourceCatalog}
+	 * @param request Request used to obtain a query executor
+	 * @return true if the catalog was loaded, otherwise false
+	 */
+	protected boolean loadDataSources(final Request request) {
+		final Logger log = request.getLogger();
 		Query query = config.getQueryFactory().newQuery();
 		
 		// generate variables and resources for query
@@ -172,41 +272,9 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 		optional.addPattern(source, rdfsLabel, label);
 		
 		// execute query
-		String responseStr = FAILURE;
 		String resultStr = config.getQueryExecutor(request).accept("application/json").execute(query);
 		log.debug("Results: "+resultStr);
-		if(resultStr == null) {
-			return responseStr;
-		}
-		try {
-			JSONObject results = new JSONObject(resultStr);
-			JSONObject response = new JSONObject();
-			JSONArray data = new JSONArray();
-			response.put("success", true);
-			response.put("data", data);
-			results = results.getJSONObject("results");
-			JSONArray bindings = results.getJSONArray(BINDINGS);
-			for(int i=0;i<bindings.length();i++) {
-				JSONObject binding = bindings.getJSONObject(i);
-				String sourceUri = binding.getJSONObject(SOURCE_VAR).getString(VALUE);
-				String labelStr = null;
-				try {
-					labelStr = binding.getJSONObject(LABEL_VAR).getString(VALUE);
-				}
-				catch(Exception e) { }
-				if(labelStr == null) {
-					labelStr = sourceUri.substring(sourceUri.lastIndexOf('/')+1).replace('-', '.');
-				}
-				JSONObject mapping = new JSONObject();
-				mapping.put("uri", sourceUri);
-				mapping.put(LABEL_VAR, labelStr);
-				data.put(mapping);
-			}
-			responseStr = response.toString();
-		} catch (JSONException e) {
-			log.error("Unable to parse JSON results", e);
-		}
-		return responseStr;
+		return resultStr != null && DataSourceCatalog.getInstance().load(resultStr);
 	}
 	
 	/**
@@ -226,6 +294,168 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 		return responseStr;
 	}
 	
+	/**
+	 * Gets site counts for every county in the requested state for the
+	 * enabled data sources.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"site": {"county": #, ...}, "facility": {"county": #, ...}}
+	 */
+	@QueryMethod
+	public String getCountySiteCounts(final Request request) {
+		final Logger log = request.getLogger();
+		log.trace("getCountySiteCounts");
+
+		InstanceCounter counter = new InstanceCounter(request, config);
+		return counter.buildAll().toString();
+	}
+	
+	/**
+	 * Lists the sites and facilities of the page the request selects, with a
+	 * cursor for the page that follows each of them. Passing the cursors back
+	 * as {"site": ..., "facility": ...} in the cursor parameter selects the next
+	 * page without an offset, so that deep pages cost the same as the first.
+	 * Requests without a cursor are paged by the offsets in the limits parameter.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"site": {"sites": [...], "cursor": "..."}, "facility": {...}}
+	 */
+	@QueryMethod
+	public String getSitePage(final Request request) {
+		final Logger log = request.getLogger();
+		log.trace("getSitePage");
+		try {
+			return new DataModelBuilder(request, config).listSitePages().toString();
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize site pages", e);
+		}
+		return FAILURE;
+	}
+
+	/**
+	 * Starts exporting the water data of every county in the requested state
+	 * for the requested sources. The export runs in the background and is
+	 * written to a gzipped N-Triples (format=nt, the default) or CSV
+	 * (format=csv) file; poll {@link #getExportProgress(Request)} with the
+	 * returned id to follow it.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object describing the export, see {@link StateExport.Job#toJSON()}
+	 */
+	@QueryMethod
+	public String exportState(final Request request) {
+		final Logger log = request.getLogger();
+		log.trace("exportState");
+		try {
+			final String format = StateExport.parseFormat(request.getParam(StateExport.FORMAT_PARAM));
+			return StateExport.getInstance().start(request, config, format).toJSON().toString();
+		}
+		catch(IllegalArgumentException e) {
+			log.info("Unable to start export", e);
+		}
+		catch(IllegalStateException e) {
+			log.info("Unable to start export: "+e.getMessage());
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize export", e);
+		}
+		return FAILURE;
+	}
+
+	/**
+	 * Reports the progress of an export started by {@link #exportState(Request)}.
+	 * @param request Request object encapsulating RESTful call, with the id of the export
+	 * @return JSON object describing the export, see {@link StateExport.Job#toJSON()}
+	 */
+	@QueryMethod
+	public String getExportProgress(final Request request) {
+		final StateExport.Job job = StateExport.getInstance().get((String)request.getParam(StateExport.ID_PARAM));
+		if(job == null) {
+			return FAILURE;
+		}
+		try {
+			return job.toJSON().toString();
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize export progress", e);
+		}
+		return FAILURE;
+	}
+
+	/**
+	 * Downloads a page of an export once {@link #getExportProgress(Request)}
+	 * reports it as done. Pass the returned next offset back as the offset
+	 * parameter to read the following page.
+	 * @param request Request object encapsulating RESTful call, with the id of
+	 * the export and optionally the offset of the first line to read
+	 * @return JSON object holding the lines of the page, see
+	 * {@link StateExport#download(String, long)}
+	 */
+	@QueryMethod
+	public String downloadExport(final Request request) {
+		final Logger log = request.getLogger();
+		log.trace("downloadExport");
+		try {
+			final Object param = request.getParam(StateExport.OFFSET_PARAM);
+			final long offset = param == null || "".equals(param) ? 0 : Long.parseLong(param.toString());
+			if(offset < 0) {
+				throw new IllegalArgumentException("Negative offset "+offset);
+			}
+			return StateExport.getInstance().download((String)request.getParam(StateExport.ID_PARAM), offset).toString();
+		}
+		catch(IllegalArgumentException e) {
+			log.info("Unable to download export: "+e.getMessage());
+		}
+		catch(IOException e) {
+			log.warn("Unable to read export", e);
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize export", e);
+		}
+		return FAILURE;
+	}
+
+	/**
+	 * Reloads the catalog of state and source graphs from the metadata graph.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"success": true|false, "version": #}
+	 */
+	@QueryMethod
+	public String refreshGraphCatalog(final Request request) {
+		final GraphCatalog catalog = GraphCatalog.getInstance();
+		final boolean success = catalog.load(request, config);
+		try {
+			JSONObject response = new JSONObject();
+			response.put("success", success);
+			response.put("version", catalog.getVersion());
+			return response.toString();
+		}
+		catch(JSONException e) {
+			log.warn("Unable to serialize graph catalog response", e);
+		}
+		return FAILURE;
+	}
+	
+	/**
+	 * Reports the size of the state registry and how many lookups it has
+	 * answered without contacting LOGD.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"size": #, "hits": #, "misses": #}
+	 */
+	@QueryMethod
+	public String getStateRegistryStats(final Request request) {
+		return StateRegistry.getInstance().toJSON().toString();
+	}
+	
+	/**
+	 * Reports the load planner's estimates of triples per site and the
+	 * strategy, size, and duration of the most recent loads.
+	 * @param request Request object encapsulating RESTful call
+	 * @return JSON object of the form {"triplesPerSite": {...}, "loads": [...]}
+	 */
+	@QueryMethod
+	public String getLoadPlannerStats(final Request request) {
+		return LoadPlanner.getInstance().toJSON().toString();
+	}
+	
 	/**
 	 * Adds known water regulations to the provided domain
 	 * @param domain A domain, specifically the water domain
@@ -258,22 +488,21 @@ public class WaterDataProviderModule implements Module, ProvidesDomain {
 	/**
 	 * Adds data sources to the water domain
 	 * @param domain The water domain
-	 * @param request Required so that we can execute remote SPARQL queries.
+	 * @param request Used to load the data sources if the background refresh
+	 * has not yet completed, or null to use only the loaded sources
 	 */
 	protected void addDataSources(final Domain domain, final Request request) {
-		String response = queryForDataSources(request);
-		try {
-			JSONObject data = new JSONObject(response);
-			JSONArray entries = data.getJSONArray("data");
-			for(int i=0;i<entries.length();i++) {
-				JSONObject entry = entries.getJSONObject(i);
-				String uri = entry.getString("uri");
-				String label = entry.getString(LABEL_VAR);
-				domain.addSource(URI.create(uri), label);
-			}
+		final DataSourceCatalog catalog = DataSourceCatalog.getInstance();
+		if(!catalog.isLoaded() && request != null) {
+			loadDataSources(request);
 		}
-		catch(JSONException e) {
-			log.warn("Unexpected exception", e);
+		final Map<String, String> sources = catalog.getSources();
+		if(sources == null) {
+			log.warn("No data sources available for the water domain");
+			return;
+		}
+		for(Map.Entry<String, String> entry : sources.entrySet()) {
+			domain.addSource(URI.create(entry.getKey()), entry.getValue());
 		}
 	}
 	
@@ -0,0 +1,66 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class CountTableTest extends TestCase {
+
+	private static final String RI = "http://logd.tw.rpi.edu/id/us/state/Rhode_Island";
+	private static final String USGS = "http://sparql.tw.rpi.edu/source/usgs-gov";
+	private static final String EMPTY = "{ \"head\": { \"vars\": [] }, \"results\": { \"bindings\": [] } }";
+
+	@Test
+	public void testInvalidatedByCatalogChange() throws Exception {
+		GraphCatalog catalog = GraphCatalog.getInstance();
+		String fixture = WaterDataProviderModuleTest.getResource("/catalog-response.json");
+		catalog.load(fixture);
+		CountTable table = CountTable.getInstance();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		counts.put("7", 42);
+		table.put(RI, USGS, catalog.getVersion(), counts);
+		assertEquals(Integer.valueOf(42), table.get(RI, USGS).get("7"));
+		
+		catalog.load(EMPTY);
+		assertNull(table.get(RI, USGS));
+		catalog.load(fixture);
+	}
+	
+	@Test
+	public void testFailureRemembered() throws Exception {
+		GraphCatalog catalog = GraphCatalog.getInstance();
+		String fixture = WaterDataProviderModuleTest.getResource("/catalog-response.json");
+		catalog.load(fixture);
+		CountTable table = CountTable.getInstance();
+		assertFalse(table.hasFailed(RI, USGS));
+		table.fail(RI, USGS, catalog.getVersion());
+		assertTrue(table.hasFailed(RI, USGS));
+
+		// a catalog change allows the grouped query to be retried
+		catalog.load(EMPTY);
+		assertFalse(table.hasFailed(RI, USGS));
+		catalog.load(fixture);
+
+		// as does the retry period running out
+		System.setProperty(CountTable.RETRY_PROPERTY, "0");
+		try {
+			table.fail(RI, USGS, catalog.getVersion());
+			assertFalse(table.hasFailed(RI, USGS));
+		}
+		finally {
+			System.clearProperty(CountTable.RETRY_PROPERTY);
+		}
+	}
+	
+	@Test
+	public void testNormalizeCounty() {
+		assertEquals("7", InstanceCounter.normalizeCounty("7"));
+		assertEquals("7", InstanceCounter.normalizeCounty("007"));
+		assertEquals("7", InstanceCounter.normalizeCounty("RI007"));
+		assertEquals("none", InstanceCounter.normalizeCounty("none"));
+	}
+	
+}
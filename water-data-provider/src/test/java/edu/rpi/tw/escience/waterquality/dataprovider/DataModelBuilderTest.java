@@ -1,17 +1,41 @@
 package edu.rpi.tw.escience.waterquality.dataprovider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import edu.rpi.tw.escience.semanteco.Domain;
+import edu.rpi.tw.escience.semanteco.QueryExecutor;
+import edu.rpi.tw.escience.semanteco.Request;
 import edu.rpi.tw.escience.semanteco.Resource;
+import edu.rpi.tw.escience.semanteco.facets.StreamingModelLoader;
+import edu.rpi.tw.escience.semanteco.query.Query;
+import edu.rpi.tw.escience.semanteco.test.MockQueryExecutor;
+import edu.rpi.tw.escience.semanteco.test.MockRequest;
 import edu.rpi.tw.escience.semanteco.test.TestModuleConfiguration;
 import edu.rpi.tw.escience.semanteco.test.TestRequest;
 import edu.rpi.tw.escience.waterquality.dataprovider.QueryUtils;
@@ -122,14 +146,31 @@ public class DataModelBuilderTest extends TestCase {
 	
 	@Before
 	public void setUp() {
+		// the sites are expected to be fetched with the measurements
+		System.setProperty(SiteRegistry.ENABLED_PROPERTY, "false");
+		// on every request
+		System.setProperty(DeltaRefresh.ENABLED_PROPERTY, "false");
 		config = new TestModuleConfiguration2();
 		request = new TestRequest();
 		config.executor.setDefault("endpoint", "http://sparql.tw.rpi.edu/virtuoso/sparql");
 		config.executor.setDefault("Content-Type", "application/json");
 	}
-	
-	@Test
-	public void testBuildModel() {
+
+	@After
+	public void tearDown() {
+		System.clearProperty(StreamingModelLoader.ENDPOINT_PROPERTY);
+		System.clearProperty(SiteRegistry.ENABLED_PROPERTY);
+		System.clearProperty(DeltaRefresh.ENABLED_PROPERTY);
+		System.clearProperty(QueryUtils.ENDPOINT_PROPERTY);
+		GraphCatalog.getInstance().reset();
+		DataSourceCatalog.getInstance().reset();
+		CountTable.getInstance().clear();
+		SiteRegistry.getInstance().clear();
+		DeltaRefresh.getInstance().clear();
+		LoadPlanner.getInstance().clear();
+	}
+
+	private void setRequestParams() {
 		request.setParam("county", "7");
 		request.setParam("state", "RI");
 		request.setParam("zip", "02888");
@@ -137,16 +178,85 @@ public class DataModelBuilderTest extends TestCase {
 		request.setParam("lng", "-71.40836");
 		request.setParam("limits", "{\"facility\":{\"offset\":0,\"limit\":0},\"site\":{\"offset\":0,\"limit\":10}}");
 		request.setParam("source", "[\"http://sparql.tw.rpi.edu/source/usgs-gov\"]");
+	}
+
+	/**
+	 * Starts an endpoint answering CONSTRUCT queries with the RI data as
+	 * N-Triples and any other query with an empty result set
+	 */
+	private static HttpServer startEndpoint(final AtomicInteger constructs) throws Exception {
+		final Model data = ModelFactory.createDefaultModel();
+		data.read(new StringReader(WaterDataProviderModuleTest.getResource("/data-response-ri.ttl")), null, "TTL");
+		final ByteArrayOutputStream ntriples = new ByteArrayOutputStream();
+		data.write(ntriples, "N-TRIPLE");
+		final byte[] empty = "{\"head\":{\"vars\":[]},\"results\":{\"bindings\":[]}}".getBytes("UTF-8");
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final InputStream is = exchange.getRequestBody();
+				final ByteArrayOutputStream body = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[4096];
+				int read = 0;
+				while((read = is.read(buffer)) > 0) {
+					body.write(buffer, 0, read);
+				}
+				final String query = URLDecoder.decode(body.toString("UTF-8"), "UTF-8");
+				byte[] response = empty;
+				if(query.contains("CONSTRUCT")) {
+					constructs.incrementAndGet();
+					response = ntriples.toByteArray();
+				}
+				exchange.sendResponseHeaders(200, response.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(response);
+				os.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+	
+	@Test
+	public void testBuildModelWithDefaults() throws Exception {
+		// the site registry and delta refresh keep their defaults
+		System.clearProperty(SiteRegistry.ENABLED_PROPERTY);
+		System.clearProperty(DeltaRefresh.ENABLED_PROPERTY);
+		final AtomicInteger constructs = new AtomicInteger();
+		final HttpServer server = startEndpoint(constructs);
+		try {
+			final String endpoint = "http://127.0.0.1:"+server.getAddress().getPort()+"/sparql";
+			System.setProperty(QueryUtils.ENDPOINT_PROPERTY, endpoint);
+			System.setProperty(StreamingModelLoader.ENDPOINT_PROPERTY, endpoint);
+			setRequestParams();
+			config.executor.expect("query", "catalog-query.rq")
+				.andReturn("catalog-response.json")
+
+				.expect("query", "site-query-ri.rq")
+				.andReturn("site-response-ri.json")
+			;
+
+			Model model = ModelFactory.createDefaultModel();
+			builder = new PublicDataModelBuilder(request, config);
+			builder.build(model);
+			assertTrue(constructs.get() > 0);
+			assertFalse(model.isEmpty());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testBuildModel() {
+		setRequestParams();
 		
 		config.executor.setDefault("endpoint", "http://sparql.tw.rpi.edu/virtuoso/sparql");
 		config.executor.setDefault("Content-Type", "applicaction/json");
 
-		config.executor.expect("endpoint", "http://logd.tw.rpi.edu/sparql?output=sparqljson")
-			.expect("query", "state-query-ri.rq")
-			.andReturn("state-response-ri.json")
-			
-			.expect("query", "graph-query-ri.rq")
-			.andReturn("graph-response-ri.json")
+		// RI is answered by the StateRegistry snapshot, so no state query is sent
+		config.executor.expect("query", "catalog-query.rq")
+			.andReturn("catalog-response.json")
 			
 			.expect("query", "site-query-ri.rq")
 			.andReturn("site-response-ri.json")
@@ -161,5 +271,65 @@ public class DataModelBuilderTest extends TestCase {
 		builder = new PublicDataModelBuilder(request, config);
 		builder.build(model);
 	}
-	
+
+	/**
+	 * Request answering its parameters from a map
+	 */
+	private static class ParamRequest extends MockRequest {
+		final Map<String, Object> params = new HashMap<String, Object>();
+
+		@Override
+		public Object getParam(String key) {
+			return params.get(key);
+		}
+
+		@Override
+		public Logger getLogger() {
+			return Logger.getRootLogger();
+		}
+	}
+
+	@Test
+	public void testSourcesLoadInParallel() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(2);
+		final AtomicInteger overlapped = new AtomicInteger();
+		config = new TestModuleConfiguration2() {
+			private static final long serialVersionUID = -4183046516413961352L;
+
+			@Override
+			public QueryExecutor getQueryExecutor(Request request) {
+				return new MockQueryExecutor() {
+					@Override
+					public Model execute(Query query, Model model) {
+						// returns once both sources are inside an executor
+						loading.countDown();
+						try {
+							if(loading.await(5, TimeUnit.SECONDS)) {
+								overlapped.incrementAndGet();
+							}
+						}
+						catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return model;
+					}
+				};
+			}
+		};
+		final ParamRequest request = new ParamRequest();
+		request.params.put("state", "RI");
+		request.params.put("county", "7");
+		request.params.put("source", new JSONArray("[\"http://sparql.tw.rpi.edu/source/epa-gov\"," +
+				"\"http://sparql.tw.rpi.edu/source/usgs-gov\"]"));
+		final DataModelBuilder builder = new DataModelBuilder(request, config) {
+			@Override
+			protected void loadDataForSource(String source, Model model) {
+				// the fallback CONSTRUCT of each source's load
+				execute(null, "text/turtle", model);
+			}
+		};
+		builder.loadSourcesInParallel(ModelFactory.createDefaultModel());
+		assertEquals(2, overlapped.get());
+	}
+
 }
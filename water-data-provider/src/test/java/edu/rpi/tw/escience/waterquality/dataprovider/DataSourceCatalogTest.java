@@ -0,0 +1,37 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class DataSourceCatalogTest extends TestCase {
+
+	private static final String EPA = "http://sparql.tw.rpi.edu/source/epa-gov";
+	private static final String USGS = "http://sparql.tw.rpi.edu/source/usgs-gov";
+
+	@Test
+	public void testLoad() throws Exception {
+		DataSourceCatalog catalog = DataSourceCatalog.getInstance();
+		assertTrue(catalog.load(WaterDataProviderModuleTest.getResource("/sources-response.json")));
+		assertTrue(catalog.isLoaded());
+		Map<String, String> sources = catalog.getSources();
+		assertEquals(2, sources.size());
+		assertEquals("EPA", sources.get(EPA));
+		assertEquals("usgs.gov", sources.get(USGS));
+		JSONArray data = catalog.toJSON().getJSONArray("data");
+		assertEquals(2, data.length());
+		assertEquals(EPA, data.getJSONObject(0).getString("uri"));
+	}
+
+	@Test
+	public void testFailedLoadKeepsSources() throws Exception {
+		DataSourceCatalog catalog = DataSourceCatalog.getInstance();
+		catalog.load(WaterDataProviderModuleTest.getResource("/sources-response.json"));
+		assertFalse(catalog.load("not json"));
+		assertEquals(2, catalog.getSources().size());
+	}
+
+}
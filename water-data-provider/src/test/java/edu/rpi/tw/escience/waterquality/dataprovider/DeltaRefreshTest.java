@@ -0,0 +1,124 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import junit.framework.TestCase;
+
+public class DeltaRefreshTest extends TestCase {
+
+	private static final String GRAPH = "http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-measurements-ri/version/2011-Mar-20";
+	private static final String MEASUREMENT = "http://example.com/measurement-";
+
+	@Test
+	public void testNewest() throws Exception {
+		Model model = measurements(0, "2010-05-01T00:00:00", "2011-03-20T12:30:00Z", "2011-03-19T23:00:00");
+		model.add(model.createResource(MEASUREMENT+"x"), model.createProperty(QueryUtils.TIME_NS+"inXSDDateTime"),
+				"2011-03-20\") || true || (\"");
+		assertEquals("2011-03-20T12:30:00Z", DeltaRefresh.newest(model));
+		assertNull(DeltaRefresh.newest(ModelFactory.createDefaultModel()));
+	}
+
+	@Test
+	public void testNewestComparesInstants() throws Exception {
+		// 12:30+05:00 is 07:30Z, earlier than 10:00Z although it sorts later as text
+		Model model = measurements(0, "2011-03-20T12:30:00+05:00", "2011-03-20T10:00:00Z");
+		assertEquals("2011-03-20T10:00:00Z", DeltaRefresh.newest(model));
+		assertTrue(DeltaRefresh.isNewer("2011-03-20T10:00:00.5Z", "2011-03-20T10:00:00Z"));
+		assertFalse(DeltaRefresh.isNewer("2011-03-20T12:30:00+05:00", "2011-03-20T10:00:00Z"));
+		assertFalse(DeltaRefresh.isNewer("2011-03-20", null));
+		DeltaRefresh.Entry entry = new DeltaRefresh.Entry("signature", model, DeltaRefresh.newest(model), null);
+		entry.merge(measurements(2, "2011-03-20T14:00:00+05:00"), null);
+		assertEquals("2011-03-20T10:00:00Z", entry.getNewest());
+	}
+
+	@Test
+	public void testSinceOverlapsNewest() throws Exception {
+		try {
+			assertEquals("2011-03-20T09:00:00Z", DeltaRefresh.since("2011-03-20T10:00:00Z"));
+			assertEquals("2011-03-20T06:30:00Z", DeltaRefresh.since("2011-03-20T12:30:00+05:00"));
+			System.setProperty(DeltaRefresh.OVERLAP_PROPERTY, "0");
+			assertEquals("2011-03-20T10:00:00Z", DeltaRefresh.since("2011-03-20T10:00:00"));
+		}
+		finally {
+			System.clearProperty(DeltaRefresh.OVERLAP_PROPERTY);
+		}
+		try {
+			DeltaRefresh.since("2011-03-20");
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		DeltaRefresh deltas = DeltaRefresh.getInstance();
+		deltas.clear();
+		Map<String, String> stamps = stamps("2011-03-20T00:00:00");
+		deltas.put("44 007 usgs", "signature", measurements(0, "2011-03-19T00:00:00", "2011-03-20T00:00:00"), stamps);
+		assertNull(deltas.get("44 007 usgs", "other signature"));
+		assertNull(deltas.get("44 009 usgs", "signature"));
+		DeltaRefresh.Entry entry = deltas.get("44 007 usgs", "signature");
+		assertNotNull(entry);
+		assertTrue(entry.isCurrent(stamps("2011-03-20T00:00:00")));
+		assertFalse(entry.isCurrent(stamps("2011-03-21T00:00:00")));
+		assertFalse(entry.isCurrent(null));
+		assertEquals("2011-03-20T00:00:00", entry.getNewest());
+
+		// merging the newer measurements advances the newest time and the stamps
+		entry.merge(measurements(2, "2011-03-21T06:00:00"), stamps("2011-03-21T00:00:00"));
+		assertEquals("2011-03-21T06:00:00", entry.getNewest());
+		assertTrue(entry.isCurrent(stamps("2011-03-21T00:00:00")));
+		Model model = ModelFactory.createDefaultModel();
+		entry.copyTo(model);
+		assertEquals(3, model.size());
+		assertEquals(1, deltas.size());
+		deltas.clear();
+		assertEquals(0, deltas.size());
+	}
+
+	@Test
+	public void testModifiedQuery() throws Exception {
+		String query = DeltaRefresh.buildModifiedQuery(Arrays.asList(GRAPH));
+		assertTrue(query.contains("GRAPH <"+QueryUtils.SEMANTECO_METADATA+">"));
+		assertTrue(query.contains("IN (<"+GRAPH+">)"));
+		MeasurementFacets facets = MeasurementFacets.NONE.since("2011-03-20T00:00:00");
+		assertEquals("st", facets.getShape());
+		assertEquals("?time > \"2011-03-20T00:00:00\"^^xsd:dateTime", facets.getTimeFilter());
+		assertFalse(MeasurementFacets.NONE.withTime().isEmpty());
+		assertNull(MeasurementFacets.NONE.withTime().getTimeFilter());
+		try {
+			MeasurementFacets.NONE.since("2011-03-20\"^^xsd:dateTime) || (\"");
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static Model measurements(int first, String... times) {
+		Model model = ModelFactory.createDefaultModel();
+		for(int i=0;i<times.length;i++) {
+			model.add(model.createResource(MEASUREMENT+(first+i)),
+					model.createProperty(QueryUtils.TIME_NS+"inXSDDateTime"),
+					model.createTypedLiteral(times[i], XSDDatatype.XSDdateTime));
+		}
+		return model;
+	}
+
+	private static Map<String, String> stamps(String modified) {
+		Map<String, String> stamps = new HashMap<String, String>();
+		stamps.put(GRAPH, modified);
+		return stamps;
+	}
+
+}
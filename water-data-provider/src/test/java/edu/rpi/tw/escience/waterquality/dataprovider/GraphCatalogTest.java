@@ -0,0 +1,62 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class GraphCatalogTest extends TestCase {
+
+	private static final String NY = "http://logd.tw.rpi.edu/id/us/state/New_York";
+	private static final String EPA = "http://sparql.tw.rpi.edu/source/epa-gov";
+
+	private static final String RI = "http://logd.tw.rpi.edu/id/us/state/Rhode_Island";
+	private static final String USGS = "http://sparql.tw.rpi.edu/source/usgs-gov";
+
+	@Override
+	protected void tearDown() throws Exception {
+		GraphCatalog.getInstance().reset();
+		super.tearDown();
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		GraphCatalog catalog = GraphCatalog.getInstance();
+		assertTrue(catalog.load(WaterDataProviderModuleTest.getResource("/catalog-response.json")));
+		assertTrue(catalog.isLoaded());
+		List<String> graphs = catalog.lookup(RI, USGS);
+		assertEquals(2, graphs.size());
+		assertTrue(graphs.contains("http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ri/version/2011-Mar-20"));
+		assertEquals(0, catalog.lookup("http://logd.tw.rpi.edu/id/us/state/Texas", USGS).size());
+	}
+	
+	@Test
+	public void testVersionOnlyChangesWithContent() throws Exception {
+		GraphCatalog catalog = GraphCatalog.getInstance();
+		String results = WaterDataProviderModuleTest.getResource("/catalog-response.json");
+		catalog.load(results);
+		long version = catalog.getVersion();
+		catalog.load(results);
+		assertEquals(version, catalog.getVersion());
+		assertFalse(catalog.load("not json"));
+		assertEquals(version, catalog.getVersion());
+	}
+
+	@Test
+	public void testRememberAfterFailedLoad() throws Exception {
+		GraphCatalog catalog = GraphCatalog.getInstance();
+		catalog.reset();
+		assertFalse(catalog.load("not json"));
+		catalog.remember(RI, USGS, Collections.singletonList("http://example.org/graph"));
+		assertFalse(catalog.isLoaded());
+		assertEquals(1, catalog.lookup(RI, USGS).size());
+		assertNull(catalog.lookup(NY, EPA));
+
+		// a successful load replaces the remembered pairs
+		assertTrue(catalog.load(WaterDataProviderModuleTest.getResource("/catalog-response.json")));
+		assertEquals(2, catalog.lookup(RI, USGS).size());
+	}
+
+}
@@ -0,0 +1,101 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import edu.rpi.tw.escience.waterquality.dataprovider.LoadPlanner.Plan;
+import edu.rpi.tw.escience.waterquality.dataprovider.LoadPlanner.Strategy;
+
+import static edu.rpi.tw.escience.waterquality.dataprovider.MeasurementFacets.NONE;
+
+import junit.framework.TestCase;
+
+public class LoadPlannerTest extends TestCase {
+
+	private static final String STATE = "http://logd.tw.rpi.edu/id/us/state/Rhode_Island";
+	private static final String SOURCE = "http://sparql.tw.rpi.edu/source/usgs-gov";
+
+	@Test
+	public void testSmallCountyUsesOneQuery() {
+		LoadPlanner planner = LoadPlanner.getInstance();
+		planner.clear();
+		Plan plan = planner.plan(STATE, SOURCE, NONE, 10, 100, true, false);
+		assertEquals(Strategy.SINGLE, plan.strategy);
+		assertEquals(10000, plan.estimate);
+		assertEquals(Integer.MAX_VALUE, plan.chunkSize);
+	}
+	
+	@Test
+	public void testObservedDensitySplitsLoad() {
+		LoadPlanner planner = LoadPlanner.getInstance();
+		planner.clear();
+		// 10 sites returned 200000 triples, so 20000 per site
+		planner.record(STATE, SOURCE, NONE, planner.plan(STATE, SOURCE, NONE, 10, 100, false, false), 200000, 5000);
+		assertEquals(20000.0, planner.getTriplesPerSite(STATE, SOURCE, NONE), 0.001);
+		Plan plan = planner.plan(STATE, SOURCE, NONE, 10, 100, false, false);
+		assertEquals(Strategy.CHUNKED, plan.strategy);
+		assertEquals(5, plan.chunkSize);
+		assertEquals(200000, plan.estimate);
+		// a lighter load moves the estimate towards the new observation
+		planner.record(STATE, SOURCE, NONE, plan, 100000, 2000);
+		assertEquals(0.3 * 10000 + 0.7 * 20000, planner.getTriplesPerSite(STATE, SOURCE, NONE), 0.001);
+		// empty loads don't change the estimate
+		planner.record(STATE, SOURCE, NONE, plan, 0, 100);
+		assertEquals(0.3 * 10000 + 0.7 * 20000, planner.getTriplesPerSite(STATE, SOURCE, NONE), 0.001);
+	}
+	
+	@Test
+	public void testTwoPhase() {
+		LoadPlanner planner = LoadPlanner.getInstance();
+		planner.clear();
+		// small loads only use the registry if it is already loaded
+		assertEquals(Strategy.SINGLE, planner.plan(STATE, SOURCE, NONE, 5, 100, true, false).strategy);
+		assertEquals(Strategy.TWO_PHASE, planner.plan(STATE, SOURCE, NONE, 5, 100, true, true).strategy);
+		// a page of sites is fetched directly
+		assertEquals(Strategy.SINGLE, planner.plan(STATE, SOURCE, NONE, 50, 100, true, false).strategy);
+		assertEquals(Strategy.CHUNKED, planner.plan(STATE, SOURCE, NONE, 200, 100, true, false).strategy);
+		// large loads are worth loading the registry for
+		Plan plan = planner.plan(STATE, SOURCE, NONE, 500, 100, true, false);
+		assertEquals(Strategy.TWO_PHASE, plan.strategy);
+		assertEquals(Strategy.CHUNKED, plan.withoutRegistry().strategy);
+		assertEquals(100, plan.withoutRegistry().chunkSize);
+		assertEquals(Strategy.CHUNKED, planner.plan(STATE, SOURCE, NONE, 500, 100, false, true).strategy);
+	}
+	
+	@Test
+	public void testFacetedLoadsKeptApart() {
+		LoadPlanner planner = LoadPlanner.getInstance();
+		planner.clear();
+		List<String> elements = new ArrayList<String>();
+		elements.add("http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#Arsenic");
+		MeasurementFacets arsenic = new MeasurementFacets(elements, null, null);
+		// a faceted load starts from the unfaceted estimate
+		planner.record(STATE, SOURCE, NONE, planner.plan(STATE, SOURCE, NONE, 10, 100, false, false), 200000, 5000);
+		assertEquals(20000.0, planner.getTriplesPerSite(STATE, SOURCE, arsenic), 0.001);
+		// and is then estimated on its own
+		planner.record(STATE, SOURCE, arsenic, planner.plan(STATE, SOURCE, arsenic, 10, 100, false, false), 1000, 100);
+		assertEquals(100.0, planner.getTriplesPerSite(STATE, SOURCE, arsenic), 0.001);
+		assertEquals(20000.0, planner.getTriplesPerSite(STATE, SOURCE, NONE), 0.001);
+		assertEquals(Strategy.CHUNKED, planner.plan(STATE, SOURCE, NONE, 10, 100, false, false).strategy);
+		assertEquals(Strategy.SINGLE, planner.plan(STATE, SOURCE, arsenic, 10, 100, false, false).strategy);
+		planner.clear();
+	}
+	
+	@Test
+	public void testToJSON() throws Exception {
+		LoadPlanner planner = LoadPlanner.getInstance();
+		planner.clear();
+		for(int i=0;i<25;i++) {
+			planner.record(STATE, SOURCE, NONE, planner.plan(STATE, SOURCE, NONE, 10, 100, false, false), 1000, 10);
+		}
+		JSONObject json = planner.toJSON();
+		assertEquals(100.0, json.getJSONObject("triplesPerSite").getDouble(STATE+" "+SOURCE), 0.001);
+		assertEquals(20, json.getJSONArray("loads").length());
+		assertEquals("SINGLE", json.getJSONArray("loads").getJSONObject(0).getString("strategy"));
+		planner.clear();
+	}
+	
+}
@@ -0,0 +1,76 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class MeasurementFacetsTest extends TestCase {
+
+	private static final String CATEGORY = "http://was.tw.rpi.edu/all-characteristics-cuahsi-ontology2#Metals";
+
+	@Test
+	public void testResolve() throws Exception {
+		MeasurementFacets.clear();
+		assertTrue(MeasurementFacets.load(CATEGORY, WaterDataProviderModuleTest.getResource("/characteristics-response.json")));
+		List<String> elements = MeasurementFacets.resolve(CATEGORY);
+		assertEquals(3, elements.size());
+		assertEquals(QueryUtils.POL_NS+"Arsenic", elements.get(0));
+		assertTrue(MeasurementFacets.buildQuery(CATEGORY).contains("<"+CATEGORY+">"));
+		MeasurementFacets.clear();
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		assertNull(MeasurementFacets.parseCharacteristics(null));
+		assertNull(MeasurementFacets.parseCharacteristics(new JSONArray()));
+		assertEquals(Arrays.asList(CATEGORY),
+				MeasurementFacets.parseCharacteristics(new JSONArray("[\""+CATEGORY+"\"]")));
+		try {
+			MeasurementFacets.parseCharacteristics(new JSONArray("[\"http://example.com/a> } <b\"]"));
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("2011-03-20", MeasurementFacets.parseDate("2011-03-20"));
+		assertNull(MeasurementFacets.parseDate("2011-03-20\") || true || (\""));
+		assertNull(MeasurementFacets.parseDate(""));
+	}
+
+	@Test
+	public void testFilters() throws Exception {
+		assertTrue(MeasurementFacets.NONE.isEmpty());
+		assertNull(MeasurementFacets.NONE.getElementFilter());
+		assertNull(MeasurementFacets.NONE.getTimeFilter());
+		MeasurementFacets facets = new MeasurementFacets(
+				Arrays.asList(QueryUtils.POL_NS+"Arsenic", QueryUtils.POL_NS+"Lead"), "2010-01-01", null);
+		assertEquals("ef", facets.getShape());
+		assertEquals("?element IN (<"+QueryUtils.POL_NS+"Arsenic>,<"+QueryUtils.POL_NS+"Lead>)",
+				facets.getElementFilter());
+		assertEquals("?time > xsd:dateTime(\"2010-01-01\")", facets.getTimeFilter());
+
+		// the placeholders' time filter compiles into a template filled with the facets' values
+		MeasurementFacets placeholders = facets.getPlaceholders();
+		assertEquals(facets.getShape(), placeholders.getShape());
+		List<String> tokens = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		facets.addSlots(tokens, values);
+		QueryTemplate template = QueryTemplate.compile(placeholders.getTimeFilter(),
+				tokens.toArray(new String[tokens.size()]));
+		assertNotNull(template);
+		assertEquals(facets.getTimeFilter(), template.fill(values.toArray(new String[values.size()])));
+
+		// and the characteristics are sent as VALUES in place of the placeholder's filter
+		assertEquals(placeholders.getElementFilter(), facets.getElementPlaceholder().getElementFilter());
+		SiteValues lists = new SiteValues();
+		facets.addValues(lists);
+		assertEquals("VALUES ?element { <"+QueryUtils.POL_NS+"Arsenic> <"+QueryUtils.POL_NS+"Lead> }",
+				lists.expand("FILTER("+placeholders.getElementFilter()+")", 1).get(0));
+	}
+
+}
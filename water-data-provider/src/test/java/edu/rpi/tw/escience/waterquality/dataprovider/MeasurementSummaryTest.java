@@ -0,0 +1,160 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.StringReader;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import edu.rpi.tw.escience.semanteco.facets.RegulationTable;
+
+import junit.framework.TestCase;
+
+public class MeasurementSummaryTest extends TestCase {
+
+	private static final String SITE = QueryUtils.WATER_NS+"WaterSite-EPA-RI0000001";
+	private static final String MEASUREMENT = "http://example.com/measurement-";
+	private static final String USGS_SITE = QueryUtils.WATER_NS+"WaterSite-USGS-01113920";
+	private static final String REGULATION =
+		"@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+		"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+		"@prefix pol: <"+QueryUtils.POL_NS+"> .\n" +
+		"@prefix unit: <"+QueryUtils.UNIT_NS+"> .\n" +
+		"pol:ExcessiveArsenic owl:equivalentClass [ owl:intersectionOf (\n" +
+		"  [ owl:onProperty pol:hasCharacteristic ; owl:hasValue pol:Arsenic ]\n" +
+		"  [ owl:onProperty pol:hasValue ; owl:someValuesFrom [ owl:withRestrictions (\n" +
+		"    [ xsd:minExclusive \"10\"^^xsd:decimal ] ) ] ] ) ] .\n";
+
+	@Test
+	public void testCompact() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource(SITE);
+		// five lead measurements, of which the oldest violates its limit the most
+		double[] values = { 40, 5, 12, 20, 3 };
+		for(int i=0;i<values.length;i++) {
+			addMeasurement(model, site, i, "Lead", values[i], "2011-03-0"+(i+1)+"T00:00:00");
+		}
+		addMeasurement(model, site, 9, "Arsenic", 1, "2011-03-01T00:00:00");
+		assertEquals(3, ViolationEvaluator.evaluate(model));
+
+		assertEquals(2, MeasurementSummary.compact(model, 2));
+		Property hasMeasurement = model.createProperty(QueryUtils.POL_NS+"hasMeasurement");
+		// the two latest, the worst violation and the arsenic measurement remain
+		assertEquals(4, model.listObjectsOfProperty(site, hasMeasurement).toList().size());
+		assertTrue(model.contains(site, hasMeasurement, model.createResource(MEASUREMENT+0)));
+		assertTrue(model.contains(site, hasMeasurement, model.createResource(MEASUREMENT+3)));
+		assertTrue(model.contains(site, hasMeasurement, model.createResource(MEASUREMENT+4)));
+		assertFalse(model.containsResource(model.createResource(MEASUREMENT+1)));
+
+		Property hasSummary = model.createProperty(MeasurementSummary.HAS_MEASUREMENT_SUMMARY.getURI());
+		assertEquals(2, model.listObjectsOfProperty(site, hasSummary).toList().size());
+		Resource lead = findSummary(model, "Lead");
+		assertEquals(5, lead.getProperty(model.createProperty(MeasurementSummary.HAS_MEASUREMENT_COUNT.getURI())).getInt());
+		assertEquals(3.0, lead.getProperty(model.createProperty(MeasurementSummary.HAS_MIN_VALUE.getURI())).getDouble());
+		assertEquals(40.0, lead.getProperty(model.createProperty(MeasurementSummary.HAS_MAX_VALUE.getURI())).getDouble());
+		assertEquals(16.0, lead.getProperty(model.createProperty(MeasurementSummary.HAS_MEAN_VALUE.getURI())).getDouble());
+		assertEquals(MEASUREMENT+0, lead.getPropertyResourceValue(
+				model.createProperty(MeasurementSummary.HAS_WORST_VIOLATION.getURI())).getURI());
+
+		// compacting again keeps every remaining measurement
+		assertEquals(0, MeasurementSummary.compact(model, 5));
+	}
+
+	@Test
+	public void testCompactKeepsRegulationViolation() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		Resource site = model.createResource(USGS_SITE);
+		// USGS measurements carry no limits; the oldest two exceed the regulation
+		double[] values = { 50, 20, 1, 2, 3 };
+		for(int i=0;i<values.length;i++) {
+			addUSGSMeasurement(model, site, i, values[i], "2011-03-0"+(i+1)+"T00:00:00");
+		}
+		Model ontology = ModelFactory.createDefaultModel();
+		ontology.read(new StringReader(REGULATION), QueryUtils.POL_NS, "TTL");
+		RegulationTable regulation = RegulationTable.compile(ontology);
+
+		assertEquals(2, MeasurementSummary.compact(model, 2, Collections.singletonList(regulation)));
+		Resource worst = model.createResource(MEASUREMENT+0);
+		Property hasMeasurement = model.createProperty(QueryUtils.POL_NS+"hasMeasurement");
+		assertEquals(3, model.listObjectsOfProperty(site, hasMeasurement).toList().size());
+		assertTrue(model.contains(site, hasMeasurement, worst));
+		assertTrue(model.contains(worst, RDF.type, model.createResource(QueryUtils.POL_NS+"RegulationViolation")));
+		assertTrue(model.contains(worst, RDF.type, model.createResource(QueryUtils.POL_NS+"ExcessiveArsenic")));
+		assertFalse(model.containsResource(model.createResource(MEASUREMENT+1)));
+		assertEquals(MEASUREMENT+0, findSummary(model, "Arsenic").getPropertyResourceValue(
+				model.createProperty(MeasurementSummary.HAS_WORST_VIOLATION.getURI())).getURI());
+
+		// without the regulation, the violation is not known and is removed
+		model = ModelFactory.createDefaultModel();
+		site = model.createResource(USGS_SITE);
+		for(int i=0;i<values.length;i++) {
+			addUSGSMeasurement(model, site, i, values[i], "2011-03-0"+(i+1)+"T00:00:00");
+		}
+		assertEquals(3, MeasurementSummary.compact(model, 2));
+		assertFalse(model.contains(site, hasMeasurement, worst));
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		assertEquals(0, MeasurementSummary.parseLatest(null));
+		assertEquals(0, MeasurementSummary.parseLatest("false"));
+		assertEquals(0, MeasurementSummary.parseLatest(""));
+		assertEquals(3, MeasurementSummary.parseLatest(Boolean.TRUE));
+		assertEquals(3, MeasurementSummary.parseLatest("true"));
+		assertEquals(10, MeasurementSummary.parseLatest("10"));
+		assertEquals(10, MeasurementSummary.parseLatest(10));
+		try {
+			MeasurementSummary.parseLatest("ten");
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static Resource findSummary(Model model, String characteristic) {
+		Resource type = model.createResource(MeasurementSummary.MEASUREMENT_SUMMARY.getURI());
+		Property hasCharacteristic = model.createProperty(QueryUtils.POL_NS+"hasCharacteristic");
+		for(Resource summary : model.listSubjectsWithProperty(RDF.type, type).toList()) {
+			if(summary.hasProperty(hasCharacteristic, model.createResource(QueryUtils.POL_NS+characteristic))) {
+				return summary;
+			}
+		}
+		fail("No summary for "+characteristic);
+		return null;
+	}
+
+	private static void addUSGSMeasurement(Model model, Resource site, int i, double value, String time) {
+		Resource m = model.createResource(MEASUREMENT+i);
+		model.add(site, model.createProperty(QueryUtils.POL_NS+"hasMeasurement"), m);
+		model.add(m, RDF.type, model.createResource(QueryUtils.WATER_NS+"WaterMeasurement"));
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasCharacteristic"),
+				model.createResource(QueryUtils.POL_NS+"Arsenic"));
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasValue"), model.createTypedLiteral(value));
+		model.add(m, model.createProperty(QueryUtils.UNIT_NS+"hasUnit"), "ug/l");
+		model.add(m, model.createProperty(QueryUtils.TIME_NS+"inXSDDateTime"),
+				model.createTypedLiteral(time, XSDDatatype.XSDdateTime));
+	}
+
+	private static void addMeasurement(Model model, Resource site, int i, String characteristic,
+			double value, String time) {
+		Resource m = model.createResource(MEASUREMENT+i);
+		model.add(site, model.createProperty(QueryUtils.POL_NS+"hasMeasurement"), m);
+		model.add(m, RDF.type, model.createResource(QueryUtils.WATER_NS+"WaterMeasurement"));
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasCharacteristic"),
+				model.createResource(QueryUtils.POL_NS+characteristic));
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasValue"), model.createTypedLiteral(value));
+		model.add(m, model.createProperty(QueryUtils.UNIT_NS+"hasUnit"), "ug/l");
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasLimitOperator"), "<=");
+		model.add(m, model.createProperty(QueryUtils.POL_NS+"hasLimitValue"), model.createTypedLiteral(10.0));
+		model.add(m, model.createProperty(QueryUtils.TIME_NS+"inXSDDateTime"),
+				model.createTypedLiteral(time, XSDDatatype.XSDdateTime));
+	}
+
+}
@@ -0,0 +1,167 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.rpi.tw.escience.waterquality.dataprovider.DataModelBuilder.SourcePlan;
+
+import junit.framework.TestCase;
+
+public class QueryTemplateTest extends TestCase {
+
+	private static final String SITE_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-";
+	private static final String SITES_RI = "<http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ri/version/2011-Mar-20>";
+	private static final String MEASURES_RI = "<http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-measurements-ri/version/2011-Mar-20>";
+	private static final String SITES_NY = "<http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ny/version/2011-Mar-20>";
+	private static final String MEASURES_NY = "<http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-measurements-ny/version/2011-Mar-20>";
+	private static final String USGS = "http://sparql.tw.rpi.edu/source/usgs-gov";
+	private static final String EPA = "http://sparql.tw.rpi.edu/source/epa-gov";
+	private static final String FACILITY_NS = "http://sparql.tw.rpi.edu/source/epa-gov/dataset/echo-facilities-ri/typed/facility/";
+
+	@Test
+	public void testFillReproducesQuery() throws Exception {
+		String query = WaterDataProviderModuleTest.getResource("/data-query-ri.rq");
+		String sites = QueryTemplate.uriList(riSites());
+		QueryTemplate template = QueryTemplate.compile(query, SITES_RI, MEASURES_RI, sites, "\"7\"");
+		assertNotNull(template);
+		assertEquals(4, template.getSlotCount());
+		assertEquals(query, template.fill(SITES_RI, MEASURES_RI, sites, "\"7\""));
+	}
+	
+	@Test
+	public void testFillReplacesEveryOccurrence() throws Exception {
+		String query = WaterDataProviderModuleTest.getResource("/data-query-ri.rq");
+		QueryTemplate template = QueryTemplate.compile(query, SITES_RI, MEASURES_RI,
+				QueryTemplate.uriList(riSites()), "\"7\"");
+		List<String> sites = new ArrayList<String>();
+		sites.add(SITE_NS+"0001");
+		sites.add(SITE_NS+"0002");
+		String filled = template.fill(SITES_NY, MEASURES_NY, QueryTemplate.uriList(sites), "\"61\"");
+		assertFalse(filled.contains(SITES_RI));
+		assertFalse(filled.contains(MEASURES_RI));
+		assertFalse(filled.contains("\"7\""));
+		assertTrue(filled.contains("graph "+SITES_NY+" {"));
+		assertTrue(filled.contains("graph "+MEASURES_NY+" {"));
+		assertTrue(filled.contains("FILTER(?s IN (<"+SITE_NS+"0001>,<"+SITE_NS+"0002>))"));
+		assertEquals(2, count(filled, "\"61\"^^xsd:int"));
+	}
+	
+	@Test
+	public void testPreparedQueryMatchesQueryApi() throws Exception {
+		final DataModelBuilderTest fixture = new DataModelBuilderTest();
+		fixture.setUp();
+		try {
+			fixture.request.setParam("county", "7");
+			fixture.request.setParam("state", "RI");
+			fixture.request.setParam("source", "[\""+USGS+"\",\""+EPA+"\"]");
+			final DataModelBuilder builder = new PublicDataModelBuilder(fixture.request, fixture.config);
+			final List<String> facilities = new ArrayList<String>();
+			facilities.add(FACILITY_NS+"110000307810");
+			facilities.add(FACILITY_NS+"110000308187");
+			final SourcePlan usgs = plan(SITES_RI, MEASURES_RI, riSites());
+			final SourcePlan epa = plan("<http://sparql.tw.rpi.edu/source/epa-gov/dataset/echo-facilities-ri/version/2011-Mar-19>",
+					"<http://sparql.tw.rpi.edu/source/epa-gov/dataset/echo-measurements-ri/version/2011-Mar-19>",
+					facilities);
+			final List<String> elements = Arrays.asList("http://sweet.jpl.nasa.gov/2.1/matrElement.owl#Arsenic",
+					"http://sweet.jpl.nasa.gov/2.1/matrElement.owl#Lead");
+			final MeasurementFacets[] facets = {
+					MeasurementFacets.NONE,
+					MeasurementFacets.NONE.withTime(),
+					new MeasurementFacets(elements, null, null),
+					new MeasurementFacets(null, "2010-01-01", "2011-01-01"),
+					new MeasurementFacets(elements, "2010-01-01", null).since("2010-06-01T00:00:00Z")
+			};
+			QueryTemplate.clear();
+			for(MeasurementFacets selection : facets) {
+				for(boolean measurementsOnly : new boolean[] { false, true }) {
+					final String shape = selection.getShape()+" measurementsOnly="+measurementsOnly;
+					// once to compile the template and once to fill the cached one
+					for(int i=0;i<2;i++) {
+						assertEquals("USGS "+shape, builder.serializeQueries(usgs, selection, measurementsOnly, 1),
+								builder.prepareQueries(USGS, usgs, selection, measurementsOnly, 1));
+						assertEquals("EPA "+shape, builder.serializeQueries(epa, selection, measurementsOnly, 1),
+								builder.prepareQueries(EPA, epa, selection, measurementsOnly, 1));
+					}
+				}
+			}
+		}
+		finally {
+			QueryTemplate.clear();
+			fixture.tearDown();
+		}
+	}
+	
+	@Test
+	public void testMissingToken() throws Exception {
+		String query = WaterDataProviderModuleTest.getResource("/data-query-ri.rq");
+		assertNull(QueryTemplate.compile(query, SITES_RI, SITES_NY));
+	}
+	
+	@Test
+	public void testWrongValueCount() throws Exception {
+		String query = WaterDataProviderModuleTest.getResource("/data-query-ri.rq");
+		QueryTemplate template = QueryTemplate.compile(query, SITES_RI);
+		try {
+			template.fill(SITES_NY, MEASURES_NY);
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testCache() throws Exception {
+		QueryTemplate.clear();
+		assertNull(QueryTemplate.get("usgs-counter"));
+		QueryTemplate template = QueryTemplate.compile("SELECT * WHERE { GRAPH <g> { ?s ?p "+
+				QueryTemplate.LITERAL_SLOT+"county } }", "<g>", QueryTemplate.LITERAL_SLOT+"county");
+		QueryTemplate.put("usgs-counter", template);
+		assertSame(template, QueryTemplate.get("usgs-counter"));
+		assertEquals("SELECT * WHERE { GRAPH <h> { ?s ?p 7 } }",
+				QueryTemplate.get("usgs-counter").fill("<h>", "7"));
+		QueryTemplate.clear();
+		assertNull(QueryTemplate.get("usgs-counter"));
+	}
+	
+	@Test
+	public void testSafeLiteral() {
+		assertTrue(QueryTemplate.isSafeLiteral("7"));
+		assertTrue(QueryTemplate.isSafeLiteral("RI007"));
+		assertFalse(QueryTemplate.isSafeLiteral(null));
+		assertFalse(QueryTemplate.isSafeLiteral("7\" . ?s ?p ?o"));
+		assertFalse(QueryTemplate.isSafeLiteral("7> } "));
+	}
+	
+	private static SourcePlan plan(final String sites, final String measurements, final List<String> siteList) {
+		final List<String> graphs = new ArrayList<String>();
+		graphs.add(sites.substring(1, sites.length()-1));
+		graphs.add(measurements.substring(1, measurements.length()-1));
+		final List<List<String>> siteLists = new ArrayList<List<String>>();
+		siteLists.add(siteList);
+		siteLists.add(null);
+		return new SourcePlan(graphs, siteLists);
+	}
+	
+	private static List<String> riSites() {
+		String[] ids = { "414459071242200", "01116617", "01116609", "01116500", "01115050",
+				"414738071260100", "414819071230601", "414817071263401", "01113920", "414606071283900" };
+		List<String> sites = new ArrayList<String>();
+		for(String id : ids) {
+			sites.add(SITE_NS+id);
+		}
+		return sites;
+	}
+	
+	private static int count(String text, String needle) {
+		int count = 0;
+		for(int i=text.indexOf(needle);i>=0;i=text.indexOf(needle, i+1)) {
+			count++;
+		}
+		return count;
+	}
+	
+}
@@ -0,0 +1,54 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class SiteCursorTest extends TestCase {
+
+	private static final String SITE = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-01116617";
+
+	@Test
+	public void testEncode() {
+		SiteCursor cursor = new SiteCursor(41.74936, -71.40836, 1.25e-4, SITE);
+		String text = cursor.encode();
+		assertTrue(text.matches("[0-9a-f]+"));
+		SiteCursor decoded = SiteCursor.decode(text);
+		assertEquals(cursor.clat, decoded.clat);
+		assertEquals(cursor.clng, decoded.clng);
+		assertEquals(cursor.distance, decoded.distance);
+		assertEquals(SITE, decoded.uri);
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] invalid = {
+			"zz",
+			"abc",
+			new SiteCursor(41.7, -71.4, 0.1, "http://example.com/a\" || true || \"").encode(),
+			new SiteCursor(41.7, -71.4, Double.NaN, SITE).encode()
+		};
+		for(String text : invalid) {
+			try {
+				SiteCursor.decode(text);
+				fail("Expected IllegalArgumentException for "+text);
+			}
+			catch(IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		SiteCursor cursor = new SiteCursor(41.7, -71.4, 0.5, "http://example.com/b");
+		assertTrue(cursor.precedes(0.6, "http://example.com/a"));
+		assertTrue(cursor.precedes(0.5, "http://example.com/c"));
+		assertFalse(cursor.precedes(0.5, "http://example.com/b"));
+		assertFalse(cursor.precedes(0.4, "http://example.com/c"));
+		String filter = cursor.buildFilter("?d", "s");
+		assertTrue(filter.startsWith("(?d > 0.5"));
+		assertTrue(filter.endsWith(" && str(?s) > \"http://example.com/b\"))"));
+	}
+
+}
@@ -0,0 +1,116 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class SiteIndexTest extends TestCase {
+
+	private static final String SITE_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-";
+
+	@Test
+	public void testParseFixture() throws Exception {
+		SiteIndex index = SiteIndex.parse(WaterDataProviderModuleTest.getResource("/site-response-ri.json"),
+				"s", "lat", "long");
+		assertEquals(10, index.size());
+		// same order the endpoint returned for ORDER BY distance
+		List<String> expected = Arrays.asList("414459071242200", "01116617", "01116609",
+				"01116500", "01115050", "414738071260100", "414819071230601",
+				"414817071263401", "01113920", "414606071283900");
+		List<String> page = index.nearest(41.74936, -71.40836, 0, 10);
+		assertEquals(expected.size(), page.size());
+		for(int i=0;i<expected.size();i++) {
+			assertEquals(SITE_NS+expected.get(i), page.get(i));
+		}
+		assertEquals(page.subList(3, 6), index.nearest(41.74936, -71.40836, 3, 3));
+		assertEquals(0, index.nearest(41.74936, -71.40836, 10, 10).size());
+	}
+
+	@Test
+	public void testMatchesBruteForce() {
+		final Random random = new Random(7);
+		final int n = 2000;
+		final String[] uris = new String[n];
+		final double[] lats = new double[n];
+		final double[] lngs = new double[n];
+		for(int i=0;i<n;i++) {
+			uris[i] = "http://example.com/site/"+i;
+			// clustered sites, as they tend to be along rivers
+			lats[i] = 41.5 + (i % 3 == 0 ? random.nextDouble() * 0.5 : random.nextGaussian() * 0.02);
+			lngs[i] = -71.5 + random.nextDouble() * 0.4;
+		}
+		SiteIndex index = new SiteIndex(uris, lats, lngs);
+		double[][] centers = { { 41.6, -71.4 }, { 41.5, -71.5 }, { 45.0, -60.0 }, { 30.0, -71.3 } };
+		for(final double[] center : centers) {
+			List<Integer> all = new ArrayList<Integer>();
+			for(int i=0;i<n;i++) {
+				all.add(i);
+			}
+			Collections.sort(all, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					double da = dist(lats[a], lngs[a], center), db = dist(lats[b], lngs[b], center);
+					return da < db ? -1 : (da > db ? 1 : uris[a].compareTo(uris[b]));
+				}
+			});
+			List<String> page = index.nearest(center[0], center[1], 20, 25);
+			assertEquals(25, page.size());
+			for(int i=0;i<25;i++) {
+				assertEquals(uris[all.get(20 + i)], page.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testCursorPages() {
+		final Random random = new Random(11);
+		final int n = 1500;
+		final String[] uris = new String[n];
+		final double[] lats = new double[n];
+		final double[] lngs = new double[n];
+		for(int i=0;i<n;i++) {
+			uris[i] = "http://example.com/site/"+i;
+			// coarse coordinates so that many sites share a distance
+			lats[i] = 41.5 + random.nextInt(40) * 0.01;
+			lngs[i] = -71.5 + random.nextInt(40) * 0.01;
+		}
+		SiteIndex index = new SiteIndex(uris, lats, lngs);
+		double[][] centers = { { 41.7, -71.3 }, { 41.5, -71.5 }, { 45.0, -60.0 } };
+		for(double[] center : centers) {
+			// walking the cursors visits every site in the order of the offset pages
+			List<String> walked = new ArrayList<String>();
+			SiteCursor.Page page = index.after(null, center[0], center[1], 40);
+			assertEquals(index.nearest(center[0], center[1], 0, 40), page.sites);
+			while(!page.sites.isEmpty()) {
+				walked.addAll(page.sites);
+				assertEquals(index.nearest(center[0], center[1], walked.size() - page.sites.size(), 40), page.sites);
+				page = index.after(SiteCursor.decode(page.next.encode()), 0, 0, 40);
+			}
+			assertNull(page.next);
+			assertEquals(n, walked.size());
+			assertEquals(index.nearest(center[0], center[1], 0, n), walked);
+		}
+		SiteCursor cursor = index.cursorAt(41.7, -71.3, uris[5]);
+		assertEquals(uris[5], cursor.uri);
+		assertEquals(dist(lats[5], lngs[5], new double[] { 41.7, -71.3 }), cursor.distance);
+		assertNull(index.cursorAt(41.7, -71.3, "http://example.com/missing"));
+	}
+
+	@Test
+	public void testEmpty() {
+		SiteIndex index = new SiteIndex(new String[0], new double[0], new double[0]);
+		assertEquals(0, index.nearest(41.7, -71.4, 0, 10).size());
+	}
+
+	private static double dist(double lat, double lng, double[] center) {
+		return (lat - center[0]) * (lat - center[0]) + (lng - center[1]) * (lng - center[1]);
+	}
+
+}
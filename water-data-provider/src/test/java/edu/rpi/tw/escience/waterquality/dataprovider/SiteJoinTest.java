@@ -0,0 +1,206 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import junit.framework.TestCase;
+
+public class SiteJoinTest extends TestCase {
+
+	private static final String SITE_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-";
+
+	/**
+	 * Splits the recorded response to the combined RI query into the slices
+	 * that the single-graph queries would return and checks that joining
+	 * them gives the combined response back
+	 */
+	@Test
+	public void testJoinBySite() throws Exception {
+		Model expected = loadResponse();
+		Property hasMeasurement = expected.createProperty(QueryUtils.POL_NS+"hasMeasurement");
+		Model sites = ModelFactory.createDefaultModel();
+		Model measurements = ModelFactory.createDefaultModel();
+		StmtIterator it = expected.listStatements();
+		while(it.hasNext()) {
+			Statement stmt = it.next();
+			if(stmt.getPredicate().equals(hasMeasurement)) {
+				measurements.add(stmt);
+			}
+			else if(stmt.getSubject().getURI().startsWith(SITE_NS)) {
+				sites.add(stmt);
+			}
+			else {
+				measurements.add(stmt);
+			}
+		}
+		// a site without measurements and a measurement of a site outside the slice
+		Resource dry = sites.createResource(SITE_NS+"0000");
+		sites.add(dry, RDF.type, sites.createResource(QueryUtils.WATER_NS+"WaterSite"));
+		sites.add(dry, RDFS.label, "DRY CREEK");
+		Resource stray = measurements.createResource("http://example.com/measurement/stray");
+		measurements.add(measurements.createResource(SITE_NS+"9999"), hasMeasurement, stray);
+		measurements.add(stray, RDF.type, measurements.createResource(QueryUtils.WATER_NS+"WaterMeasurement"));
+
+		// the recorded response stops at the endpoint's result limit, so
+		// measurements cut off from their site are not expected back
+		Set<RDFNode> linked = new HashSet<RDFNode>(expected.listObjectsOfProperty(hasMeasurement).toList());
+		List<Statement> cutOff = new ArrayList<Statement>();
+		it = expected.listStatements();
+		while(it.hasNext()) {
+			Statement stmt = it.next();
+			if(!stmt.getSubject().getURI().startsWith(SITE_NS) && !linked.contains(stmt.getSubject())) {
+				cutOff.add(stmt);
+			}
+		}
+		expected.remove(cutOff);
+
+		Model joined = ModelFactory.createDefaultModel();
+		int links = SiteJoin.join(sites, measurements, QueryUtils.WATER_NS+"WaterSite", false, joined);
+		assertEquals(expected.listStatements(null, hasMeasurement, (RDFNode)null).toList().size(), links);
+		assertTrue(joined.isIsomorphicWith(expected));
+	}
+	
+	/**
+	 * Runs the combined RI query and its two single-graph slices against
+	 * graphs rebuilt from the recorded response and checks that joining
+	 * the slices gives the combined query's result
+	 */
+	@Test
+	public void testSlicesMatchCombinedQuery() throws Exception {
+		Model response = loadResponse();
+		Property hasMeasurement = response.createProperty(QueryUtils.POL_NS+"hasMeasurement");
+		Property hasSite = response.createProperty(QueryUtils.POL_NS+"hasSite");
+		Property sciUnit = response.createProperty(QueryUtils.UNIT_NS+"hasUnit");
+		Property reprUnit = response.createProperty(QueryUtils.REPR_NS+"hasUnit");
+		Model sites = ModelFactory.createDefaultModel();
+		Model measurements = ModelFactory.createDefaultModel();
+		StmtIterator it = response.listStatements();
+		while(it.hasNext()) {
+			Statement stmt = it.next();
+			if(stmt.getPredicate().equals(hasMeasurement)) {
+				measurements.add(stmt.getResource(), hasSite, stmt.getSubject());
+			}
+			else if(stmt.getSubject().getURI().startsWith(SITE_NS)) {
+				sites.add(stmt);
+			}
+			else if(stmt.getPredicate().equals(sciUnit)) {
+				measurements.add(stmt.getSubject(), reprUnit, stmt.getObject());
+			}
+			else if(!stmt.getPredicate().equals(RDF.type)) {
+				measurements.add(stmt);
+			}
+		}
+		DataSource dataset = DatasetFactory.create();
+		dataset.addNamedModel("http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ri/version/2011-Mar-20", sites);
+		dataset.addNamedModel("http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-measurements-ri/version/2011-Mar-20", measurements);
+
+		Model combined = construct(dataset, "/data-query-ri.rq");
+		assertFalse(combined.isEmpty());
+		Model joined = ModelFactory.createDefaultModel();
+		SiteJoin.join(construct(dataset, "/site-slice-ri.rq"), construct(dataset, "/measurement-slice-ri.rq"),
+				QueryUtils.WATER_NS+"WaterSite", false, joined);
+		assertTrue(joined.isIsomorphicWith(combined));
+	}
+
+	private static Model construct(final Dataset dataset, final String resource) throws Exception {
+		QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(
+				WaterDataProviderModuleTest.getResource(resource), Syntax.syntaxSPARQL_11), dataset);
+		try {
+			return qe.execConstruct();
+		}
+		finally {
+			qe.close();
+		}
+	}
+
+	@Test
+	public void testJoinByPermit() {
+		Model facilities = ModelFactory.createDefaultModel();
+		Property hasPermit = facilities.createProperty(QueryUtils.POL_NS+"hasPermit");
+		Property hasMeasurement = facilities.createProperty(QueryUtils.POL_NS+"hasMeasurement");
+		Resource facilityType = facilities.createResource(QueryUtils.WATER_NS+"WaterFacility");
+		Resource a = facilities.createResource("http://example.com/facility/a");
+		Resource b = facilities.createResource("http://example.com/facility/b");
+		Resource c = facilities.createResource("http://example.com/facility/c");
+		facilities.add(a, RDF.type, facilityType);
+		facilities.add(a, hasPermit, "RI0001");
+		facilities.add(b, RDF.type, facilityType);
+		facilities.add(b, hasPermit, "RI0001");
+		facilities.add(b, hasPermit, "RI0002");
+		facilities.add(b, RDFS.label, "B");
+		facilities.add(c, RDF.type, facilityType);
+		facilities.add(c, hasPermit, "RI0003");
+		Model measurements = ModelFactory.createDefaultModel();
+		Resource m1 = measurements.createResource("http://example.com/measurement/1");
+		Resource m2 = measurements.createResource("http://example.com/measurement/2");
+		Resource m3 = measurements.createResource("http://example.com/measurement/3");
+		measurements.add(m1, hasPermit, "RI0001");
+		measurements.add(m1, RDF.value, "1.0");
+		measurements.add(m2, hasPermit, "RI0002");
+		measurements.add(m3, hasPermit, "RI0004");
+		measurements.add(m3, RDF.value, "3.0");
+
+		Model joined = ModelFactory.createDefaultModel();
+		assertEquals(3, SiteJoin.join(facilities, measurements, QueryUtils.WATER_NS+"WaterFacility", true, joined));
+		assertTrue(joined.contains(a, hasMeasurement, m1));
+		assertTrue(joined.contains(b, hasMeasurement, m1));
+		assertTrue(joined.contains(b, hasMeasurement, m2));
+		assertTrue(joined.contains(m1, RDF.value, "1.0"));
+		assertTrue(joined.contains(m2, hasPermit, "RI0002"));
+		assertTrue(joined.contains(b, RDFS.label, "B"));
+		// facility permits are only used for the join
+		assertFalse(joined.contains(a, hasPermit, (RDFNode)null));
+		assertFalse(joined.containsResource(c));
+		assertFalse(joined.containsResource(m3));
+	}
+	
+	@Test
+	public void testNodeTable() {
+		SiteJoin.NodeTable table = new SiteJoin.NodeTable();
+		for(int i=0;i<1000;i++) {
+			assertEquals(i, table.intern(Node.createURI(SITE_NS+i)));
+		}
+		assertEquals(1000, table.size());
+		for(int i=0;i<1000;i++) {
+			assertEquals(i, table.find(Node.createURI(SITE_NS+i)));
+			assertEquals(i, table.intern(Node.createURI(SITE_NS+i)));
+		}
+		assertEquals(-1, table.find(Node.createURI(SITE_NS+"x")));
+	}
+	
+	static Model loadResponse() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		InputStream is = SiteJoinTest.class.getResourceAsStream("/data-response-ri.ttl");
+		try {
+			model.read(is, null, "TTL");
+		}
+		finally {
+			is.close();
+		}
+		return model;
+	}
+	
+}
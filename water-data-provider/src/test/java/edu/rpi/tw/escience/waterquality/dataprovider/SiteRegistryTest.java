@@ -0,0 +1,194 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+public class SiteRegistryTest extends TestCase {
+
+	private static final String GRAPH = "http://sparql.tw.rpi.edu/source/usgs-gov/dataset/nwis-sites-ri/version/2011-Mar-20";
+	private static final String SITE_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-";
+
+	@After
+	public void tearDown() {
+		System.clearProperty(QueryUtils.ENDPOINT_PROPERTY);
+		SiteRegistry.getInstance().clear();
+	}
+
+	/**
+	 * Starts an endpoint answering every query with the registry response,
+	 * or with an error while failing is set
+	 */
+	private static HttpServer startEndpoint(final AtomicInteger queries, final AtomicBoolean failing) throws Exception {
+		final byte[] sites = WaterDataProviderModuleTest.getResource("/registry-response-ri.json").getBytes("UTF-8");
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final InputStream is = exchange.getRequestBody();
+				while(is.read(new byte[4096]) > 0) {
+				}
+				queries.incrementAndGet();
+				try {
+					// keep the load in flight long enough for the other requests to arrive
+					Thread.sleep(200);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if(failing.get()) {
+					exchange.sendResponseHeaders(500, -1);
+					exchange.close();
+					return;
+				}
+				exchange.sendResponseHeaders(200, sites.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(sites);
+				os.close();
+			}
+		});
+		server.start();
+		System.setProperty(QueryUtils.ENDPOINT_PROPERTY,
+				"http://127.0.0.1:"+server.getAddress().getPort()+"/sparql");
+		return server;
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		SiteRegistry registry = SiteRegistry.getInstance();
+		registry.clear();
+		assertTrue(registry.load(GRAPH, true, WaterDataProviderModuleTest.getResource("/registry-response-ri.json")));
+		assertEquals(1, registry.size());
+		SiteRegistry.Sites sites = registry.get(GRAPH, true);
+		// the repeated site keeps its first binding and the site with an
+		// invalid latitude is skipped
+		assertEquals(2, sites.size());
+		List<String> uris = new ArrayList<String>();
+		uris.add(SITE_NS+"01113920");
+		uris.add(SITE_NS+"01115050");
+		assertTrue(sites.containsAll(uris));
+		uris.add(SITE_NS+"01116500");
+		assertFalse(sites.containsAll(uris));
+		registry.clear();
+	}
+	
+	@Test
+	public void testAddTo() throws Exception {
+		SiteRegistry registry = SiteRegistry.getInstance();
+		registry.clear();
+		registry.load(GRAPH, true, WaterDataProviderModuleTest.getResource("/registry-response-ri.json"));
+		SiteRegistry.Sites sites = registry.get(GRAPH, true);
+		Model model = ModelFactory.createDefaultModel();
+		Resource seekonk = model.createResource(SITE_NS+"01113920");
+		model.add(seekonk, model.createProperty(QueryUtils.POL_NS+"hasMeasurement"),
+				model.createResource("http://example.com/measurement/1"));
+		List<String> uris = new ArrayList<String>();
+		uris.add(SITE_NS+"01113920");
+		uris.add(SITE_NS+"01115050");
+		// only sites with measurements are described
+		assertEquals(1, sites.addTo(model, uris));
+		assertTrue(model.contains(seekonk, RDF.type, model.createResource(QueryUtils.WATER_NS+"WaterSite")));
+		assertTrue(model.contains(seekonk, RDFS.label, "SEEKONK RIVER AT PROVIDENCE, RI"));
+		assertFalse(model.contains(seekonk, RDFS.label, "SEEKONK RIVER"));
+		assertTrue(model.contains(seekonk, model.createProperty(QueryUtils.WGS_NS+"lat"),
+				model.createTypedLiteral("41.8173226", XSDDatatype.XSDdecimal)));
+		assertTrue(model.contains(seekonk, model.createProperty(QueryUtils.WGS_NS+"long"),
+				model.createTypedLiteral("-71.3872775", XSDDatatype.XSDdecimal)));
+		assertTrue(model.contains(seekonk, model.createProperty(QueryUtils.POL_NS+"hasCountyCode"),
+				model.createTypedLiteral("7", XSDDatatype.XSDint)));
+		assertTrue(model.contains(seekonk, model.createProperty(QueryUtils.POL_NS+"hasStateCode"),
+				model.createTypedLiteral("44", XSDDatatype.XSDinteger)));
+		assertFalse(model.containsResource(model.createResource(SITE_NS+"01115050")));
+		assertEquals(7, model.size());
+		registry.clear();
+	}
+	
+	@Test
+	public void testBuildQuery() {
+		String usgs = SiteRegistry.buildQuery(GRAPH, true);
+		assertTrue(usgs.contains("GRAPH <"+GRAPH+">"));
+		assertTrue(usgs.contains("?county ?state WHERE"));
+		assertTrue(usgs.contains(QueryUtils.WATER_NS+"WaterSite>"));
+		String epa = SiteRegistry.buildQuery(GRAPH, false);
+		assertFalse(epa.contains("?county"));
+		assertTrue(epa.contains(QueryUtils.POL_NS+"hasPermit> ?permit"));
+		assertTrue(epa.contains(QueryUtils.WATER_NS+"WaterFacility>"));
+	}
+	
+	@Test
+	public void testConcurrentGetLoadsOnce() throws Exception {
+		final SiteRegistry registry = SiteRegistry.getInstance();
+		registry.clear();
+		final AtomicInteger queries = new AtomicInteger();
+		final HttpServer server = startEndpoint(queries, new AtomicBoolean(false));
+		try {
+			final SiteRegistry.Sites[] results = new SiteRegistry.Sites[4];
+			final Thread[] threads = new Thread[results.length];
+			for(int i=0;i<threads.length;i++) {
+				final int index = i;
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						results[index] = registry.get(GRAPH, true);
+					}
+				});
+				threads[i].start();
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(1, queries.get());
+			for(SiteRegistry.Sites sites : results) {
+				assertNotNull(sites);
+				assertEquals(2, sites.size());
+			}
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testFailureRemembered() throws Exception {
+		final SiteRegistry registry = SiteRegistry.getInstance();
+		registry.clear();
+		final AtomicInteger queries = new AtomicInteger();
+		final HttpServer server = startEndpoint(queries, new AtomicBoolean(true));
+		try {
+			assertNull(registry.get(GRAPH, true));
+			assertTrue(registry.hasFailed(GRAPH));
+			// the graph is not requested again within the retry period
+			assertNull(registry.get(GRAPH, true));
+			assertEquals(1, queries.get());
+			// loaded sites replace the failure
+			assertTrue(registry.load(GRAPH, true, WaterDataProviderModuleTest.getResource("/registry-response-ri.json")));
+			assertFalse(registry.hasFailed(GRAPH));
+			assertNotNull(registry.get(GRAPH, true));
+			assertEquals(1, queries.get());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+}
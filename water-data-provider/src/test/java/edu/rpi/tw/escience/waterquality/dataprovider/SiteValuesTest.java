@@ -0,0 +1,107 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class SiteValuesTest extends TestCase {
+
+	private static final String SITE_NS = "http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#WaterSite-USGS-";
+	private static final String SITES_SLOT = "<"+QueryTemplate.URI_SLOT+"sites0>";
+
+	/**
+	 * Gets the recorded data query with its site list replaced by the
+	 * placeholder and registers the sites under it
+	 */
+	private static String placeholderQuery(final SiteValues values) throws Exception {
+		final String query = WaterDataProviderModuleTest.getResource("/data-query-ri.rq");
+		final int start = query.indexOf("?s IN (") + "?s IN (".length();
+		final int end = query.indexOf("))", start);
+		final List<String> sites = new ArrayList<String>();
+		for(String term : query.substring(start, end).split(",")) {
+			sites.add(term.substring(1, term.length() - 1));
+		}
+		values.uris("sites0", sites, true);
+		return query.substring(0, start)+SITES_SLOT+query.substring(end);
+	}
+
+	@Test
+	public void testExpand() throws Exception {
+		SiteValues values = new SiteValues();
+		String query = placeholderQuery(values);
+		List<String> queries = values.expand(query, 100);
+		assertEquals(1, queries.size());
+		String expanded = queries.get(0);
+		assertFalse(expanded.contains(" IN ("));
+		assertFalse(expanded.contains(QueryTemplate.URI_SLOT));
+		assertTrue(expanded.contains("VALUES ?s { <"+SITE_NS+"414459071242200> <"+SITE_NS+"01116617> "));
+		assertEquals(10, count(expanded, SITE_NS));
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		SiteValues values = new SiteValues();
+		String query = placeholderQuery(values);
+		List<String> queries = values.expand(query, 3);
+		assertEquals(4, queries.size());
+		int sites = 0;
+		for(String chunk : queries) {
+			assertTrue(chunk.contains("VALUES ?s {"));
+			sites += count(chunk, SITE_NS);
+		}
+		assertEquals(10, sites);
+		assertEquals(1, count(queries.get(3), SITE_NS));
+	}
+
+	@Test
+	public void testCharacteristicsNotSplit() throws Exception {
+		SiteValues values = new SiteValues();
+		String query = placeholderQuery(values);
+		List<String> elements = new ArrayList<String>();
+		for(int i=0;i<20;i++) {
+			elements.add(QueryUtils.POL_NS+"Element"+i);
+		}
+		values.uris(MeasurementFacets.ELEMENT_VAR, elements, false);
+		query = query.replace("OPTIONAL {", "FILTER(?element IN (<"+QueryTemplate.URI_SLOT+"element>))\nOPTIONAL {");
+		List<String> queries = values.expand(query, 3);
+		assertEquals(4, queries.size());
+		for(String chunk : queries) {
+			assertEquals(20, count(chunk, QueryUtils.POL_NS+"Element"));
+			assertTrue(chunk.contains("VALUES ?element {"));
+		}
+	}
+
+	@Test
+	public void testTermsWithParentheses() throws Exception {
+		SiteValues values = new SiteValues();
+		String placeholder = values.uris("sites0", Arrays.asList("http://example.org/site(1)", "http://example.org/a,b"), true);
+		String permits = values.terms("permits", Arrays.asList("\"RI(0001)\"", "\"RI,0002\""), true);
+		String query = "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o FILTER(?s IN (<"+placeholder+">)) " +
+				"?s <http://example.org/permit> ?permit FILTER ( ?permit IN ( <"+permits+"> ) ) }";
+		List<String> queries = values.expand(query, 100);
+		assertEquals(1, queries.size());
+		assertEquals("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o VALUES ?s { <http://example.org/site(1)> <http://example.org/a,b> } " +
+				"?s <http://example.org/permit> ?permit VALUES ?permit { \"RI(0001)\" \"RI,0002\" } }", queries.get(0));
+	}
+
+	@Test
+	public void testNoLists() throws Exception {
+		String query = WaterDataProviderModuleTest.getResource("/site-query-ri.rq");
+		List<String> queries = new SiteValues().expand(query, 3);
+		assertEquals(1, queries.size());
+		assertEquals(query, queries.get(0));
+	}
+
+	private static int count(String text, String needle) {
+		int count = 0;
+		for(int i=text.indexOf(needle);i>=0;i=text.indexOf(needle, i+1)) {
+			count++;
+		}
+		return count;
+	}
+
+}
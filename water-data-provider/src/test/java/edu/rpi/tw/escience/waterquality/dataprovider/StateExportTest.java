@@ -0,0 +1,148 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import junit.framework.TestCase;
+
+public class StateExportTest extends TestCase {
+
+	@Test
+	public void testParseFormat() throws Exception {
+		assertEquals(StateExport.NTRIPLES, StateExport.parseFormat(null));
+		assertEquals(StateExport.NTRIPLES, StateExport.parseFormat("nt"));
+		assertEquals(StateExport.CSV, StateExport.parseFormat("csv"));
+		try {
+			StateExport.parseFormat("xlsx");
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWriteBatches() throws Exception {
+		Model model = SiteJoinTest.loadResponse();
+		ViolationEvaluator.evaluate(model);
+
+		// n-triples batches appended to one stream read back as their union
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		StateExport.BatchWriter writer = new StateExport.BatchWriter(out, StateExport.NTRIPLES);
+		assertEquals(model.size(), writer.write(model));
+		assertEquals(model.size(), writer.write(model));
+		writer.flush();
+		out.close();
+		Model read = ModelFactory.createDefaultModel();
+		read.read(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())), null, "N-TRIPLE");
+		assertTrue(read.isIsomorphicWith(model));
+
+		// csv has a header and a row per measurement
+		bytes = new ByteArrayOutputStream();
+		writer = new StateExport.BatchWriter(bytes, StateExport.CSV);
+		long rows = writer.write(model);
+		writer.flush();
+		String[] lines = bytes.toString("UTF-8").split("\n");
+		assertEquals(StateExport.CSV_HEADER, lines[0]);
+		assertEquals(rows + 1, lines.length);
+		assertEquals(model.listObjectsOfProperty(model.createProperty(QueryUtils.POL_NS+"hasMeasurement")).toList().size(),
+				rows);
+	}
+
+	@Test
+	public void testSlice() throws Exception {
+		List<String> sites = Arrays.asList("a", "b", "c", "d", "e");
+		DataModelBuilder.SourcePlan plan = new DataModelBuilder.SourcePlan(Arrays.asList("sites", "measurements"),
+				Arrays.asList(sites, null));
+		assertEquals(5, plan.getMaxSites());
+		DataModelBuilder.SourcePlan slice = plan.slice(3, 6);
+		assertEquals(Arrays.asList("d", "e"), slice.sites.get(0));
+		assertNull(slice.sites.get(1));
+		assertEquals(0, plan.slice(5, 10).getSiteCount());
+	}
+
+	@Test
+	public void testDownloadPages() throws Exception {
+		File file = File.createTempFile("water-RI-", ".csv.gz");
+		System.setProperty(StateExport.DOWNLOAD_LINES_PROPERTY, "2");
+		try {
+			Model model = SiteJoinTest.loadResponse();
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+			StateExport.BatchWriter writer = new StateExport.BatchWriter(out, StateExport.CSV);
+			long rows = writer.write(model);
+			writer.flush();
+			out.close();
+			StateExport.Job job = new StateExport.Job(UUID.randomUUID().toString(), file, StateExport.CSV, 1);
+			job.finish(null);
+			assertFalse(job.toJSON().has("file"));
+
+			StringBuilder data = new StringBuilder();
+			long offset = 0;
+			int pages = 0;
+			while(offset >= 0) {
+				JSONObject page = StateExport.read(job, offset);
+				assertEquals(offset, page.getLong("offset"));
+				data.append(page.getString("data"));
+				offset = page.getLong("next");
+				pages++;
+			}
+			String[] lines = data.toString().split("\n");
+			assertEquals(StateExport.CSV_HEADER, lines[0]);
+			assertEquals(rows + 1, lines.length);
+			assertEquals((rows + 2) / 2, pages);
+		}
+		finally {
+			System.clearProperty(StateExport.DOWNLOAD_LINES_PROPERTY);
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testDownloadUnknownExport() throws Exception {
+		try {
+			StateExport.getInstance().download(UUID.randomUUID().toString(), 0);
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testExpireDeletesOldExports() throws Exception {
+		File dir = File.createTempFile("export", "");
+		assertTrue(dir.delete() && dir.mkdir());
+		System.setProperty(StateExport.DIR_PROPERTY, dir.getPath());
+		try {
+			File export = new File(dir, "water-RI-"+UUID.randomUUID()+".nt.gz");
+			File other = new File(dir, "notes.txt");
+			assertTrue(export.createNewFile() && other.createNewFile());
+			StateExport.getInstance().expire(System.currentTimeMillis());
+			assertTrue(export.exists());
+			StateExport.getInstance().expire(System.currentTimeMillis() + 25 * 3600000L);
+			assertFalse(export.exists());
+			assertTrue(other.exists());
+			other.delete();
+		}
+		finally {
+			System.clearProperty(StateExport.DIR_PROPERTY);
+			dir.delete();
+		}
+	}
+
+}
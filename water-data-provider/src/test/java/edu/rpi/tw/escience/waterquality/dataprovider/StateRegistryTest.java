@@ -0,0 +1,27 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class StateRegistryTest extends TestCase {
+
+	@Test
+	public void testSnapshotLoaded() {
+		StateRegistry registry = StateRegistry.getInstance();
+		assertTrue(registry.size() >= 50);
+		long hits = registry.getHits();
+		assertEquals("http://logd.tw.rpi.edu/id/us/state/Rhode_Island", registry.lookup("RI"));
+		assertEquals("http://logd.tw.rpi.edu/id/us/state/New_York", registry.lookup("NY"));
+		assertEquals(hits + 2, registry.getHits());
+	}
+	
+	@Test
+	public void testMiss() {
+		StateRegistry registry = StateRegistry.getInstance();
+		long misses = registry.getMisses();
+		assertNull(registry.lookup("ZZ"));
+		assertEquals(misses + 1, registry.getMisses());
+	}
+	
+}
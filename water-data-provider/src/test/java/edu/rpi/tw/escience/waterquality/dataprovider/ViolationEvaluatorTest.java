@@ -0,0 +1,133 @@
+package edu.rpi.tw.escience.waterquality.dataprovider;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import junit.framework.TestCase;
+
+public class ViolationEvaluatorTest extends TestCase {
+
+	private static final String[] OPS = { "<=", ">=", ">" };
+	/**
+	 * SPARQL FILTER previously used by {@link DataModelBuilder#doEPAClosure(Model)}
+	 */
+	private static final String QUERY =
+			"PREFIX water: <http://escience.rpi.edu/ontology/semanteco/2/0/water.owl#>" +
+			"PREFIX pol: <http://escience.rpi.edu/ontology/semanteco/2/0/pollution.owl#>" +
+			"SELECT ?m WHERE { " +
+			"?m a water:WaterMeasurement ; " +
+			"pol:hasValue ?val ; " +
+			"pol:hasLimitOperator ?op ; " +
+			"pol:hasLimitValue ?lval " +
+			"FILTER((?op = \"<=\" && ?val > ?lval) || " +
+			"(?op = \">=\" && ?val < ?lval) || " +
+			"(?op = \">\" && ?val <= ?lval))" +
+			"}";
+
+	@Test
+	public void testOperators() {
+		assertTrue(ViolationEvaluator.isViolation("<=", 11, 10));
+		assertFalse(ViolationEvaluator.isViolation("<=", 10, 10));
+		assertTrue(ViolationEvaluator.isViolation("<", 10, 10));
+		assertFalse(ViolationEvaluator.isViolation("<", 9, 10));
+		assertTrue(ViolationEvaluator.isViolation(">=", 9, 10));
+		assertFalse(ViolationEvaluator.isViolation(">=", 10, 10));
+		assertTrue(ViolationEvaluator.isViolation(">", 10, 10));
+		assertFalse(ViolationEvaluator.isViolation(">", 11, 10));
+		assertFalse(ViolationEvaluator.isViolation("=", 11, 10));
+	}
+	
+	@Test
+	public void testEvaluate() {
+		Model model = ModelFactory.createDefaultModel();
+		Resource violation = model.createResource(QueryUtils.POL_NS+"RegulationViolation");
+		Resource m1 = addMeasurement(model, "m1", 12.5, "<=", 10);
+		Resource m2 = addMeasurement(model, "m2", 10, "<", 10);
+		Resource m3 = addMeasurement(model, "m3", 6.4, ">=", 6.5);
+		Resource m4 = addMeasurement(model, "m4", 7, ">=", 6.5);
+		Resource m5 = addMeasurement(model, "m5", 5, "<=", 10);
+		Resource other = model.createResource("http://example.com/m6");
+		other.addLiteral(model.createProperty(QueryUtils.POL_NS, "hasValue"), 100.0);
+		other.addProperty(model.createProperty(QueryUtils.POL_NS, "hasLimitOperator"), "<=");
+		other.addLiteral(model.createProperty(QueryUtils.POL_NS, "hasLimitValue"), 1.0);
+		
+		assertEquals(3, ViolationEvaluator.evaluate(model));
+		assertTrue(model.contains(m1, RDF.type, violation));
+		assertTrue(model.contains(m2, RDF.type, violation));
+		assertTrue(model.contains(m3, RDF.type, violation));
+		assertFalse(model.contains(m4, RDF.type, violation));
+		assertFalse(model.contains(m5, RDF.type, violation));
+		assertFalse(model.contains(other, RDF.type, violation));
+	}
+	
+	@Test
+	public void testIllTypedValueIsSkipped() {
+		Model model = ModelFactory.createDefaultModel();
+		Resource violation = model.createResource(QueryUtils.POL_NS+"RegulationViolation");
+		Resource m1 = addMeasurement(model, "m1", 12.5, "<=", 10);
+		Resource m2 = model.createResource("http://example.com/m2");
+		m2.addProperty(RDF.type, model.createResource(QueryUtils.WATER_NS+"WaterMeasurement"));
+		m2.addProperty(model.createProperty(QueryUtils.POL_NS, "hasValue"),
+				model.createTypedLiteral("n/a", XSDDatatype.XSDdouble));
+		m2.addProperty(model.createProperty(QueryUtils.POL_NS, "hasLimitOperator"), "<=");
+		m2.addLiteral(model.createProperty(QueryUtils.POL_NS, "hasLimitValue"), 1.0);
+
+		assertEquals(1, ViolationEvaluator.evaluate(model));
+		assertTrue(model.contains(m1, RDF.type, violation));
+		assertFalse(model.contains(m2, RDF.type, violation));
+	}
+
+	@Test
+	public void testMatchesSparqlFilter() {
+		final Model model = ModelFactory.createDefaultModel();
+		final Random random = new Random(42);
+		for(int i=0;i<1000;i++) {
+			addMeasurement(model, "m"+i, random.nextInt(40) / 2.0, OPS[random.nextInt(OPS.length)], 10);
+		}
+		final Set<Resource> expected = new HashSet<Resource>();
+		final QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(QUERY, Syntax.syntaxSPARQL_11), model);
+		try {
+			final ResultSet rs = qe.execSelect();
+			while(rs.hasNext()) {
+				expected.add(rs.next().getResource("m"));
+			}
+		}
+		finally {
+			qe.close();
+		}
+		assertFalse(expected.isEmpty());
+
+		assertEquals(expected.size(), ViolationEvaluator.evaluate(model));
+		final Set<Resource> actual = new HashSet<Resource>(model.listSubjectsWithProperty(RDF.type,
+				model.createResource(QueryUtils.POL_NS+"RegulationViolation")).toList());
+		assertEquals(expected, actual);
+	}
+
+	static Resource addMeasurement(Model model, String name, double value, String op, double limit) {
+		Property hasValue = model.createProperty(QueryUtils.POL_NS, "hasValue");
+		Property hasLimitOperator = model.createProperty(QueryUtils.POL_NS, "hasLimitOperator");
+		Property hasLimitValue = model.createProperty(QueryUtils.POL_NS, "hasLimitValue");
+		Resource m = model.createResource("http://example.com/"+name);
+		m.addProperty(RDF.type, model.createResource(QueryUtils.WATER_NS+"WaterMeasurement"));
+		m.addLiteral(hasValue, value);
+		m.addProperty(hasLimitOperator, op);
+		m.addLiteral(hasLimitValue, limit);
+		return m;
+	}
+	
+}